@@ -0,0 +1,135 @@
+package com.bazaarvoice.soa.pool;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.bazaarvoice.soa.ServiceFactory;
+import org.apache.commons.pool.BaseKeyedPoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares checking service instances out and back in with {@link ServiceCache} against the commons-pool
+ * {@code GenericKeyedObjectPool} it replaced, with several threads sharing a few end points.  Creating an instance is
+ * free here, so the numbers are the cost of the cache's own bookkeeping.
+ * <p/>
+ * Run with {@code java -jar benchmarks/target/benchmarks.jar ServiceCacheBenchmark -t <threads>} after building with
+ * {@code mvn -P benchmarks package}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ServiceCacheBenchmark {
+    @Param({"1", "16"})
+    public int numEndPoints;
+
+    private ServiceEndPoint[] _endPoints;
+    private ServiceCache<Object> _serviceCache;
+    private GenericKeyedObjectPool<ServiceEndPoint, Object> _commonsPool;
+
+    @Setup
+    public void setup() {
+        _endPoints = new ServiceEndPoint[numEndPoints];
+        for (int i = 0; i < numEndPoints; i++) {
+            _endPoints[i] = new ServiceEndPointBuilder()
+                    .withServiceName("Benchmark")
+                    .withId("server-" + i + ":8080")
+                    .build();
+        }
+
+        // Neither pool limits the number of instances, so that the benchmark never waits or fails.
+        ServiceCachingPolicy policy = new ServiceCachingPolicyBuilder().build();
+        _serviceCache = new ServiceCache<Object>(policy, new BenchmarkServiceFactory());
+
+        GenericKeyedObjectPool.Config poolConfig = new GenericKeyedObjectPool.Config();
+        poolConfig.maxTotal = -1;
+        poolConfig.maxActive = -1;
+        poolConfig.maxIdle = -1;
+        _commonsPool = new GenericKeyedObjectPool<ServiceEndPoint, Object>(
+                new BaseKeyedPoolableObjectFactory<ServiceEndPoint, Object>() {
+                    @Override
+                    public Object makeObject(ServiceEndPoint endPoint) {
+                        return new Object();
+                    }
+                }, poolConfig);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        _serviceCache.close();
+        _commonsPool.close();
+    }
+
+    @Benchmark
+    public Object serviceCache(EndPointChooser chooser) throws Exception {
+        ServiceCache.ServiceHandle<Object> handle = _serviceCache.checkOut(chooser.next(_endPoints));
+        _serviceCache.checkIn(handle);
+        return handle.getService();
+    }
+
+    @Benchmark
+    public Object commonsPool(EndPointChooser chooser) throws Exception {
+        ServiceEndPoint endPoint = chooser.next(_endPoints);
+        Object service = _commonsPool.borrowObject(endPoint);
+        _commonsPool.returnObject(endPoint, service);
+        return service;
+    }
+
+    /** Cycles each thread through the end points, starting from a different end point in every thread. */
+    @State(Scope.Thread)
+    public static class EndPointChooser {
+        private int _next = (int) Thread.currentThread().getId();
+
+        ServiceEndPoint next(ServiceEndPoint[] endPoints) {
+            _next = (_next + 1) % endPoints.length;
+            return endPoints[_next];
+        }
+    }
+
+    private static class BenchmarkServiceFactory implements ServiceFactory<Object> {
+        @Override
+        public String getServiceName() {
+            return "Benchmark";
+        }
+
+        @Override
+        public void configure(ServicePoolBuilder<Object> servicePoolBuilder) {
+        }
+
+        @Override
+        public Object create(ServiceEndPoint endPoint) {
+            return new Object();
+        }
+
+        @Override
+        public void destroy(ServiceEndPoint endPoint, Object service) {
+        }
+
+        @Override
+        public boolean isHealthy(ServiceEndPoint endPoint) {
+            return true;
+        }
+
+        @Override
+        public boolean isRetriableException(Exception exception) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.bazaarvoice.soa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/** An end point with its decoded payload, see {@link ServiceEndPoints#getDecodedPayload}.  Equal to the end point. */
+final class DecodedServiceEndPoint implements ServiceEndPoint {
+    private final ServiceEndPoint _endPoint;
+    private final Object _decodedPayload;
+
+    DecodedServiceEndPoint(ServiceEndPoint endPoint, Object decodedPayload) {
+        _endPoint = checkNotNull(endPoint);
+        _decodedPayload = decodedPayload;
+    }
+
+    ServiceEndPoint getEndPoint() {
+        return _endPoint;
+    }
+
+    Object getDecodedPayload() {
+        return _decodedPayload;
+    }
+
+    @Override
+    public String getServiceName() {
+        return _endPoint.getServiceName();
+    }
+
+    @Override
+    public String getId() {
+        return _endPoint.getId();
+    }
+
+    @Override
+    public String getPayload() {
+        return _endPoint.getPayload();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return this == obj || _endPoint.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return _endPoint.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return _endPoint.toString();
+    }
+}
@@ -0,0 +1,20 @@
+package com.bazaarvoice.soa;
+
+/**
+ * Turns the payload of an end point into an object, so that partition filters, load balance algorithms and service
+ * factories can use it without parsing {@link ServiceEndPoint#getPayload()} on every request.  A service pool calls
+ * the decoder once for each end point it discovers, and the result is available from
+ * {@link ServiceEndPoints#getDecodedPayload}.
+ *
+ * @param <P> The type of the decoded payload.
+ */
+public interface PayloadDecoder<P> {
+    /**
+     * Decodes the payload of an end point.  An exception means the payload is malformed, in which case the end point
+     * has no decoded payload.
+     *
+     * @param endPoint The end point to decode the payload of.
+     * @return The decoded payload.
+     */
+    P decode(ServiceEndPoint endPoint);
+}
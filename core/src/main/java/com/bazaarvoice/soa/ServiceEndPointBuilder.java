@@ -21,6 +21,7 @@ public class ServiceEndPointBuilder {
     private Optional<String> _serviceName = Optional.absent();
     private Optional<String> _id = Optional.absent();
     private Optional<String> _payload = Optional.absent();
+    private Optional<String> _zone = Optional.absent();
 
     public ServiceEndPointBuilder withServiceName(String serviceName) {
         checkArgument(!Strings.isNullOrEmpty(serviceName) && VALID_CHARACTERS.matchesAllOf(serviceName));
@@ -41,50 +42,75 @@ public class ServiceEndPointBuilder {
         return this;
     }
 
+    public ServiceEndPointBuilder withZone(String zone) {
+        checkArgument(zone == null || (!zone.isEmpty() && VALID_CHARACTERS.matchesAllOf(zone)));
+
+        _zone = Optional.fromNullable(zone);
+        return this;
+    }
+
     public ServiceEndPoint build() {
-        final String serviceName = _serviceName.get();
-        final String id = _id.get();
-        final String payload = _payload.orNull();
-
-        return new ServiceEndPoint() {
-            @Override
-            public String getServiceName() {
-                return serviceName;
-            }
-
-            @Override
-            public String getId() {
-                return id;
-            }
-
-            @Override
-            public String getPayload() {
-                return payload;
-            }
-
-            @Override
-            public int hashCode() {
-                return Objects.hashCode(serviceName, id);
-            }
-
-            @Override
-            public boolean equals(Object obj) {
-                if (this == obj) return true;
-                if (!(obj instanceof ServiceEndPoint)) return false;
-
-                ServiceEndPoint that = (ServiceEndPoint) obj;
-                return Objects.equal(serviceName, that.getServiceName())
-                        && Objects.equal(id, that.getId())
-                        && Objects.equal(payload, that.getPayload());
-            }
-
-            @Override
-            public String toString() {
-                return Objects.toStringHelper("ServiceEndPoint")
-                        .add("name", serviceName)
-                        .add("id", id)
-                        .toString();
-            }
-        };
+        return new BuiltServiceEndPoint(_serviceName.get(), _id.get(), _payload.orNull(), _zone.orNull());
+    }
+
+    /** Built end points also know their zone, see {@link ServiceEndPoints#getZone}. */
+    static final class BuiltServiceEndPoint implements ServiceEndPoint {
+        private final String _serviceName;
+        private final String _id;
+        private final String _payload;
+        private final String _zone;
+
+        private BuiltServiceEndPoint(String serviceName, String id, String payload, String zone) {
+            _serviceName = serviceName;
+            _id = id;
+            _payload = payload;
+            _zone = zone;
+        }
+
+        @Override
+        public String getServiceName() {
+            return _serviceName;
+        }
+
+        @Override
+        public String getId() {
+            return _id;
+        }
+
+        @Override
+        public String getPayload() {
+            return _payload;
+        }
+
+        String getZone() {
+            return _zone;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(_serviceName, _id);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof ServiceEndPoint)) return false;
+
+            ServiceEndPoint that = (ServiceEndPoint) obj;
+            return Objects.equal(_serviceName, that.getServiceName())
+                    && Objects.equal(_id, that.getId())
+                    && Objects.equal(_payload, that.getPayload())
+                    && Objects.equal(_zone, ServiceEndPoints.getZone(that));
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper("ServiceEndPoint")
+                    .add("name", _serviceName)
+                    .add("id", _id)
+                    .add("zone", _zone)
+                    .omitNullValues()
+                    .toString();
+        }
     }
 }
@@ -13,6 +13,10 @@ public final class ServiceEndPointJsonCodec {
         data.put("name", endPoint.getServiceName());
         data.put("id", endPoint.getId());
         data.put("payload", endPoint.getPayload());
+        String zone = ServiceEndPoints.getZone(endPoint);
+        if (zone != null) {
+            data.put("zone", zone);
+        }
         return JsonHelper.toJson(data);
     }
 
@@ -25,11 +29,13 @@ public final class ServiceEndPointJsonCodec {
         String name = (String) checkNotNull(data.get("name"));
         String id = (String) checkNotNull(data.get("id"));
         String payload = (String) data.get("payload");
+        String zone = (String) data.get("zone");
 
         return new ServiceEndPointBuilder()
                 .withServiceName(name)
                 .withId(id)
                 .withPayload(payload)
+                .withZone(zone)
                 .build();
     }
 
@@ -0,0 +1,61 @@
+package com.bazaarvoice.soa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Helpers for the optional attributes of {@link ServiceEndPoint}s.  They aren't part of the interface, so existing
+ * implementations of it keep working and simply don't have them.
+ */
+public final class ServiceEndPoints {
+    /**
+     * Returns the availability zone, rack or other failure domain an end point runs in, used to prefer nearby end
+     * points.
+     *
+     * @return The zone the end point was built or registered with, or {@code null} if unknown.
+     */
+    public static String getZone(ServiceEndPoint endPoint) {
+        checkNotNull(endPoint);
+
+        if (endPoint instanceof DecodedServiceEndPoint) {
+            endPoint = ((DecodedServiceEndPoint) endPoint).getEndPoint();
+        }
+        return (endPoint instanceof ServiceEndPointBuilder.BuiltServiceEndPoint)
+                ? ((ServiceEndPointBuilder.BuiltServiceEndPoint) endPoint).getZone()
+                : null;
+    }
+
+    /**
+     * Returns the payload of an end point as decoded by the {@link PayloadDecoder} of the service pool that handed it
+     * out, which decodes it once when the end point is discovered.
+     *
+     * @param type The type the decoder returns.
+     * @return The decoded payload, or {@code null} if the end point didn't come from a pool with a decoder or the
+     *         payload couldn't be decoded.
+     * @throws ClassCastException If the decoded payload isn't of the given type.
+     */
+    public static <P> P getDecodedPayload(ServiceEndPoint endPoint, Class<P> type) {
+        checkNotNull(endPoint);
+        checkNotNull(type);
+
+        return (endPoint instanceof DecodedServiceEndPoint)
+                ? type.cast(((DecodedServiceEndPoint) endPoint).getDecodedPayload())
+                : null;
+    }
+
+    /**
+     * Returns an end point equal to the given one that carries a decoded payload.  Service pools use this to hand out
+     * the end points they decoded.
+     */
+    public static ServiceEndPoint withDecodedPayload(ServiceEndPoint endPoint, Object decodedPayload) {
+        checkNotNull(endPoint);
+
+        if (endPoint instanceof DecodedServiceEndPoint) {
+            endPoint = ((DecodedServiceEndPoint) endPoint).getEndPoint();
+        }
+        return new DecodedServiceEndPoint(endPoint, decodedPayload);
+    }
+
+    // Private, not instantiable.
+    private ServiceEndPoints() {
+    }
+}
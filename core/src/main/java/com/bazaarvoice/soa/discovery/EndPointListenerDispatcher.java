@@ -0,0 +1,167 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.HostDiscovery.EndPointListener;
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yammer.metrics.core.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Delivers end point events to {@link EndPointListener}s on an executor instead of the thread that noticed the change,
+ * which for ZooKeeper is the event thread shared by every service on the connection.
+ * <p/>
+ * Each listener has its own queue and sees its events in the order they happened, one at a time.  Different listeners
+ * are called independently, so a slow listener only delays its own events.
+ */
+class EndPointListenerDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(EndPointListenerDispatcher.class);
+
+    private static final int NUM_DEFAULT_THREADS = 2;
+
+    /** Shared by every discovery that isn't given an executor of its own. */
+    static final Executor DEFAULT_EXECUTOR = Executors.newFixedThreadPool(NUM_DEFAULT_THREADS,
+            new ThreadFactoryBuilder()
+                    .setNameFormat("HostDiscovery-ListenerDispatcher-%d")
+                    .setDaemon(true)
+                    .build());
+
+    private final Executor _executor;
+    private final Ticker _ticker;
+    private final Timer _queueLag;
+    private final ConcurrentMap<EndPointListener, ListenerQueue> _queues = Maps.newConcurrentMap();
+    private final AtomicInteger _numQueuedEvents = new AtomicInteger();
+
+    /**
+     * @param queueLag Records how long events wait in a queue before their listener is called.
+     */
+    EndPointListenerDispatcher(Executor executor, Ticker ticker, Timer queueLag) {
+        _executor = checkNotNull(executor);
+        _ticker = checkNotNull(ticker);
+        _queueLag = checkNotNull(queueLag);
+    }
+
+    void addListener(EndPointListener listener) {
+        checkNotNull(listener);
+        _queues.putIfAbsent(listener, new ListenerQueue(listener));
+    }
+
+    /** Removes a listener.  Events still waiting in its queue are dropped. */
+    void removeListener(EndPointListener listener) {
+        ListenerQueue queue = _queues.remove(listener);
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    int getNumQueuedEvents() {
+        return _numQueuedEvents.get();
+    }
+
+    void fireAdded(ServiceEndPoint endPoint) {
+        dispatch(endPoint, true);
+    }
+
+    void fireRemoved(ServiceEndPoint endPoint) {
+        dispatch(endPoint, false);
+    }
+
+    private void dispatch(ServiceEndPoint endPoint, boolean added) {
+        long now = _ticker.read();
+        for (ListenerQueue queue : _queues.values()) {
+            queue.add(new Event(endPoint, added, now));
+        }
+    }
+
+    private static final class Event {
+        private final ServiceEndPoint _endPoint;
+        private final boolean _added;
+        private final long _queuedAtNanos;
+
+        private Event(ServiceEndPoint endPoint, boolean added, long queuedAtNanos) {
+            _endPoint = endPoint;
+            _added = added;
+            _queuedAtNanos = queuedAtNanos;
+        }
+    }
+
+    /** The events of one listener.  At most one task drains it at a time, which keeps the events in order. */
+    private final class ListenerQueue implements Runnable {
+        private final EndPointListener _listener;
+        private final Queue<Event> _events = new ConcurrentLinkedQueue<Event>();
+        private final AtomicBoolean _draining = new AtomicBoolean();
+        private volatile boolean _removed;
+
+        private ListenerQueue(EndPointListener listener) {
+            _listener = listener;
+        }
+
+        void add(Event event) {
+            _events.add(event);
+            _numQueuedEvents.incrementAndGet();
+            scheduleDrain();
+        }
+
+        void clear() {
+            _removed = true;
+            while (_events.poll() != null) {
+                _numQueuedEvents.decrementAndGet();
+            }
+        }
+
+        private void scheduleDrain() {
+            if (_draining.compareAndSet(false, true)) {
+                try {
+                    _executor.execute(this);
+                } catch (RuntimeException e) {
+                    _draining.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Event event;
+                while (!_removed && (event = _events.poll()) != null) {
+                    _numQueuedEvents.decrementAndGet();
+                    _queueLag.update(_ticker.read() - event._queuedAtNanos, TimeUnit.NANOSECONDS);
+                    deliver(event);
+                }
+            } finally {
+                _draining.set(false);
+            }
+
+            // An event may have been added after the queue looked empty but before the flag was cleared.
+            if (!_removed && !_events.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+
+        private void deliver(Event event) {
+            try {
+                if (event._added) {
+                    _listener.onEndPointAdded(event._endPoint);
+                } else {
+                    _listener.onEndPointRemoved(event._endPoint);
+                }
+            } catch (Exception e) {
+                LOG.error("End point listener failed.", e);
+            }
+        }
+    }
+}
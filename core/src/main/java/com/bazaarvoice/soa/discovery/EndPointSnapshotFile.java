@@ -0,0 +1,180 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.bazaarvoice.soa.ServiceEndPoints;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Closeables;
+import com.google.common.io.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A local copy of the end points of one service, so that a client can start serving traffic before ZooKeeper answers,
+ * or at all while ZooKeeper is down.
+ * <p/>
+ * The file is a short header followed by the ID, payload and zone of each end point as length-prefixed UTF-8, which
+ * reads in a single pass without any parsing.  It is written to a temporary file that is then renamed over the old
+ * one, so readers see either the old end points or the new ones, never a partial write.  Each write uses a temporary
+ * file of its own, so that several processes sharing the snapshot directory don't write over each other's.
+ */
+class EndPointSnapshotFile {
+    private static final Logger LOG = LoggerFactory.getLogger(EndPointSnapshotFile.class);
+
+    /** "OSS" plus a format version, bumped whenever the layout changes. */
+    private static final int MAGIC = 0x4F535302;
+
+    private final File _file;
+    private final String _serviceName;
+
+    EndPointSnapshotFile(File file, String serviceName) {
+        checkNotNull(file);
+        checkNotNull(serviceName);
+        checkArgument(!"".equals(serviceName));
+
+        _file = file;
+        _serviceName = serviceName;
+    }
+
+    File getFile() {
+        return _file;
+    }
+
+    /**
+     * Reads the saved end points.  A missing, unreadable or corrupt file is treated as having no end points, since
+     * ZooKeeper will provide them eventually anyway.
+     */
+    ImmutableSet<ServiceEndPoint> read() {
+        SnapshotInput in;
+        try {
+            in = new SnapshotInput(new FileInputStream(_file), _file.length());
+        } catch (FileNotFoundException e) {
+            return ImmutableSet.of();
+        }
+
+        try {
+            if (in.readInt() != MAGIC || !_serviceName.equals(in.readString())) {
+                LOG.warn("Ignoring end point snapshot that isn't for this service or version: {}", _file);
+                return ImmutableSet.of();
+            }
+
+            int numEndPoints = in.readInt();
+            ImmutableSet.Builder<ServiceEndPoint> endPoints = ImmutableSet.builder();
+            for (int i = 0; i < numEndPoints; i++) {
+                String id = in.readString();
+                String payload = in.readOptionalString();
+                String zone = in.readOptionalString();
+                endPoints.add(new ServiceEndPointBuilder()
+                        .withServiceName(_serviceName)
+                        .withId(id)
+                        .withPayload(payload)
+                        .withZone(zone)
+                        .build());
+            }
+            return endPoints.build();
+        } catch (Exception e) {
+            LOG.warn("Unable to read end point snapshot: " + _file, e);
+            return ImmutableSet.of();
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /** Atomically replaces the saved end points. */
+    void write(Iterable<ServiceEndPoint> endPoints) throws IOException {
+        ImmutableSet<ServiceEndPoint> copy = ImmutableSet.copyOf(endPoints);
+
+        File dir = _file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create directory: " + dir);
+        }
+
+        File tmp = File.createTempFile("." + _file.getName() + ".", ".tmp", dir);
+        FileOutputStream fileOut = null;
+        boolean written = false;
+        try {
+            fileOut = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(MAGIC);
+            writeString(out, _serviceName);
+            out.writeInt(copy.size());
+            for (ServiceEndPoint endPoint : copy) {
+                writeString(out, endPoint.getId());
+                writeOptionalString(out, endPoint.getPayload());
+                writeOptionalString(out, ServiceEndPoints.getZone(endPoint));
+            }
+            out.flush();
+            fileOut.getFD().sync();
+            written = true;
+        } finally {
+            Closeables.close(fileOut, !written);
+            if (!written) {
+                tmp.delete();
+            }
+        }
+
+        // Rename replaces the old file atomically on POSIX file systems.  Others refuse to rename over an existing
+        // file, so fall back to deleting it first.
+        if (!tmp.renameTo(_file) && !(_file.delete() && tmp.renameTo(_file))) {
+            tmp.delete();
+            throw new IOException("Unable to replace end point snapshot: " + _file);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeOptionalString(DataOutputStream out, String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            writeString(out, string);
+        }
+    }
+
+    /** Reads a snapshot, refusing string lengths that don't fit in what's left of the file. */
+    private static final class SnapshotInput extends DataInputStream {
+        private final CountingInputStream _counter;
+        private final long _length;
+
+        SnapshotInput(FileInputStream in, long length) {
+            this(new CountingInputStream(new BufferedInputStream(in)), length);
+        }
+
+        private SnapshotInput(CountingInputStream counter, long length) {
+            super(counter);
+            _counter = counter;
+            _length = length;
+        }
+
+        String readString() throws IOException {
+            int length = readInt();
+            if (length < 0 || length > _length - _counter.getCount()) {
+                throw new IOException("Invalid string length in end point snapshot: " + length);
+            }
+            byte[] bytes = new byte[length];
+            readFully(bytes);
+            return new String(bytes, Charsets.UTF_8);
+        }
+
+        String readOptionalString() throws IOException {
+            return readBoolean() ? readString() : null;
+        }
+    }
+}
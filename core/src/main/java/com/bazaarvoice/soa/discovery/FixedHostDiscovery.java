@@ -1,35 +1,38 @@
 package com.bazaarvoice.soa.discovery;
 
-import com.bazaarvoice.soa.HostDiscovery;
 import com.bazaarvoice.soa.ServiceEndPoint;
 import com.google.common.collect.ImmutableSet;
 
 import java.io.IOException;
-import java.util.Set;
 
 /**
  * Hard-coded list of service end points.  Useful in cross data-center configurations where ZooKeeper is not
  * appropriate and for testing in local environments that don't need to use ZooKeeper.
  */
-public class FixedHostDiscovery implements HostDiscovery {
-    private final Set<ServiceEndPoint> _endPoints;
+public class FixedHostDiscovery implements SnapshotHostDiscovery {
+    private final HostDiscoverySnapshot _snapshot;
 
     public FixedHostDiscovery(ServiceEndPoint... endPoints) {
-        _endPoints = ImmutableSet.copyOf(endPoints);
+        this(ImmutableSet.copyOf(endPoints));
     }
 
     public FixedHostDiscovery(Iterable<ServiceEndPoint> endPoints) {
-        _endPoints = ImmutableSet.copyOf(endPoints);
+        _snapshot = new HostDiscoverySnapshot(0, endPoints);
     }
 
     @Override
     public Iterable<ServiceEndPoint> getHosts() {
-        return _endPoints;
+        return _snapshot.getEndPoints();
     }
 
     @Override
     public boolean contains(ServiceEndPoint endPoint) {
-        return _endPoints.contains(endPoint);
+        return _snapshot.getEndPoints().contains(endPoint);
+    }
+
+    @Override
+    public HostDiscoverySnapshot getSnapshot() {
+        return _snapshot;
     }
 
     @Override
@@ -42,6 +45,16 @@ public class FixedHostDiscovery implements HostDiscovery {
         // Nothing to do, end point collection never changes.
     }
 
+    @Override
+    public void addTopologyListener(TopologyListener listener) {
+        // Nothing to do, end point collection never changes.
+    }
+
+    @Override
+    public void removeTopologyListener(TopologyListener listener) {
+        // Nothing to do, end point collection never changes.
+    }
+
     @Override
     public void close() throws IOException {
         // Nothing to do
@@ -0,0 +1,57 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.google.common.collect.ImmutableSet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An immutable view of the end points known to a {@link SnapshotHostDiscovery} at one moment.
+ * <p/>
+ * Every change to the set of end points produces a new snapshot with a higher generation, so consumers can cache
+ * structures derived from the end points and only rebuild them when the generation changes.
+ */
+public final class HostDiscoverySnapshot {
+    private final long _generation;
+    private final ImmutableSet<ServiceEndPoint> _endPoints;
+
+    public HostDiscoverySnapshot(long generation, Iterable<ServiceEndPoint> endPoints) {
+        _generation = generation;
+        _endPoints = ImmutableSet.copyOf(checkNotNull(endPoints));
+    }
+
+    /** Returns a number that increases every time the set of end points changes. */
+    public long getGeneration() {
+        return _generation;
+    }
+
+    public ImmutableSet<ServiceEndPoint> getEndPoints() {
+        return _endPoints;
+    }
+
+    /** Returns a snapshot of the next generation with an end point added. */
+    HostDiscoverySnapshot plus(ServiceEndPoint endPoint) {
+        return new HostDiscoverySnapshot(_generation + 1,
+                ImmutableSet.<ServiceEndPoint>builder().addAll(_endPoints).add(endPoint).build());
+    }
+
+    /** Returns a snapshot of the next generation with the end point that has the same ID replaced by the given one. */
+    HostDiscoverySnapshot replace(ServiceEndPoint endPoint) {
+        ImmutableSet.Builder<ServiceEndPoint> builder = ImmutableSet.builder();
+        for (ServiceEndPoint existing : _endPoints) {
+            builder.add(existing.getId().equals(endPoint.getId()) ? endPoint : existing);
+        }
+        return new HostDiscoverySnapshot(_generation + 1, builder.build());
+    }
+
+    /** Returns a snapshot of the next generation with an end point removed. */
+    HostDiscoverySnapshot minus(ServiceEndPoint endPoint) {
+        ImmutableSet.Builder<ServiceEndPoint> builder = ImmutableSet.builder();
+        for (ServiceEndPoint existing : _endPoints) {
+            if (!existing.equals(endPoint)) {
+                builder.add(existing);
+            }
+        }
+        return new HostDiscoverySnapshot(_generation + 1, builder.build());
+    }
+}
@@ -0,0 +1,188 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.HostDiscovery;
+import com.bazaarvoice.soa.HostDiscoverySource;
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A {@link HostDiscoverySource} that shares one {@link HostDiscovery} per service among everyone that asks for it,
+ * so that several pools of the same service, ex. with different policies, use one ZooKeeper watch and one set of
+ * parsed end points instead of one each.
+ * <p/>
+ * The first request for a service gets a {@code HostDiscovery} from the wrapped source.  Every request returns a
+ * separate handle that must be closed when it's no longer used, like any other {@code HostDiscovery}.  Once every
+ * handle for a service is closed, the shared {@code HostDiscovery} is closed too and the next request starts over.
+ * Use a single instance of this class, ex. a static one, for every pool that should share discovery.
+ */
+public class SharedHostDiscoverySource implements HostDiscoverySource {
+    private final HostDiscoverySource _source;
+
+    // Guarded by this.
+    private final Map<String, SharedHostDiscovery> _shared = Maps.newHashMap();
+
+    /**
+     * @param source The source of the {@link HostDiscovery} instances to share.
+     */
+    public SharedHostDiscoverySource(HostDiscoverySource source) {
+        _source = checkNotNull(source);
+    }
+
+    @Override
+    public synchronized HostDiscovery forService(String serviceName) {
+        SharedHostDiscovery shared = _shared.get(serviceName);
+        if (shared == null) {
+            HostDiscovery hostDiscovery = _source.forService(serviceName);
+            if (hostDiscovery == null) {
+                return null;
+            }
+            shared = new SharedHostDiscovery(serviceName, hostDiscovery);
+            _shared.put(serviceName, shared);
+        }
+        shared._numReferences++;
+
+        return (shared._hostDiscovery instanceof SnapshotHostDiscovery)
+                ? new SnapshotLease(shared)
+                : new Lease(shared);
+    }
+
+    /** Returns the number of open handles to the shared {@link HostDiscovery} of a service. */
+    @VisibleForTesting
+    synchronized int getNumReferences(String serviceName) {
+        SharedHostDiscovery shared = _shared.get(serviceName);
+        return (shared != null) ? shared._numReferences : 0;
+    }
+
+    private void release(SharedHostDiscovery shared) {
+        synchronized (this) {
+            checkState(shared._numReferences > 0);
+            if (--shared._numReferences > 0) {
+                return;
+            }
+            _shared.remove(shared._serviceName);
+        }
+        Closeables.closeQuietly(shared._hostDiscovery);
+    }
+
+    private static final class SharedHostDiscovery {
+        private final String _serviceName;
+        private final HostDiscovery _hostDiscovery;
+        private int _numReferences;  // Guarded by the source.
+
+        private SharedHostDiscovery(String serviceName, HostDiscovery hostDiscovery) {
+            _serviceName = serviceName;
+            _hostDiscovery = hostDiscovery;
+        }
+    }
+
+    /**
+     * One user's handle to a shared {@link HostDiscovery}.  Closing it removes the listeners added through it, so no
+     * more can be added once it's closed.
+     */
+    private class Lease implements HostDiscovery {
+        final SharedHostDiscovery _shared;
+        private final Set<EndPointListener> _listeners =
+                Sets.newSetFromMap(Maps.<EndPointListener, Boolean>newConcurrentMap());
+        final AtomicBoolean _closed = new AtomicBoolean();
+
+        Lease(SharedHostDiscovery shared) {
+            _shared = shared;
+        }
+
+        @Override
+        public Iterable<ServiceEndPoint> getHosts() {
+            checkState(!_closed.get(), "Host discovery is closed");
+            return _shared._hostDiscovery.getHosts();
+        }
+
+        @Override
+        public boolean contains(ServiceEndPoint endPoint) {
+            checkState(!_closed.get(), "Host discovery is closed");
+            return _shared._hostDiscovery.contains(endPoint);
+        }
+
+        @Override
+        public synchronized void addListener(EndPointListener listener) {
+            checkState(!_closed.get(), "Host discovery is closed");
+            _listeners.add(listener);
+            _shared._hostDiscovery.addListener(listener);
+        }
+
+        @Override
+        public void removeListener(EndPointListener listener) {
+            _listeners.remove(listener);
+            _shared._hostDiscovery.removeListener(listener);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Synchronized with adding listeners, so that none is added after the listeners are removed.
+            synchronized (this) {
+                if (!_closed.compareAndSet(false, true)) {
+                    return;
+                }
+                removeListeners();
+            }
+            release(_shared);
+        }
+
+        void removeListeners() {
+            for (EndPointListener listener : _listeners) {
+                _shared._hostDiscovery.removeListener(listener);
+            }
+            _listeners.clear();
+        }
+    }
+
+    private class SnapshotLease extends Lease implements SnapshotHostDiscovery {
+        private final Set<TopologyListener> _topologyListeners =
+                Sets.newSetFromMap(Maps.<TopologyListener, Boolean>newConcurrentMap());
+
+        SnapshotLease(SharedHostDiscovery shared) {
+            super(shared);
+        }
+
+        private SnapshotHostDiscovery getHostDiscovery() {
+            return (SnapshotHostDiscovery) _shared._hostDiscovery;
+        }
+
+        @Override
+        public HostDiscoverySnapshot getSnapshot() {
+            checkState(!_closed.get(), "Host discovery is closed");
+            return getHostDiscovery().getSnapshot();
+        }
+
+        @Override
+        public synchronized void addTopologyListener(TopologyListener listener) {
+            checkState(!_closed.get(), "Host discovery is closed");
+            _topologyListeners.add(listener);
+            getHostDiscovery().addTopologyListener(listener);
+        }
+
+        @Override
+        public void removeTopologyListener(TopologyListener listener) {
+            _topologyListeners.remove(listener);
+            getHostDiscovery().removeTopologyListener(listener);
+        }
+
+        @Override
+        void removeListeners() {
+            super.removeListeners();
+            for (TopologyListener listener : _topologyListeners) {
+                getHostDiscovery().removeTopologyListener(listener);
+            }
+            _topologyListeners.clear();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.HostDiscovery;
+
+/**
+ * A {@link HostDiscovery} that can hand out an immutable snapshot of its end points, tagged with a generation number.
+ * {@link #getHosts()} returns the end points of the current snapshot, so iterating them is never affected by changes
+ * that happen meanwhile.
+ */
+public interface SnapshotHostDiscovery extends HostDiscovery {
+    /**
+     * Returns the current snapshot of end points.  The snapshot is replaced, never modified, when the end points
+     * change.
+     */
+    HostDiscoverySnapshot getSnapshot();
+
+    /**
+     * Add a listener that is told about changes to the end points in batches, one {@link TopologyDelta} per short
+     * window, rather than once per end point.  A delta may repeat changes that happened shortly before the listener
+     * was added.
+     *
+     * @param listener The topology listener to add.
+     */
+    void addTopologyListener(TopologyListener listener);
+
+    /**
+     * Remove a topology listener.
+     *
+     * @param listener The topology listener to remove.
+     */
+    void removeTopologyListener(TopologyListener listener);
+}
@@ -0,0 +1,186 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Coalesces changes to the end points of a {@link SnapshotHostDiscovery} into one {@link TopologyDelta} per window.
+ * The first change after a quiet period opens a window, and once the window closes listeners receive the net change
+ * between the snapshot they last saw and the current one.  A burst of changes, such as a large deploy or ZooKeeper
+ * reconnecting, is delivered as a handful of deltas instead of an event per end point.
+ * <p/>
+ * The scheduler only opens and closes windows.  Like {@link EndPointListenerDispatcher}, each listener has its own
+ * queue of deltas that is drained on an executor, so it sees its deltas in order and one at a time, and a slow listener
+ * only delays its own deltas.
+ */
+class TopologyBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(TopologyBatcher.class);
+    /** Shared by every discovery that isn't given a scheduler of its own, it never calls listeners itself. */
+    static final ScheduledExecutorService DEFAULT_EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("HostDiscovery-TopologyBatcher-%d")
+                    .setDaemon(true)
+                    .build());
+
+    private final Supplier<HostDiscoverySnapshot> _snapshots;
+    private final ScheduledExecutorService _scheduler;
+    private final Executor _listenerExecutor;
+    private final long _windowMillis;
+    private final ConcurrentMap<TopologyListener, ListenerQueue> _queues = Maps.newConcurrentMap();
+    private final Runnable _deliverer = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    // Guarded by this.
+    private boolean _isDeliveryScheduled;
+
+    // Guarded by _deliverer, so that deltas are computed and queued one at a time and in order.
+    private HostDiscoverySnapshot _lastDelivered;
+
+    private volatile boolean _isClosed;
+
+    /**
+     * @param scheduler        Opens and closes the windows.
+     * @param listenerExecutor Calls the listeners, unless they're added with an executor of their own.
+     */
+    TopologyBatcher(Supplier<HostDiscoverySnapshot> snapshots, ScheduledExecutorService scheduler,
+                    Executor listenerExecutor, long windowMillis) {
+        checkArgument(windowMillis >= 0);
+
+        _snapshots = checkNotNull(snapshots);
+        _scheduler = checkNotNull(scheduler);
+        _listenerExecutor = checkNotNull(listenerExecutor);
+        _windowMillis = windowMillis;
+        _lastDelivered = snapshots.get();
+    }
+
+    void addListener(TopologyListener listener) {
+        addListener(listener, _listenerExecutor);
+    }
+
+    /** Adds a listener that is called on its own executor, ex. one that does slow I/O. */
+    void addListener(TopologyListener listener, Executor executor) {
+        checkNotNull(listener);
+        checkNotNull(executor);
+        _queues.putIfAbsent(listener, new ListenerQueue(listener, executor));
+    }
+
+    /** Removes a listener.  Deltas still waiting in its queue are dropped. */
+    void removeListener(TopologyListener listener) {
+        ListenerQueue queue = _queues.remove(listener);
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    /** Called after every change to the snapshot, opens a window if one isn't open already. */
+    synchronized void onChange() {
+        if (_isClosed || _isDeliveryScheduled) {
+            return;
+        }
+        _isDeliveryScheduled = true;
+        _scheduler.schedule(_deliverer, _windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void close() {
+        _isClosed = true;
+    }
+
+    private void deliver() {
+        synchronized (this) {
+            // Changes from here on open a new window, they may or may not make it into this delta.
+            _isDeliveryScheduled = false;
+        }
+
+        synchronized (_deliverer) {
+            if (_isClosed) {
+                return;
+            }
+
+            HostDiscoverySnapshot current = _snapshots.get();
+            TopologyDelta delta = TopologyDelta.between(_lastDelivered, current);
+            _lastDelivered = current;
+            if (delta.isEmpty()) {
+                return;
+            }
+
+            for (ListenerQueue queue : _queues.values()) {
+                queue.add(delta);
+            }
+        }
+    }
+
+    /** The deltas of one listener.  At most one task drains it at a time, which keeps the deltas in order. */
+    private final class ListenerQueue implements Runnable {
+        private final TopologyListener _listener;
+        private final Executor _executor;
+        private final Queue<TopologyDelta> _deltas = new ConcurrentLinkedQueue<TopologyDelta>();
+        private final AtomicBoolean _draining = new AtomicBoolean();
+        private volatile boolean _removed;
+
+        private ListenerQueue(TopologyListener listener, Executor executor) {
+            _listener = listener;
+            _executor = executor;
+        }
+
+        void add(TopologyDelta delta) {
+            _deltas.add(delta);
+            scheduleDrain();
+        }
+
+        void clear() {
+            _removed = true;
+            _deltas.clear();
+        }
+
+        private void scheduleDrain() {
+            if (_draining.compareAndSet(false, true)) {
+                try {
+                    _executor.execute(this);
+                } catch (RuntimeException e) {
+                    _draining.set(false);
+                    LOG.error("Unable to queue topology listener.", e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                TopologyDelta delta;
+                while (!_removed && !_isClosed && (delta = _deltas.poll()) != null) {
+                    try {
+                        _listener.onTopologyChanged(delta);
+                    } catch (Exception e) {
+                        LOG.error("Topology listener failed.", e);
+                    }
+                }
+            } finally {
+                _draining.set(false);
+            }
+
+            // A delta may have been added after the queue looked empty but before the flag was cleared.
+            if (!_removed && !_isClosed && !_deltas.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The net change to a set of end points between two {@link HostDiscoverySnapshot}s.  End points that were added and
+ * removed again in between don't appear at all.
+ * <p/>
+ * End points are only equal if their payloads are, so an end point whose payload changed is reported as the removal
+ * of the old end point and the addition of the new one.  The new one is also reported as updated so that listeners
+ * that care can tell a changed end point from one that is actually new.
+ */
+public final class TopologyDelta {
+    private final ImmutableSet<ServiceEndPoint> _added;
+    private final ImmutableSet<ServiceEndPoint> _removed;
+    private final ImmutableSet<ServiceEndPoint> _updated;
+    private final HostDiscoverySnapshot _snapshot;
+
+    public TopologyDelta(Iterable<ServiceEndPoint> added, Iterable<ServiceEndPoint> removed,
+                         Iterable<ServiceEndPoint> updated, HostDiscoverySnapshot snapshot) {
+        _added = ImmutableSet.copyOf(added);
+        _removed = ImmutableSet.copyOf(removed);
+        _updated = ImmutableSet.copyOf(updated);
+        _snapshot = checkNotNull(snapshot);
+    }
+
+    /** Computes the delta that turns one snapshot into another. */
+    static TopologyDelta between(HostDiscoverySnapshot previous, HostDiscoverySnapshot current) {
+        Set<ServiceEndPoint> added = Sets.difference(current.getEndPoints(), previous.getEndPoints());
+        Set<ServiceEndPoint> removed = Sets.difference(previous.getEndPoints(), current.getEndPoints());
+
+        Set<String> removedIds = Sets.newHashSet();
+        for (ServiceEndPoint endPoint : removed) {
+            removedIds.add(endPoint.getId());
+        }
+        ImmutableSet.Builder<ServiceEndPoint> updated = ImmutableSet.builder();
+        for (ServiceEndPoint endPoint : added) {
+            if (removedIds.contains(endPoint.getId())) {
+                updated.add(endPoint);
+            }
+        }
+        return new TopologyDelta(added, removed, updated.build(), current);
+    }
+
+    /** Returns the end points that weren't known before. */
+    public ImmutableSet<ServiceEndPoint> getAdded() {
+        return _added;
+    }
+
+    /** Returns the end points that are no longer known. */
+    public ImmutableSet<ServiceEndPoint> getRemoved() {
+        return _removed;
+    }
+
+    /** Returns the added end points that replace a removed end point with the same ID, ex. with a new payload. */
+    public ImmutableSet<ServiceEndPoint> getUpdated() {
+        return _updated;
+    }
+
+    /** Returns the snapshot of end points after the change. */
+    public HostDiscoverySnapshot getSnapshot() {
+        return _snapshot;
+    }
+
+    public boolean isEmpty() {
+        return _added.isEmpty() && _removed.isEmpty();
+    }
+}
@@ -0,0 +1,13 @@
+package com.bazaarvoice.soa.discovery;
+
+/**
+ * Listener that is notified of changes to the end points of a {@link SnapshotHostDiscovery} in batches, rather than
+ * one end point at a time.
+ */
+public interface TopologyListener {
+    /**
+     * Called with the net change to the end points since the last call.  Calls are never concurrent, and are made in
+     * the order the changes happened.
+     */
+    void onTopologyChanged(TopologyDelta delta);
+}
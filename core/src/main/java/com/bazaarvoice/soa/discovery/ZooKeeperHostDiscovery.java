@@ -1,6 +1,5 @@
 package com.bazaarvoice.soa.discovery;
 
-import com.bazaarvoice.soa.HostDiscovery;
 import com.bazaarvoice.soa.ServiceEndPoint;
 import com.bazaarvoice.soa.ServiceEndPointJsonCodec;
 import com.bazaarvoice.soa.metrics.Metrics;
@@ -11,19 +10,28 @@ import com.bazaarvoice.zookeeper.recipes.discovery.NodeListener;
 import com.bazaarvoice.zookeeper.recipes.discovery.ZooKeeperNodeDiscovery;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
-import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Meter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -33,13 +41,73 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * The <code>ZooKeeperHostDiscovery</code> class encapsulates ZooKeeperNodeDiscovery which
  * watches a service path in ZooKeeper and will monitor which hosts are
  * available.  As hosts come and go the results of calling the <code>#getHosts</code> method changes.
+ * <p/>
+ * The hosts are published as an immutable snapshot that is replaced whenever they change, so reading them never
+ * contends with ZooKeeper updates and never sees a change halfway through iterating.  Topology listeners are told about
+ * changes in batches, at most one per {@link #TOPOLOGY_BATCH_WINDOW_MILLIS}.
+ * <p/>
+ * Optionally the end points are saved to a local snapshot file whenever they change.  On startup the saved end points
+ * are served right away, before ZooKeeper answers and even if it can't be reached.  They are provisional: any saved
+ * end point that ZooKeeper hasn't confirmed {@link #SNAPSHOT_RECONCILE_DELAY_MILLIS} after node discovery started is
+ * removed, as long as ZooKeeper has reported some end point by then.  Node discovery doesn't say whether it has reached
+ * ZooKeeper, so a service without any end points can't be told apart from ZooKeeper being down.  Saved end points are
+ * therefore kept while ZooKeeper reports none, but never for longer than {@link #MAX_PROVISIONAL_MILLIS}.
+ * <p/>
+ * Optionally the end points can be kept through a lost ZooKeeper session.  Node discovery reports a lost session as
+ * every end point being removed, and again added once the session is back, which would otherwise make users forget
+ * everything they know about the end points and reconnect to all of them.  In this mode every removal is held back
+ * for {@link #SESSION_LOSS_GRACE_MILLIS}, including an end point that really went away, since node discovery doesn't
+ * expose the connection state that would tell the two apart.  If every end point was removed by then, they are kept
+ * as they were and treated like end points loaded from a snapshot file: once ZooKeeper answers again the ones it
+ * doesn't confirm are removed, and if it doesn't answer they are all removed after {@link #MAX_PROVISIONAL_MILLIS}.
+ * <p/>
+ * End point and topology listeners are called on a small shared executor rather than the ZooKeeper event thread, so a
+ * slow listener doesn't hold up ZooKeeper events for other services on the same connection.  Each listener still sees
+ * its events one at a time and in order.  Snapshot files are written on a thread of their own, so waiting for the disk
+ * doesn't hold up any listener.
  */
-public class ZooKeeperHostDiscovery implements HostDiscovery {
+public class ZooKeeperHostDiscovery implements SnapshotHostDiscovery {
     private static final Logger LOG = LoggerFactory.getLogger(ZooKeeperHostDiscovery.class);
 
+    /** How long to gather changes before telling topology listeners about them. */
+    public static final long TOPOLOGY_BATCH_WINDOW_MILLIS = 100;
+
+    /** How long ZooKeeper has to confirm the end points loaded from a snapshot file once it starts answering. */
+    public static final long SNAPSHOT_RECONCILE_DELAY_MILLIS = 5000;
+
+    /** The longest end points are served without ZooKeeper confirming them. */
+    public static final long MAX_PROVISIONAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** How long removals are held back when keeping end points through a lost session. */
+    public static final long SESSION_LOSS_GRACE_MILLIS = 2000;
+
+    /** Writes the snapshot files of every discovery, so that slow disks don't hold up listeners. */
+    private static final Executor SNAPSHOT_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("HostDiscovery-SnapshotWriter-%d")
+                    .setDaemon(true)
+                    .build());
+
     private final ZooKeeperNodeDiscovery<ServiceEndPoint> _nodeDiscovery;
+    /** Counts the ZooKeeper nodes of each end point, guarded by this.  Only changes to it publish a new snapshot. */
     private final Multiset<ServiceEndPoint> _endPoints;
-    private final Set<EndPointListener> _listeners;
+    private volatile HostDiscoverySnapshot _snapshot = new HostDiscoverySnapshot(0, ImmutableSet.<ServiceEndPoint>of());
+    private final EndPointListenerDispatcher _listeners;
+    private final ScheduledExecutorService _executor;
+    private final Ticker _ticker;
+    private final TopologyBatcher _topologyBatcher;
+    private final EndPointSnapshotFile _snapshotFile;
+    private final boolean _keepEndPointsOnSessionLoss;
+
+    // Guarded by this.  End points loaded from the snapshot file, or kept through a lost session, that ZooKeeper
+    // hasn't reported yet.
+    private final Set<ServiceEndPoint> _provisionalEndPoints = Sets.newHashSet();
+    private long _provisionalSinceNanos;
+    private ScheduledFuture<?> _reconcileFuture;
+
+    // Guarded by this.  End points removed from ZooKeeper that are still published until the grace period is over.
+    private final Set<ServiceEndPoint> _pendingRemovals = Sets.newHashSet();
+    private ScheduledFuture<?> _pendingRemovalsFuture;
 
     private final Metrics _metrics;
     private final Counter _numListeners;
@@ -48,19 +116,91 @@ public class ZooKeeperHostDiscovery implements HostDiscovery {
     private final Meter _numZooKeeperChanges;
 
     public ZooKeeperHostDiscovery(ZooKeeperConnection connection, String serviceName) {
-        this(new NodeDiscoveryFactory(), connection, serviceName);
+        this(connection, serviceName, null, false);
+    }
+
+    /**
+     * @param snapshotFile The file to save the end points to and to load them from on startup.
+     */
+    public ZooKeeperHostDiscovery(ZooKeeperConnection connection, String serviceName, File snapshotFile) {
+        this(connection, serviceName, checkNotNull(snapshotFile), false);
+    }
+
+    /**
+     * @param snapshotFile               The file to save the end points to and to load them from on startup, or
+     *                                   {@code null} for none.
+     * @param keepEndPointsOnSessionLoss Whether to keep the last known end points while the ZooKeeper session is lost.
+     *                                   This delays every removal by {@link #SESSION_LOSS_GRACE_MILLIS}.
+     */
+    public ZooKeeperHostDiscovery(ZooKeeperConnection connection, String serviceName, File snapshotFile,
+                                  boolean keepEndPointsOnSessionLoss) {
+        this(new NodeDiscoveryFactory(), connection, serviceName, null, EndPointListenerDispatcher.DEFAULT_EXECUTOR,
+                SNAPSHOT_EXECUTOR, Ticker.systemTicker(), snapshotFile, keepEndPointsOnSessionLoss);
     }
 
     @VisibleForTesting
     ZooKeeperHostDiscovery(NodeDiscoveryFactory factory, ZooKeeperConnection connection, String serviceName) {
+        this(factory, connection, serviceName, null);
+    }
+
+    @VisibleForTesting
+    ZooKeeperHostDiscovery(NodeDiscoveryFactory factory, ZooKeeperConnection connection, String serviceName,
+                           ScheduledExecutorService executor) {
+        this(factory, connection, serviceName, executor, MoreExecutors.sameThreadExecutor(),
+                MoreExecutors.sameThreadExecutor(), Ticker.systemTicker(), null, false);
+    }
+
+    /**
+     * @param executor         The executor to batch topology changes and reconcile the snapshot file on, or
+     *                         {@code null} to use a shared default.
+     * @param listenerExecutor The executor to call end point and topology listeners on.
+     * @param snapshotExecutor The executor to write the snapshot file on.
+     * @param ticker           The time source for how long end points have been provisional.
+     * @param snapshotFile     The file to save the end points to and to load them from, or {@code null} for none.
+     */
+    @VisibleForTesting
+    ZooKeeperHostDiscovery(NodeDiscoveryFactory factory, ZooKeeperConnection connection, String serviceName,
+                           ScheduledExecutorService executor, Executor listenerExecutor, Executor snapshotExecutor,
+                           Ticker ticker, File snapshotFile, boolean keepEndPointsOnSessionLoss) {
         checkNotNull(connection);
         checkNotNull(serviceName);
         checkArgument(!"".equals(serviceName));
 
         String servicePath = ZooKeeperServiceRegistry.makeServicePath(serviceName);
 
-        _listeners = Sets.newSetFromMap(Maps.<EndPointListener, Boolean>newConcurrentMap());
-        _endPoints = ConcurrentHashMultiset.create();
+        _endPoints = HashMultiset.create();
+        _executor = (executor != null) ? executor : TopologyBatcher.DEFAULT_EXECUTOR;
+        _ticker = checkNotNull(ticker);
+        _keepEndPointsOnSessionLoss = keepEndPointsOnSessionLoss;
+
+        // Serve the saved end points until ZooKeeper says otherwise.  Load them before the batcher takes its first
+        // snapshot so that topology listeners don't hear about them as changes.
+        _snapshotFile = (snapshotFile != null) ? new EndPointSnapshotFile(snapshotFile, serviceName) : null;
+        if (_snapshotFile != null) {
+            ImmutableSet<ServiceEndPoint> saved = _snapshotFile.read();
+            _provisionalEndPoints.addAll(saved);
+            _provisionalSinceNanos = _ticker.read();
+            _snapshot = new HostDiscoverySnapshot(0, saved);
+            LOG.info("Loaded {} end points for service {} from snapshot file {}",
+                    new Object[] {saved.size(), serviceName, snapshotFile});
+        }
+
+        Supplier<HostDiscoverySnapshot> snapshots = new Supplier<HostDiscoverySnapshot>() {
+            @Override
+            public HostDiscoverySnapshot get() {
+                return _snapshot;
+            }
+        };
+        _topologyBatcher = new TopologyBatcher(snapshots, _executor, checkNotNull(listenerExecutor),
+                TOPOLOGY_BATCH_WINDOW_MILLIS);
+        if (_snapshotFile != null) {
+            _topologyBatcher.addListener(new TopologyListener() {
+                @Override
+                public void onTopologyChanged(TopologyDelta delta) {
+                    saveSnapshot(delta.getSnapshot());
+                }
+            }, checkNotNull(snapshotExecutor));
+        }
 
         _nodeDiscovery = factory.create(
                 connection,
@@ -79,72 +219,250 @@ public class ZooKeeperHostDiscovery implements HostDiscovery {
         _metrics.newGauge(serviceName, "num-end-points", new Gauge<Integer>() {
             @Override
             public Integer value() {
-                return Iterables.size(getHosts());
+                return _snapshot.getEndPoints().size();
             }
         });
 
         _numListeners = _metrics.newCounter(serviceName, "num-listeners");
+        _listeners = new EndPointListenerDispatcher(listenerExecutor, _ticker,
+                _metrics.newTimer(serviceName, "listener-queue-lag", TimeUnit.MILLISECONDS, TimeUnit.SECONDS));
+        _metrics.newGauge(serviceName, "num-queued-listener-events", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return _listeners.getNumQueuedEvents();
+            }
+        });
         _numZooKeeperAdds = _metrics.newMeter(serviceName, "num-zookeeper-adds", "adds", TimeUnit.MINUTES);
         _numZooKeeperRemoves = _metrics.newMeter(serviceName, "num-zookeeper-removes", "removes", TimeUnit.MINUTES);
         _numZooKeeperChanges = _metrics.newMeter(serviceName, "num-zookeeper-changes", "changes", TimeUnit.MINUTES);
 
         // wait to start node discovery until all fields are initialized.
         _nodeDiscovery.start();
+
+        // Node discovery reports the nodes that already exist as it starts, so ZooKeeper has had its chance to confirm
+        // the saved end points from here on, however many nodes it has.
+        scheduleReconcile();
     }
 
     @Override
     public Iterable<ServiceEndPoint> getHosts() {
-        return Iterables.unmodifiableIterable(_endPoints.elementSet());
+        return _snapshot.getEndPoints();
     }
 
     @Override
     public boolean contains(ServiceEndPoint endPoint) {
-        return _endPoints.contains(endPoint);
+        return _snapshot.getEndPoints().contains(endPoint);
+    }
+
+    @Override
+    public HostDiscoverySnapshot getSnapshot() {
+        return _snapshot;
     }
 
     @Override
     public void addListener(EndPointListener listener) {
-        _listeners.add(listener);
+        _listeners.addListener(listener);
         _numListeners.inc();
     }
 
     @Override
     public void removeListener(EndPointListener listener) {
-        _listeners.remove(listener);
+        _listeners.removeListener(listener);
         _numListeners.dec();
     }
 
+    @Override
+    public void addTopologyListener(TopologyListener listener) {
+        _topologyBatcher.addListener(listener);
+    }
+
+    @Override
+    public void removeTopologyListener(TopologyListener listener) {
+        _topologyBatcher.removeListener(listener);
+    }
+
     @Override
     public void close() throws IOException {
+        _topologyBatcher.close();
         _nodeDiscovery.close();
-        _endPoints.clear();
+        synchronized (this) {
+            if (_reconcileFuture != null) {
+                _reconcileFuture.cancel(false);
+            }
+            if (_pendingRemovalsFuture != null) {
+                _pendingRemovalsFuture.cancel(false);
+            }
+            _provisionalEndPoints.clear();
+            _pendingRemovals.clear();
+            _endPoints.clear();
+            _snapshot = new HostDiscoverySnapshot(_snapshot.getGeneration() + 1, ImmutableSet.<ServiceEndPoint>of());
+        }
         _metrics.close();
     }
 
     private void addServiceEndPoint(ServiceEndPoint serviceEndPoint) {
-        // add returns the number of instances that were in the Multiset before the add.
-        if (_endPoints.add(serviceEndPoint, 1) == 0) {
-            fireAddEvent(serviceEndPoint);
+        synchronized (this) {
+            // add returns the number of instances that were in the Multiset before the add.
+            if (_endPoints.add(serviceEndPoint, 1) != 0) {
+                return;
+            }
+            if (_provisionalEndPoints.remove(serviceEndPoint) || _pendingRemovals.remove(serviceEndPoint)) {
+                // Still published, now confirmed by ZooKeeper.
+                return;
+            }
+            _snapshot = _snapshot.plus(serviceEndPoint);
         }
+        _topologyBatcher.onChange();
+        // Listeners are called after the new snapshot is published, so they see the end point in getHosts.
+        fireAddEvent(serviceEndPoint);
     }
 
     private void removeServiceEndPoint(ServiceEndPoint serviceEndPoint) {
-        // remove returns the number of instances that were in the Multiset before the remove.
-        if (_endPoints.remove(serviceEndPoint, 1) == 1) {
-            fireRemoveEvent(serviceEndPoint);
+        synchronized (this) {
+            // remove returns the number of instances that were in the Multiset before the remove.
+            if (_endPoints.remove(serviceEndPoint, 1) != 1) {
+                return;
+            }
+            if (_keepEndPointsOnSessionLoss) {
+                _pendingRemovals.add(serviceEndPoint);
+                schedulePendingRemovals();
+                return;
+            }
+            _snapshot = _snapshot.minus(serviceEndPoint);
         }
+        _topologyBatcher.onChange();
+        fireRemoveEvent(serviceEndPoint);
     }
 
-    private void fireAddEvent(ServiceEndPoint endPoint) {
-        for (EndPointListener listener : _listeners) {
-            listener.onEndPointAdded(endPoint);
+    private void updateServiceEndPoint(ServiceEndPoint serviceEndPoint) {
+        synchronized (this) {
+            ServiceEndPoint previous = null;
+            for (ServiceEndPoint endPoint : _endPoints.elementSet()) {
+                if (endPoint.getId().equals(serviceEndPoint.getId())) {
+                    previous = endPoint;
+                    break;
+                }
+            }
+            if (previous == null || previous.equals(serviceEndPoint)) {
+                return;
+            }
+            _endPoints.add(serviceEndPoint, _endPoints.remove(previous, Integer.MAX_VALUE));
+            _snapshot = _snapshot.replace(serviceEndPoint);
         }
+        // Only topology listeners hear about updates, end point listeners just see the same end point.
+        _topologyBatcher.onChange();
     }
 
-    private void fireRemoveEvent(ServiceEndPoint endPoint) {
-        for (EndPointListener listener : _listeners) {
-            listener.onEndPointRemoved(endPoint);
+    /** Gives ZooKeeper a little while to confirm the provisional end points. */
+    private synchronized void scheduleReconcile() {
+        if (_provisionalEndPoints.isEmpty() || _reconcileFuture != null) {
+            return;
+        }
+        _reconcileFuture = _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reconcileProvisionalEndPoints();
+            }
+        }, SNAPSHOT_RECONCILE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the provisional end points that ZooKeeper didn't confirm.  While ZooKeeper reports no end points at all
+     * it is more likely unreachable than the service gone, so they're kept and checked again later, up to
+     * {@link #MAX_PROVISIONAL_MILLIS}.
+     */
+    @VisibleForTesting
+    void reconcileProvisionalEndPoints() {
+        Set<ServiceEndPoint> unconfirmed;
+        synchronized (this) {
+            _reconcileFuture = null;
+            long provisionalNanos = _ticker.read() - _provisionalSinceNanos;
+            if (_endPoints.isEmpty() && provisionalNanos < TimeUnit.MILLISECONDS.toNanos(MAX_PROVISIONAL_MILLIS)) {
+                scheduleReconcile();
+                return;
+            }
+            unconfirmed = ImmutableSet.copyOf(_provisionalEndPoints);
+            _provisionalEndPoints.clear();
+            for (ServiceEndPoint endPoint : unconfirmed) {
+                _snapshot = _snapshot.minus(endPoint);
+            }
+        }
+        if (unconfirmed.isEmpty()) {
+            return;
+        }
+        LOG.info("Removed {} end points from the snapshot file that ZooKeeper didn't confirm: {}",
+                unconfirmed.size(), Iterables.toString(unconfirmed));
+        _topologyBatcher.onChange();
+        for (ServiceEndPoint endPoint : unconfirmed) {
+            fireRemoveEvent(endPoint);
+        }
+    }
+
+    /** Must be called while synchronized. */
+    private void schedulePendingRemovals() {
+        if (_pendingRemovalsFuture != null) {
+            return;
         }
+        _pendingRemovalsFuture = _executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                applyPendingRemovals();
+            }
+        }, SESSION_LOSS_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes the removals held back during the grace period, unless ZooKeeper removed every end point.  That is
+     * most likely a lost session rather than every server leaving at once, so the end points are kept until ZooKeeper
+     * answers again and only the ones it doesn't confirm are removed then.  Node discovery doesn't expose whether the
+     * session is actually lost, so this is judged from the removals alone, and the end points are kept for at most
+     * {@link #MAX_PROVISIONAL_MILLIS}.
+     */
+    private void applyPendingRemovals() {
+        Set<ServiceEndPoint> removed;
+        synchronized (this) {
+            _pendingRemovalsFuture = null;
+            if (_pendingRemovals.isEmpty()) {
+                return;
+            }
+            if (_endPoints.isEmpty()) {
+                LOG.warn("ZooKeeper removed all {} end points, keeping them until the session is back: {}",
+                        _snapshot.getEndPoints().size(), Iterables.toString(_snapshot.getEndPoints()));
+                if (_provisionalEndPoints.isEmpty()) {
+                    _provisionalSinceNanos = _ticker.read();
+                }
+                _provisionalEndPoints.addAll(_snapshot.getEndPoints());
+                _pendingRemovals.clear();
+                scheduleReconcile();
+                return;
+            }
+
+            removed = ImmutableSet.copyOf(_pendingRemovals);
+            _pendingRemovals.clear();
+            for (ServiceEndPoint endPoint : removed) {
+                _snapshot = _snapshot.minus(endPoint);
+            }
+        }
+        _topologyBatcher.onChange();
+        for (ServiceEndPoint endPoint : removed) {
+            fireRemoveEvent(endPoint);
+        }
+    }
+
+    private void saveSnapshot(HostDiscoverySnapshot snapshot) {
+        try {
+            _snapshotFile.write(snapshot.getEndPoints());
+        } catch (IOException e) {
+            LOG.warn("Unable to save end point snapshot: " + _snapshotFile.getFile(), e);
+        }
+    }
+
+    private void fireAddEvent(ServiceEndPoint endPoint) {
+        _listeners.fireAdded(endPoint);
+    }
+
+    private void fireRemoveEvent(ServiceEndPoint endPoint) {
+        _listeners.fireRemoved(endPoint);
     }
 
     /**
@@ -154,12 +472,14 @@ public class ZooKeeperHostDiscovery implements HostDiscovery {
         @Override
         public void onNodeAdded(String path, ServiceEndPoint node) {
             _numZooKeeperAdds.mark();
+            scheduleReconcile();
             addServiceEndPoint(node);
         }
 
         @Override
         public void onNodeRemoved(String path, ServiceEndPoint node) {
             _numZooKeeperRemoves.mark();
+            scheduleReconcile();
             removeServiceEndPoint(node);
         }
 
@@ -168,6 +488,8 @@ public class ZooKeeperHostDiscovery implements HostDiscovery {
             _numZooKeeperChanges.mark();
             LOG.info("ServiceEndPoint data changed unexpectedly. End point ID: {}; ZooKeeperPath {}",
                     node.getId(), path);
+            scheduleReconcile();
+            updateServiceEndPoint(node);
         }
     }
 
@@ -0,0 +1,54 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.HostDiscovery;
+import com.bazaarvoice.soa.HostDiscoverySource;
+import com.bazaarvoice.zookeeper.ZooKeeperConnection;
+
+import java.io.File;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link HostDiscoverySource} that creates a new {@link ZooKeeperHostDiscovery} for every request.  Wrap it in a
+ * {@link SharedHostDiscoverySource} for pools of the same service to share one.
+ */
+public class ZooKeeperHostDiscoverySource implements HostDiscoverySource {
+    private final ZooKeeperConnection _connection;
+    private final File _snapshotDirectory;
+    private final boolean _keepEndPointsOnSessionLoss;
+
+    public ZooKeeperHostDiscoverySource(ZooKeeperConnection connection) {
+        this(connection, null, false);
+    }
+
+    /**
+     * @param snapshotDirectory The directory to keep a file of the end points of each service in, which are used on
+     *                          startup until ZooKeeper answers.
+     */
+    public ZooKeeperHostDiscoverySource(ZooKeeperConnection connection, File snapshotDirectory) {
+        this(connection, checkNotNull(snapshotDirectory), false);
+    }
+
+    /**
+     * @param snapshotDirectory          The directory to keep a file of the end points of each service in, or
+     *                                   {@code null} for none.
+     * @param keepEndPointsOnSessionLoss Whether to keep the last known end points while the ZooKeeper session is lost,
+     *                                   which delays every removal by
+     *                                   {@link ZooKeeperHostDiscovery#SESSION_LOSS_GRACE_MILLIS}, see
+     *                                   {@link ZooKeeperHostDiscovery}.
+     */
+    public ZooKeeperHostDiscoverySource(ZooKeeperConnection connection, File snapshotDirectory,
+                                        boolean keepEndPointsOnSessionLoss) {
+        _connection = checkNotNull(connection);
+        _snapshotDirectory = snapshotDirectory;
+        _keepEndPointsOnSessionLoss = keepEndPointsOnSessionLoss;
+    }
+
+    @Override
+    public HostDiscovery forService(String serviceName) {
+        File snapshotFile = (_snapshotDirectory != null)
+                ? new File(_snapshotDirectory, serviceName + ".endpoints")
+                : null;
+        return new ZooKeeperHostDiscovery(_connection, serviceName, snapshotFile, _keepEndPointsOnSessionLoss);
+    }
+}
@@ -0,0 +1,152 @@
+package com.bazaarvoice.soa.loadbalance;
+
+import com.bazaarvoice.soa.LoadBalanceAlgorithm;
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServicePoolStatistics;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Ints;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Sends calls to a small window of end points, the aperture, which is widened as the calls in progress per end point
+ * rise and narrowed as they fall.  A pool with little traffic then keeps a few end points busy and their service
+ * instances warm, instead of spreading occasional calls over every end point with a cold instance each time.
+ * <p/>
+ * End points are put in an order of their own by each algorithm, from a hash of their ID, and the aperture is the start
+ * of that order.  The window is stable as long as the end points don't change, and different clients have windows
+ * over different end points.  Within the aperture two end points are picked at random and the one with fewer calls in
+ * progress is used ("power of two choices"), which avoids the herding of always picking the least loaded one.
+ */
+public class ApertureAlgorithm implements LoadBalanceAlgorithm {
+    public static final int DEFAULT_MIN_APERTURE = 2;
+    public static final double DEFAULT_LOW_LOAD = 0.5;
+    public static final double DEFAULT_HIGH_LOAD = 2.0;
+
+    private final int _minAperture;
+    private final double _lowLoad;
+    private final double _highLoad;
+    private final Random _random;
+    private final AtomicInteger _aperture;
+    private final LoadingCache<ServiceEndPoint, Integer> _positions;
+    private final Ordering<ServiceEndPoint> _ordering;
+
+    /**
+     * Keeps between 0.5 and 2 calls in progress per end point in a window of at least 2 end points.
+     */
+    public ApertureAlgorithm() {
+        this(DEFAULT_MIN_APERTURE, DEFAULT_LOW_LOAD, DEFAULT_HIGH_LOAD);
+    }
+
+    /**
+     * @param minAperture The smallest number of end points to send calls to.
+     * @param lowLoad     The number of calls in progress per end point in the aperture below which it's narrowed.
+     * @param highLoad    The number of calls in progress per end point in the aperture above which it's widened.
+     */
+    public ApertureAlgorithm(int minAperture, double lowLoad, double highLoad) {
+        this(minAperture, lowLoad, highLoad, new Random());
+    }
+
+    @VisibleForTesting
+    ApertureAlgorithm(int minAperture, double lowLoad, double highLoad, Random random) {
+        checkArgument(minAperture > 0);
+        checkArgument(lowLoad >= 0);
+        checkArgument(highLoad > lowLoad);
+
+        _minAperture = minAperture;
+        _lowLoad = lowLoad;
+        _highLoad = highLoad;
+        _random = checkNotNull(random);
+        _aperture = new AtomicInteger(minAperture);
+
+        // Computed once per end point.  Weak keys let end points go once discovery forgets them.
+        final HashFunction hashFunction = Hashing.murmur3_32(_random.nextInt());
+        _positions = CacheBuilder.newBuilder()
+                .weakKeys()
+                .build(new CacheLoader<ServiceEndPoint, Integer>() {
+                    @Override
+                    public Integer load(ServiceEndPoint endPoint) {
+                        return hashFunction.hashString(endPoint.getId()).asInt();
+                    }
+                });
+        _ordering = new Ordering<ServiceEndPoint>() {
+            @Override
+            public int compare(ServiceEndPoint left, ServiceEndPoint right) {
+                int result = Ints.compare(_positions.getUnchecked(left), _positions.getUnchecked(right));
+                return (result != 0) ? result : left.getId().compareTo(right.getId());
+            }
+        };
+    }
+
+    @Override
+    public ServiceEndPoint choose(Iterable<ServiceEndPoint> endPoints, ServicePoolStatistics statistics) {
+        checkNotNull(endPoints);
+
+        // One end point past the aperture, to know whether there's room to widen.
+        int aperture = _aperture.get();
+        List<ServiceEndPoint> candidates = _ordering.leastOf(endPoints, aperture + 1);
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        boolean canWiden = candidates.size() > aperture;
+        List<ServiceEndPoint> window = canWiden ? candidates.subList(0, aperture) : candidates;
+        if (statistics != null) {
+            adjustAperture(aperture, window, canWiden, statistics);
+        }
+        if (window.size() == 1) {
+            return window.get(0);
+        }
+
+        // Two distinct end points from the window.
+        int first = _random.nextInt(window.size());
+        int second = (first + 1 + _random.nextInt(window.size() - 1)) % window.size();
+        ServiceEndPoint a = window.get(first);
+        ServiceEndPoint b = window.get(second);
+        if (statistics == null) {
+            return a;
+        }
+        return (statistics.getNumActiveInstances(b) < statistics.getNumActiveInstances(a)) ? b : a;
+    }
+
+    @VisibleForTesting
+    int getAperture() {
+        return _aperture.get();
+    }
+
+    /** Widens or narrows the aperture by one end point based on the calls in progress within the current window. */
+    private void adjustAperture(int aperture, List<ServiceEndPoint> window, boolean canWiden,
+                                ServicePoolStatistics statistics) {
+        long numActive = 0;
+        for (ServiceEndPoint endPoint : window) {
+            numActive += statistics.getNumActiveInstances(endPoint);
+        }
+        double load = (double) numActive / window.size();
+
+        if (load > _highLoad && canWiden) {
+            _aperture.compareAndSet(aperture, aperture + 1);
+        } else if (load < _lowLoad && aperture > _minAperture) {
+            // The aperture may be wider than the end points that are left, in which case it narrows from there.
+            _aperture.compareAndSet(aperture, Math.max(Math.min(aperture, window.size()) - 1, _minAperture));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("aperture", _aperture.get())
+                .add("minAperture", _minAperture)
+                .toString();
+    }
+}
@@ -0,0 +1,137 @@
+package com.bazaarvoice.soa.loadbalance;
+
+import com.bazaarvoice.soa.LoadBalanceAlgorithm;
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPoints;
+import com.bazaarvoice.soa.ServicePoolStatistics;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Prefers end points in the caller's zone, as reported by {@link ServiceEndPoints#getZone}, and lets another
+ * algorithm choose among them.  Calls to other zones are slower and often cost money, so they're only made when the
+ * local zone looks unable to take its share of the traffic:
+ * <ul>
+ * <li>Health: the local zone has fewer available end points than {@code minLocalCapacity} times the average zone.
+ * Bad end points have already been left out, so a zone that lost end points looks smaller.</li>
+ * <li>Load: the local end points average more than {@code maxActiveInstancesPerEndPoint} calls in progress from this
+ * pool.</li>
+ * </ul>
+ * Spillover is gradual.  A local zone with half the capacity of the average zone keeps half of the calls, and one
+ * loaded to twice the limit keeps half of them.  Calls that spill over go to the end points of the other zones, so
+ * each zone takes a share in proportion to its available end points.
+ */
+public class ZoneAwareAlgorithm implements LoadBalanceAlgorithm {
+    /** By default spill over once the local zone is below 70% of the capacity of the average zone. */
+    public static final double DEFAULT_MIN_LOCAL_CAPACITY = 0.7;
+
+    private final String _localZone;
+    private final LoadBalanceAlgorithm _algorithm;
+    private final double _minLocalCapacity;
+    private final int _maxActiveInstancesPerEndPoint;
+    private final Random _random;
+
+    /**
+     * Spills over when the local zone is short on available end points, but not because of load.
+     *
+     * @param localZone The zone of the caller.
+     * @param algorithm The algorithm to choose among the end points of a zone with.
+     */
+    public ZoneAwareAlgorithm(String localZone, LoadBalanceAlgorithm algorithm) {
+        this(localZone, algorithm, DEFAULT_MIN_LOCAL_CAPACITY, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param localZone                     The zone of the caller.
+     * @param algorithm                     The algorithm to choose among the end points of a zone with.
+     * @param minLocalCapacity              The fraction of the average zone's available end points below which the
+     *                                      local zone starts to spill over, between 0 and 1.
+     * @param maxActiveInstancesPerEndPoint The average number of calls in progress per local end point above which
+     *                                      the local zone starts to spill over.
+     */
+    public ZoneAwareAlgorithm(String localZone, LoadBalanceAlgorithm algorithm, double minLocalCapacity,
+                              int maxActiveInstancesPerEndPoint) {
+        this(localZone, algorithm, minLocalCapacity, maxActiveInstancesPerEndPoint, new Random());
+    }
+
+    @VisibleForTesting
+    ZoneAwareAlgorithm(String localZone, LoadBalanceAlgorithm algorithm, double minLocalCapacity,
+                       int maxActiveInstancesPerEndPoint, Random random) {
+        checkNotNull(localZone);
+        checkArgument(minLocalCapacity >= 0 && minLocalCapacity <= 1);
+        checkArgument(maxActiveInstancesPerEndPoint > 0);
+
+        _localZone = localZone;
+        _algorithm = checkNotNull(algorithm);
+        _minLocalCapacity = minLocalCapacity;
+        _maxActiveInstancesPerEndPoint = maxActiveInstancesPerEndPoint;
+        _random = checkNotNull(random);
+    }
+
+    @Override
+    public ServiceEndPoint choose(Iterable<ServiceEndPoint> endPoints, ServicePoolStatistics statistics) {
+        checkNotNull(endPoints);
+
+        List<ServiceEndPoint> local = Lists.newArrayList();
+        List<ServiceEndPoint> remote = Lists.newArrayList();
+        Set<String> zones = Sets.newHashSet();
+        for (ServiceEndPoint endPoint : endPoints) {
+            String zone = ServiceEndPoints.getZone(endPoint);
+            zones.add(zone);
+            if (_localZone.equals(zone)) {
+                local.add(endPoint);
+            } else {
+                remote.add(endPoint);
+            }
+        }
+
+        if (local.isEmpty() || remote.isEmpty()) {
+            return _algorithm.choose(local.isEmpty() ? remote : local, statistics);
+        }
+
+        double localFraction = getLocalFraction(local, local.size() + remote.size(), zones.size(), statistics);
+        boolean useLocal = localFraction >= 1 || _random.nextDouble() < localFraction;
+        return _algorithm.choose(useLocal ? local : remote, statistics);
+    }
+
+    /** Returns the fraction of calls the local zone should keep. */
+    private double getLocalFraction(List<ServiceEndPoint> local, int numEndPoints, int numZones,
+                                    ServicePoolStatistics statistics) {
+        double fraction = 1;
+
+        double averageZoneSize = (double) numEndPoints / numZones;
+        if (local.size() < _minLocalCapacity * averageZoneSize) {
+            fraction *= local.size() / averageZoneSize;
+        }
+
+        if (_maxActiveInstancesPerEndPoint != Integer.MAX_VALUE) {
+            long numActive = 0;
+            for (ServiceEndPoint endPoint : local) {
+                numActive += statistics.getNumActiveInstances(endPoint);
+            }
+            double averageActive = (double) numActive / local.size();
+            if (averageActive > _maxActiveInstancesPerEndPoint) {
+                fraction *= _maxActiveInstancesPerEndPoint / averageActive;
+            }
+        }
+
+        return fraction;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("localZone", _localZone)
+                .add("algorithm", _algorithm)
+                .toString();
+    }
+}
@@ -0,0 +1,84 @@
+package com.bazaarvoice.soa.pool;
+
+import com.bazaarvoice.soa.PayloadDecoder;
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPoints;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Attaches decoded payloads to the end points of a {@link ServicePool}.  Each end point is decoded the first time it's
+ * seen and the result is kept until discovery removes the end point, so a payload is parsed once rather than on every
+ * request.  An end point whose payload changes is a different end point, and is decoded again.
+ */
+class EndPointDecoder {
+    private static final Logger LOG = LoggerFactory.getLogger(EndPointDecoder.class);
+
+    private final PayloadDecoder<?> _payloadDecoder;
+    private final ConcurrentMap<ServiceEndPoint, ServiceEndPoint> _decoded = Maps.newConcurrentMap();
+    private final Function<ServiceEndPoint, ServiceEndPoint> _decodeFunction =
+            new Function<ServiceEndPoint, ServiceEndPoint>() {
+                @Override
+                public ServiceEndPoint apply(ServiceEndPoint endPoint) {
+                    return decode(endPoint);
+                }
+            };
+
+    /**
+     * @param payloadDecoder The decoder to use, or {@code null} to leave end points as they are.
+     */
+    EndPointDecoder(PayloadDecoder<?> payloadDecoder) {
+        _payloadDecoder = payloadDecoder;
+    }
+
+    /** Returns the end point with its decoded payload attached. */
+    ServiceEndPoint decode(ServiceEndPoint endPoint) {
+        if (_payloadDecoder == null) {
+            return endPoint;
+        }
+
+        ServiceEndPoint decoded = _decoded.get(endPoint);
+        if (decoded == null) {
+            decoded = ServiceEndPoints.withDecodedPayload(endPoint, decodePayload(endPoint));
+
+            // Another thread may have decoded it at the same time, in which case theirs is kept.
+            ServiceEndPoint existing = _decoded.putIfAbsent(endPoint, decoded);
+            if (existing != null) {
+                decoded = existing;
+            }
+        }
+        return decoded;
+    }
+
+    Iterable<ServiceEndPoint> decodeAll(Iterable<ServiceEndPoint> endPoints) {
+        if (_payloadDecoder == null) {
+            return endPoints;
+        }
+        return Iterables.transform(endPoints, _decodeFunction);
+    }
+
+    /** Drops the decoded payload of an end point that's gone. */
+    void forget(ServiceEndPoint endPoint) {
+        _decoded.remove(endPoint);
+    }
+
+    @VisibleForTesting
+    int getNumDecodedEndPoints() {
+        return _decoded.size();
+    }
+
+    private Object decodePayload(ServiceEndPoint endPoint) {
+        try {
+            return _payloadDecoder.decode(endPoint);
+        } catch (Exception e) {
+            LOG.warn("Unable to decode payload of end point. End point ID: " + endPoint.getId(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.bazaarvoice.soa.pool;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Limits a {@link ServicePool} to a stable subset of a large fleet of end points, which bounds the number of
+ * connections each client opens and each end point accepts.
+ * <p/>
+ * The subset is chosen with rendezvous hashing: every end point gets a score from a hash of the client's ID and the
+ * end point's ID, and the client uses the end points with the highest scores.  The same client always picks the same
+ * end points, and when the fleet changes only the end points that joined or left move in or out of a client's subset.
+ * Different clients score end points independently, so each end point is in the subset of about
+ * {@code numClients * size / numEndPoints} clients.
+ * <p/>
+ * The subset is where service instances are prepared, but requests aren't confined to it.  They go to the highest
+ * ranked end points that are usable, so when end points of the subset are bad the next ranked ones stand in for them
+ * rather than the pool failing while the rest of the fleet is healthy.
+ */
+class EndPointSubset {
+    private final String _clientId;
+    private final int _size;
+    private final Map<String, Long> _scores = Maps.newHashMap();
+    private volatile Set<ServiceEndPoint> _subset = ImmutableSet.of();
+
+    /**
+     * @param clientId Identifies this client, and should be different for every client of the service.
+     * @param size     The number of end points to use, or 0 to use all of them.
+     */
+    EndPointSubset(String clientId, int size) {
+        checkNotNull(clientId);
+        checkArgument(size >= 0);
+
+        _clientId = clientId;
+        _size = size;
+    }
+
+    boolean isEnabled() {
+        return _size > 0;
+    }
+
+    /** Returns the number of end points to use, or 0 when subsetting is disabled. */
+    int getSize() {
+        return _size;
+    }
+
+    boolean contains(ServiceEndPoint endPoint) {
+        return !isEnabled() || _subset.contains(endPoint);
+    }
+
+    /**
+     * Recomputes the subset after the end points changed.
+     *
+     * @return The end points that left the subset but are still available.
+     */
+    synchronized Set<ServiceEndPoint> update(Iterable<ServiceEndPoint> endPoints) {
+        if (!isEnabled()) {
+            return ImmutableSet.of();
+        }
+
+        Set<ServiceEndPoint> all = ImmutableSet.copyOf(endPoints);
+        Set<String> ids = Sets.newHashSet();
+        for (ServiceEndPoint endPoint : all) {
+            ids.add(endPoint.getId());
+        }
+        _scores.keySet().retainAll(ids);
+
+        Set<ServiceEndPoint> previous = _subset;
+        _subset = ImmutableSet.copyOf(select(rank(all), Predicates.<ServiceEndPoint>alwaysTrue()));
+        return ImmutableSet.copyOf(Sets.difference(Sets.intersection(previous, all), _subset));
+    }
+
+    /**
+     * Picks the highest ranked end points that satisfy a predicate, up to the subset size, or all of them when
+     * subsetting is disabled.  End points that don't satisfy it, ex. bad ones, are passed over for the next ranked
+     * ones.
+     *
+     * @param ranked End points in the order returned by {@link #rank}.
+     */
+    List<ServiceEndPoint> select(List<ServiceEndPoint> ranked, Predicate<? super ServiceEndPoint> predicate) {
+        int size = isEnabled() ? _size : ranked.size();
+        List<ServiceEndPoint> selected = Lists.newArrayListWithCapacity(Math.min(size, ranked.size()));
+        for (ServiceEndPoint endPoint : ranked) {
+            if (selected.size() >= size) {
+                break;
+            }
+            if (predicate.apply(endPoint)) {
+                selected.add(endPoint);
+            }
+        }
+        return selected;
+    }
+
+    Set<ServiceEndPoint> getEndPoints() {
+        return _subset;
+    }
+
+    /**
+     * Orders end points by score, highest first, for {@link #select}.  When subsetting is disabled the end points keep
+     * the order they're given in.
+     */
+    synchronized List<ServiceEndPoint> rank(Iterable<ServiceEndPoint> endPoints) {
+        if (!isEnabled()) {
+            return ImmutableList.copyOf(endPoints);
+        }
+
+        final Map<String, Long> scores = Maps.newHashMap();
+        for (ServiceEndPoint endPoint : endPoints) {
+            scores.put(endPoint.getId(), getScore(endPoint.getId()));
+        }
+
+        // Highest score first, ties broken by ID so that every client agrees on the order.
+        List<ServiceEndPoint> ranked = Lists.newArrayList(endPoints);
+        Collections.sort(ranked, new Comparator<ServiceEndPoint>() {
+            @Override
+            public int compare(ServiceEndPoint left, ServiceEndPoint right) {
+                int result = scores.get(right.getId()).compareTo(scores.get(left.getId()));
+                return (result != 0) ? result : left.getId().compareTo(right.getId());
+            }
+        });
+        return ImmutableList.copyOf(ranked);
+    }
+
+    private long getScore(String endPointId) {
+        Long score = _scores.get(endPointId);
+        if (score == null) {
+            score = Hashing.md5().newHasher()
+                    .putInt(_clientId.length())
+                    .putString(_clientId)
+                    .putString(endPointId)
+                    .hash().asLong();
+            _scores.put(endPointId, score);
+        }
+        return score;
+    }
+}
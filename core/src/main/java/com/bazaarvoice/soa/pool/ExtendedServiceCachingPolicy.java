@@ -0,0 +1,57 @@
+package com.bazaarvoice.soa.pool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ServiceCachingPolicy} with settings that were added after it.  Policies built by a
+ * {@link ServiceCachingPolicyBuilder} implement this interface.  A {@link ServiceCache} given a plain
+ * {@code ServiceCachingPolicy} behaves as if every one of these settings was left at its default.
+ */
+public interface ExtendedServiceCachingPolicy extends ServiceCachingPolicy {
+    /**
+     * Returns the number of idle service instances to keep ready for each end point.  Instances are created in the
+     * background when an end point is discovered, and topped up as idle instances are checked out or expire, so that
+     * callers rarely have to wait for a new instance to be created.
+     * <p/>
+     * NOTE: A value of 0 indicates that instances are only created when needed.
+     */
+    int getMinNumIdleServiceInstancesPerEndPoint();
+
+    /**
+     * Returns the number of service instances to create for each end point and share between all callers, for use
+     * when service instances are safe to use from many threads at once.  Shared instances are never checked out for
+     * exclusive use, so the limits on the number of instances and the exhaustion action don't apply to them.  They stay
+     * in the cache until their end point is evicted or the cache is closed.
+     * <p/>
+     * NOTE: A value of 0 indicates that each service instance is checked out for exclusive use.
+     */
+    int getNumSharedServiceInstancesPerEndPoint();
+
+    /**
+     * The amount of time that a service instance is allowed to be used for before it is retired from the cache, no
+     * matter how busy it is.  Retiring instances lets long lived connections move onto end points that were added after
+     * they were created.  Each instance's lifetime is shortened by a random amount of up to a fifth so that instances
+     * created together aren't all retired together.
+     * <p/>
+     * NOTE: An instance is only retired when it is next checked out or checked in, never while it is in use.  A
+     * non-positive value indicates service instances will never be retired based on age.
+     */
+    long getMaxServiceInstanceLifetime(TimeUnit unit);
+
+    /**
+     * The number of times a service instance can be checked out before it is retired from the cache.  Like the
+     * lifetime, each instance's number of uses is shortened by a random amount of up to a fifth.
+     * <p/>
+     * NOTE: A non-positive value indicates service instances will never be retired based on the number of uses.
+     */
+    int getMaxNumUsesPerServiceInstance();
+
+    /**
+     * The maximum amount of time to wait for a service instance when the cache is exhausted and the exhaustion action
+     * is {@link ExhaustionAction#WAIT}.  Callers waiting for the same end point are served in the order they arrived.
+     * Each attempt of a retried call waits on its own, there is no deadline shared across attempts.
+     * <p/>
+     * NOTE: A non-positive value indicates that callers will wait as long as it takes for an instance.
+     */
+    long getMaxWaitTime(TimeUnit unit);
+}
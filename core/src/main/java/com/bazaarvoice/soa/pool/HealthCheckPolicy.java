@@ -0,0 +1,74 @@
+package com.bazaarvoice.soa.pool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A policy for determining how a {@link ServicePool} runs health checks against its end points.
+ */
+public interface HealthCheckPolicy {
+    /**
+     * Returns the maximum number of health checks that a pool runs at the same time.  Health checks beyond this limit
+     * wait until a running health check completes or times out.
+     */
+    int getMaxNumConcurrentHealthChecks();
+
+    /**
+     * The amount of time a single {@link com.bazaarvoice.soa.ServiceFactory#isHealthy} call is allowed to take before
+     * the end point is considered unhealthy.  The thread running a timed out health check is interrupted, but it is
+     * up to the {@code ServiceFactory} to respond to the interrupt; health checks that ignore it keep running in the
+     * background without counting against {@link #getMaxNumConcurrentHealthChecks()}.
+     * <p/>
+     * NOTE: A value of 0 lets health checks run for as long as they take.
+     */
+    long getHealthCheckTimeout(TimeUnit unit);
+
+    /**
+     * The delay before a newly bad end point is first re-checked when bad end points are re-checked on their own
+     * adaptive schedules, or 0 if bad end points are instead re-checked together on a fixed interval.
+     * <p/>
+     * With adaptive re-checks, every failed re-check multiplies the end point's delay by
+     * {@link #getRecheckBackoffMultiplier()}, up to {@link #getMaxRecheckDelay}.  Each delay is randomized by
+     * {@link #getRecheckJitter()} so that end points that went bad together aren't re-checked in lock step.
+     */
+    long getInitialRecheckDelay(TimeUnit unit);
+
+    /**
+     * The longest delay between adaptive re-checks of a bad end point.
+     */
+    long getMaxRecheckDelay(TimeUnit unit);
+
+    /**
+     * The factor by which the delay between adaptive re-checks of a bad end point grows after each failed re-check.
+     */
+    double getRecheckBackoffMultiplier();
+
+    /**
+     * The fraction, between 0 and 1, by which each adaptive re-check delay is randomly lengthened or shortened.
+     */
+    double getRecheckJitter();
+
+    /**
+     * The number of end points that {@link com.bazaarvoice.soa.ServicePool#checkForHealthyEndPoint()} health checks at
+     * the same time.  The first healthy result wins and the remaining health checks are abandoned.
+     */
+    int getHealthyEndPointCheckFanOut();
+
+    /**
+     * How long the results of {@link com.bazaarvoice.soa.ServicePool#checkForHealthyEndPoint()} are reused by
+     * subsequent callers before end points are health checked again, or 0 if every call health checks end points.
+     */
+    long getHealthyEndPointCheckCacheTtl(TimeUnit unit);
+
+    /**
+     * Every how many requests one is sent to a bad end point instead of a valid one, or 0 if requests are never sent
+     * to bad end points.  A request that fails on a bad end point is retried on a valid one as allowed by its
+     * {@link com.bazaarvoice.soa.RetryPolicy}.
+     */
+    int getPassiveProbeInterval();
+
+    /**
+     * The number of consecutive successful requests after which a bad end point returns to rotation without waiting to
+     * be health checked.  Only used when {@link #getPassiveProbeInterval()} is greater than 0.
+     */
+    int getNumPassiveSuccessesToReinstate();
+}
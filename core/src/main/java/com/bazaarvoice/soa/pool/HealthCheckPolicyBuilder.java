@@ -0,0 +1,222 @@
+package com.bazaarvoice.soa.pool;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+public class HealthCheckPolicyBuilder {
+    public static final HealthCheckPolicy DEFAULT = new HealthCheckPolicyBuilder().build();
+
+    private int _maxNumConcurrentHealthChecks = 8;
+    private long _healthCheckTimeoutNanos = 0;
+    private long _initialRecheckDelayNanos = 0;
+    private long _maxRecheckDelayNanos = 0;
+    private double _recheckBackoffMultiplier = 2;
+    private double _recheckJitter = 0.2;
+    private int _healthyEndPointCheckFanOut = 1;
+    private long _healthyEndPointCheckCacheTtlNanos = 0;
+    private int _passiveProbeInterval = 0;
+    private int _numPassiveSuccessesToReinstate = 0;
+
+    /**
+     * Set the maximum number of health checks that may run at the same time.  If never called, defaults to 8.
+     *
+     * @param maxNumConcurrentHealthChecks The maximum number of concurrent health checks.
+     * @return this
+     */
+    public HealthCheckPolicyBuilder withMaxNumConcurrentHealthChecks(int maxNumConcurrentHealthChecks) {
+        checkState(maxNumConcurrentHealthChecks > 0);
+
+        _maxNumConcurrentHealthChecks = maxNumConcurrentHealthChecks;
+        return this;
+    }
+
+    /**
+     * Set the amount of time a single health check may take before the end point is considered unhealthy.  If never
+     * called, health checks may take as long as they like.
+     *
+     * @param healthCheckTimeout The maximum duration of a health check.
+     * @param unit               The unit of time the {@code healthCheckTimeout} is in.
+     * @return this
+     */
+    public HealthCheckPolicyBuilder withHealthCheckTimeout(long healthCheckTimeout, TimeUnit unit) {
+        checkState(healthCheckTimeout > 0);
+        checkNotNull(unit);
+
+        _healthCheckTimeoutNanos = unit.toNanos(healthCheckTimeout);
+        return this;
+    }
+
+    /**
+     * Re-check each bad end point on its own schedule, starting after {@code initialDelay} and backing off
+     * exponentially up to {@code maxDelay} for as long as the end point stays bad.  If never called, bad end points
+     * are re-checked together once a minute.
+     *
+     * @param initialDelay The delay before a newly bad end point is first re-checked.
+     * @param maxDelay     The longest delay between re-checks of a bad end point.
+     * @param unit         The unit of time {@code initialDelay} and {@code maxDelay} are in.
+     * @return this
+     */
+    public HealthCheckPolicyBuilder withAdaptiveRechecks(long initialDelay, long maxDelay, TimeUnit unit) {
+        checkState(initialDelay > 0);
+        checkState(maxDelay >= initialDelay);
+        checkNotNull(unit);
+
+        _initialRecheckDelayNanos = unit.toNanos(initialDelay);
+        _maxRecheckDelayNanos = unit.toNanos(maxDelay);
+        return this;
+    }
+
+    /**
+     * Set the factor by which the delay between adaptive re-checks grows after each failed re-check.  If never
+     * called, defaults to 2.
+     *
+     * @param multiplier The backoff multiplier, at least 1.
+     * @return this
+     */
+    public HealthCheckPolicyBuilder withRecheckBackoffMultiplier(double multiplier) {
+        checkState(multiplier >= 1);
+
+        _recheckBackoffMultiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * Set the fraction by which each adaptive re-check delay is randomly lengthened or shortened.  If never called,
+     * defaults to 0.2.
+     *
+     * @param jitter The jitter fraction, at least 0 and less than 1.
+     * @return this
+     */
+    public HealthCheckPolicyBuilder withRecheckJitter(double jitter) {
+        checkState(jitter >= 0 && jitter < 1);
+
+        _recheckJitter = jitter;
+        return this;
+    }
+
+    /**
+     * Set the number of end points that {@link com.bazaarvoice.soa.ServicePool#checkForHealthyEndPoint()} health checks
+     * at the same time.  Must not be more than the maximum number of concurrent health checks.  If never called,
+     * defaults to 1, which checks end points one at a time.
+     *
+     * @param fanOut The number of end points to health check at once.
+     * @return this
+     */
+    public HealthCheckPolicyBuilder withHealthyEndPointCheckFanOut(int fanOut) {
+        checkState(fanOut > 0);
+
+        _healthyEndPointCheckFanOut = fanOut;
+        return this;
+    }
+
+    /**
+     * Set how long the results of {@link com.bazaarvoice.soa.ServicePool#checkForHealthyEndPoint()} are shared by
+     * all callers before end points are health checked again.  This bounds the health check traffic sent to end
+     * points no matter how often the pool itself is asked whether it's healthy.  If never called, results aren't
+     * cached.
+     *
+     * @param ttl  How long results are reused, or 0 to never reuse results.
+     * @param unit The unit of time {@code ttl} is in.
+     * @return this
+     */
+    public HealthCheckPolicyBuilder withHealthyEndPointCheckCacheTtl(long ttl, TimeUnit unit) {
+        checkState(ttl >= 0);
+        checkNotNull(unit);
+
+        _healthyEndPointCheckCacheTtlNanos = unit.toNanos(ttl);
+        return this;
+    }
+
+    /**
+     * Send one in every {@code probeInterval} requests to a bad end point, and return a bad end point to rotation once
+     * {@code numSuccessesToReinstate} consecutive requests to it succeed.  Useful when {@code isHealthy} is expensive
+     * or isn't representative of real traffic.  If never called, only health checks return bad end points to rotation.
+     *
+     * @param probeInterval           Every how many requests one is sent to a bad end point.
+     * @param numSuccessesToReinstate The number of consecutive successes that return a bad end point to rotation.
+     * @return this
+     */
+    public HealthCheckPolicyBuilder withPassiveHealthChecks(int probeInterval, int numSuccessesToReinstate) {
+        checkState(probeInterval > 0);
+        checkState(numSuccessesToReinstate > 0);
+
+        _passiveProbeInterval = probeInterval;
+        _numPassiveSuccessesToReinstate = numSuccessesToReinstate;
+        return this;
+    }
+
+    /**
+     * Build the {@code HealthCheckPolicy} specified by this builder.
+     *
+     * @return The {@code HealthCheckPolicy} that was constructed.
+     */
+    public HealthCheckPolicy build() {
+        checkState(_healthyEndPointCheckFanOut <= _maxNumConcurrentHealthChecks,
+                "Healthy end point check fan out is more than the max number of concurrent health checks");
+
+        final int maxNumConcurrentHealthChecks = _maxNumConcurrentHealthChecks;
+        final long healthCheckTimeoutNanos = _healthCheckTimeoutNanos;
+        final long initialRecheckDelayNanos = _initialRecheckDelayNanos;
+        final long maxRecheckDelayNanos = _maxRecheckDelayNanos;
+        final double recheckBackoffMultiplier = _recheckBackoffMultiplier;
+        final double recheckJitter = _recheckJitter;
+        final int healthyEndPointCheckFanOut = _healthyEndPointCheckFanOut;
+        final long healthyEndPointCheckCacheTtlNanos = _healthyEndPointCheckCacheTtlNanos;
+        final int passiveProbeInterval = _passiveProbeInterval;
+        final int numPassiveSuccessesToReinstate = _numPassiveSuccessesToReinstate;
+
+        return new HealthCheckPolicy() {
+            @Override
+            public int getMaxNumConcurrentHealthChecks() {
+                return maxNumConcurrentHealthChecks;
+            }
+
+            @Override
+            public long getHealthCheckTimeout(TimeUnit unit) {
+                return unit.convert(healthCheckTimeoutNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public long getInitialRecheckDelay(TimeUnit unit) {
+                return unit.convert(initialRecheckDelayNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public long getMaxRecheckDelay(TimeUnit unit) {
+                return unit.convert(maxRecheckDelayNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public double getRecheckBackoffMultiplier() {
+                return recheckBackoffMultiplier;
+            }
+
+            @Override
+            public double getRecheckJitter() {
+                return recheckJitter;
+            }
+
+            @Override
+            public int getHealthyEndPointCheckFanOut() {
+                return healthyEndPointCheckFanOut;
+            }
+
+            @Override
+            public long getHealthyEndPointCheckCacheTtl(TimeUnit unit) {
+                return unit.convert(healthyEndPointCheckCacheTtlNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public int getPassiveProbeInterval() {
+                return passiveProbeInterval;
+            }
+
+            @Override
+            public int getNumPassiveSuccessesToReinstate() {
+                return numPassiveSuccessesToReinstate;
+            }
+        };
+    }
+}
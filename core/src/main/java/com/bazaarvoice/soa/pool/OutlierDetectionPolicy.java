@@ -0,0 +1,65 @@
+package com.bazaarvoice.soa.pool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A policy for determining how a {@link ServicePool} detects end points whose behavior is an outlier compared to their
+ * peers, and what the pool does when too few end points remain usable.
+ * <p/>
+ * Outlier detection periodically compares each end point's failure rate and average latency to those of the other end
+ * points in the pool.  End points that stand out are ejected from rotation for a period of time.  How many may be
+ * ejected at once is limited by {@link #getEjectionLimitPercent()}.
+ * <p/>
+ * Failures the service factory considers retriable aren't counted, since they already mark the end point as bad and
+ * take it out of rotation until a health check passes.  The success rate reflects the failures that don't, such as an
+ * end point answering every request with an error.
+ * <p/>
+ * Independently of outlier detection, when the fraction of usable end points drops below
+ * {@link #getPanicThresholdPercent()} the pool enters panic mode and routes requests across all known end points,
+ * including bad and ejected ones, instead of failing with an
+ * {@link com.bazaarvoice.soa.exceptions.OnlyBadHostsException}.
+ */
+public interface OutlierDetectionPolicy {
+    /**
+     * Returns the percentage (0-100) of known end points that may be ejected as outliers at the same time, rounded
+     * down.  One end point may always be ejected, however few end points there are, so in a pool of fewer than
+     * {@code 100 / percentage} end points this limit is one end point rather than the percentage.
+     * <p/>
+     * NOTE: A value of 0 disables outlier detection.
+     */
+    int getEjectionLimitPercent();
+
+    /**
+     * Returns the percentage (0-100) of valid end points below which the pool stops excluding bad end points and routes
+     * across every known end point.
+     * <p/>
+     * NOTE: A value of 0 disables panic mode.
+     */
+    int getPanicThresholdPercent();
+
+    /** How often the pool analyzes collected statistics to find outliers. */
+    long getAnalysisInterval(TimeUnit unit);
+
+    /** How long an end point stays ejected before it is returned to rotation. */
+    long getEjectionTime(TimeUnit unit);
+
+    /**
+     * The minimum number of requests an end point must have seen during an analysis interval for its statistics to be
+     * considered.  End points with fewer requests are neither ejected nor used to compute peer averages.
+     */
+    int getMinRequestVolume();
+
+    /**
+     * An end point is ejected when its success rate is below the mean success rate of the considered end points by
+     * more than this many standard deviations.
+     */
+    double getSuccessRateStdevFactor();
+
+    /**
+     * An end point is ejected when its average latency is greater than this multiple of the median average latency of
+     * the considered end points.
+     * <p/>
+     * NOTE: A non-positive value disables latency based ejection.
+     */
+    double getLatencyFactor();
+}
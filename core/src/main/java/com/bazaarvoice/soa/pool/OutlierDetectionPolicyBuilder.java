@@ -0,0 +1,170 @@
+package com.bazaarvoice.soa.pool;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+public class OutlierDetectionPolicyBuilder {
+    public static final OutlierDetectionPolicy NO_OUTLIER_DETECTION = new OutlierDetectionPolicyBuilder().build();
+
+    private int _ejectionLimitPercent = 0;
+    private int _panicThresholdPercent = 0;
+    private long _analysisIntervalNanos = TimeUnit.SECONDS.toNanos(10);
+    private long _ejectionTimeNanos = TimeUnit.SECONDS.toNanos(30);
+    private int _minRequestVolume = 100;
+    private double _successRateStdevFactor = 1.9;
+    private double _latencyFactor = 3.0;
+
+    /**
+     * Set the percentage of known end points that may be ejected as outliers at the same time.  One end point may
+     * always be ejected, even when the percentage of a small pool rounds down to none.  If never called, outlier
+     * detection is disabled.
+     *
+     * @param ejectionLimitPercent The percentage (0-100) of end points that may be ejected, but at least one.
+     * @return this
+     */
+    public OutlierDetectionPolicyBuilder withEjectionLimitPercent(int ejectionLimitPercent) {
+        checkState(ejectionLimitPercent >= 0 && ejectionLimitPercent <= 100);
+
+        _ejectionLimitPercent = ejectionLimitPercent;
+        return this;
+    }
+
+    /**
+     * Set the percentage of valid end points below which the pool routes across all known end points instead of
+     * failing.  If never called, panic mode is disabled.
+     *
+     * @param panicThresholdPercent The panic threshold percentage (0-100).
+     * @return this
+     */
+    public OutlierDetectionPolicyBuilder withPanicThresholdPercent(int panicThresholdPercent) {
+        checkState(panicThresholdPercent >= 0 && panicThresholdPercent <= 100);
+
+        _panicThresholdPercent = panicThresholdPercent;
+        return this;
+    }
+
+    /**
+     * Set how often collected statistics are analyzed for outliers.  If never called, defaults to 10 seconds.
+     *
+     * @param analysisInterval The time between analysis runs.
+     * @param unit             The unit of time the {@code analysisInterval} is in.
+     * @return this
+     */
+    public OutlierDetectionPolicyBuilder withAnalysisInterval(long analysisInterval, TimeUnit unit) {
+        checkState(analysisInterval > 0);
+        checkNotNull(unit);
+
+        _analysisIntervalNanos = unit.toNanos(analysisInterval);
+        return this;
+    }
+
+    /**
+     * Set how long an outlier stays ejected before it is returned to rotation.  If never called, defaults to 30
+     * seconds.
+     *
+     * @param ejectionTime The time an outlier remains ejected.
+     * @param unit         The unit of time the {@code ejectionTime} is in.
+     * @return this
+     */
+    public OutlierDetectionPolicyBuilder withEjectionTime(long ejectionTime, TimeUnit unit) {
+        checkState(ejectionTime > 0);
+        checkNotNull(unit);
+
+        _ejectionTimeNanos = unit.toNanos(ejectionTime);
+        return this;
+    }
+
+    /**
+     * Set the minimum number of requests an end point must see during an analysis interval to be considered.  If never
+     * called, defaults to 100.
+     *
+     * @param minRequestVolume The minimum number of requests per analysis interval.
+     * @return this
+     */
+    public OutlierDetectionPolicyBuilder withMinRequestVolume(int minRequestVolume) {
+        checkState(minRequestVolume > 0);
+
+        _minRequestVolume = minRequestVolume;
+        return this;
+    }
+
+    /**
+     * Set how many standard deviations below the mean success rate an end point must be to be ejected.  If never
+     * called, defaults to 1.9.
+     *
+     * @param successRateStdevFactor The number of standard deviations.
+     * @return this
+     */
+    public OutlierDetectionPolicyBuilder withSuccessRateStdevFactor(double successRateStdevFactor) {
+        checkState(successRateStdevFactor > 0);
+
+        _successRateStdevFactor = successRateStdevFactor;
+        return this;
+    }
+
+    /**
+     * Set the multiple of the median average latency above which an end point is ejected.  A non-positive value
+     * disables latency based ejection.  If never called, defaults to 3.
+     *
+     * @param latencyFactor The latency multiple.
+     * @return this
+     */
+    public OutlierDetectionPolicyBuilder withLatencyFactor(double latencyFactor) {
+        _latencyFactor = latencyFactor;
+        return this;
+    }
+
+    /**
+     * Build the {@code OutlierDetectionPolicy} specified by this builder.
+     *
+     * @return The {@code OutlierDetectionPolicy} that was constructed.
+     */
+    public OutlierDetectionPolicy build() {
+        final int ejectionLimitPercent = _ejectionLimitPercent;
+        final int panicThresholdPercent = _panicThresholdPercent;
+        final long analysisIntervalNanos = _analysisIntervalNanos;
+        final long ejectionTimeNanos = _ejectionTimeNanos;
+        final int minRequestVolume = _minRequestVolume;
+        final double successRateStdevFactor = _successRateStdevFactor;
+        final double latencyFactor = _latencyFactor;
+
+        return new OutlierDetectionPolicy() {
+            @Override
+            public int getEjectionLimitPercent() {
+                return ejectionLimitPercent;
+            }
+
+            @Override
+            public int getPanicThresholdPercent() {
+                return panicThresholdPercent;
+            }
+
+            @Override
+            public long getAnalysisInterval(TimeUnit unit) {
+                return unit.convert(analysisIntervalNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public long getEjectionTime(TimeUnit unit) {
+                return unit.convert(ejectionTimeNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public int getMinRequestVolume() {
+                return minRequestVolume;
+            }
+
+            @Override
+            public double getSuccessRateStdevFactor() {
+                return successRateStdevFactor;
+            }
+
+            @Override
+            public double getLatencyFactor() {
+                return latencyFactor;
+            }
+        };
+    }
+}
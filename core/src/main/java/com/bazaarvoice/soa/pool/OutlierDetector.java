@@ -0,0 +1,189 @@
+package com.bazaarvoice.soa.pool;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Collects per end point request statistics for a {@link ServicePool} and compares each end point to its peers to find
+ * outliers, as configured by an {@link OutlierDetectionPolicy}.
+ * <p/>
+ * Statistics are gathered over an analysis interval.  Each call to {@link #findOutliers} analyzes the statistics
+ * gathered since the previous call and then starts a new interval.
+ */
+class OutlierDetector {
+    /** Comparing an end point to its peers isn't meaningful unless there are enough peers to compare against. */
+    static final int MIN_NUM_END_POINTS = 5;
+
+    private final OutlierDetectionPolicy _policy;
+    private final AtomicReference<ConcurrentMap<ServiceEndPoint, Stats>> _stats =
+            new AtomicReference<ConcurrentMap<ServiceEndPoint, Stats>>(Maps.<ServiceEndPoint, Stats>newConcurrentMap());
+
+    OutlierDetector(OutlierDetectionPolicy policy) {
+        _policy = checkNotNull(policy);
+    }
+
+    void recordSuccess(ServiceEndPoint endPoint, long latencyNanos) {
+        getStats(endPoint).record(true, latencyNanos);
+    }
+
+    void recordFailure(ServiceEndPoint endPoint, long latencyNanos) {
+        getStats(endPoint).record(false, latencyNanos);
+    }
+
+    /** Discards any statistics gathered for an end point that is no longer part of the pool. */
+    void forget(ServiceEndPoint endPoint) {
+        _stats.get().remove(endPoint);
+    }
+
+    /**
+     * Analyzes the statistics gathered during the current interval and starts a new one.
+     *
+     * @return The end points that are outliers, ordered from most to least severe.
+     */
+    List<ServiceEndPoint> findOutliers() {
+        Map<ServiceEndPoint, Stats> stats = _stats.getAndSet(Maps.<ServiceEndPoint, Stats>newConcurrentMap());
+
+        final Map<ServiceEndPoint, Snapshot> candidates = Maps.newHashMap();
+        for (Map.Entry<ServiceEndPoint, Stats> entry : stats.entrySet()) {
+            Snapshot snapshot = entry.getValue().snapshot();
+            if (snapshot.getNumRequests() >= _policy.getMinRequestVolume()) {
+                candidates.put(entry.getKey(), snapshot);
+            }
+        }
+        if (candidates.size() < MIN_NUM_END_POINTS) {
+            return Collections.emptyList();
+        }
+
+        Set<ServiceEndPoint> outliers = Sets.newLinkedHashSet();
+        outliers.addAll(findSuccessRateOutliers(candidates));
+        outliers.addAll(findLatencyOutliers(candidates));
+        return Lists.newArrayList(outliers);
+    }
+
+    private List<ServiceEndPoint> findSuccessRateOutliers(final Map<ServiceEndPoint, Snapshot> candidates) {
+        double sum = 0;
+        for (Snapshot snapshot : candidates.values()) {
+            sum += snapshot.getSuccessRate();
+        }
+        double mean = sum / candidates.size();
+
+        double squaredDeviations = 0;
+        for (Snapshot snapshot : candidates.values()) {
+            squaredDeviations += Math.pow(snapshot.getSuccessRate() - mean, 2);
+        }
+        double stdev = Math.sqrt(squaredDeviations / candidates.size());
+        double threshold = mean - _policy.getSuccessRateStdevFactor() * stdev;
+
+        List<ServiceEndPoint> outliers = Lists.newArrayList();
+        for (Map.Entry<ServiceEndPoint, Snapshot> entry : candidates.entrySet()) {
+            if (entry.getValue().getSuccessRate() < threshold) {
+                outliers.add(entry.getKey());
+            }
+        }
+
+        // Lowest success rate first.
+        Collections.sort(outliers, new Comparator<ServiceEndPoint>() {
+            @Override
+            public int compare(ServiceEndPoint a, ServiceEndPoint b) {
+                return Double.compare(candidates.get(a).getSuccessRate(), candidates.get(b).getSuccessRate());
+            }
+        });
+        return outliers;
+    }
+
+    private List<ServiceEndPoint> findLatencyOutliers(final Map<ServiceEndPoint, Snapshot> candidates) {
+        if (_policy.getLatencyFactor() <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<Double> latencies = Lists.newArrayListWithCapacity(candidates.size());
+        for (Snapshot snapshot : candidates.values()) {
+            latencies.add(snapshot.getAverageLatencyNanos());
+        }
+        Collections.sort(latencies);
+        double median = latencies.get(latencies.size() / 2);
+        double threshold = median * _policy.getLatencyFactor();
+
+        List<ServiceEndPoint> outliers = Lists.newArrayList();
+        for (Map.Entry<ServiceEndPoint, Snapshot> entry : candidates.entrySet()) {
+            if (entry.getValue().getAverageLatencyNanos() > threshold) {
+                outliers.add(entry.getKey());
+            }
+        }
+
+        // Highest latency first.
+        Collections.sort(outliers, new Comparator<ServiceEndPoint>() {
+            @Override
+            public int compare(ServiceEndPoint a, ServiceEndPoint b) {
+                return Double.compare(candidates.get(b).getAverageLatencyNanos(),
+                        candidates.get(a).getAverageLatencyNanos());
+            }
+        });
+        return outliers;
+    }
+
+    private Stats getStats(ServiceEndPoint endPoint) {
+        ConcurrentMap<ServiceEndPoint, Stats> stats = _stats.get();
+        Stats endPointStats = stats.get(endPoint);
+        if (endPointStats == null) {
+            Stats newStats = new Stats();
+            endPointStats = stats.putIfAbsent(endPoint, newStats);
+            if (endPointStats == null) {
+                endPointStats = newStats;
+            }
+        }
+        return endPointStats;
+    }
+
+    private static final class Stats {
+        private final AtomicLong _numSuccesses = new AtomicLong();
+        private final AtomicLong _numFailures = new AtomicLong();
+        private final AtomicLong _totalLatencyNanos = new AtomicLong();
+
+        void record(boolean success, long latencyNanos) {
+            (success ? _numSuccesses : _numFailures).incrementAndGet();
+            _totalLatencyNanos.addAndGet(latencyNanos);
+        }
+
+        Snapshot snapshot() {
+            return new Snapshot(_numSuccesses.get(), _numFailures.get(), _totalLatencyNanos.get());
+        }
+    }
+
+    private static final class Snapshot {
+        private final long _numSuccesses;
+        private final long _numRequests;
+        private final long _totalLatencyNanos;
+
+        Snapshot(long numSuccesses, long numFailures, long totalLatencyNanos) {
+            _numSuccesses = numSuccesses;
+            _numRequests = numSuccesses + numFailures;
+            _totalLatencyNanos = totalLatencyNanos;
+        }
+
+        long getNumRequests() {
+            return _numRequests;
+        }
+
+        double getSuccessRate() {
+            return (double) _numSuccesses / _numRequests;
+        }
+
+        double getAverageLatencyNanos() {
+            return (double) _totalLatencyNanos / _numRequests;
+        }
+    }
+}
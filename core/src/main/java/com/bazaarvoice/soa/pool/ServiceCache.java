@@ -5,31 +5,78 @@ import com.bazaarvoice.soa.ServiceFactory;
 import com.bazaarvoice.soa.exceptions.NoCachedInstancesAvailableException;
 import com.bazaarvoice.soa.metrics.Metrics;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.MapMaker;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Timer;
 import com.yammer.metrics.core.TimerContext;
 import com.yammer.metrics.util.RatioGauge;
-import org.apache.commons.pool.BaseKeyedPoolableObjectFactory;
-import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.MessageFormatter;
 
 import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A cache for service instances. Useful if there's more than insignificant overhead in creating service connections
- * from a {@link ServiceEndPoint}.  Will spawn one thread (shared by all {@code ServiceCache}s) to handle evictions of
+ * from a {@link ServiceEndPoint}.  Will spawn one thread (shared by all {@code ServiceCache}s) to expire idle service
+ * instances.  Each end point with idle instances sits on a timing wheel until its oldest idle instance is due to
+ * expire, so each tick only looks at the end points that have instances to expire, and only at the instances that
+ * expire.  Destroying them is normally left to the destroy threads, so the one thread keeps up with many caches.  If
+ * the policy asks for idle instances to be kept ready, they are created on a shared pool of threads so that callers
+ * don't pay for creating them.
+ * <p/>
+ * Service instances are destroyed in the background by a small shared pool of threads, so that slow
+ * {@link ServiceFactory#destroy} calls don't hold up callers that evict an end point.  When the backlog of instances
+ * waiting to be destroyed is full, the caller destroys the instance itself rather than letting the backlog grow.
+ * <p/>
+ * When the cache is exhausted and the policy says to wait, callers wait their turn in a queue for their end point.
+ * Only the caller at the head of the queue looks for an instance, and callers that arrive later don't jump ahead of
+ * it.  Waiting is bounded by the policy's maximum wait time, if it has one.
+ * <p/>
+ * A cache may also be limited by a {@link ServiceCacheBudget} shared with the caches of other pools.  When the budget
+ * is used up, the least recently used idle instance of any cache in the budget may be destroyed to make room.
+ * <p/>
+ * If the policy limits the lifetime or number of uses of service instances, each instance is retired once it reaches
+ * its limit, so that long lived connections are recycled and spread onto end points that joined after them.  The limits
+ * are jittered per instance so that instances created together aren't all recycled at the same moment.
+ * <p/>
+ * If the policy asks for shared instances, each end point instead keeps a fixed number of instances that are handed out
+ * to any number of callers at once.  A shared instance is only destroyed once it has been evicted and the last caller
+ * using it has checked it in.
+ * <p/>
+ * Checking instances in and out never takes a cache wide lock.  Each end point keeps its idle instances in its own
+ * deque in the order they were checked in, along with its own instance counts, and only locks the deque long enough to
+ * add or remove an instance at one of its ends.  Check outs take the most recently used instance at the tail, while
+ * expiry and making room for other end points take the least recently used instances at the head, stopping at the
+ * first one that has to stay.  Cache wide state is only touched when an instance is created or destroyed, or when a
+ * caller has to wait for an instance to become available.
  */
 class ServiceCache<S> implements Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(ServiceCache.class);
@@ -38,21 +85,57 @@ class ServiceCache<S> implements Closeable {
                     .setNameFormat("ServiceCache-EvictionThread-%d")
                     .setDaemon(true)
                     .build());
+    private static final ExecutorService REFILL_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("ServiceCache-RefillThread-%d")
+                    .setDaemon(true)
+                    .build());
+
+    /** The most threads to destroy service instances on, shared by all {@code ServiceCache}s. */
+    private static final int NUM_DESTROY_THREADS = 4;
+
+    /** The most service instances to hold waiting to be destroyed before callers have to destroy them themselves. */
+    private static final int MAX_DESTROY_QUEUE_SIZE = 1000;
 
-    /** How often to try to evict old service instances. */
+    private static final ExecutorService DESTROY_EXECUTOR = newDestroyExecutor();
+
+    /** How often to look for idle service instances to expire, and so how late past their idle time they may be. */
     @VisibleForTesting
-    static final long EVICTION_DURATION_IN_SECONDS = 300;
+    static final long EXPIRY_TICK_IN_MILLIS = 1000;
+
+    private static final int NUM_EXPIRY_WHEEL_BUCKETS = 512;
 
-    private final GenericKeyedObjectPool<ServiceEndPoint, S> _pool;
-    private final AtomicLong _revisionNumber = new AtomicLong();
-    private final Map<ServiceEndPoint, Long> _invalidRevisions = new MapMaker().weakKeys().makeMap();
-    private final Map<S, Long> _checkOutRevisions = Maps.newConcurrentMap();
-    private final Future<?> _evictionFuture;
+    /** Each instance's lifetime and number of uses are cut short by up to this fraction of the policy's limits. */
+    @VisibleForTesting
+    static final double LIFETIME_JITTER = 0.2;
+
+    private final ServiceFactory<S> _serviceFactory;
+    private final Ticker _ticker;
+    private final int _maxNumServiceInstances;
+    private final int _maxNumServiceInstancesPerEndPoint;
+    private final int _minNumIdleServiceInstancesPerEndPoint;
+    private final int _numSharedServiceInstancesPerEndPoint;
+    private final long _maxServiceInstanceIdleTimeNanos;
+    private final long _maxWaitTimeNanos;
+    private final long _maxServiceInstanceLifetimeNanos;
+    private final int _maxNumUsesPerServiceInstance;
+    private final Random _random = new Random();
+    private final ServiceCachingPolicy.ExhaustionAction _cacheExhaustionAction;
+    private final Executor _refillExecutor;
+    private final Executor _destroyExecutor;
+    private final AtomicInteger _numPendingDestroys = new AtomicInteger();
+    private final ConcurrentMap<ServiceEndPoint, EndPointCache> _endPointCaches = Maps.newConcurrentMap();
+    private final AtomicInteger _numInstances = new AtomicInteger();
+    private final AtomicInteger _numWaiters = new AtomicInteger();
+    private final ServiceCacheBudget.Member _budget;
+    private final TimingWheel<EndPointCache> _expiryWheel;
+    private final Future<?> _expiryFuture;
     private volatile boolean _isClosed = false;
     private final Metrics _metrics;
     private final Timer _loadTimer;
-    private final AtomicLong _requestCount = new AtomicLong();
-    private final AtomicLong _missCount = new AtomicLong();
+    private final Timer _waitTimer;
+    private final StripedCounter _requestCount = new StripedCounter();
+    private final StripedCounter _missCount = new StripedCounter();
     private final AtomicLong _loadSuccessCount = new AtomicLong();
     private final AtomicLong _loadFailureCount = new AtomicLong();
 
@@ -63,7 +146,21 @@ class ServiceCache<S> implements Closeable {
      * @param serviceFactory The factory to fall back to on cache misses.
      */
     ServiceCache(ServiceCachingPolicy policy, ServiceFactory<S> serviceFactory) {
-        this(policy, serviceFactory, EVICTION_EXECUTOR);
+        this(policy, serviceFactory, null, 0);
+    }
+
+    /**
+     * Builds a service cache that is also limited by a budget shared with other caches.
+     *
+     * @param policy                      The configuration for this cache.
+     * @param serviceFactory              The factory to fall back to on cache misses.
+     * @param budget                      The budget shared with other caches, or {@code null} if there isn't one.
+     * @param numReservedServiceInstances The part of the budget to set aside for this cache.
+     */
+    ServiceCache(ServiceCachingPolicy policy, ServiceFactory<S> serviceFactory, ServiceCacheBudget budget,
+                 int numReservedServiceInstances) {
+        this(policy, serviceFactory, EVICTION_EXECUTOR, REFILL_EXECUTOR, DESTROY_EXECUTOR, Ticker.systemTicker(),
+                budget, numReservedServiceInstances);
     }
 
     /**
@@ -71,17 +168,53 @@ class ServiceCache<S> implements Closeable {
      *
      * @param policy         The configuration for this cache.
      * @param serviceFactory The factory to fall back to on cache misses.
-     * @param executor       The executor to use for checking for idle instances to evict.
+     * @param executor       The executor to use for checking for idle instances to expire.
      */
     @VisibleForTesting
     ServiceCache(ServiceCachingPolicy policy, ServiceFactory<S> serviceFactory, ScheduledExecutorService executor) {
+        this(policy, serviceFactory, executor, REFILL_EXECUTOR, DESTROY_EXECUTOR, Ticker.systemTicker(), null, 0);
+    }
+
+    @VisibleForTesting
+    ServiceCache(ServiceCachingPolicy policy, ServiceFactory<S> serviceFactory, ScheduledExecutorService executor,
+                 Executor refillExecutor, Executor destroyExecutor, Ticker ticker, ServiceCacheBudget budget,
+                 int numReservedServiceInstances) {
         checkNotNull(policy);
         checkNotNull(serviceFactory);
         checkNotNull(executor);
+        checkNotNull(refillExecutor);
+        checkNotNull(destroyExecutor);
+        checkNotNull(ticker);
+
+        _serviceFactory = serviceFactory;
+        _refillExecutor = refillExecutor;
+        _destroyExecutor = destroyExecutor;
+        _ticker = ticker;
+        _maxNumServiceInstances = policy.getMaxNumServiceInstances();
+        _maxNumServiceInstancesPerEndPoint = policy.getMaxNumServiceInstancesPerEndPoint();
+        _maxServiceInstanceIdleTimeNanos = policy.getMaxServiceInstanceIdleTime(TimeUnit.NANOSECONDS);
+        _cacheExhaustionAction = checkNotNull(policy.getCacheExhaustionAction());
+
+        // A plain caching policy predates the extended settings, so it gets their defaults.
+        if (policy instanceof ExtendedServiceCachingPolicy) {
+            ExtendedServiceCachingPolicy extendedPolicy = (ExtendedServiceCachingPolicy) policy;
+            _minNumIdleServiceInstancesPerEndPoint = extendedPolicy.getMinNumIdleServiceInstancesPerEndPoint();
+            _numSharedServiceInstancesPerEndPoint = extendedPolicy.getNumSharedServiceInstancesPerEndPoint();
+            _maxWaitTimeNanos = extendedPolicy.getMaxWaitTime(TimeUnit.NANOSECONDS);
+            _maxServiceInstanceLifetimeNanos = extendedPolicy.getMaxServiceInstanceLifetime(TimeUnit.NANOSECONDS);
+            _maxNumUsesPerServiceInstance = extendedPolicy.getMaxNumUsesPerServiceInstance();
+        } else {
+            _minNumIdleServiceInstancesPerEndPoint = 0;
+            _numSharedServiceInstancesPerEndPoint = 0;
+            _maxWaitTimeNanos = 0;
+            _maxServiceInstanceLifetimeNanos = 0;
+            _maxNumUsesPerServiceInstance = 0;
+        }
 
         String serviceName = serviceFactory.getServiceName();
         _metrics = Metrics.forInstance(this, serviceName);
         _loadTimer = _metrics.newTimer(serviceName, "load-time", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        _waitTimer = _metrics.newTimer(serviceName, "wait-time", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
 
         _metrics.newGauge(serviceName, "cache-hit-ratio", new RatioGauge() {
             @Override protected double getNumerator() { return _requestCount.get() - _missCount.get(); }
@@ -105,55 +238,41 @@ class ServiceCache<S> implements Closeable {
             }
         });
 
-        GenericKeyedObjectPool.Config poolConfig = new GenericKeyedObjectPool.Config();
-
-        // Global configuration
-        poolConfig.maxTotal = policy.getMaxNumServiceInstances();
-        poolConfig.numTestsPerEvictionRun = policy.getMaxNumServiceInstances();
-        poolConfig.minEvictableIdleTimeMillis = policy.getMaxServiceInstanceIdleTime(TimeUnit.MILLISECONDS);
-
-        switch (policy.getCacheExhaustionAction()) {
-            case FAIL:
-                poolConfig.whenExhaustedAction = GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL;
-                break;
-            case GROW:
-                poolConfig.whenExhaustedAction = GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW;
-                break;
-            case WAIT:
-                poolConfig.whenExhaustedAction = GenericKeyedObjectPool.WHEN_EXHAUSTED_BLOCK;
-                break;
-        }
-
-        // Per end point configuration
-        poolConfig.maxActive = policy.getMaxNumServiceInstancesPerEndPoint();
-        poolConfig.maxIdle = policy.getMaxNumServiceInstancesPerEndPoint();
-
-        // Make sure all instances in the pool are checked for staleness during eviction runs.
-        poolConfig.numTestsPerEvictionRun = policy.getMaxNumServiceInstances();
-
-        _pool = new GenericKeyedObjectPool<ServiceEndPoint, S>(new PoolServiceFactory<S>(serviceFactory), poolConfig);
-
-        // Don't schedule eviction if not caching or not expiring stale instances.
-        _evictionFuture = (policy.getMaxNumServiceInstances() != 0)
-                || (policy.getMaxNumServiceInstancesPerEndPoint() != 0)
-                || (policy.getMaxServiceInstanceIdleTime(TimeUnit.MILLISECONDS) > 0)
-                ? executor.scheduleAtFixedRate(new Runnable() {
-                      @Override
-                      public void run() {
-                          try {
-                              _pool.evict();
-                          } catch (Exception e) {
-                              // Should never happen, but log just in case. Swallow exception so thread doesn't die.
-                              LOG.error("ServiceCache eviction run failed.", e);
-                          }
-                      }
-                  }, EVICTION_DURATION_IN_SECONDS, EVICTION_DURATION_IN_SECONDS, TimeUnit.SECONDS)
-                : null;
-    }
+        _metrics.newGauge(serviceName, "num-waiters", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return _numWaiters.get();
+            }
+        });
+        _metrics.newGauge(serviceName, "destroy-queue-depth", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return _numPendingDestroys.get();
+            }
+        });
 
-    @VisibleForTesting
-    GenericKeyedObjectPool<ServiceEndPoint, S> getPool() {
-        return _pool;
+        // Don't schedule expiry if not expiring stale instances.
+        if (_maxServiceInstanceIdleTimeNanos > 0) {
+            _expiryWheel = new TimingWheel<EndPointCache>(ticker, EXPIRY_TICK_IN_MILLIS, TimeUnit.MILLISECONDS,
+                    NUM_EXPIRY_WHEEL_BUCKETS);
+            _expiryFuture = executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        expireIdleInstances();
+                    } catch (Exception e) {
+                        // Should never happen, but log just in case. Swallow exception so thread doesn't die.
+                        LOG.error("ServiceCache expiry run failed.", e);
+                    }
+                }
+            }, EXPIRY_TICK_IN_MILLIS, EXPIRY_TICK_IN_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            _expiryWheel = null;
+            _expiryFuture = null;
+        }
+
+        // Join last, other caches in the budget may start calling back as soon as this cache is a member.
+        _budget = (budget != null) ? budget.join(numReservedServiceInstances, new BudgetedIdleInstances()) : null;
     }
 
     /**
@@ -162,110 +281,1065 @@ class ServiceCache<S> implements Closeable {
      * out.  Once the checked out instance is no longer in use, it should be returned by calling {@link #checkIn}.
      *
      * @param endPoint The end point to retrieve a cached service instance for.
-     * @return A cached service instance for the requested end point.
+     * @return A handle to a cached service instance for the requested end point.
      * @throws NoCachedInstancesAvailableException If the cache has reached total maximum capacity, or maximum capacity
-     *         for the requested end point, and no connections that aren't already checked out are available.
+     *         for the requested end point, and no connections that aren't already checked out are available, or became
+     *         available within the maximum wait time.
      */
-    public S checkOut(ServiceEndPoint endPoint) throws Exception {
+    public ServiceHandle<S> checkOut(ServiceEndPoint endPoint) throws Exception {
         checkNotNull(endPoint);
-        _requestCount.incrementAndGet();
+        _requestCount.increment();
+
+        if (_numSharedServiceInstancesPerEndPoint > 0) {
+            return checkOutShared(endPoint);
+        }
+
+        while (true) {
+            checkState(!_isClosed, "Cache is closed");
+
+            EndPointCache cache = getEndPointCache(endPoint);
+            if (_cacheExhaustionAction == ServiceCachingPolicy.ExhaustionAction.WAIT && cache.hasWaiters()) {
+                // Don't jump ahead of the callers already waiting for this end point.
+                ServiceHandle<S> handle = awaitInstance(cache, endPoint);
+                if (handle == null) {
+                    // The end point's cache was discarded while we were waiting, look again.
+                    continue;
+                }
+                return handle;
+            }
+
+            // Read the generation before taking an instance so that an eviction racing with the check out is never
+            // missed, at worst a valid instance is destroyed when it's checked in.
+            long generation = cache._generation.get();
+            IdleInstance<S> idle = cache.pollIdle();
+            S service;
+            Lifetime lifetime;
+            if (idle != null) {
+                service = idle._service;
+                lifetime = idle._lifetime;
+            } else {
+                Reservation reservation = cache.tryReserve();
+                if (reservation == Reservation.RETIRED) {
+                    // The end point's cache was discarded while we were looking at it, look again.
+                    continue;
+                }
+                if (reservation == Reservation.FULL && clearOldestIdleInstance(cache)) {
+                    // Made room for a new instance at the expense of another end point's idle instance.
+                    continue;
+                }
+                if (reservation == Reservation.FULL) {
+                    switch (_cacheExhaustionAction) {
+                        case FAIL:
+                            _missCount.increment();
+                            throw new NoCachedInstancesAvailableException();
+                        case GROW:
+                            // Temporarily go over the limits, the extra instance won't be kept once it's checked in.
+                            if (!cache.forceReserve()) {
+                                continue;
+                            }
+                            break;
+                        case WAIT:
+                            ServiceHandle<S> handle = awaitInstance(cache, endPoint);
+                            if (handle == null) {
+                                continue;
+                            }
+                            return handle;
+                    }
+                }
+
+                service = create(cache, endPoint);
+                lifetime = newLifetime();
+            }
+
+            // Replace the idle instance that was just taken, or get ahead of demand if one had to be created.
+            cache.refillIfNeeded(endPoint);
 
+            return new ServiceHandle<S>(service, endPoint, cache, generation, null, use(lifetime));
+        }
+    }
+
+    /**
+     * Waits in line for an instance of an end point.  Only the caller at the head of the line looks for an instance,
+     * everyone else waits to be told that they've moved up to the head.
+     *
+     * @return A handle to an instance, or {@code null} if the end point's cache was retired while waiting.
+     */
+    private ServiceHandle<S> awaitInstance(EndPointCache cache, ServiceEndPoint endPoint) throws Exception {
+        long deadline = _ticker.read() + _maxWaitTimeNanos;
+        Waiter waiter = new Waiter();
+        cache.enqueue(waiter);
+        TimerContext timer = _waitTimer.time();
         try {
-            S service = _pool.borrowObject(endPoint);
+            while (true) {
+                checkState(!_isClosed, "Cache is closed");
 
-            // Remember the revision that we've checked this service out on in case we need to invalidate it later
-            _checkOutRevisions.put(service, _revisionNumber.incrementAndGet());
+                // Clear before looking so that a signal sent while looking isn't missed.
+                waiter._isSignalled = false;
+                if (cache.isHead(waiter)) {
+                    long generation = cache._generation.get();
+                    IdleInstance<S> idle = cache.pollIdle();
+                    S service = null;
+                    Lifetime lifetime = null;
+                    if (idle != null) {
+                        service = idle._service;
+                        lifetime = idle._lifetime;
+                    } else {
+                        Reservation reservation = cache.tryReserve();
+                        if (reservation == Reservation.RETIRED) {
+                            return null;
+                        }
+                        if (reservation == Reservation.FULL && clearOldestIdleInstance(cache)) {
+                            continue;
+                        }
+                        if (reservation == Reservation.RESERVED) {
+                            service = create(cache, endPoint);
+                            lifetime = newLifetime();
+                        }
+                    }
+                    if (service != null) {
+                        cache.refillIfNeeded(endPoint);
+                        return new ServiceHandle<S>(service, endPoint, cache, generation, null, use(lifetime));
+                    }
+                }
 
-            return service;
-        } catch (NoSuchElementException e) {
-            _missCount.incrementAndGet();
+                if (!waiter._isSignalled) {
+                    if (_maxWaitTimeNanos <= 0) {
+                        LockSupport.park(this);
+                    } else {
+                        long remainingNanos = deadline - _ticker.read();
+                        if (remainingNanos <= 0) {
+                            _missCount.increment();
+                            throw new NoCachedInstancesAvailableException();
+                        }
+                        LockSupport.parkNanos(this, remainingNanos);
+                    }
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            timer.stop();
+            cache.dequeue(waiter);
+        }
+    }
 
-            // This will happen if there are no available connections and there is no room for a new one,
-            // or if a newly created connection is not valid.
-            throw new NoCachedInstancesAvailableException();
+    private ServiceHandle<S> checkOutShared(ServiceEndPoint endPoint) throws Exception {
+        // Spread threads over the shared instances without any shared state to pick one.
+        int index = (int) (Thread.currentThread().getId() % _numSharedServiceInstancesPerEndPoint);
+
+        while (true) {
+            checkState(!_isClosed, "Cache is closed");
+
+            EndPointCache cache = getEndPointCache(endPoint);
+            long generation = cache._generation.get();
+            SharedInstance shared = cache._shared.get(index);
+            if (shared == null) {
+                shared = cache.createShared(endPoint, index);
+                if (shared == null) {
+                    // The end point's cache was discarded while we were looking at it, look again.
+                    continue;
+                }
+            }
+
+            if (shared.tryAcquire()) {
+                if (cache._shared.get(index) == shared) {
+                    cache._numActive.incrementAndGet();
+                    if (isRetired(use(shared._lifetime))) {
+                        // Let the next caller create a replacement, this one is destroyed once its callers are done.
+                        cache.detachShared(index, shared);
+                    }
+                    return new ServiceHandle<S>(shared._service, endPoint, cache, generation, shared,
+                            shared._lifetime);
+                }
+                // Evicted while we were acquiring it.
+                shared.release();
+            }
         }
     }
 
     /**
      * Returns a service instance for an end point to the cache so that it may be used by other users.
      *
-     * @param endPoint The end point that the service instance belongs to.
-     * @param service  The service instance to return to the pool.
+     * @param handle The handle that the service instance was checked out with.
      * @throws Exception Never.
      */
-    public void checkIn(ServiceEndPoint endPoint, S service) throws Exception {
-        checkNotNull(endPoint);
-        checkNotNull(service);
+    public void checkIn(ServiceHandle<S> handle) throws Exception {
+        checkNotNull(handle);
+        checkState(!handle._isCheckedIn, "Service instance already checked in");
+        handle._isCheckedIn = true;
 
-        // Figure out if we should check this revision in.  If it was created before the last known invalid revision
-        // for this particular end point, or the cache is closed, then we shouldn't check it in.
-        Long invalidRevision = _invalidRevisions.get(endPoint);
-        Long serviceRevision = _checkOutRevisions.remove(service);
+        // The end point's cache can't have been retired while it has an instance checked out.
+        EndPointCache cache = handle._cache;
+        ServiceEndPoint endPoint = handle._endPoint;
+        S service = handle._service;
+        cache._numActive.decrementAndGet();
 
-        if (_isClosed || (invalidRevision != null && serviceRevision < invalidRevision)) {
-            _pool.invalidateObject(endPoint, service);
-        } else {
-            _pool.returnObject(endPoint, service);
+        if (handle._shared != null) {
+            handle._shared.release();
+            retireIfEvicted(handle);
+            return;
+        }
+
+        // If the end point was evicted since the instance was checked out, or the cache is closed, then we shouldn't
+        // check it in.
+        if (!isValid(handle) || isOverCapacity() || isRetired(handle._lifetime)
+                || !cache.offerIdle(service, handle._lifetime)) {
+            destroy(cache, endPoint, service);
+        } else if (!isValid(handle)) {
+            // Evicted or closed while we were checking the instance in, make sure it doesn't stick around.
+            cache.destroyIdle(endPoint);
+        }
+
+        signalAvailability(cache);
+        retireIfEvicted(handle);
+    }
+
+    /**
+     * Starts creating idle service instances for an end point in the background, up to the policy's minimum number of
+     * idle instances per end point.  Does nothing if the policy doesn't ask for idle instances to be kept ready.
+     *
+     * @param endPoint The end point to create service instances for.
+     */
+    public void prewarm(ServiceEndPoint endPoint) {
+        checkNotNull(endPoint);
+
+        if (_minNumIdleServiceInstancesPerEndPoint > 0 && !_isClosed) {
+            getEndPointCache(endPoint).refillIfNeeded(endPoint);
         }
     }
 
     public int getNumIdleInstances(ServiceEndPoint endPoint) {
         checkNotNull(endPoint);
-        return _pool.getNumIdle(endPoint);
+        EndPointCache cache = _endPointCaches.get(endPoint);
+        return (cache != null) ? cache._numIdle.get() : 0;
     }
 
     public int getNumActiveInstances(ServiceEndPoint endPoint) {
         checkNotNull(endPoint);
-        return _pool.getNumActive(endPoint);
+        EndPointCache cache = _endPointCaches.get(endPoint);
+        return (cache != null) ? cache._numActive.get() : 0;
     }
 
     @Override
     public void close() {
         _isClosed = true;
 
-        if (_evictionFuture != null) {
-            _evictionFuture.cancel(false);
+        if (_expiryFuture != null) {
+            _expiryFuture.cancel(false);
         }
 
-        _pool.clear();
+        for (Map.Entry<ServiceEndPoint, EndPointCache> entry : _endPointCaches.entrySet()) {
+            entry.getValue().detachShared();
+            entry.getValue().destroyIdle(entry.getKey());
+        }
         _metrics.close();
+        if (_budget != null) {
+            _budget.leave();
+        }
+
+        // Wake anyone waiting for an instance so that they notice the cache is closed.
+        for (EndPointCache cache : _endPointCaches.values()) {
+            cache.signalHead();
+        }
     }
 
     public void evict(ServiceEndPoint endPoint) {
         checkNotNull(endPoint);
 
-        // Mark all service instances created prior to now as invalid so that we don't inadvertently check them back in
-        _invalidRevisions.put(endPoint, _revisionNumber.incrementAndGet());
-        _pool.clear(endPoint);
+        EndPointCache cache = _endPointCaches.get(endPoint);
+        if (cache != null) {
+            // Mark all service instances checked out prior to now as invalid so that we don't inadvertently check them
+            // back in.
+            cache._generation.incrementAndGet();
+            cache.detachShared();
+            cache.destroyIdle(endPoint);
+
+            // Don't hang on to the bookkeeping of end points that no longer have any instances, they may be gone for
+            // good.  If instances are still checked out, the last one to be checked in retires the cache instead.
+            tryRetire(endPoint, cache);
+        }
+    }
+
+    /** Retires the cache of an end point that was evicted while the instance was checked out, if it's now empty. */
+    private void retireIfEvicted(ServiceHandle<S> handle) {
+        if (handle._generation != handle._cache._generation.get()) {
+            tryRetire(handle._endPoint, handle._cache);
+        }
+    }
+
+    /** Discards the cache of an end point if it holds no instances.  Once retired it can't gain new instances. */
+    private void tryRetire(ServiceEndPoint endPoint, EndPointCache cache) {
+        if (cache.tryRetire()) {
+            _endPointCaches.remove(endPoint, cache);
+
+            // Anyone waiting on the retired cache has to start over with a new one.
+            cache.signalHead();
+        }
+    }
+
+    @VisibleForTesting
+    boolean hasEndPointCache(ServiceEndPoint endPoint) {
+        return _endPointCaches.containsKey(endPoint);
+    }
+
+    @VisibleForTesting
+    void expireIdleInstances() {
+        for (EndPointCache cache : _expiryWheel.advance()) {
+            cache.expireIdle();
+        }
+    }
+
+    private EndPointCache getEndPointCache(ServiceEndPoint endPoint) {
+        EndPointCache cache = _endPointCaches.get(endPoint);
+        if (cache == null) {
+            EndPointCache newCache = new EndPointCache(endPoint);
+            cache = _endPointCaches.putIfAbsent(endPoint, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        return cache;
+    }
+
+    private S create(EndPointCache cache, ServiceEndPoint endPoint) throws Exception {
+        _missCount.increment();
+
+        S service = load(cache, endPoint);
+        cache._numActive.incrementAndGet();
+        return service;
+    }
+
+    /** Creates a new instance in room already reserved in the end point's cache, giving the room back on failure. */
+    private S load(EndPointCache cache, ServiceEndPoint endPoint) throws Exception {
+        TimerContext timer = _loadTimer.time();
+        try {
+            S service = _serviceFactory.create(endPoint);
+            _loadSuccessCount.incrementAndGet();
+            return service;
+        } catch (Exception e) {
+            _loadFailureCount.incrementAndGet();
+            cache.release();
+            signalAvailability(cache);
+            throw e;
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /** Removes an instance from the cache's counts right away, and hands it off to be destroyed in the background. */
+    private void destroy(EndPointCache cache, final ServiceEndPoint endPoint, final S service) {
+        cache.release();
+
+        _numPendingDestroys.incrementAndGet();
+        Runnable destroyer = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    _serviceFactory.destroy(endPoint, service);
+                } catch (Exception e) {
+                    LOG.warn(MessageFormatter.format("Error destroying service instance. End point ID: {}",
+                            endPoint.getId()).getMessage(), e);
+                } finally {
+                    _numPendingDestroys.decrementAndGet();
+                }
+            }
+        };
+        try {
+            _destroyExecutor.execute(destroyer);
+        } catch (RejectedExecutionException e) {
+            // Never leak an instance, destroy it here instead.
+            destroyer.run();
+        }
+    }
+
+    @VisibleForTesting
+    int getNumWaiters() {
+        return _numWaiters.get();
+    }
+
+    @VisibleForTesting
+    int getNumPendingDestroys() {
+        return _numPendingDestroys.get();
+    }
+
+    private boolean isValid(ServiceHandle<S> handle) {
+        return !_isClosed && handle._generation == handle._cache._generation.get();
+    }
+
+    /** Decides when a new instance is due to be retired, or returns {@code null} if instances are never retired. */
+    private Lifetime newLifetime() {
+        if (_maxServiceInstanceLifetimeNanos <= 0 && _maxNumUsesPerServiceInstance <= 0) {
+            return null;
+        }
+
+        long retireAtNanos = 0;
+        if (_maxServiceInstanceLifetimeNanos > 0) {
+            retireAtNanos = _ticker.read() + (long) (_maxServiceInstanceLifetimeNanos * (1 - jitter()));
+        }
+        int numUses = 0;
+        if (_maxNumUsesPerServiceInstance > 0) {
+            numUses = Math.max((int) Math.round(_maxNumUsesPerServiceInstance * (1 - jitter())), 1);
+        }
+        return new Lifetime(retireAtNanos, numUses);
+    }
+
+    private double jitter() {
+        return LIFETIME_JITTER * _random.nextDouble();
+    }
+
+    /** Counts a use of an instance, returning its lifetime for convenience. */
+    private Lifetime use(Lifetime lifetime) {
+        if (lifetime != null && _maxNumUsesPerServiceInstance > 0) {
+            lifetime._numUsesLeft.decrementAndGet();
+        }
+        return lifetime;
+    }
+
+    private boolean isRetired(Lifetime lifetime) {
+        if (lifetime == null) {
+            return false;
+        }
+        return (_maxServiceInstanceLifetimeNanos > 0 && _ticker.read() - lifetime._retireAtNanos >= 0)
+                || (_maxNumUsesPerServiceInstance > 0 && lifetime._numUsesLeft.get() <= 0);
+    }
+
+    private boolean isOverCapacity() {
+        return (_maxNumServiceInstances >= 0 && _numInstances.get() > _maxNumServiceInstances)
+                || (_budget != null && _budget.isOverBudget());
+    }
+
+    /**
+     * When the cache as a whole is full, destroys the least recently used idle instance belonging to another end point
+     * to make room for a new instance.  When the shared budget is used up, destroys the least recently used idle
+     * instance of any cache in the budget instead.  Nothing is destroyed if the requesting end point is at its own
+     * limit, since room elsewhere wouldn't let it create an instance.
+     *
+     * @return {@code true} if an instance was destroyed, {@code false} otherwise.
+     */
+    private boolean clearOldestIdleInstance(EndPointCache requester) {
+        if (_maxNumServiceInstances >= 0 && !requester.isFull() && _numInstances.get() >= _maxNumServiceInstances) {
+            return destroyOldestIdleInstance(requester);
+        }
+        if (_budget != null && !requester.isFull() && _budget.isExhausted()) {
+            return _budget.destroyOldestIdleInstance();
+        }
+        return false;
+    }
+
+    /**
+     * Destroys the least recently used idle instance, comparing the least recently used idle instance of every end
+     * point.
+     *
+     * @param excluded An end point cache to leave alone, or {@code null}.
+     * @return {@code true} if an instance was destroyed, or someone else took it first, {@code false} otherwise.
+     */
+    private boolean destroyOldestIdleInstance(EndPointCache excluded) {
+        Map.Entry<ServiceEndPoint, EndPointCache> oldest = findOldestIdleEndPoint(excluded);
+        if (oldest == null) {
+            return false;
+        }
+        S service = oldest.getValue().pollOldestIdle();
+        if (service == null) {
+            // Someone else got to it first, either way there may be room now.
+            return true;
+        }
+        destroy(oldest.getValue(), oldest.getKey(), service);
+        return true;
+    }
+
+    private Map.Entry<ServiceEndPoint, EndPointCache> findOldestIdleEndPoint(EndPointCache excluded) {
+        Map.Entry<ServiceEndPoint, EndPointCache> oldest = null;
+        long oldestIdleSince = 0;
+        for (Map.Entry<ServiceEndPoint, EndPointCache> entry : _endPointCaches.entrySet()) {
+            EndPointCache cache = entry.getValue();
+            IdleInstance<S> bottom = (cache != excluded) ? cache.peekOldestIdle() : null;
+            if (bottom != null && (oldest == null || bottom._idleSinceNanos - oldestIdleSince < 0)) {
+                oldest = entry;
+                oldestIdleSince = bottom._idleSinceNanos;
+            }
+        }
+        return oldest;
+    }
+
+    /** Lets waiters know that an end point has an idle instance, or room for a new one. */
+    private void signalAvailability(EndPointCache cache) {
+        if (_numWaiters.get() == 0) {
+            return;
+        }
+
+        if (_maxNumServiceInstances < 0 && _budget == null) {
+            cache.signalHead();
+            return;
+        }
+
+        // Room in the cache as a whole, or an idle instance that can be destroyed to make room, may be what the waiters
+        // for any end point need.
+        signalAllAvailability();
+    }
+
+    private void signalAllAvailability() {
+        for (EndPointCache waiting : _endPointCaches.values()) {
+            waiting.signalHead();
+        }
     }
 
-    private class PoolServiceFactory<S> extends BaseKeyedPoolableObjectFactory<ServiceEndPoint, S> {
-        private final ServiceFactory<S> _serviceFactory;
+    /** Lets the shared budget see and reclaim this cache's idle instances. */
+    private final class BudgetedIdleInstances implements ServiceCacheBudget.IdleInstances {
+        @Override
+        public Long getOldestIdleSince() {
+            Map.Entry<ServiceEndPoint, EndPointCache> oldest = findOldestIdleEndPoint(null);
+            IdleInstance<S> bottom = (oldest != null) ? oldest.getValue().peekOldestIdle() : null;
+            return (bottom != null) ? bottom._idleSinceNanos : null;
+        }
 
-        public PoolServiceFactory(ServiceFactory<S> serviceFactory) {
-            _serviceFactory = serviceFactory;
+        @Override
+        public boolean destroyOldestIdle() {
+            return destroyOldestIdleInstance(null);
         }
 
         @Override
-        public S makeObject(final ServiceEndPoint endPoint) throws Exception {
-            _missCount.incrementAndGet();
+        public void onRoomAvailable() {
+            if (_numWaiters.get() > 0) {
+                signalAllAvailability();
+            }
+        }
+    }
+
+    private static ExecutorService newDestroyExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(NUM_DESTROY_THREADS, NUM_DESTROY_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_DESTROY_QUEUE_SIZE),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("ServiceCache-DestroyThread-%d")
+                        .setDaemon(true)
+                        .build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private enum Reservation {
+        /** Room was reserved for a new instance. */
+        RESERVED,
+
+        /** The end point or the cache as a whole is at its limit. */
+        FULL,
+
+        /** The end point's cache has been discarded and must not be used. */
+        RETIRED
+    }
+
+    /** An idle service instance, along with when it was checked in. */
+    private static final class IdleInstance<S> {
+        final S _service;
+        final Lifetime _lifetime;
+        final long _idleSinceNanos;
+
+        IdleInstance(S service, Lifetime lifetime, long idleSinceNanos) {
+            _service = service;
+            _lifetime = lifetime;
+            _idleSinceNanos = idleSinceNanos;
+        }
+    }
+
+    /** When a service instance is due to be retired, decided with jitter when the instance is created. */
+    private static final class Lifetime {
+        final long _retireAtNanos;
+        final AtomicInteger _numUsesLeft;
+
+        Lifetime(long retireAtNanos, int numUses) {
+            _retireAtNanos = retireAtNanos;
+            _numUsesLeft = new AtomicInteger(numUses);
+        }
+    }
+
+    /**
+     * A service instance checked out of the cache.  Remembers where the instance came from so that checking it back in
+     * doesn't depend on the {@code equals} and {@code hashCode} of the service type.
+     */
+    static final class ServiceHandle<S> {
+        private final S _service;
+        private final ServiceEndPoint _endPoint;
+        private final ServiceCache<S>.EndPointCache _cache;
+        private final long _generation;
+        private final ServiceCache<S>.SharedInstance _shared;
+        private final Lifetime _lifetime;
+        private boolean _isCheckedIn;
+
+        private ServiceHandle(S service, ServiceEndPoint endPoint, ServiceCache<S>.EndPointCache cache,
+                              long generation, ServiceCache<S>.SharedInstance shared, Lifetime lifetime) {
+            _service = service;
+            _endPoint = endPoint;
+            _cache = cache;
+            _generation = generation;
+            _shared = shared;
+            _lifetime = lifetime;
+        }
+
+        S getService() {
+            return _service;
+        }
+
+        ServiceEndPoint getEndPoint() {
+            return _endPoint;
+        }
+    }
+
+    /** A caller waiting in line for a service instance. */
+    private static final class Waiter {
+        private final Thread _thread = Thread.currentThread();
+        private volatile boolean _isSignalled;
+
+        void signal() {
+            _isSignalled = true;
+            LockSupport.unpark(_thread);
+        }
+    }
+
+    /**
+     * A service instance shared between callers.  Counts the callers using it, plus one for as long as it's in the
+     * cache, and is destroyed once the count drops to zero.
+     */
+    private final class SharedInstance {
+        private final S _service;
+        private final ServiceEndPoint _endPoint;
+        private final EndPointCache _cache;
+        private final Lifetime _lifetime;
+        private final AtomicInteger _refCount = new AtomicInteger(1);
+
+        SharedInstance(S service, ServiceEndPoint endPoint, EndPointCache cache, Lifetime lifetime) {
+            _service = service;
+            _endPoint = endPoint;
+            _cache = cache;
+            _lifetime = lifetime;
+        }
+
+        /** @return {@code false} if the instance has already been destroyed. */
+        boolean tryAcquire() {
+            while (true) {
+                int refCount = _refCount.get();
+                if (refCount == 0) {
+                    return false;
+                }
+                if (_refCount.compareAndSet(refCount, refCount + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (_refCount.decrementAndGet() == 0) {
+                destroy(_cache, _endPoint, _service);
+            }
+        }
+    }
+
+    /**
+     * The service instances of a single end point.
+     */
+    private final class EndPointCache {
+        /** Marks a cache that has been discarded, it can never hold instances again. */
+        private static final int RETIRED = Integer.MIN_VALUE;
+
+        private final ServiceEndPoint _endPoint;
+
+        /** Idle instances, least recently used at the head.  Guarded by itself. */
+        private final Deque<IdleInstance<S>> _idle = new ArrayDeque<IdleInstance<S>>();
+        private final AtomicInteger _numIdle = new AtomicInteger();
+        private final AtomicInteger _numActive = new AtomicInteger();
+
+        /** All instances of the end point: idle, active and being created. */
+        private final AtomicInteger _numInstances = new AtomicInteger();
+
+        /** Incremented when the end point is evicted, instances checked out before then are not checked back in. */
+        private final AtomicLong _generation = new AtomicLong();
+
+        /** Whether a task creating idle instances for the end point is queued or running. */
+        private final AtomicBoolean _isRefilling = new AtomicBoolean();
+
+        /** Instances shared between callers, when the policy asks for them.  Created as they're first needed. */
+        private final AtomicReferenceArray<SharedInstance> _shared =
+                new AtomicReferenceArray<SharedInstance>(_numSharedServiceInstancesPerEndPoint);
+
+        /** Callers waiting for an instance, in the order they arrived.  Guarded by itself. */
+        private final LinkedList<Waiter> _waiters = new LinkedList<Waiter>();
+        private final AtomicInteger _numWaiting = new AtomicInteger();
+
+        /** Whether the end point is on the expiry wheel, so checking in only has to touch the wheel once in a while. */
+        private final AtomicBoolean _isExpiryScheduled = new AtomicBoolean();
+
+        EndPointCache(ServiceEndPoint endPoint) {
+            _endPoint = endPoint;
+        }
+
+        boolean hasWaiters() {
+            return _numWaiting.get() > 0;
+        }
+
+        void enqueue(Waiter waiter) {
+            synchronized (_waiters) {
+                _waiters.addLast(waiter);
+            }
+            _numWaiting.incrementAndGet();
+            _numWaiters.incrementAndGet();
+        }
+
+        /** Removes a waiter from the line, letting the next in line know if it was at the head. */
+        void dequeue(Waiter waiter) {
+            Waiter next = null;
+            synchronized (_waiters) {
+                boolean wasHead = _waiters.peekFirst() == waiter;
+                _waiters.remove(waiter);
+                if (wasHead) {
+                    next = _waiters.peekFirst();
+                }
+            }
+            _numWaiting.decrementAndGet();
+            _numWaiters.decrementAndGet();
+
+            if (next != null) {
+                next.signal();
+            }
+        }
+
+        boolean isHead(Waiter waiter) {
+            synchronized (_waiters) {
+                return _waiters.peekFirst() == waiter;
+            }
+        }
+
+        void signalHead() {
+            if (!hasWaiters()) {
+                return;
+            }
+
+            Waiter head;
+            synchronized (_waiters) {
+                head = _waiters.peekFirst();
+            }
+            if (head != null) {
+                head.signal();
+            }
+        }
+
+        /** Takes the most recently used idle instance, destroying any that are due to be retired along the way. */
+        IdleInstance<S> pollIdle() {
+            IdleInstance<S> instance = pollNewest();
+            while (instance != null && isRetired(instance._lifetime)) {
+                destroy(this, _endPoint, instance._service);
+                instance = pollNewest();
+            }
+            if (instance == null) {
+                return null;
+            }
+            _numActive.incrementAndGet();
+            return instance;
+        }
+
+        /** Returns the least recently used idle instance, at the head of the deque, without taking it. */
+        IdleInstance<S> peekOldestIdle() {
+            synchronized (_idle) {
+                return _idle.peekFirst();
+            }
+        }
+
+        /**
+         * Takes the least recently used idle instance, for destroying it to make room for another end point.
+         *
+         * @return The instance, or {@code null} if there are no idle instances.
+         */
+        S pollOldestIdle() {
+            IdleInstance<S> oldest;
+            synchronized (_idle) {
+                oldest = _idle.pollFirst();
+                if (oldest == null) {
+                    return null;
+                }
+                _numIdle.decrementAndGet();
+            }
+            return oldest._service;
+        }
+
+        /**
+         * Tries to keep an instance that was checked in as an idle instance.
+         *
+         * @return {@code true} if the instance is now idle, {@code false} if the end point already has as many idle
+         *         instances as it may keep.
+         */
+        boolean offerIdle(S service, Lifetime lifetime) {
+            synchronized (_idle) {
+                if (_maxNumServiceInstancesPerEndPoint >= 0 && _idle.size() >= _maxNumServiceInstancesPerEndPoint) {
+                    return false;
+                }
+                // Read the time while holding the lock, so that the deque stays in the order instances became idle.
+                _idle.addLast(new IdleInstance<S>(service, lifetime, _ticker.read()));
+                _numIdle.incrementAndGet();
+            }
+            scheduleExpiry();
+            return true;
+        }
+
+        /** Reserves room for a new instance within the end point and cache wide limits. */
+        Reservation tryReserve() {
+            while (true) {
+                int numInstances = _numInstances.get();
+                if (numInstances == RETIRED) {
+                    return Reservation.RETIRED;
+                }
+                if (_maxNumServiceInstancesPerEndPoint >= 0 && numInstances >= _maxNumServiceInstancesPerEndPoint) {
+                    return Reservation.FULL;
+                }
+                if (_numInstances.compareAndSet(numInstances, numInstances + 1)) {
+                    break;
+                }
+            }
+
+            while (true) {
+                int numInstances = ServiceCache.this._numInstances.get();
+                if (_maxNumServiceInstances >= 0 && numInstances >= _maxNumServiceInstances) {
+                    _numInstances.decrementAndGet();
+                    return Reservation.FULL;
+                }
+                if (ServiceCache.this._numInstances.compareAndSet(numInstances, numInstances + 1)) {
+                    break;
+                }
+            }
+
+            if (_budget != null && !_budget.tryAcquire()) {
+                _numInstances.decrementAndGet();
+                ServiceCache.this._numInstances.decrementAndGet();
+                return Reservation.FULL;
+            }
+            return Reservation.RESERVED;
+        }
+
+        /** Whether the end point has reached its own limit, regardless of the cache wide limits. */
+        boolean isFull() {
+            return _maxNumServiceInstancesPerEndPoint >= 0
+                    && _numInstances.get() >= _maxNumServiceInstancesPerEndPoint;
+        }
+
+        /**
+         * Reserves room for a new instance regardless of limits.
+         *
+         * @return {@code false} if the cache has been retired.
+         */
+        boolean forceReserve() {
+            while (true) {
+                int numInstances = _numInstances.get();
+                if (numInstances == RETIRED) {
+                    return false;
+                }
+                if (_numInstances.compareAndSet(numInstances, numInstances + 1)) {
+                    ServiceCache.this._numInstances.incrementAndGet();
+                    if (_budget != null) {
+                        _budget.forceAcquire();
+                    }
+                    return true;
+                }
+            }
+        }
+
+        /** Gives back the room held by an instance that was destroyed or couldn't be created. */
+        void release() {
+            _numInstances.decrementAndGet();
+            ServiceCache.this._numInstances.decrementAndGet();
+            if (_budget != null) {
+                _budget.release();
+            }
+        }
+
+        /** Retires the cache if it holds no instances. */
+        boolean tryRetire() {
+            return _numInstances.compareAndSet(0, RETIRED);
+        }
+
+        /**
+         * Creates the shared instance at an index, unless another caller already has.
+         *
+         * @return The shared instance, or {@code null} if the cache has been retired.
+         */
+        synchronized SharedInstance createShared(ServiceEndPoint endPoint, int index) throws Exception {
+            SharedInstance shared = _shared.get(index);
+            if (shared != null) {
+                return shared;
+            }
+
+            if (!forceReserve()) {
+                return null;
+            }
+            _missCount.increment();
+            shared = new SharedInstance(load(this, endPoint), endPoint, this, newLifetime());
+            _shared.set(index, shared);
+
+            if (_isClosed) {
+                // Closed while the instance was being created, make sure it doesn't stick around.
+                detachShared();
+            }
+            return shared;
+        }
+
+        /** Removes a shared instance from the cache, unless it has already been replaced. */
+        void detachShared(int index, SharedInstance shared) {
+            if (_shared.compareAndSet(index, shared, null)) {
+                shared.release();
+            }
+        }
+
+        /** Removes the shared instances from the cache, each is destroyed once the callers using it are done. */
+        void detachShared() {
+            for (int i = 0; i < _shared.length(); i++) {
+                SharedInstance shared = _shared.getAndSet(i, null);
+                if (shared != null) {
+                    shared.release();
+                }
+            }
+        }
+
+        /** Queues a task to create idle instances if the end point has fewer than the policy's minimum. */
+        void refillIfNeeded(final ServiceEndPoint endPoint) {
+            if (_numIdle.get() >= _minNumIdleServiceInstancesPerEndPoint || !_isRefilling.compareAndSet(false, true)) {
+                return;
+            }
 
-            TimerContext timer = _loadTimer.time();
             try {
-                S service = _serviceFactory.create(endPoint);
-                _loadSuccessCount.incrementAndGet();
-                return service;
-            } catch (Exception e) {
-                _loadFailureCount.incrementAndGet();
-                throw e;
-            } finally {
-                timer.stop();
+                _refillExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            refill(endPoint);
+                        } catch (Exception e) {
+                            // Should never happen, but log just in case. Swallow exception so thread doesn't die.
+                            LOG.error("ServiceCache refill failed.", e);
+                        } finally {
+                            _isRefilling.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                _isRefilling.set(false);
+                LOG.warn("ServiceCache refill rejected.", e);
             }
         }
 
-        @Override
-        public void destroyObject(ServiceEndPoint endPoint, S service) throws Exception {
-            _serviceFactory.destroy(endPoint, service);
+        private void refill(ServiceEndPoint endPoint) {
+            // Stop as soon as the end point is evicted, instances created for it from then on would never be used.
+            long generation = _generation.get();
+            while (!_isClosed && generation == _generation.get()
+                    && _numIdle.get() < _minNumIdleServiceInstancesPerEndPoint) {
+                if (tryReserve() != Reservation.RESERVED) {
+                    // At the end point's or the cache's limit, there's no room for another idle instance.
+                    return;
+                }
+
+                S service;
+                try {
+                    service = load(this, endPoint);
+                } catch (Exception e) {
+                    // Leave it to the next check out to try again, rather than hammering an end point that's failing.
+                    LOG.warn(MessageFormatter.format("Error creating idle service instance. End point ID: {}",
+                            endPoint.getId()).getMessage(), e);
+                    return;
+                }
+
+                if (_isClosed || generation != _generation.get() || !offerIdle(service, newLifetime())) {
+                    destroy(this, endPoint, service);
+                    signalAvailability(this);
+                    return;
+                }
+                signalAvailability(this);
+
+                if (_isClosed || generation != _generation.get()) {
+                    // Closed or evicted while the instance was being added, make sure it doesn't stick around.
+                    destroyIdle(endPoint);
+                    return;
+                }
+            }
+        }
+
+        void destroyIdle(ServiceEndPoint endPoint) {
+            for (IdleInstance<S> instance : drain()) {
+                destroy(this, endPoint, instance._service);
+            }
+            signalAvailability(this);
+        }
+
+        /** Puts the end point on the expiry wheel, unless it's already there, for an instance that just became idle. */
+        private void scheduleExpiry() {
+            if (_expiryWheel != null && _isExpiryScheduled.compareAndSet(false, true)) {
+                _expiryWheel.schedule(this, _maxServiceInstanceIdleTimeNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /** Called when the end point comes off the expiry wheel. */
+        void expireIdle() {
+            long now = _ticker.read();
+            Long oldestIdleSince = destroyIdleSince(_endPoint, now - _maxServiceInstanceIdleTimeNanos);
+            if (oldestIdleSince != null) {
+                // Come back when the oldest instance that's left is due.  Anything checked in since is due later.
+                long delayNanos = oldestIdleSince + _maxServiceInstanceIdleTimeNanos - now;
+                _expiryWheel.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+                return;
+            }
+
+            _isExpiryScheduled.set(false);
+            if (_numIdle.get() > 0) {
+                // Checked in while we were looking, when the end point was still marked as scheduled.
+                scheduleExpiry();
+            }
+        }
+
+        /**
+         * Destroys the idle instances that have been idle since before a cutoff.  They're at the head of the deque, so
+         * only the instances that are destroyed and the first one that's kept are looked at.
+         *
+         * @return When the oldest instance that was kept became idle, or {@code null} if none were kept.
+         */
+        Long destroyIdleSince(ServiceEndPoint endPoint, long idleSinceCutoff) {
+            List<IdleInstance<S>> expired = Lists.newArrayList();
+            Long oldestIdleSince = null;
+            synchronized (_idle) {
+                for (IdleInstance<S> oldest = _idle.peekFirst(); oldest != null; oldest = _idle.peekFirst()) {
+                    if (oldest._idleSinceNanos - idleSinceCutoff > 0) {
+                        oldestIdleSince = oldest._idleSinceNanos;
+                        break;
+                    }
+                    expired.add(_idle.pollFirst());
+                    _numIdle.decrementAndGet();
+                }
+            }
+
+            for (IdleInstance<S> instance : expired) {
+                destroy(this, endPoint, instance._service);
+            }
+            if (!expired.isEmpty()) {
+                signalAvailability(this);
+            }
+
+            // Replace expired instances with fresh ones.
+            refillIfNeeded(endPoint);
+            return oldestIdleSince;
+        }
+
+        /** Takes the most recently used idle instance, at the tail of the deque. */
+        private IdleInstance<S> pollNewest() {
+            synchronized (_idle) {
+                IdleInstance<S> newest = _idle.pollLast();
+                if (newest != null) {
+                    _numIdle.decrementAndGet();
+                }
+                return newest;
+            }
+        }
+
+        /** Takes every idle instance at once. */
+        private List<IdleInstance<S>> drain() {
+            synchronized (_idle) {
+                List<IdleInstance<S>> instances = Lists.newArrayList(_idle);
+                _idle.clear();
+                _numIdle.addAndGet(-instances.size());
+                return instances;
+            }
         }
     }
-}
\ No newline at end of file
+}
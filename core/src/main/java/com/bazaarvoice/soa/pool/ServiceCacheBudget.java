@@ -0,0 +1,230 @@
+package com.bazaarvoice.soa.pool;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A limit on the total number of service instances cached by several {@link ServicePool}s, for enforcing one socket or
+ * file descriptor budget across all of the services that a JVM talks to.  Build each pool that should share the budget
+ * with {@link ServicePoolBuilder#withCacheBudget}.
+ * <p/>
+ * Each pool may reserve part of the budget, which is always available to it no matter how many instances the other
+ * pools hold.  The rest of the budget is shared on a first come, first served basis.  When the shared part is used up
+ * and a pool needs a new instance, the least recently used idle instance of a pool that holds more than its reservation
+ * is destroyed to make room.  If there isn't one, the pool's {@link ServiceCachingPolicy.ExhaustionAction} applies just
+ * as it does when the pool's own limits are reached.
+ * <p/>
+ * The budget is checked on top of each pool's {@link ServiceCachingPolicy}, so a pool never holds more instances than
+ * its own policy allows.
+ */
+public class ServiceCacheBudget {
+    private final int _maxNumServiceInstances;
+    private final List<Member> _members = new CopyOnWriteArrayList<Member>();
+
+    // Guarded by this.
+    private int _numReservedServiceInstances;
+    private int _numServiceInstances;
+    private int _numSharedServiceInstances;
+
+    /**
+     * @param maxNumServiceInstances The maximum number of service instances that all of the pools together may cache.
+     */
+    public ServiceCacheBudget(int maxNumServiceInstances) {
+        checkArgument(maxNumServiceInstances >= 0);
+
+        _maxNumServiceInstances = maxNumServiceInstances;
+    }
+
+    public int getMaxNumServiceInstances() {
+        return _maxNumServiceInstances;
+    }
+
+    /** Returns the number of service instances that the pools built with this budget currently hold. */
+    public synchronized int getNumServiceInstances() {
+        return _numServiceInstances;
+    }
+
+    /** Returns the part of the budget that is reserved for particular pools. */
+    public synchronized int getNumReservedServiceInstances() {
+        return _numReservedServiceInstances;
+    }
+
+    /**
+     * Adds a cache to the budget.
+     *
+     * @param numReservedServiceInstances The number of instances to set aside for the cache.
+     * @param idleInstances               The cache's idle instances, for making room for other caches.
+     */
+    synchronized Member join(int numReservedServiceInstances, IdleInstances idleInstances) {
+        checkArgument(numReservedServiceInstances >= 0);
+        checkNotNull(idleInstances);
+        checkState(_numReservedServiceInstances + numReservedServiceInstances <= _maxNumServiceInstances,
+                "Not enough of the cache budget left to reserve %s service instances", numReservedServiceInstances);
+
+        Member member = new Member(numReservedServiceInstances, idleInstances);
+        _numReservedServiceInstances += numReservedServiceInstances;
+        _members.add(member);
+        return member;
+    }
+
+    /** Must be called while synchronized. */
+    private int getSharedCapacity() {
+        return _maxNumServiceInstances - _numReservedServiceInstances;
+    }
+
+    /** Must be called while synchronized. */
+    private boolean hasSharedRoom() {
+        return _numSharedServiceInstances < getSharedCapacity();
+    }
+
+    /** The idle instances of a cache, which the budget destroys when another cache needs room. */
+    interface IdleInstances {
+        /**
+         * Returns when the least recently used idle instance became idle, in nanoseconds of the cache's ticker, or
+         * {@code null} if there are no idle instances.
+         */
+        Long getOldestIdleSince();
+
+        /**
+         * Destroys the least recently used idle instance.
+         *
+         * @return {@code true} if an instance was destroyed, or someone else took it first, {@code false} otherwise.
+         */
+        boolean destroyOldestIdle();
+
+        /** Called when another cache gives back room in the shared part of the budget. */
+        void onRoomAvailable();
+    }
+
+    /** One cache's share of the budget. */
+    class Member {
+        private final IdleInstances _idleInstances;
+
+        // Guarded by the budget.
+        private int _numReservedServiceInstances;
+        private int _numServiceInstances;
+
+        private Member(int numReservedServiceInstances, IdleInstances idleInstances) {
+            _numReservedServiceInstances = numReservedServiceInstances;
+            _idleInstances = idleInstances;
+        }
+
+        /** Takes room for a new instance if the budget has any left for this cache. */
+        boolean tryAcquire() {
+            synchronized (ServiceCacheBudget.this) {
+                if (_numServiceInstances >= _numReservedServiceInstances && !hasSharedRoom()) {
+                    return false;
+                }
+                acquire();
+                return true;
+            }
+        }
+
+        /** Takes room for a new instance even if the budget is used up. */
+        void forceAcquire() {
+            synchronized (ServiceCacheBudget.this) {
+                acquire();
+            }
+        }
+
+        /** Must be called while synchronized on the budget. */
+        private void acquire() {
+            if (_numServiceInstances >= _numReservedServiceInstances) {
+                _numSharedServiceInstances++;
+            }
+            _numServiceInstances++;
+            ServiceCacheBudget.this._numServiceInstances++;
+        }
+
+        /** Gives back the room held by an instance that was destroyed or couldn't be created. */
+        void release() {
+            boolean wasShared;
+            synchronized (ServiceCacheBudget.this) {
+                checkState(_numServiceInstances > 0);
+
+                _numServiceInstances--;
+                ServiceCacheBudget.this._numServiceInstances--;
+                wasShared = _numServiceInstances >= _numReservedServiceInstances;
+                if (wasShared) {
+                    _numSharedServiceInstances--;
+                }
+            }
+
+            // Room in the shared part of the budget may be what another cache is waiting for.
+            if (wasShared) {
+                signalOthers();
+            }
+        }
+
+        /** Whether this cache has no room left, neither reserved nor shared. */
+        boolean isExhausted() {
+            synchronized (ServiceCacheBudget.this) {
+                return _numServiceInstances >= _numReservedServiceInstances && !hasSharedRoom();
+            }
+        }
+
+        /** Whether this cache holds instances beyond what the budget allows, because it was allowed to grow. */
+        boolean isOverBudget() {
+            synchronized (ServiceCacheBudget.this) {
+                return _numServiceInstances > _numReservedServiceInstances
+                        && _numSharedServiceInstances > getSharedCapacity();
+            }
+        }
+
+        private boolean isOverReservation() {
+            synchronized (ServiceCacheBudget.this) {
+                return _numServiceInstances > _numReservedServiceInstances;
+            }
+        }
+
+        /**
+         * Destroys the least recently used idle instance among the caches that hold more than their reservation, since
+         * only those free up room in the shared part of the budget.
+         *
+         * @return {@code true} if an instance was destroyed, {@code false} otherwise.
+         */
+        boolean destroyOldestIdleInstance() {
+            Member oldest = null;
+            long oldestIdleSince = 0;
+            for (Member member : _members) {
+                if (!member.isOverReservation()) {
+                    continue;
+                }
+                Long idleSince = member._idleInstances.getOldestIdleSince();
+                if (idleSince != null && (oldest == null || idleSince - oldestIdleSince < 0)) {
+                    oldest = member;
+                    oldestIdleSince = idleSince;
+                }
+            }
+            return oldest != null && oldest._idleInstances.destroyOldestIdle();
+        }
+
+        /**
+         * Removes the cache from the budget, giving back its reservation.  Instances it still holds count against the
+         * shared part of the budget until they're released.
+         */
+        void leave() {
+            synchronized (ServiceCacheBudget.this) {
+                if (!_members.remove(this)) {
+                    return;
+                }
+                ServiceCacheBudget.this._numReservedServiceInstances -= _numReservedServiceInstances;
+                _numSharedServiceInstances += Math.min(_numServiceInstances, _numReservedServiceInstances);
+                _numReservedServiceInstances = 0;
+            }
+            signalOthers();
+        }
+
+        private void signalOthers() {
+            for (Member member : _members) {
+                if (member != this) {
+                    member._idleInstances.onRoomAvailable();
+                }
+            }
+        }
+    }
+}
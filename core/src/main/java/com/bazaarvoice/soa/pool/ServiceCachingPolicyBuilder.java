@@ -15,8 +15,13 @@ public class ServiceCachingPolicyBuilder {
 
     private int _maxNumServiceInstances = -1;
     private int _maxNumServiceInstancesPerEndPoint = -1;
+    private int _minNumIdleServiceInstancesPerEndPoint;
+    private int _numSharedServiceInstancesPerEndPoint;
     private long _maxServiceInstanceIdleTimeNanos;
+    private long _maxServiceInstanceLifetimeNanos;
+    private int _maxNumUsesPerServiceInstance;
     private ExhaustionAction _cacheExhaustionAction = ExhaustionAction.GROW;
+    private long _maxWaitTimeNanos;
 
     /**
      * Set the maximum number of cached service instances for the built policy.  If never called, the policy will allow
@@ -48,6 +53,41 @@ public class ServiceCachingPolicyBuilder {
         return this;
     }
 
+    /**
+     * Set the number of idle service instances to keep ready for each end point in the built policy.  If never called,
+     * service instances will only be created when needed.
+     * <p/>
+     * NOTE: The per end point minimum must be less than or equal to the per end point maximum, unless it is unbounded.
+     *
+     * @param minNumIdleServiceInstancesPerEndPoint The number of idle service instances to keep for one end point.
+     * @return this
+     */
+    public ServiceCachingPolicyBuilder withMinNumIdleServiceInstancesPerEndPoint(
+            int minNumIdleServiceInstancesPerEndPoint) {
+        checkState(minNumIdleServiceInstancesPerEndPoint >= 0);
+
+        _minNumIdleServiceInstancesPerEndPoint = minNumIdleServiceInstancesPerEndPoint;
+        return this;
+    }
+
+    /**
+     * Share service instances between all callers in the built policy, rather than checking each out for exclusive
+     * use.  Only suitable when the service instances created by the {@link com.bazaarvoice.soa.ServiceFactory} are safe
+     * to use from many threads at once.  If never called, service instances will be checked out for exclusive use.
+     * <p/>
+     * NOTE: Shared instances can't be combined with a {@link #withMinNumIdleServiceInstancesPerEndPoint minimum number
+     * of idle instances}.
+     *
+     * @param numServiceInstancesPerEndPoint The number of shared service instances for one end point.
+     * @return this
+     */
+    public ServiceCachingPolicyBuilder withSharedServiceInstances(int numServiceInstancesPerEndPoint) {
+        checkState(numServiceInstancesPerEndPoint > 0);
+
+        _numSharedServiceInstancesPerEndPoint = numServiceInstancesPerEndPoint;
+        return this;
+    }
+
     /**
      * Set the amount of time a cached instance is allowed to sit idle in the cache before being eligible for
      * expiration.  If never called, cached instances will not expire solely due to idle time.
@@ -64,9 +104,42 @@ public class ServiceCachingPolicyBuilder {
         return this;
     }
 
+    /**
+     * Set the amount of time a cached instance may be used before it is retired, so that connections are recycled
+     * and spread onto new end points over time.  If never called, cached instances will not be retired due to age.
+     *
+     * @param maxServiceInstanceLifetime The time an instance may live before it is retired.
+     * @param unit                       The unit of time the {@code maxServiceInstanceLifetime} is in.
+     * @return this
+     */
+    public ServiceCachingPolicyBuilder withMaxServiceInstanceLifetime(long maxServiceInstanceLifetime, TimeUnit unit) {
+        checkState(maxServiceInstanceLifetime > 0);
+        checkNotNull(unit);
+
+        _maxServiceInstanceLifetimeNanos = unit.toNanos(maxServiceInstanceLifetime);
+        return this;
+    }
+
+    /**
+     * Set the number of times a cached instance may be checked out before it is retired.  If never called, cached
+     * instances will not be retired due to the number of uses.
+     *
+     * @param maxNumUsesPerServiceInstance The number of check outs an instance may serve before it is retired.
+     * @return this
+     */
+    public ServiceCachingPolicyBuilder withMaxNumUsesPerServiceInstance(int maxNumUsesPerServiceInstance) {
+        checkState(maxNumUsesPerServiceInstance > 0);
+
+        _maxNumUsesPerServiceInstance = maxNumUsesPerServiceInstance;
+        return this;
+    }
+
     /**
      * Set the {@code ExhaustionAction} for the built caching policy.  If never called, will default to
      * {@code ExhaustionAction.GROW}.
+     * <p/>
+     * NOTE: {@code ExhaustionAction.WAIT} can't be combined with a maximum of zero service instances, there would never
+     * be an instance to wait for.
      *
      * @param action The action to take when the cache is exhausted, either completely or for a requested end point.
      * @return this
@@ -78,6 +151,25 @@ public class ServiceCachingPolicyBuilder {
         return this;
     }
 
+    /**
+     * Set the maximum amount of time to wait for a service instance when the cache is exhausted and the
+     * {@code ExhaustionAction} is {@code WAIT}.  If never called, callers will wait as long as it takes.
+     * <p/>
+     * NOTE: The wait applies to each attempt of {@link com.bazaarvoice.soa.ServicePool#execute}, so a call that is
+     * retried may wait up to this long once per attempt before its {@link com.bazaarvoice.soa.RetryPolicy} gives up.
+     *
+     * @param maxWaitTime The time to wait for an instance before giving up.
+     * @param unit        The unit of time the {@code maxWaitTime} is in.
+     * @return this
+     */
+    public ServiceCachingPolicyBuilder withMaxWaitTime(long maxWaitTime, TimeUnit unit) {
+        checkState(maxWaitTime > 0);
+        checkNotNull(unit);
+
+        _maxWaitTimeNanos = unit.toNanos(maxWaitTime);
+        return this;
+    }
+
     /**
      * Build the {@code ServiceCachingPolicy} specified by this builder.
      *
@@ -85,13 +177,23 @@ public class ServiceCachingPolicyBuilder {
      */
     public ServiceCachingPolicy build() {
         checkState(_maxNumServiceInstances == -1 || _maxNumServiceInstancesPerEndPoint <= _maxNumServiceInstances);
+        checkState(_maxNumServiceInstancesPerEndPoint == -1
+                || _minNumIdleServiceInstancesPerEndPoint <= _maxNumServiceInstancesPerEndPoint);
+        checkState(_numSharedServiceInstancesPerEndPoint == 0 || _minNumIdleServiceInstancesPerEndPoint == 0);
+        checkState(_cacheExhaustionAction != ExhaustionAction.WAIT
+                || (_maxNumServiceInstances != 0 && _maxNumServiceInstancesPerEndPoint != 0));
 
         final int maxNumServiceInstances = _maxNumServiceInstances;
         final int maxNumServiceInstancesPerEndPoint = _maxNumServiceInstancesPerEndPoint;
+        final int minNumIdleServiceInstancesPerEndPoint = _minNumIdleServiceInstancesPerEndPoint;
+        final int numSharedServiceInstancesPerEndPoint = _numSharedServiceInstancesPerEndPoint;
         final long maxServiceInstanceIdleTimeNanos = _maxServiceInstanceIdleTimeNanos;
+        final long maxServiceInstanceLifetimeNanos = _maxServiceInstanceLifetimeNanos;
+        final int maxNumUsesPerServiceInstance = _maxNumUsesPerServiceInstance;
         final ExhaustionAction cacheExhaustionAction = _cacheExhaustionAction;
+        final long maxWaitTimeNanos = _maxWaitTimeNanos;
 
-        return new ServiceCachingPolicy() {
+        return new ExtendedServiceCachingPolicy() {
             @Override
             public int getMaxNumServiceInstances() {
                 return maxNumServiceInstances;
@@ -102,15 +204,40 @@ public class ServiceCachingPolicyBuilder {
                 return maxNumServiceInstancesPerEndPoint;
             }
 
+            @Override
+            public int getMinNumIdleServiceInstancesPerEndPoint() {
+                return minNumIdleServiceInstancesPerEndPoint;
+            }
+
+            @Override
+            public int getNumSharedServiceInstancesPerEndPoint() {
+                return numSharedServiceInstancesPerEndPoint;
+            }
+
             @Override
             public long getMaxServiceInstanceIdleTime(TimeUnit unit) {
                 return unit.convert(maxServiceInstanceIdleTimeNanos, TimeUnit.NANOSECONDS);
             }
 
+            @Override
+            public long getMaxServiceInstanceLifetime(TimeUnit unit) {
+                return unit.convert(maxServiceInstanceLifetimeNanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public int getMaxNumUsesPerServiceInstance() {
+                return maxNumUsesPerServiceInstance;
+            }
+
             @Override
             public ExhaustionAction getCacheExhaustionAction() {
                 return cacheExhaustionAction;
             }
+
+            @Override
+            public long getMaxWaitTime(TimeUnit unit) {
+                return unit.convert(maxWaitTimeNanos, TimeUnit.NANOSECONDS);
+            }
         };
     }
 }
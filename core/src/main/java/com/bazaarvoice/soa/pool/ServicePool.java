@@ -6,11 +6,16 @@ import com.bazaarvoice.soa.HostDiscovery;
 import com.bazaarvoice.soa.LoadBalanceAlgorithm;
 import com.bazaarvoice.soa.PartitionContext;
 import com.bazaarvoice.soa.PartitionContextBuilder;
+import com.bazaarvoice.soa.PayloadDecoder;
 import com.bazaarvoice.soa.RetryPolicy;
 import com.bazaarvoice.soa.ServiceCallback;
 import com.bazaarvoice.soa.ServiceEndPoint;
 import com.bazaarvoice.soa.ServiceFactory;
 import com.bazaarvoice.soa.ServicePoolStatistics;
+import com.bazaarvoice.soa.discovery.HostDiscoverySnapshot;
+import com.bazaarvoice.soa.discovery.SnapshotHostDiscovery;
+import com.bazaarvoice.soa.discovery.TopologyDelta;
+import com.bazaarvoice.soa.discovery.TopologyListener;
 import com.bazaarvoice.soa.exceptions.MaxRetriesException;
 import com.bazaarvoice.soa.exceptions.NoAvailableHostsException;
 import com.bazaarvoice.soa.exceptions.NoCachedInstancesAvailableException;
@@ -27,10 +32,16 @@ import com.google.common.base.Stopwatch;
 import com.google.common.base.Throwables;
 import com.google.common.base.Ticker;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.Timer;
@@ -39,10 +50,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.helpers.MessageFormatter;
 
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -53,46 +84,104 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
     @VisibleForTesting
     static final long HEALTH_CHECK_POLL_INTERVAL_IN_SECONDS = 60;
 
+    // When bad end points are re-checked on adaptive schedules, how often to look for end points that are due.
+    @VisibleForTesting
+    static final long RECHECK_WHEEL_TICK_IN_MILLIS = 100;
+    private static final int RECHECK_WHEEL_NUM_BUCKETS = 512;
+
     private final Ticker _ticker;
     private final HostDiscovery _hostDiscovery;
+    private final boolean _closeHostDiscoveryOnClose;
     private final HostDiscovery.EndPointListener _hostDiscoveryListener;
+    private final TopologyListener _topologyListener;
     private final ServiceFactory<S> _serviceFactory;
     private final ScheduledExecutorService _healthCheckExecutor;
     private final boolean _shutdownHealthCheckExecutorOnClose;
+    private final HealthCheckPolicy _healthCheckPolicy;
+    private final ExecutorService _healthCheckWorkers;
+    private final Semaphore _healthCheckPermits;
+    private final TimingWheel<ServiceEndPoint> _recheckWheel;
+    private final Map<ServiceEndPoint, Long> _recheckDelays;
+    private final Random _random = new Random();
+    private final SlowStart _slowStart;
+    private final EndPointSubset _subset;
+    private final EndPointDecoder _decoder;
+    private volatile RankedEndPoints _rankedEndPoints;
+    private final AtomicReference<HealthyEndPointCheck> _healthyEndPointCheck =
+            new AtomicReference<HealthyEndPointCheck>();
+    private final AtomicLong _numRequests = new AtomicLong();
+    private final Map<ServiceEndPoint, AtomicInteger> _numPassiveSuccesses = Maps.newConcurrentMap();
     private final PartitionFilter _partitionFilter;
     private final LoadBalanceAlgorithm _loadBalanceAlgorithm;
     private final ServicePoolStatistics _servicePoolStatistics;
     private final Set<ServiceEndPoint> _badEndPoints;
-    private final Predicate<ServiceEndPoint> _badEndPointFilter;
+    private final Map<ServiceEndPoint, Long> _ejectedEndPoints;
+    private final Predicate<ServiceEndPoint> _validEndPointFilter;
     private final Set<ServiceEndPoint> _recentlyRemovedEndPoints;
     private final Future<?> _batchHealthChecksFuture;
+    private final OutlierDetectionPolicy _outlierDetectionPolicy;
+    private final OutlierDetector _outlierDetector;
+    private final Future<?> _outlierDetectionFuture;
     private final ServiceCache<S> _serviceCache;
     private final Metrics _metrics;
     private final Timer _callbackExecutionTime;
     private final Timer _healthCheckTime;
+    private final Timer _healthCheckQueueLag;
     private final Meter _numExecuteSuccesses;
     private final Meter _numExecuteAttemptFailures;
+    private final Meter _numOutlierEjections;
+    private final Meter _numPanicModeRequests;
+    private final Meter _numPassiveReinstatements;
 
-    ServicePool(Ticker ticker, HostDiscovery hostDiscovery,
+    ServicePool(Ticker ticker, HostDiscovery hostDiscovery, boolean closeHostDiscoveryOnClose,
                 ServiceFactory<S> serviceFactory, ServiceCachingPolicy cachingPolicy,
+                ServiceCacheBudget cacheBudget, int numReservedServiceInstances,
+                OutlierDetectionPolicy outlierDetectionPolicy, HealthCheckPolicy healthCheckPolicy,
+                long slowStartWindowMillis, EndPointSubset subset, PayloadDecoder<?> payloadDecoder,
                 PartitionFilter partitionFilter, LoadBalanceAlgorithm loadBalanceAlgorithm,
                 ScheduledExecutorService healthCheckExecutor, boolean shutdownHealthCheckExecutorOnClose) {
         _ticker = checkNotNull(ticker);
         _hostDiscovery = checkNotNull(hostDiscovery);
+        _closeHostDiscoveryOnClose = closeHostDiscoveryOnClose;
         _serviceFactory = checkNotNull(serviceFactory);
         _healthCheckExecutor = checkNotNull(healthCheckExecutor);
         _shutdownHealthCheckExecutorOnClose = shutdownHealthCheckExecutorOnClose;
+        _healthCheckPolicy = checkNotNull(healthCheckPolicy);
+        _healthCheckPermits = new Semaphore(_healthCheckPolicy.getMaxNumConcurrentHealthChecks());
+        _recheckWheel = (_healthCheckPolicy.getInitialRecheckDelay(TimeUnit.NANOSECONDS) > 0)
+                ? new TimingWheel<ServiceEndPoint>(_ticker, RECHECK_WHEEL_TICK_IN_MILLIS, TimeUnit.MILLISECONDS,
+                        RECHECK_WHEEL_NUM_BUCKETS)
+                : null;
+        _recheckDelays = Maps.newConcurrentMap();
+        _slowStart = new SlowStart(_ticker, slowStartWindowMillis, TimeUnit.MILLISECONDS);
+        _subset = checkNotNull(subset);
+        _decoder = new EndPointDecoder(payloadDecoder);
+
+        // Health checks run on their own threads so that they can be timed out.  The number of threads isn't bounded
+        // because a timed out health check that ignores interrupts shouldn't prevent other end points from being
+        // checked; the number of health checks that are actually allowed to run concurrently is bounded by the
+        // permits above.
+        _healthCheckWorkers = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat(_serviceFactory.getServiceName() + "-HealthCheckWorkerThread-%d")
+                .setDaemon(true)
+                .build());
         _badEndPoints = Sets.newSetFromMap(Maps.<ServiceEndPoint, Boolean>newConcurrentMap());
-        _badEndPointFilter = Predicates.not(Predicates.in(_badEndPoints));
+        _ejectedEndPoints = Maps.newConcurrentMap();
+        _validEndPointFilter = Predicates.not(Predicates.or(
+                Predicates.in(_badEndPoints), Predicates.in(_ejectedEndPoints.keySet())));
         _recentlyRemovedEndPoints = Sets.newSetFromMap(CacheBuilder.newBuilder()
                 .ticker(_ticker)
                 .expireAfterWrite(10, TimeUnit.MINUTES)  // TODO: Make this a constant
                 .<ServiceEndPoint, Boolean>build()
                 .asMap());
         checkNotNull(cachingPolicy);
-        _serviceCache = new ServiceCache<S>(cachingPolicy, serviceFactory);
+        _serviceCache = new ServiceCache<S>(cachingPolicy, serviceFactory, cacheBudget, numReservedServiceInstances);
         _partitionFilter = checkNotNull(partitionFilter);
         _loadBalanceAlgorithm = checkNotNull(loadBalanceAlgorithm);
+        _outlierDetectionPolicy = checkNotNull(outlierDetectionPolicy);
+        _outlierDetector = (_outlierDetectionPolicy.getEjectionLimitPercent() > 0)
+                ? new OutlierDetector(_outlierDetectionPolicy)
+                : null;
 
         _servicePoolStatistics = new ServicePoolStatistics() {
             @Override
@@ -112,31 +201,66 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
         // HostDiscovery component could lose its connection to its backing data store and then immediately regain it
         // right afterwards.  If that happens it could remove all of its end points only to re-add them right back again
         // and we will "forget" that an end point was bad and try to use it again.  This isn't fatal though because
-        // we'll just rediscover that it's a bad end point again in the future.  Also in the future it might be useful
-        // to measure how long an end point has been considered bad and potentially take action for end points that are
-        // bad for long periods of time.
-        _hostDiscoveryListener = new HostDiscovery.EndPointListener() {
-            @Override
-            public void onEndPointAdded(ServiceEndPoint endPoint) {
-                addEndPoint(endPoint);
-            }
+        // we'll just rediscover that it's a bad end point again in the future.  A ZooKeeperHostDiscovery that keeps its
+        // end points on session loss avoids this altogether.  Also in the future it might be useful to measure how
+        // long an end point has been considered bad and potentially take action for end points that are bad for long
+        // periods of time.
+        if (_hostDiscovery instanceof SnapshotHostDiscovery) {
+            // Apply discovery churn in batches, so that a large deploy or a ZooKeeper reconnect is one pool update
+            // rather than one per end point.
+            _hostDiscoveryListener = null;
+            _topologyListener = new TopologyListener() {
+                @Override
+                public void onTopologyChanged(TopologyDelta delta) {
+                    applyTopologyDelta(delta);
+                    updateSubset();
+                }
+            };
+            ((SnapshotHostDiscovery) _hostDiscovery).addTopologyListener(_topologyListener);
+        } else {
+            _topologyListener = null;
+            _hostDiscoveryListener = new HostDiscovery.EndPointListener() {
+                @Override
+                public void onEndPointAdded(ServiceEndPoint endPoint) {
+                    addEndPoint(_decoder.decode(endPoint));
+                    updateSubset();
+                }
 
-            @Override
-            public void onEndPointRemoved(ServiceEndPoint endPoint) {
-                removeEndPoint(endPoint);
+                @Override
+                public void onEndPointRemoved(ServiceEndPoint endPoint) {
+                    removeEndPoint(endPoint);
+                    _decoder.forget(endPoint);
+                    updateSubset();
+                }
+            };
+            _hostDiscovery.addListener(_hostDiscoveryListener);
+        }
+
+        // Get service instances ready for the end points that were already known.  Later ones are prepared as they're
+        // discovered.
+        _subset.update(_decoder.decodeAll(_hostDiscovery.getHosts()));
+        if (cachingPolicy instanceof ExtendedServiceCachingPolicy
+                && ((ExtendedServiceCachingPolicy) cachingPolicy).getMinNumIdleServiceInstancesPerEndPoint() > 0) {
+            for (ServiceEndPoint endPoint : _subset.select(getRankedEndPoints(), Predicates.alwaysTrue())) {
+                _serviceCache.prewarm(endPoint);
             }
-        };
-        _hostDiscovery.addListener(_hostDiscoveryListener);
+        }
 
-        // Periodically wake up and check any bad end points to see if they're now healthy.
-        _batchHealthChecksFuture = _healthCheckExecutor.scheduleAtFixedRate(new BatchHealthChecks(),
-                HEALTH_CHECK_POLL_INTERVAL_IN_SECONDS, HEALTH_CHECK_POLL_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
+        // Periodically wake up and check any bad end points to see if they're now healthy.  With adaptive re-checks
+        // each bad end point has its own deadline, so wake up often and only check the end points that are due.
+        _batchHealthChecksFuture = (_recheckWheel != null)
+                ? _healthCheckExecutor.scheduleAtFixedRate(new AdaptiveHealthChecks(),
+                        RECHECK_WHEEL_TICK_IN_MILLIS, RECHECK_WHEEL_TICK_IN_MILLIS, TimeUnit.MILLISECONDS)
+                : _healthCheckExecutor.scheduleAtFixedRate(new BatchHealthChecks(),
+                        HEALTH_CHECK_POLL_INTERVAL_IN_SECONDS, HEALTH_CHECK_POLL_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
 
         String serviceName = _serviceFactory.getServiceName();
         _metrics = Metrics.forInstance(this, serviceName);
         _callbackExecutionTime = _metrics.newTimer(serviceName, "callback-execution-time", TimeUnit.MILLISECONDS,
                 TimeUnit.SECONDS);
         _healthCheckTime = _metrics.newTimer(serviceName, "health-check-time", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        _healthCheckQueueLag = _metrics.newTimer(serviceName, "health-check-queue-lag", TimeUnit.MILLISECONDS,
+                TimeUnit.SECONDS);
         _numExecuteSuccesses = _metrics.newMeter(serviceName, "num-execute-successes", "successes", TimeUnit.SECONDS);
         _numExecuteAttemptFailures = _metrics.newMeter(serviceName, "num-execute-attempt-failures", "failures",
                 TimeUnit.SECONDS);
@@ -152,13 +276,49 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
                 return getNumBadEndPoints();
             }
         });
+        _metrics.newGauge(serviceName, "num-ejected-end-points", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return _ejectedEndPoints.size();
+            }
+        });
+        _numOutlierEjections = _metrics.newMeter(serviceName, "num-outlier-ejections", "ejections", TimeUnit.MINUTES);
+        _numPanicModeRequests = _metrics.newMeter(serviceName, "num-panic-mode-requests", "requests",
+                TimeUnit.SECONDS);
+        _metrics.newGauge(serviceName, "num-slow-start-end-points", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return _slowStart.getNumWarmingEndPoints();
+            }
+        });
+        _numPassiveReinstatements = _metrics.newMeter(serviceName, "num-passive-reinstatements", "reinstatements",
+                TimeUnit.MINUTES);
+
+        // Periodically compare end points to their peers and eject the outliers.  Only done when enabled since it
+        // requires gathering statistics on every request.
+        long analysisIntervalMillis = _outlierDetectionPolicy.getAnalysisInterval(TimeUnit.MILLISECONDS);
+        _outlierDetectionFuture = (_outlierDetector != null)
+                ? _healthCheckExecutor.scheduleAtFixedRate(new OutlierDetection(),
+                        analysisIntervalMillis, analysisIntervalMillis, TimeUnit.MILLISECONDS)
+                : null;
     }
 
     @Override
     public void close() {
         _batchHealthChecksFuture.cancel(true);
-        _hostDiscovery.removeListener(_hostDiscoveryListener);
+        if (_outlierDetectionFuture != null) {
+            _outlierDetectionFuture.cancel(true);
+        }
+        if (_topologyListener != null) {
+            ((SnapshotHostDiscovery) _hostDiscovery).removeTopologyListener(_topologyListener);
+        } else {
+            _hostDiscovery.removeListener(_hostDiscoveryListener);
+        }
+        if (_closeHostDiscoveryOnClose) {
+            Closeables.closeQuietly(_hostDiscovery);
+        }
         _metrics.close();
+        _healthCheckWorkers.shutdownNow();
 
         if (_shutdownHealthCheckExecutorOnClose) {
             _healthCheckExecutor.shutdownNow();
@@ -175,7 +335,10 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
         Stopwatch sw = new Stopwatch(_ticker).start();
         int numAttempts = 0;
         do {
-            ServiceEndPoint endPoint = chooseEndPoint(getValidEndPoints(), partitionContext);
+            ServiceEndPoint endPoint = (numAttempts == 0) ? choosePassiveProbeEndPoint(partitionContext) : null;
+            if (endPoint == null) {
+                endPoint = chooseEndPoint(getValidEndPoints(), partitionContext);
+            }
 
             try {
                 R result = executeOnEndPoint(endPoint, callback);
@@ -196,7 +359,8 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
 
     @Override
     public int getNumValidEndPoints() {
-        return Iterables.size(_hostDiscovery.getHosts()) - _badEndPoints.size();
+        // No more than the subset size are ever used at once, so no more than that count.
+        return _subset.select(getRankedEndPoints(), _validEndPointFilter).size();
     }
 
     @Override
@@ -205,13 +369,13 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
     }
 
     /**
-     * Determine the set of all {@link ServiceEndPoint}s.
+     * Determine the set of all {@link ServiceEndPoint}s, including any outside of this pool's subset.
      * <p/>
      * NOTE: This method is package private specifically so that {@link AsyncServicePool} can call it.
      */
-    Iterable<ServiceEndPoint> getAllEndPoints() {
-        Iterable<ServiceEndPoint> hosts = _hostDiscovery.getHosts();
-        if (Iterables.isEmpty(hosts)) {
+    List<ServiceEndPoint> getAllEndPoints() {
+        List<ServiceEndPoint> hosts = getRankedEndPoints();
+        if (hosts.isEmpty()) {
             // There were no service end points available, we have no choice but to stop trying and just exit.
             throw new NoAvailableHostsException();
         }
@@ -220,13 +384,21 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
     }
 
     /**
-     * Determine the set of usable {@link ServiceEndPoint}s.
+     * Determine the set of usable {@link ServiceEndPoint}s, no more than the subset size of them.  Bad end points of
+     * the subset are stood in for by the next ranked good ones, so requests only fail when the whole fleet is bad.
      * <p/>
      * NOTE: This method is package private specifically so that {@link AsyncServicePool} can call it.
      */
-    Iterable<ServiceEndPoint> getValidEndPoints() {
-        Iterable<ServiceEndPoint> goodHosts = Iterables.filter(getAllEndPoints(), _badEndPointFilter);
-        if (Iterables.isEmpty(goodHosts)) {
+    List<ServiceEndPoint> getValidEndPoints() {
+        List<ServiceEndPoint> hosts = getAllEndPoints();
+        List<ServiceEndPoint> goodHosts = _subset.select(hosts, _validEndPointFilter);
+        if (isPanicking(hosts, goodHosts)) {
+            // So few end points are left that the problem is more likely shared (ex. a common dependency) than with
+            // the individual end points.  Spreading load across everything beats failing every request.
+            _numPanicModeRequests.mark();
+            return _subset.select(hosts, Predicates.alwaysTrue());
+        }
+        if (goodHosts.isEmpty()) {
             // All available hosts are bad, so we must give up.
             throw new OnlyBadHostsException();
         }
@@ -234,11 +406,96 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
         return goodHosts;
     }
 
+    /**
+     * Panics when the good end points can't fill enough of the subset, or of the whole fleet when subsetting is
+     * disabled.
+     */
+    private boolean isPanicking(List<ServiceEndPoint> hosts, List<ServiceEndPoint> goodHosts) {
+        int panicThresholdPercent = _outlierDetectionPolicy.getPanicThresholdPercent();
+        int numUsable = _subset.isEnabled() ? Math.min(_subset.getSize(), hosts.size()) : hosts.size();
+        return panicThresholdPercent > 0 && goodHosts.size() * 100 < panicThresholdPercent * numUsable;
+    }
+
+    /**
+     * Returns the decoded end points of host discovery, highest ranked first.  The list is built once per snapshot of
+     * a {@link SnapshotHostDiscovery} and reused by every request until discovery changes.  Other host discoveries
+     * don't say when they change, so their end points are decoded and ranked every time.
+     */
+    private List<ServiceEndPoint> getRankedEndPoints() {
+        if (!(_hostDiscovery instanceof SnapshotHostDiscovery)) {
+            return _subset.rank(_decoder.decodeAll(_hostDiscovery.getHosts()));
+        }
+
+        HostDiscoverySnapshot snapshot = ((SnapshotHostDiscovery) _hostDiscovery).getSnapshot();
+        RankedEndPoints ranked = _rankedEndPoints;
+        if (ranked == null || ranked.getGeneration() != snapshot.getGeneration()) {
+            // Threads that see a new snapshot at the same time may each build the list.  If an older one wins, the next
+            // request notices the generation is behind and builds it again.
+            ranked = new RankedEndPoints(snapshot.getGeneration(),
+                    _subset.rank(_decoder.decodeAll(snapshot.getEndPoints())));
+            _rankedEndPoints = ranked;
+        }
+        return ranked.getEndPoints();
+    }
+
+    /**
+     * Occasionally chooses a bad end point to send a request to so that real traffic can show it's healthy again.
+     *
+     * @return A bad end point, or {@code null} if this request should go to a valid end point.
+     */
+    private ServiceEndPoint choosePassiveProbeEndPoint(PartitionContext partitionContext) {
+        int probeInterval = _healthCheckPolicy.getPassiveProbeInterval();
+        if (probeInterval <= 0 || _badEndPoints.isEmpty() || _numRequests.incrementAndGet() % probeInterval != 0) {
+            return null;
+        }
+
+        try {
+            return chooseEndPoint(_subset.select(getAllEndPoints(), Predicates.in(_badEndPoints)), partitionContext);
+        } catch (Exception e) {
+            // None of the bad end points are suitable for this request.
+            return null;
+        }
+    }
+
+    /**
+     * Counts a successful request to an end point that's considered bad, returning it to rotation after enough
+     * consecutive successes.
+     */
+    private void recordPassiveSuccess(ServiceEndPoint endPoint) {
+        int numSuccessesToReinstate = _healthCheckPolicy.getNumPassiveSuccessesToReinstate();
+        if (numSuccessesToReinstate <= 0 || !_badEndPoints.contains(endPoint)) {
+            return;
+        }
+
+        AtomicInteger numSuccesses = _numPassiveSuccesses.get(endPoint);
+        if (numSuccesses == null) {
+            AtomicInteger newNumSuccesses = new AtomicInteger();
+            numSuccesses = _numPassiveSuccesses.putIfAbsent(endPoint, newNumSuccesses);
+            if (numSuccesses == null) {
+                numSuccesses = newNumSuccesses;
+            }
+        }
+
+        if (numSuccesses.incrementAndGet() >= numSuccessesToReinstate) {
+            reinstateEndPoint(endPoint);
+        }
+    }
+
+    private synchronized void reinstateEndPoint(ServiceEndPoint endPoint) {
+        if (returnToRotation(endPoint)) {
+            cancelRecheck(endPoint);
+            _numPassiveSuccesses.remove(endPoint);
+            _numPassiveReinstatements.mark();
+            LOG.info("Bad end point returned to rotation by successful requests. End point ID: {}", endPoint.getId());
+        }
+    }
+
     private ServiceEndPoint chooseEndPoint(Iterable<ServiceEndPoint> endPoints, PartitionContext partitionContext) {
         endPoints = _partitionFilter.filter(endPoints, partitionContext);
         if (endPoints == null || Iterables.isEmpty(endPoints)) {
             throw new NoSuitableHostsException();
         }
+        endPoints = _slowStart.filter(endPoints);
         ServiceEndPoint endPoint = _loadBalanceAlgorithm.choose(endPoints, _servicePoolStatistics);
         if (endPoint == null) {
             throw new NoSuitableHostsException();
@@ -252,14 +509,27 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
      * NOTE: This method is package private specifically so that {@link AsyncServicePool} can call it.
      */
     <R> R executeOnEndPoint(ServiceEndPoint endPoint, ServiceCallback<S, R> callback) throws Exception {
-        S service = null;
+        ServiceCache.ServiceHandle<S> serviceHandle = null;
 
         try {
-            service = _serviceCache.checkOut(endPoint);
+            serviceHandle = _serviceCache.checkOut(endPoint);
 
             TimerContext timer = _callbackExecutionTime.time();
+            Stopwatch sw = new Stopwatch(_ticker).start();
             try {
-                return callback.call(service);
+                R result = callback.call(serviceHandle.getService());
+                if (_outlierDetector != null) {
+                    _outlierDetector.recordSuccess(endPoint, sw.elapsedTime(TimeUnit.NANOSECONDS));
+                }
+                recordPassiveSuccess(endPoint);
+                return result;
+            } catch (Exception e) {
+                // Retriable failures already take the end point out of rotation below by marking it as bad, so only
+                // the other failures count against its success rate.
+                if (_outlierDetector != null && !_serviceFactory.isRetriableException(e)) {
+                    _outlierDetector.recordFailure(endPoint, sw.elapsedTime(TimeUnit.NANOSECONDS));
+                }
+                throw e;
             } finally {
                 timer.stop();
             }
@@ -279,9 +549,9 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
             }
             throw e;
         } finally {
-            if (service != null) {
+            if (serviceHandle != null) {
                 try {
-                    _serviceCache.checkIn(endPoint, service);
+                    _serviceCache.checkIn(serviceHandle);
                 } catch (Exception e) {
                     // This should never happen, but log just in case.
                     LOG.error(MessageFormatter.format("Error returning end point to cache. End point ID: {}",
@@ -333,8 +603,70 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
         return ImmutableSet.copyOf(_badEndPoints);
     }
 
+    @VisibleForTesting
+    Set<ServiceEndPoint> getEjectedEndPoints() {
+        return ImmutableSet.copyOf(_ejectedEndPoints.keySet());
+    }
+
     @Override
     public HealthCheckResults checkForHealthyEndPoint() {
+        long ttlNanos = _healthCheckPolicy.getHealthyEndPointCheckCacheTtl(TimeUnit.NANOSECONDS);
+        if (ttlNanos <= 0) {
+            return probeForHealthyEndPoint();
+        }
+
+        // Callers that arrive while results are being refreshed wait for and share the refreshed results rather than
+        // health checking end points themselves.  Only the caller that starts a refresh runs the health checks.
+        while (true) {
+            HealthyEndPointCheck check = _healthyEndPointCheck.get();
+            if (check != null && !check.isExpired(ttlNanos)) {
+                return check.getResults();
+            }
+
+            HealthyEndPointCheck refresh = new HealthyEndPointCheck();
+            if (_healthyEndPointCheck.compareAndSet(check, refresh)) {
+                return refresh.run();
+            }
+        }
+    }
+
+    /** A shared {@link #checkForHealthyEndPoint} run, either in progress or completed. */
+    private final class HealthyEndPointCheck {
+        private final SettableFuture<HealthCheckResults> _results = SettableFuture.create();
+        private volatile long _completedNanos;
+
+        HealthCheckResults run() {
+            try {
+                HealthCheckResults results = probeForHealthyEndPoint();
+                _completedNanos = _ticker.read();
+                _results.set(results);
+                return results;
+            } catch (RuntimeException e) {
+                fail(e);
+                throw e;
+            } catch (Error e) {
+                fail(e);
+                throw e;
+            }
+        }
+
+        /** Hands the failure to the callers waiting on this run, and lets the next caller start another one. */
+        private void fail(Throwable t) {
+            _healthyEndPointCheck.compareAndSet(this, null);
+            _results.setException(t);
+        }
+
+        /** Completed results expire after the TTL.  A run that's still in progress never does. */
+        boolean isExpired(long ttlNanos) {
+            return _results.isDone() && _ticker.read() - _completedNanos >= ttlNanos;
+        }
+
+        HealthCheckResults getResults() {
+            return Futures.getUnchecked(_results);
+        }
+    }
+
+    private HealthCheckResults probeForHealthyEndPoint() {
         Set<ServiceEndPoint> endPoints;
         DefaultHealthCheckResults aggregate = new DefaultHealthCheckResults();
 
@@ -346,41 +678,113 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
             return aggregate;
         }
 
-        while (!endPoints.isEmpty()) {
-            ServiceEndPoint endPoint;
-            try {
-                // Prefer end points in the order the load balancer recommends.
-                endPoint = chooseEndPoint(endPoints, PartitionContextBuilder.empty());
-            } catch (Exception e) {
-                // Load balancer didn't like our end points, so just go sequentially.
-                endPoint = endPoints.iterator().next();
-            }
-
-            HealthCheckResult result = checkHealth(endPoint);
-            aggregate.addHealthCheckResult(result);
-
-            if (!result.isHealthy()) {
-                Exception exception = ((FailedHealthCheckResult) result).getException();
-                if (exception == null || isRetriableException(exception)) {
-                    LOG.info("Unhealthy end point discovered. End point ID: {}", endPoint.getId());
-                    endPoints.remove(endPoint);
-                    markEndPointAsBad(endPoint);
-                    continue;
+        int fanOut = _healthCheckPolicy.getHealthyEndPointCheckFanOut();
+        while (!endPoints.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            List<ServiceEndPoint> candidates = Lists.newArrayListWithCapacity(fanOut);
+            while (candidates.size() < fanOut && !endPoints.isEmpty()) {
+                ServiceEndPoint endPoint;
+                try {
+                    // Prefer end points in the order the load balancer recommends.
+                    endPoint = chooseEndPoint(endPoints, PartitionContextBuilder.empty());
+                } catch (Exception e) {
+                    // Load balancer didn't like our end points, so just go sequentially.
+                    endPoint = endPoints.iterator().next();
                 }
+                endPoints.remove(endPoint);
+                candidates.add(endPoint);
             }
 
-            break;
+            // Results arrive in the order the health checks complete, the last one decides whether we're done.
+            List<HealthCheckResult> results = checkHealthUntilConclusive(candidates);
+            for (HealthCheckResult result : results) {
+                aggregate.addHealthCheckResult(result);
+            }
+            if (!results.isEmpty() && isConclusive(Iterables.getLast(results))) {
+                break;
+            }
+            if (results.size() < candidates.size()) {
+                // No permit came free in time, and the next end points wouldn't get one either.
+                break;
+            }
         }
 
         return aggregate;
     }
 
+    /**
+     * A health check result is conclusive if it's healthy or if it failed in a way that indicates that checking other
+     * end points won't help.  Inconclusive results mark their end point as bad.
+     */
+    private boolean isConclusive(HealthCheckResult result) {
+        if (result.isHealthy()) {
+            return true;
+        }
+
+        Exception exception = ((FailedHealthCheckResult) result).getException();
+        return exception != null && !isRetriableException(exception);
+    }
+
     private synchronized void addEndPoint(ServiceEndPoint endPoint) {
         _recentlyRemovedEndPoints.remove(endPoint);
         _badEndPoints.remove(endPoint);
+        _ejectedEndPoints.remove(endPoint);
+        _numPassiveSuccesses.remove(endPoint);
+        cancelRecheck(endPoint);
+        _slowStart.start(endPoint);
+        if (!_subset.isEnabled()) {
+            _serviceCache.prewarm(endPoint);
+        }
         LOG.debug("End point added to service pool. End point ID: {}", endPoint.getId());
     }
 
+    /**
+     * Removes an end point from the bad end points after it has been found to be healthy again.
+     *
+     * @return {@code true} if the end point was bad, {@code false} otherwise.
+     */
+    private boolean returnToRotation(ServiceEndPoint endPoint) {
+        if (!_badEndPoints.remove(endPoint)) {
+            return false;
+        }
+        _slowStart.start(endPoint);
+        if (_subset.contains(endPoint)) {
+            _serviceCache.prewarm(endPoint);
+        }
+        return true;
+    }
+
+    /** Applies a batch of discovery changes while holding the pool's lock once. */
+    private synchronized void applyTopologyDelta(TopologyDelta delta) {
+        for (ServiceEndPoint endPoint : delta.getRemoved()) {
+            removeEndPoint(endPoint);
+            _decoder.forget(endPoint);
+        }
+        for (ServiceEndPoint endPoint : delta.getAdded()) {
+            addEndPoint(_decoder.decode(endPoint));
+        }
+        // An updated end point is removed and added again, which evicts the instances created from its old payload.
+        LOG.debug("Topology change applied to service pool. Added: {}; Removed: {}; Updated: {}",
+                new Object[] {delta.getAdded().size(), delta.getRemoved().size(), delta.getUpdated().size()});
+    }
+
+    /**
+     * Recomputes the subset of end points this pool uses after discovery changed.  Service instances are prepared for
+     * the end points in the subset and released for the ones that left it, so that only the subset is connected to.
+     */
+    private synchronized void updateSubset() {
+        if (!_subset.isEnabled()) {
+            return;
+        }
+
+        for (ServiceEndPoint endPoint : _subset.update(_decoder.decodeAll(_hostDiscovery.getHosts()))) {
+            _serviceCache.evict(endPoint);
+            LOG.debug("End point left the subset of the service pool. End point ID: {}", endPoint.getId());
+        }
+        for (ServiceEndPoint endPoint : _subset.getEndPoints()) {
+            _serviceCache.prewarm(endPoint);
+        }
+    }
+
     private synchronized void removeEndPoint(ServiceEndPoint endPoint) {
         // Mark this end point as recently removed.  We do this in order to keep a positive set of removed
         // end points so that we avoid a potential race condition where someone was using this end point while
@@ -390,6 +794,13 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
         // end points ensures that this memory leak doesn't happen.
         _recentlyRemovedEndPoints.add(endPoint);
         _badEndPoints.remove(endPoint);
+        _ejectedEndPoints.remove(endPoint);
+        _numPassiveSuccesses.remove(endPoint);
+        cancelRecheck(endPoint);
+        _slowStart.forget(endPoint);
+        if (_outlierDetector != null) {
+            _outlierDetector.forget(endPoint);
+        }
         _serviceCache.evict(endPoint);
         LOG.debug("End point removed from service pool. End point ID: {}", endPoint.getId());
     }
@@ -402,66 +813,426 @@ class ServicePool<S> implements com.bazaarvoice.soa.ServicePool<S> {
 
         _serviceCache.evict(endPoint);
 
+        // A bad end point is health checked back into rotation, so it no longer needs to wait out an ejection.
+        _ejectedEndPoints.remove(endPoint);
+
+        // Any run of successful requests to the end point has been broken.
+        _numPassiveSuccesses.remove(endPoint);
+
         // Only schedule a health check if this is the first time we've seen this end point as bad...
         if (_badEndPoints.add(endPoint)) {
-            _healthCheckExecutor.submit(new HealthCheck(endPoint));
+            if (_recheckWheel != null) {
+                scheduleRecheck(endPoint, _healthCheckPolicy.getInitialRecheckDelay(TimeUnit.NANOSECONDS));
+            } else {
+                _healthCheckExecutor.submit(new HealthCheck(endPoint));
+            }
+        }
+    }
+
+    /**
+     * Called after an adaptive re-check of a bad end point.  A healthy end point returns to rotation, an unhealthy one
+     * waits longer before its next re-check.
+     */
+    private synchronized void onRecheckCompleted(ServiceEndPoint endPoint, boolean healthy) {
+        if (!_badEndPoints.contains(endPoint)) {
+            // The end point was added or removed while it was being checked.
+            return;
+        }
+
+        if (healthy) {
+            returnToRotation(endPoint);
+            _recheckDelays.remove(endPoint);
+            return;
+        }
+
+        Long delayNanos = _recheckDelays.get(endPoint);
+        long initialDelayNanos = _healthCheckPolicy.getInitialRecheckDelay(TimeUnit.NANOSECONDS);
+        long maxDelayNanos = _healthCheckPolicy.getMaxRecheckDelay(TimeUnit.NANOSECONDS);
+        long nextDelayNanos = (delayNanos == null)
+                ? initialDelayNanos
+                : (long) Math.min(maxDelayNanos, delayNanos * _healthCheckPolicy.getRecheckBackoffMultiplier());
+        scheduleRecheck(endPoint, nextDelayNanos);
+    }
+
+    private void scheduleRecheck(ServiceEndPoint endPoint, long delayNanos) {
+        _recheckDelays.put(endPoint, delayNanos);
+
+        double jitter = _healthCheckPolicy.getRecheckJitter() * (2 * _random.nextDouble() - 1);
+        _recheckWheel.schedule(endPoint, (long) (delayNanos * (1 + jitter)), TimeUnit.NANOSECONDS);
+    }
+
+    private void cancelRecheck(ServiceEndPoint endPoint) {
+        if (_recheckWheel != null) {
+            _recheckWheel.cancel(endPoint);
+            _recheckDelays.remove(endPoint);
+        }
+    }
+
+    private synchronized void ejectOutliers() {
+        long now = _ticker.read();
+
+        // Return end points whose ejection has expired back into rotation.
+        for (Map.Entry<ServiceEndPoint, Long> entry : _ejectedEndPoints.entrySet()) {
+            if (entry.getValue() - now <= 0) {
+                _ejectedEndPoints.remove(entry.getKey());
+                _slowStart.start(entry.getKey());
+                LOG.info("Outlier end point returned to rotation. End point ID: {}", entry.getKey().getId());
+            }
+        }
+
+        List<ServiceEndPoint> outliers = _outlierDetector.findOutliers();
+        // The limit is never less than one ejection, otherwise small pools could never eject anything.
+        int maxNumEjected = Math.max(1, _subset.select(getRankedEndPoints(), Predicates.alwaysTrue()).size()
+                * _outlierDetectionPolicy.getEjectionLimitPercent() / 100);
+        long ejectionTimeNanos = _outlierDetectionPolicy.getEjectionTime(TimeUnit.NANOSECONDS);
+        for (ServiceEndPoint endPoint : outliers) {
+            if (_ejectedEndPoints.size() >= maxNumEjected) {
+                break;
+            }
+            if (_recentlyRemovedEndPoints.contains(endPoint) || _badEndPoints.contains(endPoint)) {
+                continue;
+            }
+            if (_ejectedEndPoints.put(endPoint, now + ejectionTimeNanos) == null) {
+                _numOutlierEjections.mark();
+                LOG.info("Outlier end point ejected. End point ID: {}", endPoint.getId());
+            }
         }
     }
 
     @VisibleForTesting
     HealthCheckResult checkHealth(ServiceEndPoint endPoint) {
-        // We have to be very careful to not allow any exceptions to make it out of of this method, if they do then
-        // subsequent scheduled invocations of the Runnable may not happen, and we could stop checking health checks
-        // completely.  So we intentionally handle all possible exceptions here.
-        Stopwatch sw = new Stopwatch(_ticker).start();
+        return checkHealth(endPoint, _ticker.read());
+    }
+
+    private HealthCheckResult checkHealth(ServiceEndPoint endPoint, long enqueuedNanos) {
+        HealthCheckResult result = checkHealth(ImmutableList.of(endPoint), enqueuedNanos).get(endPoint);
+        return (result != null)
+                ? result
+                : new FailedHealthCheckResult(endPoint.getId(), 0, new InterruptedException());
+    }
+
+    /**
+     * Health checks a small set of end points concurrently, stopping at the first conclusive result.  Health checks
+     * that are still running at that point are abandoned.  End points with inconclusive results are marked as bad.
+     * <p/>
+     * Health checks start as permits become available, so the first result can end the wait before every end point
+     * got a permit.  When every permit is held by other callers, ex. background health checks, this waits for one no
+     * longer than the health check timeout and gives up on the end points it couldn't check.
+     *
+     * @return The results of the health checks that completed, in the order they completed.  Fewer than the number of
+     *         end points if some weren't checked.
+     */
+    private List<HealthCheckResult> checkHealthUntilConclusive(List<ServiceEndPoint> endPoints) {
+        long enqueuedNanos = _ticker.read();
+        long timeoutNanos = _healthCheckPolicy.getHealthCheckTimeout(TimeUnit.NANOSECONDS);
+        Semaphore completions = new Semaphore(0);
+        Deque<ServiceEndPoint> unchecked = new ArrayDeque<ServiceEndPoint>(endPoints);
+        List<InFlightHealthCheck> inFlight = Lists.newArrayListWithCapacity(endPoints.size());
+        List<HealthCheckResult> results = Lists.newArrayListWithCapacity(endPoints.size());
 
         try {
-            return  _serviceFactory.isHealthy(endPoint)
-                    ? new SuccessfulHealthCheckResult(endPoint.getId(), sw.stop().elapsedTime(TimeUnit.NANOSECONDS))
-                    : new FailedHealthCheckResult(endPoint.getId(), sw.stop().elapsedTime(TimeUnit.NANOSECONDS));
-        } catch (Exception e) {
-            return new FailedHealthCheckResult(endPoint.getId(), sw.stop().elapsedTime(TimeUnit.NANOSECONDS), e);
+            while (!unchecked.isEmpty() || !inFlight.isEmpty()) {
+                // Start as many health checks as there are permits for.  Ours free up as our health checks complete.
+                while (!unchecked.isEmpty() && _healthCheckPermits.tryAcquire()) {
+                    _healthCheckQueueLag.update(_ticker.read() - enqueuedNanos, TimeUnit.NANOSECONDS);
+                    inFlight.add(new InFlightHealthCheck(unchecked.poll(), completions));
+                }
+                if (inFlight.isEmpty()) {
+                    // Every permit is held by other callers, so wait for one of theirs.
+                    long waitNanos = (timeoutNanos > 0)
+                            ? timeoutNanos - (_ticker.read() - enqueuedNanos)
+                            : Long.MAX_VALUE;
+                    if (!_healthCheckPermits.tryAcquire(Math.max(0, waitNanos), TimeUnit.NANOSECONDS)) {
+                        LOG.info("No health check permit available. Number of end points not checked: {}",
+                                unchecked.size());
+                        break;
+                    }
+                    _healthCheckQueueLag.update(_ticker.read() - enqueuedNanos, TimeUnit.NANOSECONDS);
+                    inFlight.add(new InFlightHealthCheck(unchecked.poll(), completions));
+                }
+
+                long waitNanos = Long.MAX_VALUE;
+                for (Iterator<InFlightHealthCheck> iter = inFlight.iterator(); iter.hasNext(); ) {
+                    InFlightHealthCheck check = iter.next();
+                    long remainingNanos = check.getRemainingNanos();
+                    if (!check.isDone() && remainingNanos > 0) {
+                        waitNanos = Math.min(waitNanos, remainingNanos);
+                        continue;
+                    }
+
+                    iter.remove();
+                    HealthCheckResult result = check.await();
+                    results.add(result);
+                    if (isConclusive(result)) {
+                        return results;
+                    }
+
+                    LOG.info("Unhealthy end point discovered. End point ID: {}", check.getEndPoint().getId());
+                    markEndPointAsBad(check.getEndPoint());
+                }
+
+                if (!inFlight.isEmpty()) {
+                    completions.tryAcquire(waitNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            _healthCheckTime.update(sw.elapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+            for (InFlightHealthCheck check : inFlight) {
+                check.abandon();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Health checks a set of end points concurrently, bounded by the health check policy's maximum number of
+     * concurrent health checks.  Blocks until every health check has completed or timed out.
+     * <p/>
+     * We have to be very careful to not allow any exceptions to make it out of of this method, if they do then
+     * subsequent scheduled invocations of the health check runnables may not happen, and we could stop checking health
+     * checks completely.  So we intentionally handle all possible exceptions here.  If the calling thread is
+     * interrupted then end points that haven't been checked yet are omitted from the results.
+     *
+     * @param endPoints     The end points to health check.
+     * @param enqueuedNanos The ticker time at which the health checks were requested, used to measure queue lag.
+     */
+    private Map<ServiceEndPoint, HealthCheckResult> checkHealth(Collection<ServiceEndPoint> endPoints,
+                                                                long enqueuedNanos) {
+        Map<ServiceEndPoint, HealthCheckResult> results = Maps.newLinkedHashMap();
+        Deque<InFlightHealthCheck> inFlight = new ArrayDeque<InFlightHealthCheck>();
+
+        try {
+            for (ServiceEndPoint endPoint : endPoints) {
+                // Wait for room to start another health check.  Our own oldest health check is the one that will
+                // finish or time out first, so wait on it rather than blocking on the semaphore.
+                while (!_healthCheckPermits.tryAcquire()) {
+                    InFlightHealthCheck oldest = inFlight.poll();
+                    if (oldest == null) {
+                        // All permits are held by other callers.
+                        _healthCheckPermits.acquire();
+                        break;
+                    }
+                    results.put(oldest.getEndPoint(), oldest.await());
+                }
+
+                _healthCheckQueueLag.update(_ticker.read() - enqueuedNanos, TimeUnit.NANOSECONDS);
+                inFlight.add(new InFlightHealthCheck(endPoint));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (InFlightHealthCheck check : inFlight) {
+            results.put(check.getEndPoint(), check.await());
+        }
+        return results;
+    }
+
+    /**
+     * A health check that has been started on a health check worker thread and holds one of the health check permits
+     * until it completes or times out, whichever happens first.
+     */
+    private final class InFlightHealthCheck implements Callable<Boolean> {
+        private final ServiceEndPoint _endPoint;
+        private final Stopwatch _stopwatch = new Stopwatch(_ticker).start();
+        private final AtomicBoolean _permitReleased = new AtomicBoolean();
+        private final Semaphore _completions;
+        private final Future<Boolean> _future;
+
+        InFlightHealthCheck(ServiceEndPoint endPoint) {
+            this(endPoint, null);
+        }
+
+        /**
+         * @param completions If not {@code null}, released once when the health check completes.
+         */
+        InFlightHealthCheck(ServiceEndPoint endPoint, Semaphore completions) {
+            _endPoint = endPoint;
+            _completions = completions;
+
+            // Completion is signalled once the future is done, so that anyone woken by the signal sees the result.
+            FutureTask<Boolean> task = new FutureTask<Boolean>(this) {
+                @Override
+                protected void done() {
+                    if (_completions != null) {
+                        _completions.release();
+                    }
+                }
+            };
+
+            Future<Boolean> future = task;
+            try {
+                _healthCheckWorkers.execute(task);
+            } catch (RejectedExecutionException e) {
+                // The pool has been closed.
+                future = Futures.immediateFailedFuture(e);
+            }
+            _future = future;
+        }
+
+        ServiceEndPoint getEndPoint() {
+            return _endPoint;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            try {
+                return _serviceFactory.isHealthy(_endPoint);
+            } finally {
+                releasePermit();
+            }
+        }
+
+        boolean isDone() {
+            return _future.isDone();
+        }
+
+        long getRemainingNanos() {
+            long timeoutNanos = _healthCheckPolicy.getHealthCheckTimeout(TimeUnit.NANOSECONDS);
+            return (timeoutNanos > 0) ? timeoutNanos - elapsedNanos() : Long.MAX_VALUE;
+        }
+
+        /** Gives up on the health check without waiting for its result. */
+        void abandon() {
+            _future.cancel(true);
+            releasePermit();
+        }
+
+        HealthCheckResult await() {
+            try {
+                long remainingNanos = Math.max(0, getRemainingNanos());
+                return _future.get(remainingNanos, TimeUnit.NANOSECONDS)
+                        ? new SuccessfulHealthCheckResult(_endPoint.getId(), elapsedNanos())
+                        : new FailedHealthCheckResult(_endPoint.getId(), elapsedNanos());
+            } catch (TimeoutException e) {
+                // A health check that doesn't answer in time is no different from one that answers unhealthy.
+                _future.cancel(true);
+                LOG.info("Health check timed out. End point ID: {}", _endPoint.getId());
+                return new FailedHealthCheckResult(_endPoint.getId(), elapsedNanos());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (!(cause instanceof Exception)) {
+                    throw Throwables.propagate(cause);
+                }
+                return new FailedHealthCheckResult(_endPoint.getId(), elapsedNanos(), (Exception) cause);
+            } catch (CancellationException e) {
+                return new FailedHealthCheckResult(_endPoint.getId(), elapsedNanos(), e);
+            } catch (InterruptedException e) {
+                _future.cancel(true);
+                Thread.currentThread().interrupt();
+                return new FailedHealthCheckResult(_endPoint.getId(), elapsedNanos(), e);
+            } finally {
+                releasePermit();
+                _healthCheckTime.update(elapsedNanos(), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private long elapsedNanos() {
+            return _stopwatch.elapsedTime(TimeUnit.NANOSECONDS);
+        }
+
+        private void releasePermit() {
+            if (_permitReleased.compareAndSet(false, true)) {
+                _healthCheckPermits.release();
+            }
         }
     }
 
     @VisibleForTesting
     final class HealthCheck implements Runnable {
         private final ServiceEndPoint _endPoint;
+        private final long _enqueuedNanos;
 
         public HealthCheck(ServiceEndPoint endPoint) {
             _endPoint = endPoint;
+            _enqueuedNanos = _ticker.read();
         }
 
         @Override
         public void run() {
-            HealthCheckResult result = checkHealth(_endPoint);
+            HealthCheckResult result = checkHealth(_endPoint, _enqueuedNanos);
             if (result.isHealthy()) {
-                _badEndPoints.remove(_endPoint);
+                returnToRotation(_endPoint);
             }
         }
     }
 
     @VisibleForTesting
-    final class BatchHealthChecks implements Runnable {
+    final class AdaptiveHealthChecks implements Runnable {
         @Override
         public void run() {
-            for (ServiceEndPoint endPoint : _badEndPoints) {
-                HealthCheckResult result = checkHealth(endPoint);
-                if (result.isHealthy()) {
-                    _badEndPoints.remove(endPoint);
+            try {
+                List<ServiceEndPoint> due = Lists.newArrayList(
+                        Iterables.filter(_recheckWheel.advance(), Predicates.in(_badEndPoints)));
+                if (due.isEmpty()) {
+                    return;
+                }
+
+                Map<ServiceEndPoint, HealthCheckResult> results = checkHealth(due, _ticker.read());
+                for (ServiceEndPoint endPoint : due) {
+                    // End points that weren't checked because we were interrupted are treated as still unhealthy.
+                    HealthCheckResult result = results.get(endPoint);
+                    onRecheckCompleted(endPoint, result != null && result.isHealthy());
                 }
+            } catch (Exception e) {
+                // Swallow the exception so that subsequent scheduled runs still happen.
+                LOG.error("Adaptive health check run failed.", e);
+            }
+        }
+    }
 
-                // If we were interrupted during checking the health (but weren't blocked so an InterruptedException
-                // couldn't be thrown), then we should exit now.
-                if (Thread.currentThread().isInterrupted()) {
-                    break;
+    @VisibleForTesting
+    final class BatchHealthChecks implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Map<ServiceEndPoint, HealthCheckResult> results =
+                        checkHealth(ImmutableList.copyOf(_badEndPoints), _ticker.read());
+                for (Map.Entry<ServiceEndPoint, HealthCheckResult> entry : results.entrySet()) {
+                    if (entry.getValue().isHealthy()) {
+                        returnToRotation(entry.getKey());
+                    }
                 }
+            } catch (Exception e) {
+                // Swallow the exception so that subsequent scheduled runs still happen.
+                LOG.error("Batch health check run failed.", e);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    final class OutlierDetection implements Runnable {
+        @Override
+        public void run() {
+            try {
+                ejectOutliers();
+            } catch (Exception e) {
+                // Swallow the exception so that subsequent scheduled runs still happen.
+                LOG.error("Outlier detection run failed.", e);
             }
         }
     }
 
+    /** The decoded and ranked end points of one generation of a {@link HostDiscoverySnapshot}. */
+    private static final class RankedEndPoints {
+        private final long _generation;
+        private final List<ServiceEndPoint> _endPoints;
+
+        RankedEndPoints(long generation, List<ServiceEndPoint> endPoints) {
+            _generation = generation;
+            _endPoints = endPoints;
+        }
+
+        long getGeneration() {
+            return _generation;
+        }
+
+        List<ServiceEndPoint> getEndPoints() {
+            return _endPoints;
+        }
+    }
+
     private static final class SuccessfulHealthCheckResult implements HealthCheckResult {
         private final String _endPointId;
         private final long _responseTimeInNanos;
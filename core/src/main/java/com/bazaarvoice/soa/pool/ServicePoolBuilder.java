@@ -3,9 +3,12 @@ package com.bazaarvoice.soa.pool;
 import com.bazaarvoice.soa.HostDiscovery;
 import com.bazaarvoice.soa.HostDiscoverySource;
 import com.bazaarvoice.soa.LoadBalanceAlgorithm;
+import com.bazaarvoice.soa.PayloadDecoder;
 import com.bazaarvoice.soa.RetryPolicy;
 import com.bazaarvoice.soa.ServiceFactory;
-import com.bazaarvoice.soa.discovery.ZooKeeperHostDiscovery;
+import com.bazaarvoice.soa.discovery.ConfiguredFixedHostDiscoverySource;
+import com.bazaarvoice.soa.discovery.SharedHostDiscoverySource;
+import com.bazaarvoice.soa.discovery.ZooKeeperHostDiscoverySource;
 import com.bazaarvoice.soa.loadbalance.RandomAlgorithm;
 import com.bazaarvoice.soa.partition.IdentityPartitionFilter;
 import com.bazaarvoice.soa.partition.PartitionFilter;
@@ -15,13 +18,19 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -30,12 +39,27 @@ import static java.lang.String.format;
 public class ServicePoolBuilder<S> {
     private static final int DEFAULT_NUM_HEALTH_CHECK_THREADS = 1;
 
+    /**
+     * The ZooKeeper host discovery sources of the pools built so far, by connection and snapshot directory.  Each is
+     * kept only as long as a pool holds discovery from it.
+     */
+    private static final Map<List<Object>, SharedHostDiscoverySource> ZOO_KEEPER_SOURCES =
+            new MapMaker().weakValues().makeMap();
+
     private final Class<S> _serviceType;
     private final List<HostDiscoverySource> _hostDiscoverySources = Lists.newArrayList();
     private ServiceFactory<S> _serviceFactory;
     private String _serviceName;
     private ScheduledExecutorService _healthCheckExecutor;
     private ServiceCachingPolicy _cachingPolicy;
+    private ServiceCacheBudget _cacheBudget;
+    private int _numReservedServiceInstances;
+    private OutlierDetectionPolicy _outlierDetectionPolicy = OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION;
+    private HealthCheckPolicy _healthCheckPolicy = HealthCheckPolicyBuilder.DEFAULT;
+    private long _slowStartWindowMillis = 0;
+    private int _subsetSize = 0;
+    private String _subsetClientId;
+    private PayloadDecoder<?> _payloadDecoder;
     private PartitionFilter _partitionFilter = new IdentityPartitionFilter();
     private PartitionContextSupplier _partitionContextSupplier = new EmptyPartitionContextSupplier();
     private LoadBalanceAlgorithm _loadBalanceAlgorithm = new RandomAlgorithm();
@@ -54,6 +78,11 @@ public class ServicePoolBuilder<S> {
      * may be specified.  The service pool will use the first source to return a non-null instance of
      * {@link HostDiscovery} for the service name provided by the {@link ServiceFactory#getServiceName()} method of
      * the factory configured by {@link #withServiceFactory}.
+     * <p>
+     * The service pool closes the {@code HostDiscovery} it gets from one of this library's sources, ex.
+     * {@link ZooKeeperHostDiscoverySource} or {@link SharedHostDiscoverySource}, when the pool is closed.  Wrap a
+     * source in a {@code SharedHostDiscoverySource} for several pools of the same service to share one.  A
+     * {@code HostDiscovery} from any other source is left open, and the caller remains responsible for closing it.
      *
      * @param hostDiscoverySource a host discovery source to use to find the {@link HostDiscovery} when constructing
      * the {@link ServicePool}
@@ -90,20 +119,52 @@ public class ServicePoolBuilder<S> {
      * pool will use ZooKeeper for host discovery unless a preceding call to
      * {@link #withHostDiscoverySource(HostDiscoverySource)} provides a non-null instance of {@code HostDiscovery}.
      * <p>
+     * Pools of the same service built with the same connection share one ZooKeeper watch and one set of end points.
+     * <p>
      * Once this method is called, any subsequent calls to host discovery-related methods on this builder instance are
      * ignored.
      *
      * @param connection the ZooKeeper connection to use for host discovery
      * @return this
      */
-    public ServicePoolBuilder<S> withZooKeeperHostDiscovery(final ZooKeeperConnection connection) {
+    public ServicePoolBuilder<S> withZooKeeperHostDiscovery(ZooKeeperConnection connection) {
         checkNotNull(connection);
-        return withHostDiscoverySource(new HostDiscoverySource() {
-            @Override
-            public HostDiscovery forService(String serviceName) {
-                return new ZooKeeperHostDiscovery(connection, serviceName);
-            }
-        });
+        return withHostDiscoverySource(getZooKeeperHostDiscoverySource(connection, null));
+    }
+
+    /**
+     * Adds a {@link ZooKeeperConnection} instance to the builder that will be used for host discovery, like
+     * {@link #withZooKeeperHostDiscovery(ZooKeeperConnection)}, and keeps a copy of the discovered end points in the
+     * specified directory.  On startup the saved end points are used right away, so the pool can serve traffic before
+     * ZooKeeper answers or while ZooKeeper is unavailable.  They are replaced by the live end points once ZooKeeper
+     * answers.  Pools of the same service built with the same connection and directory share discovery.
+     * <p>
+     * Once this method is called, any subsequent calls to host discovery-related methods on this builder instance are
+     * ignored.
+     *
+     * @param connection        the ZooKeeper connection to use for host discovery
+     * @param snapshotDirectory the directory to keep a snapshot file per service in
+     * @return this
+     */
+    public ServicePoolBuilder<S> withZooKeeperHostDiscovery(ZooKeeperConnection connection, File snapshotDirectory) {
+        checkNotNull(connection);
+        checkNotNull(snapshotDirectory);
+        return withHostDiscoverySource(getZooKeeperHostDiscoverySource(connection, snapshotDirectory));
+    }
+
+    /** Returns the source shared by every pool that uses the same connection and snapshot directory. */
+    @VisibleForTesting
+    static synchronized SharedHostDiscoverySource getZooKeeperHostDiscoverySource(ZooKeeperConnection connection,
+                                                                                  File snapshotDirectory) {
+        List<Object> key = Arrays.<Object>asList(connection, snapshotDirectory);
+        SharedHostDiscoverySource source = ZOO_KEEPER_SOURCES.get(key);
+        if (source == null) {
+            source = new SharedHostDiscoverySource((snapshotDirectory != null)
+                    ? new ZooKeeperHostDiscoverySource(connection, snapshotDirectory)
+                    : new ZooKeeperHostDiscoverySource(connection));
+            ZOO_KEEPER_SOURCES.put(key, source);
+        }
+        return source;
     }
 
     /**
@@ -163,6 +224,125 @@ public class ServicePoolBuilder<S> {
         return this;
     }
 
+    /**
+     * Limits the service instances cached by the built {@link ServicePool} by a budget shared with other pools, on top
+     * of the limits in its {@link ServiceCachingPolicy}.
+     * <p/>
+     * Specifying a cache budget is optional.  If one isn't specified then the pool is only limited by its own caching
+     * policy.
+     *
+     * @param budget                      The {@link ServiceCacheBudget} to share
+     * @param numReservedServiceInstances The part of the budget that is always available to the built pool, no matter
+     *                                    how many instances other pools hold
+     * @return this
+     */
+    public ServicePoolBuilder<S> withCacheBudget(ServiceCacheBudget budget, int numReservedServiceInstances) {
+        checkNotNull(budget);
+        checkArgument(numReservedServiceInstances >= 0);
+        checkArgument(numReservedServiceInstances <= budget.getMaxNumServiceInstances());
+
+        _cacheBudget = budget;
+        _numReservedServiceInstances = numReservedServiceInstances;
+        return this;
+    }
+
+    /**
+     * Enables outlier detection and/or panic mode in the built {@link ServicePool}.
+     * <p/>
+     * Specifying an outlier detection policy is optional.  If one isn't specified then end points are only removed from
+     * rotation when a request to them fails, and the pool fails requests once every end point is bad.
+     *
+     * @param policy The {@link OutlierDetectionPolicy} to use
+     * @return this
+     */
+    public ServicePoolBuilder<S> withOutlierDetectionPolicy(OutlierDetectionPolicy policy) {
+        _outlierDetectionPolicy = checkNotNull(policy);
+        return this;
+    }
+
+    /**
+     * Adds a {@link HealthCheckPolicy} to control how many health checks the built {@link ServicePool} runs at once
+     * and how long each of them may take.
+     * <p/>
+     * Specifying a health check policy is optional.  If one isn't specified then
+     * {@link HealthCheckPolicyBuilder#DEFAULT} is used.
+     *
+     * @param policy The {@link HealthCheckPolicy} to use
+     * @return this
+     */
+    public ServicePoolBuilder<S> withHealthCheckPolicy(HealthCheckPolicy policy) {
+        _healthCheckPolicy = checkNotNull(policy);
+        return this;
+    }
+
+    /**
+     * Ramps up the traffic sent to end points that were just discovered or just returned to rotation, so that they
+     * can warm up before taking their full share.  An end point starts out receiving a small fraction of its share
+     * and reaches its full share at the end of the window.
+     * <p/>
+     * Specifying a slow start window is optional.  If one isn't specified then end points take their full share of
+     * traffic right away.
+     *
+     * @param window The duration of the ramp up.
+     * @param unit   The unit of time {@code window} is in.
+     * @return this
+     */
+    public ServicePoolBuilder<S> withSlowStart(long window, TimeUnit unit) {
+        checkArgument(window >= 0);
+        checkNotNull(unit);
+
+        _slowStartWindowMillis = unit.toMillis(window);
+        return this;
+    }
+
+    /**
+     * Limits the pool to a subset of the end points of the service, so that a client of a large service only connects
+     * to some of its end points.  Each client picks its own subset from a hash of its ID, which keeps the subset
+     * stable as end points come and go and spreads clients evenly across the end points.
+     * <p/>
+     * Specifying a subset is optional.  If one isn't specified then every end point is used.  The client is identified
+     * by the name of the running JVM, which is unique per process on a host.
+     *
+     * @param size The number of end points to use.
+     * @return this
+     */
+    public ServicePoolBuilder<S> withSubsetting(int size) {
+        return withSubsetting(size, ManagementFactory.getRuntimeMXBean().getName());
+    }
+
+    /**
+     * Limits the pool to a subset of the end points of the service, see {@link #withSubsetting(int)}.
+     *
+     * @param size     The number of end points to use.
+     * @param clientId Identifies this client.  It should be different for every client of the service, and a client
+     *                 that keeps it across restarts keeps its subset.
+     * @return this
+     */
+    public ServicePoolBuilder<S> withSubsetting(int size, String clientId) {
+        checkArgument(size > 0);
+        checkNotNull(clientId);
+
+        _subsetSize = size;
+        _subsetClientId = clientId;
+        return this;
+    }
+
+    /**
+     * Decodes the payload of each end point once, when it's discovered, instead of leaving every partition filter,
+     * load balance algorithm and service factory to parse {@link com.bazaarvoice.soa.ServiceEndPoint#getPayload()}
+     * on every request.  The decoded payload of the end points the pool hands out is available from
+     * {@link com.bazaarvoice.soa.ServiceEndPoints#getDecodedPayload}.
+     * <p/>
+     * Specifying a payload decoder is optional.  If one isn't specified then end points have no decoded payload.
+     *
+     * @param decoder The {@link PayloadDecoder} to use.
+     * @return this
+     */
+    public ServicePoolBuilder<S> withPayloadDecoder(PayloadDecoder<?> decoder) {
+        _payloadDecoder = checkNotNull(decoder);
+        return this;
+    }
+
     /**
      * Uses the specified partition filter on every service pool operation to narrow down the set of end points that
      * may be used to service a particular request.
@@ -269,7 +449,18 @@ public class ServicePoolBuilder<S> {
     ServicePool<S> buildInternal() {
         checkNotNull(_serviceFactory);
 
-        HostDiscovery hostDiscovery = findHostDiscovery(_serviceName);
+        HostDiscovery hostDiscovery = null;
+        boolean closeHostDiscoveryOnClose = false;
+        for (HostDiscoverySource source : _hostDiscoverySources) {
+            hostDiscovery = source.forService(_serviceName);
+            if (hostDiscovery != null) {
+                closeHostDiscoveryOnClose = isLibrarySource(source);
+                break;
+            }
+        }
+        if (hostDiscovery == null) {
+            throw new IllegalStateException(format("No HostDiscovery found for service: %s", _serviceName));
+        }
 
         if (_cachingPolicy == null) {
             _cachingPolicy = ServiceCachingPolicyBuilder.NO_CACHING;
@@ -284,17 +475,22 @@ public class ServicePoolBuilder<S> {
             _healthCheckExecutor = Executors.newScheduledThreadPool(DEFAULT_NUM_HEALTH_CHECK_THREADS, threadFactory);
         }
 
-        return new ServicePool<S>(Ticker.systemTicker(), hostDiscovery, _serviceFactory, _cachingPolicy,
-                _partitionFilter, _loadBalanceAlgorithm, _healthCheckExecutor, shutdownHealthCheckExecutorOnClose);
+        EndPointSubset subset = new EndPointSubset(Strings.nullToEmpty(_subsetClientId), _subsetSize);
+
+        return new ServicePool<S>(Ticker.systemTicker(), hostDiscovery, closeHostDiscoveryOnClose, _serviceFactory,
+                _cachingPolicy, _cacheBudget, _numReservedServiceInstances, _outlierDetectionPolicy,
+                _healthCheckPolicy, _slowStartWindowMillis, subset, _payloadDecoder, _partitionFilter,
+                _loadBalanceAlgorithm, _healthCheckExecutor, shutdownHealthCheckExecutorOnClose);
     }
 
-    private HostDiscovery findHostDiscovery(String serviceName) {
-        for (HostDiscoverySource source : _hostDiscoverySources) {
-            HostDiscovery hostDiscovery = source.forService(serviceName);
-            if (hostDiscovery != null) {
-                return hostDiscovery;
-            }
-        }
-        throw new IllegalStateException(format("No HostDiscovery found for service: %s", serviceName));
+    /**
+     * Whether a source is one of this library's, which hand out a new {@code HostDiscovery} or a lease on a shared one
+     * for every request that nobody but the pool can close.  Other sources may return an instance their owner still
+     * uses, so the pool leaves those open.
+     */
+    private static boolean isLibrarySource(HostDiscoverySource source) {
+        return source instanceof ZooKeeperHostDiscoverySource
+                || source instanceof SharedHostDiscoverySource
+                || source instanceof ConfiguredFixedHostDiscoverySource;
     }
 }
\ No newline at end of file
@@ -0,0 +1,110 @@
+package com.bazaarvoice.soa.pool;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Ramps up the share of traffic sent to end points that have just joined a {@link ServicePool} or just returned to
+ * rotation, giving them a chance to warm up before taking their full share.
+ * <p/>
+ * An end point's weight grows linearly from {@link #INITIAL_WEIGHT} to 1 over the slow start window.  Rather than
+ * requiring weight support from the {@link com.bazaarvoice.soa.LoadBalanceAlgorithm}, each end point that is still
+ * warming up is only offered to the load balancer with a probability equal to its weight.
+ */
+class SlowStart {
+    @VisibleForTesting
+    static final double INITIAL_WEIGHT = 0.1;
+
+    private final Ticker _ticker;
+    private final long _windowNanos;
+    private final Random _random;
+    private final Map<ServiceEndPoint, Long> _startTimes = Maps.newConcurrentMap();
+
+    SlowStart(Ticker ticker, long window, TimeUnit unit) {
+        this(ticker, window, unit, new Random());
+    }
+
+    @VisibleForTesting
+    SlowStart(Ticker ticker, long window, TimeUnit unit, Random random) {
+        checkArgument(window >= 0);
+
+        _ticker = checkNotNull(ticker);
+        _windowNanos = unit.toNanos(window);
+        _random = checkNotNull(random);
+    }
+
+    /** Starts (or restarts) the slow start window of an end point. */
+    void start(ServiceEndPoint endPoint) {
+        if (_windowNanos > 0) {
+            expire();
+            _startTimes.put(endPoint, _ticker.read());
+        }
+    }
+
+    void forget(ServiceEndPoint endPoint) {
+        _startTimes.remove(endPoint);
+    }
+
+    int getNumWarmingEndPoints() {
+        expire();
+        return _startTimes.size();
+    }
+
+    /**
+     * Drops the end points whose window has ended.  End points are otherwise only dropped once the load balancer is
+     * offered them again, which may never happen to an end point that isn't chosen.
+     */
+    private void expire() {
+        long now = _ticker.read();
+        for (Map.Entry<ServiceEndPoint, Long> entry : _startTimes.entrySet()) {
+            if (now - entry.getValue() >= _windowNanos) {
+                _startTimes.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /** Returns the current weight of an end point, between {@link #INITIAL_WEIGHT} and 1. */
+    double getWeight(ServiceEndPoint endPoint) {
+        Long startTime = _startTimes.get(endPoint);
+        if (startTime == null) {
+            return 1;
+        }
+
+        long elapsedNanos = _ticker.read() - startTime;
+        if (elapsedNanos >= _windowNanos) {
+            _startTimes.remove(endPoint, startTime);
+            return 1;
+        }
+        return INITIAL_WEIGHT + (1 - INITIAL_WEIGHT) * Math.max(elapsedNanos, 0) / _windowNanos;
+    }
+
+    /**
+     * Randomly leaves out end points that are still warming up, in proportion to how far they are from full weight.
+     * Never leaves out every end point.
+     */
+    Iterable<ServiceEndPoint> filter(Iterable<ServiceEndPoint> endPoints) {
+        if (_startTimes.isEmpty()) {
+            return endPoints;
+        }
+
+        List<ServiceEndPoint> filtered = Lists.newArrayList();
+        for (ServiceEndPoint endPoint : endPoints) {
+            double weight = getWeight(endPoint);
+            if (weight >= 1 || _random.nextDouble() < weight) {
+                filtered.add(endPoint);
+            }
+        }
+        return filtered.isEmpty() ? endPoints : filtered;
+    }
+}
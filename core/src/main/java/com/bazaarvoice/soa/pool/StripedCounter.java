@@ -0,0 +1,35 @@
+package com.bazaarvoice.soa.pool;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads concurrent increments across several cells so that threads updating it at the same time
+ * rarely contend on the same memory.  Reads sum the cells, so they are more expensive than writes and aren't an atomic
+ * snapshot while writes are in progress, which is fine for statistics.
+ */
+class StripedCounter {
+    /** A power of two, at least twice the number of processors. */
+    private static final int NUM_STRIPES =
+            Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+
+    /** Cells are spaced a cache line (8 longs) apart to avoid false sharing between stripes. */
+    private static final int CELL_SPACING = 8;
+
+    private final AtomicLongArray _cells = new AtomicLongArray(NUM_STRIPES * CELL_SPACING);
+
+    void increment() {
+        _cells.incrementAndGet(cellIndex());
+    }
+
+    long get() {
+        long sum = 0;
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            sum += _cells.get(i * CELL_SPACING);
+        }
+        return sum;
+    }
+
+    private int cellIndex() {
+        return (int) (Thread.currentThread().getId() & (NUM_STRIPES - 1)) * CELL_SPACING;
+    }
+}
@@ -0,0 +1,126 @@
+package com.bazaarvoice.soa.pool;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A hashed timing wheel that tracks a deadline for each of a set of items.
+ * <p/>
+ * Items are hashed into buckets by their deadline, so scheduling and cancelling are constant time and advancing the
+ * wheel only looks at the buckets whose ticks have passed.  This keeps the cost of tracking many deadlines low, at the
+ * price of deadlines only being noticed at tick granularity.  The wheel doesn't own a thread; the caller is expected to
+ * call {@link #advance} periodically, ideally about once per tick.
+ */
+class TimingWheel<T> {
+    private final Ticker _ticker;
+    private final long _tickNanos;
+    private final long _startNanos;
+    private final List<Set<T>> _buckets;
+    private final Map<T, Entry> _entries = Maps.newHashMap();
+    private long _lastTick;
+
+    TimingWheel(Ticker ticker, long tickDuration, TimeUnit unit, int numBuckets) {
+        checkArgument(tickDuration > 0);
+        checkArgument(numBuckets > 0);
+
+        _ticker = checkNotNull(ticker);
+        _tickNanos = unit.toNanos(tickDuration);
+        _buckets = Lists.newArrayListWithCapacity(numBuckets);
+        for (int i = 0; i < numBuckets; i++) {
+            _buckets.add(Sets.<T>newHashSet());
+        }
+        _startNanos = _ticker.read();
+        _lastTick = 0;
+    }
+
+    /**
+     * Schedules an item to expire after the given delay, replacing any deadline that the item already had.
+     */
+    synchronized void schedule(T item, long delay, TimeUnit unit) {
+        checkNotNull(item);
+
+        cancel(item);
+
+        long deadline = _ticker.read() + unit.toNanos(delay);
+        // Never hash an item into a tick that has already been processed, it wouldn't be seen until the wheel wraps.
+        long tick = Math.max(toTick(deadline), _lastTick);
+        Entry entry = new Entry(deadline, (int) (tick % _buckets.size()));
+        _entries.put(item, entry);
+        _buckets.get(entry._bucket).add(item);
+    }
+
+    /**
+     * Removes an item from the wheel.
+     *
+     * @return {@code true} if the item was scheduled, {@code false} otherwise.
+     */
+    synchronized boolean cancel(T item) {
+        Entry entry = _entries.remove(item);
+        if (entry == null) {
+            return false;
+        }
+        _buckets.get(entry._bucket).remove(item);
+        return true;
+    }
+
+    synchronized boolean isScheduled(T item) {
+        return _entries.containsKey(item);
+    }
+
+    synchronized int size() {
+        return _entries.size();
+    }
+
+    /**
+     * Moves the wheel up to the current time, removing and returning every item whose deadline has passed.
+     */
+    synchronized List<T> advance() {
+        long now = _ticker.read();
+        long currentTick = toTick(now);
+
+        // The last processed tick is visited again because items may have been scheduled into it after it was
+        // processed.  If more than a full rotation has passed every bucket only needs to be visited once.
+        long firstTick = Math.max(_lastTick, currentTick - _buckets.size() + 1);
+
+        List<T> expired = Lists.newArrayList();
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            Iterator<T> iter = _buckets.get((int) (tick % _buckets.size())).iterator();
+            while (iter.hasNext()) {
+                T item = iter.next();
+                if (_entries.get(item)._deadline - now <= 0) {
+                    iter.remove();
+                    _entries.remove(item);
+                    expired.add(item);
+                }
+            }
+        }
+        _lastTick = currentTick;
+        return expired;
+    }
+
+    /** Ticks are counted from the creation of the wheel since ticker values may be negative. */
+    private long toTick(long nanos) {
+        return Math.max(nanos - _startNanos, 0) / _tickNanos;
+    }
+
+    private static final class Entry {
+        final long _deadline;
+        final int _bucket;
+
+        Entry(long deadline, int bucket) {
+            _deadline = deadline;
+            _bucket = bucket;
+        }
+    }
+}
@@ -68,6 +68,35 @@ public class ServiceEndPointBuilderTest {
         assertEquals("payload", endPoint.getPayload());
     }
 
+    @Test
+    public void testNoZone() {
+        ServiceEndPoint endPoint = new ServiceEndPointBuilder()
+                .withServiceName("service")
+                .withId("id")
+                .build();
+        assertNull(ServiceEndPoints.getZone(endPoint));
+    }
+
+    @Test
+    public void testZone() {
+        ServiceEndPoint endPoint = new ServiceEndPointBuilder()
+                .withServiceName("service")
+                .withId("id")
+                .withZone("us-east-1a")
+                .build();
+        assertEquals("us-east-1a", ServiceEndPoints.getZone(endPoint));
+    }
+
+    @Test
+    public void testZoneKeptWithDecodedPayload() {
+        ServiceEndPoint endPoint = new ServiceEndPointBuilder()
+                .withServiceName("service")
+                .withId("id")
+                .withZone("us-east-1a")
+                .build();
+        assertEquals("us-east-1a", ServiceEndPoints.getZone(ServiceEndPoints.withDecodedPayload(endPoint, "payload")));
+    }
+
     @Test
     public void testInvalidServiceNames() {
         String[] invalidNames = new String[] {"Foo$Bar", "%", "a@b", "!", null, ""};
@@ -103,4 +132,22 @@ public class ServiceEndPointBuilderTest {
             }
         }
     }
+
+    @Test
+    public void testInvalidZones() {
+        String[] invalidZones = new String[] {"Foo$Bar", "%", "a@b", "!", ""};
+
+        for (String zone : invalidZones) {
+            try {
+                new ServiceEndPointBuilder().withZone(zone);
+                fail(zone + " was allowed");
+            } catch (AssertionError e) {
+                throw e;
+            } catch (IllegalArgumentException e) {
+                // Expected
+            } catch (Throwable t) {
+                fail(zone + " threw " + t.getMessage());
+            }
+        }
+    }
 }
@@ -53,6 +53,17 @@ public class ServiceEndPointTest {
         assertNotEquals(endPoint1, endPoint2);
     }
 
+    @Test
+    public void testEqualsZone() {
+        ServiceEndPoint endPoint1 = endPoint("Foo", "server:80");
+        ServiceEndPoint endPoint2 = new ServiceEndPointBuilder()
+                .withServiceName("Foo")
+                .withId("server:80")
+                .withZone("us-east-1a")
+                .build();
+        assertNotEquals(endPoint1, endPoint2);
+    }
+
     @Test
     public void testHashCodeEquals() {
         ServiceEndPoint endPoint1 = endPoint("Foo", "server:80");
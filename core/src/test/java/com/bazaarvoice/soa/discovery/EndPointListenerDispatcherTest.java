@@ -0,0 +1,137 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.HostDiscovery.EndPointListener;
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.yammer.metrics.core.Timer;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class EndPointListenerDispatcherTest {
+    private static final ServiceEndPoint FOO = endPoint("server:8080");
+    private static final ServiceEndPoint BAR = endPoint("server:8081");
+
+    private final List<Runnable> _tasks = Lists.newArrayList();
+    private Ticker _ticker;
+    private Timer _queueLag;
+    private EndPointListenerDispatcher _dispatcher;
+
+    @Before
+    public void setup() {
+        _ticker = mock(Ticker.class);
+        _queueLag = mock(Timer.class);
+        _dispatcher = new EndPointListenerDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                _tasks.add(task);
+            }
+        }, _ticker, _queueLag);
+    }
+
+    @Test
+    public void testNotCalledOnFiringThread() {
+        EndPointListener listener = mock(EndPointListener.class);
+        _dispatcher.addListener(listener);
+
+        _dispatcher.fireAdded(FOO);
+        verifyZeroInteractions(listener);
+        assertEquals(1, _dispatcher.getNumQueuedEvents());
+
+        runTasks();
+        verify(listener).onEndPointAdded(FOO);
+        assertEquals(0, _dispatcher.getNumQueuedEvents());
+    }
+
+    @Test
+    public void testEventsDeliveredInOrder() {
+        EndPointListener listener = mock(EndPointListener.class);
+        _dispatcher.addListener(listener);
+
+        _dispatcher.fireAdded(FOO);
+        _dispatcher.fireAdded(BAR);
+        _dispatcher.fireRemoved(FOO);
+        assertEquals(1, _tasks.size());  // One drain task per listener, not per event.
+        runTasks();
+
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).onEndPointAdded(FOO);
+        inOrder.verify(listener).onEndPointAdded(BAR);
+        inOrder.verify(listener).onEndPointRemoved(FOO);
+    }
+
+    @Test
+    public void testListenersQueuedSeparately() {
+        _dispatcher.addListener(mock(EndPointListener.class));
+        _dispatcher.addListener(mock(EndPointListener.class));
+
+        _dispatcher.fireAdded(FOO);
+        assertEquals(2, _tasks.size());
+        assertEquals(2, _dispatcher.getNumQueuedEvents());
+    }
+
+    @Test
+    public void testRemovedListenerDropsQueuedEvents() {
+        EndPointListener listener = mock(EndPointListener.class);
+        _dispatcher.addListener(listener);
+
+        _dispatcher.fireAdded(FOO);
+        _dispatcher.removeListener(listener);
+        runTasks();
+
+        verifyZeroInteractions(listener);
+        assertEquals(0, _dispatcher.getNumQueuedEvents());
+    }
+
+    @Test
+    public void testFailingListenerKeepsReceivingEvents() {
+        EndPointListener listener = mock(EndPointListener.class);
+        doThrow(new RuntimeException()).when(listener).onEndPointAdded(any(ServiceEndPoint.class));
+        _dispatcher.addListener(listener);
+
+        _dispatcher.fireAdded(FOO);
+        _dispatcher.fireRemoved(FOO);
+        runTasks();
+
+        verify(listener).onEndPointRemoved(FOO);
+    }
+
+    @Test
+    public void testQueueLagRecorded() {
+        _dispatcher.addListener(mock(EndPointListener.class));
+        when(_ticker.read()).thenReturn(100L, 350L);
+
+        _dispatcher.fireAdded(FOO);
+        runTasks();
+
+        verify(_queueLag).update(250, TimeUnit.NANOSECONDS);
+    }
+
+    private void runTasks() {
+        while (!_tasks.isEmpty()) {
+            _tasks.remove(0).run();
+        }
+    }
+
+    private static ServiceEndPoint endPoint(String id) {
+        return new ServiceEndPointBuilder()
+                .withServiceName("Foo")
+                .withId(id)
+                .build();
+    }
+}
@@ -0,0 +1,143 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.bazaarvoice.soa.ServiceEndPoints;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EndPointSnapshotFileTest {
+    private static final ServiceEndPoint FOO = new ServiceEndPointBuilder()
+            .withServiceName("Foo")
+            .withId("server:8080")
+            .build();
+    private static final ServiceEndPoint BAR = new ServiceEndPointBuilder()
+            .withServiceName("Foo")
+            .withId("server:8081")
+            .withPayload("{\"url\":\"http://server:8081/\"}")
+            .withZone("us-east-1a")
+            .build();
+
+    /** The header of the current format, see {@link EndPointSnapshotFile}. */
+    private static final int MAGIC = 0x4F535302;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private File _file;
+    private EndPointSnapshotFile _snapshotFile;
+
+    @Before
+    public void setup() {
+        _file = new File(_folder.getRoot(), "Foo.endpoints");
+        _snapshotFile = new EndPointSnapshotFile(_file, "Foo");
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullFile() {
+        new EndPointSnapshotFile(null, "Foo");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyServiceName() {
+        new EndPointSnapshotFile(_file, "");
+    }
+
+    @Test
+    public void testMissingFile() {
+        assertTrue(_snapshotFile.read().isEmpty());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        _snapshotFile.write(ImmutableList.of(FOO, BAR));
+
+        ImmutableSet<ServiceEndPoint> endPoints = _snapshotFile.read();
+        assertEquals(ImmutableSet.of(FOO, BAR), endPoints);
+        assertNull(endPoints.asList().get(0).getPayload());
+        assertEquals(BAR.getPayload(), endPoints.asList().get(1).getPayload());
+        assertNull(ServiceEndPoints.getZone(endPoints.asList().get(0)));
+        assertEquals("us-east-1a", ServiceEndPoints.getZone(endPoints.asList().get(1)));
+    }
+
+    @Test
+    public void testWriteReplacesFile() throws Exception {
+        _snapshotFile.write(ImmutableList.of(FOO, BAR));
+        _snapshotFile.write(ImmutableList.of(BAR));
+
+        assertEquals(ImmutableSet.of(BAR), _snapshotFile.read());
+        assertArrayEquals(new String[] {"Foo.endpoints"}, _folder.getRoot().list());
+    }
+
+    @Test
+    public void testWriteCreatesDirectory() throws Exception {
+        EndPointSnapshotFile snapshotFile = new EndPointSnapshotFile(
+                new File(_folder.getRoot(), "snapshots/Foo.endpoints"), "Foo");
+        snapshotFile.write(ImmutableList.of(FOO));
+
+        assertEquals(ImmutableSet.of(FOO), snapshotFile.read());
+    }
+
+    @Test
+    public void testCorruptFile() throws Exception {
+        Files.write("not a snapshot", _file, Charsets.UTF_8);
+
+        assertTrue(_snapshotFile.read().isEmpty());
+    }
+
+    @Test
+    public void testTruncatedFile() throws Exception {
+        _snapshotFile.write(ImmutableList.of(FOO, BAR));
+        byte[] bytes = Files.toByteArray(_file);
+        Files.write(Arrays.copyOf(bytes, bytes.length - 10), _file);
+
+        assertTrue(_snapshotFile.read().isEmpty());
+    }
+
+    @Test
+    public void testNegativeStringLength() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(_file));
+        out.writeInt(MAGIC);
+        out.writeInt(-1);
+        out.close();
+
+        assertTrue(_snapshotFile.read().isEmpty());
+    }
+
+    @Test
+    public void testStringLengthPastEndOfFile() throws Exception {
+        // Would need a 2GB buffer if the length were believed.
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(_file));
+        out.writeInt(MAGIC);
+        out.writeInt(3);
+        out.write("Foo".getBytes(Charsets.UTF_8));
+        out.writeInt(1);
+        out.writeInt(Integer.MAX_VALUE - 8);
+        out.close();
+
+        assertTrue(_snapshotFile.read().isEmpty());
+    }
+
+    @Test
+    public void testOtherService() throws Exception {
+        _snapshotFile.write(ImmutableList.of(FOO));
+
+        assertTrue(new EndPointSnapshotFile(_file, "Bar").read().isEmpty());
+    }
+}
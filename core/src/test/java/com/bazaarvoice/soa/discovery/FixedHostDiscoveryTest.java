@@ -2,6 +2,7 @@ package com.bazaarvoice.soa.discovery;
 
 import com.bazaarvoice.soa.ServiceEndPoint;
 import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
 import org.junit.After;
@@ -12,7 +13,9 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class FixedHostDiscoveryTest {
@@ -69,6 +72,14 @@ public class FixedHostDiscoveryTest {
         assertFalse(_discovery.contains(BAR));
     }
 
+    @Test
+    public void testSnapshotNeverChanges() {
+        HostDiscoverySnapshot snapshot = _discovery.getSnapshot();
+
+        assertEquals(ImmutableSet.of(FOO), snapshot.getEndPoints());
+        assertSame(snapshot, _discovery.getSnapshot());
+    }
+
     @Test
     public void testAddListener() {
         // Verify it doesn't blow up
@@ -0,0 +1,146 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.HostDiscovery;
+import com.bazaarvoice.soa.HostDiscoverySource;
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SharedHostDiscoverySourceTest {
+    private HostDiscoverySource _source;
+    private SnapshotHostDiscovery _hostDiscovery;
+    private SharedHostDiscoverySource _shared;
+
+    @Before
+    public void setup() {
+        _source = mock(HostDiscoverySource.class);
+        _hostDiscovery = mock(SnapshotHostDiscovery.class);
+        when(_source.forService("Foo")).thenReturn(_hostDiscovery);
+        _shared = new SharedHostDiscoverySource(_source);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullSource() {
+        new SharedHostDiscoverySource(null);
+    }
+
+    @Test
+    public void testUnknownService() {
+        assertNull(_shared.forService("Bar"));
+        assertEquals(0, _shared.getNumReferences("Bar"));
+    }
+
+    @Test
+    public void testDiscoveryShared() {
+        HostDiscovery first = _shared.forService("Foo");
+        HostDiscovery second = _shared.forService("Foo");
+
+        assertNotSame(first, second);
+        verify(_source, times(1)).forService("Foo");
+        assertEquals(2, _shared.getNumReferences("Foo"));
+    }
+
+    @Test
+    public void testDelegates() {
+        ServiceEndPoint endPoint = mock(ServiceEndPoint.class);
+        HostDiscoverySnapshot snapshot = new HostDiscoverySnapshot(3, ImmutableList.of(endPoint));
+        when(_hostDiscovery.getHosts()).thenReturn(ImmutableList.of(endPoint));
+        when(_hostDiscovery.contains(endPoint)).thenReturn(true);
+        when(_hostDiscovery.getSnapshot()).thenReturn(snapshot);
+
+        HostDiscovery hostDiscovery = _shared.forService("Foo");
+        assertEquals(ImmutableList.of(endPoint), hostDiscovery.getHosts());
+        assertTrue(hostDiscovery.contains(endPoint));
+        assertSame(snapshot, ((SnapshotHostDiscovery) hostDiscovery).getSnapshot());
+    }
+
+    @Test
+    public void testNotSnapshotDiscovery() {
+        when(_source.forService("Bar")).thenReturn(mock(HostDiscovery.class));
+
+        assertFalse(_shared.forService("Bar") instanceof SnapshotHostDiscovery);
+    }
+
+    @Test
+    public void testClosedWhenLastReferenceClosed() throws Exception {
+        HostDiscovery first = _shared.forService("Foo");
+        HostDiscovery second = _shared.forService("Foo");
+
+        first.close();
+        verify(_hostDiscovery, never()).close();
+
+        second.close();
+        verify(_hostDiscovery).close();
+        assertEquals(0, _shared.getNumReferences("Foo"));
+    }
+
+    @Test
+    public void testCloseTwiceReleasesOnce() throws Exception {
+        HostDiscovery first = _shared.forService("Foo");
+        _shared.forService("Foo");
+
+        first.close();
+        first.close();
+        verify(_hostDiscovery, never()).close();
+        assertEquals(1, _shared.getNumReferences("Foo"));
+    }
+
+    @Test
+    public void testReopenedAfterClose() throws Exception {
+        _shared.forService("Foo").close();
+        _shared.forService("Foo");
+
+        verify(_source, times(2)).forService("Foo");
+    }
+
+    @Test
+    public void testListenersRemovedOnClose() throws Exception {
+        HostDiscovery.EndPointListener listener = mock(HostDiscovery.EndPointListener.class);
+        TopologyListener topologyListener = mock(TopologyListener.class);
+        SnapshotHostDiscovery hostDiscovery = (SnapshotHostDiscovery) _shared.forService("Foo");
+        _shared.forService("Foo");
+        hostDiscovery.addListener(listener);
+        hostDiscovery.addTopologyListener(topologyListener);
+
+        hostDiscovery.close();
+        verify(_hostDiscovery).removeListener(listener);
+        verify(_hostDiscovery).removeTopologyListener(topologyListener);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddListenerAfterClose() throws Exception {
+        HostDiscovery hostDiscovery = _shared.forService("Foo");
+        hostDiscovery.close();
+
+        hostDiscovery.addListener(mock(HostDiscovery.EndPointListener.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddTopologyListenerAfterClose() throws Exception {
+        SnapshotHostDiscovery hostDiscovery = (SnapshotHostDiscovery) _shared.forService("Foo");
+        hostDiscovery.close();
+
+        hostDiscovery.addTopologyListener(mock(TopologyListener.class));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetHostsAfterClose() throws Exception {
+        HostDiscovery hostDiscovery = _shared.forService("Foo");
+        hostDiscovery.close();
+
+        hostDiscovery.getHosts();
+    }
+}
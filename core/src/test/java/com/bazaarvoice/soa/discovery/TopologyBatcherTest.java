@@ -0,0 +1,148 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class TopologyBatcherTest {
+    private static final ServiceEndPoint FOO = endPoint("server:8080");
+    private static final ServiceEndPoint BAR = endPoint("server:8081");
+
+    private HostDiscoverySnapshot _snapshot;
+    private ScheduledExecutorService _executor;
+    private TopologyListener _listener;
+    private TopologyBatcher _batcher;
+
+    @Before
+    public void setup() {
+        _snapshot = new HostDiscoverySnapshot(0, ImmutableList.<ServiceEndPoint>of());
+        _executor = mock(ScheduledExecutorService.class);
+        _listener = mock(TopologyListener.class);
+        _batcher = new TopologyBatcher(new Supplier<HostDiscoverySnapshot>() {
+            @Override
+            public HostDiscoverySnapshot get() {
+                return _snapshot;
+            }
+        }, _executor, MoreExecutors.sameThreadExecutor(), 100);
+        _batcher.addListener(_listener);
+    }
+
+    @Test
+    public void testChangesInWindowDeliveredTogether() {
+        change(_snapshot.plus(FOO));
+        change(_snapshot.plus(BAR));
+
+        verify(_executor, times(1)).schedule(any(Runnable.class), eq(100L), eq(TimeUnit.MILLISECONDS));
+        deliver();
+
+        TopologyDelta delta = captureDelta();
+        assertEquals(ImmutableSet.of(FOO, BAR), delta.getAdded());
+        assertEquals(_snapshot, delta.getSnapshot());
+    }
+
+    @Test
+    public void testNetChangeDelivered() {
+        change(_snapshot.plus(FOO));
+        change(_snapshot.minus(FOO));
+        deliver();
+
+        verify(_listener, never()).onTopologyChanged(any(TopologyDelta.class));
+    }
+
+    @Test
+    public void testDeltaIsSinceLastDelivery() {
+        change(_snapshot.plus(FOO));
+        deliver();
+        change(_snapshot.plus(BAR));
+        deliver();
+
+        ArgumentCaptor<TopologyDelta> delta = ArgumentCaptor.forClass(TopologyDelta.class);
+        verify(_listener, times(2)).onTopologyChanged(delta.capture());
+        assertEquals(ImmutableSet.of(BAR), delta.getAllValues().get(1).getAdded());
+    }
+
+    @Test
+    public void testFailingListenerDoesNotStopOthers() {
+        TopologyListener failing = mock(TopologyListener.class);
+        doThrow(new RuntimeException()).when(failing).onTopologyChanged(any(TopologyDelta.class));
+        _batcher.addListener(failing);
+
+        change(_snapshot.plus(FOO));
+        deliver();
+
+        captureDelta();
+    }
+
+    @Test
+    public void testListenerCalledOnItsOwnExecutor() {
+        Executor slowExecutor = mock(Executor.class);
+        TopologyListener slow = mock(TopologyListener.class);
+        _batcher.addListener(slow, slowExecutor);
+
+        change(_snapshot.plus(FOO));
+        deliver();
+
+        // The other listener isn't held up by the one whose executor hasn't run yet.
+        captureDelta();
+        verify(slow, never()).onTopologyChanged(any(TopologyDelta.class));
+
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        verify(slowExecutor).execute(drain.capture());
+        drain.getValue().run();
+        verify(slow).onTopologyChanged(any(TopologyDelta.class));
+    }
+
+    @Test
+    public void testNothingDeliveredAfterClose() {
+        change(_snapshot.plus(FOO));
+        _batcher.close();
+        deliver();
+
+        verify(_listener, never()).onTopologyChanged(any(TopologyDelta.class));
+    }
+
+    private void change(HostDiscoverySnapshot snapshot) {
+        _snapshot = snapshot;
+        _batcher.onChange();
+    }
+
+    private void deliver() {
+        ArgumentCaptor<Runnable> runnable = ArgumentCaptor.forClass(Runnable.class);
+        verify(_executor, atLeastOnce()).schedule(runnable.capture(), anyLong(), any(TimeUnit.class));
+        runnable.getValue().run();
+    }
+
+    private TopologyDelta captureDelta() {
+        ArgumentCaptor<TopologyDelta> delta = ArgumentCaptor.forClass(TopologyDelta.class);
+        verify(_listener).onTopologyChanged(delta.capture());
+        return delta.getValue();
+    }
+
+    private static ServiceEndPoint endPoint(String id) {
+        return new ServiceEndPointBuilder()
+                .withServiceName("Foo")
+                .withId(id)
+                .build();
+    }
+}
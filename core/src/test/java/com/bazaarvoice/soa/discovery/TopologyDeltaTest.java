@@ -0,0 +1,61 @@
+package com.bazaarvoice.soa.discovery;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TopologyDeltaTest {
+    private static final ServiceEndPoint FOO = endPoint("server:8080", null);
+    private static final ServiceEndPoint BAR = endPoint("server:8081", null);
+
+    @Test
+    public void testNoChange() {
+        HostDiscoverySnapshot snapshot = new HostDiscoverySnapshot(1, ImmutableList.of(FOO));
+
+        assertTrue(TopologyDelta.between(snapshot, snapshot).isEmpty());
+    }
+
+    @Test
+    public void testAddedAndRemoved() {
+        HostDiscoverySnapshot previous = new HostDiscoverySnapshot(1, ImmutableList.of(FOO));
+        HostDiscoverySnapshot current = new HostDiscoverySnapshot(2, ImmutableList.of(BAR));
+
+        TopologyDelta delta = TopologyDelta.between(previous, current);
+        assertEquals(ImmutableSet.of(BAR), delta.getAdded());
+        assertEquals(ImmutableSet.of(FOO), delta.getRemoved());
+        assertTrue(delta.getUpdated().isEmpty());
+        assertSame(current, delta.getSnapshot());
+    }
+
+    @Test
+    public void testAddedThenRemovedCancelsOut() {
+        HostDiscoverySnapshot previous = new HostDiscoverySnapshot(1, ImmutableList.of(FOO));
+
+        assertTrue(TopologyDelta.between(previous, previous.plus(BAR).minus(BAR)).isEmpty());
+    }
+
+    @Test
+    public void testUpdatedPayload() {
+        ServiceEndPoint updatedFoo = endPoint(FOO.getId(), "payload");
+        HostDiscoverySnapshot previous = new HostDiscoverySnapshot(1, ImmutableList.of(FOO, BAR));
+
+        TopologyDelta delta = TopologyDelta.between(previous, previous.replace(updatedFoo));
+        assertEquals(ImmutableSet.of(updatedFoo), delta.getAdded());
+        assertEquals(ImmutableSet.of(FOO), delta.getRemoved());
+        assertEquals(ImmutableSet.of(updatedFoo), delta.getUpdated());
+    }
+
+    private static ServiceEndPoint endPoint(String id, String payload) {
+        return new ServiceEndPointBuilder()
+                .withServiceName("Foo")
+                .withId(id)
+                .withPayload(payload)
+                .build();
+    }
+}
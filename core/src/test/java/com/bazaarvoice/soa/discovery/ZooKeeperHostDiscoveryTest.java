@@ -10,27 +10,42 @@ import com.bazaarvoice.zookeeper.recipes.discovery.NodeDataParser;
 import com.bazaarvoice.zookeeper.recipes.discovery.NodeListener;
 import com.bazaarvoice.zookeeper.recipes.discovery.ZooKeeperNodeDiscovery;
 import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -39,21 +54,44 @@ public class ZooKeeperHostDiscoveryTest {
             .withServiceName("Foo")
             .withId("server:8080")
             .build();
+    private static final ServiceEndPoint BAR = new ServiceEndPointBuilder()
+            .withServiceName("Foo")
+            .withId("server:8081")
+            .build();
 
     private ZooKeeperHostDiscovery _discovery;
     private NodeListener<ServiceEndPoint> _listener;
     private NodeDataParser<ServiceEndPoint> _parser;
+    private Ticker _ticker;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
 
-    @SuppressWarnings("unchecked")
     @Before
     public void setup() throws Exception {
+        _ticker = mock(Ticker.class);
+        _discovery = newDiscovery(null, null);
+    }
+
+    /** Creates a discovery and captures the parser and listener it gives to node discovery. */
+    @SuppressWarnings("unchecked")
+    private ZooKeeperHostDiscovery newDiscovery(ScheduledExecutorService executor, File snapshotFile) {
+        return newDiscovery(executor, snapshotFile, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private ZooKeeperHostDiscovery newDiscovery(ScheduledExecutorService executor, File snapshotFile,
+                                                boolean keepEndPointsOnSessionLoss) {
         ZooKeeperHostDiscovery.NodeDiscoveryFactory factory = mock(ZooKeeperHostDiscovery.NodeDiscoveryFactory.class);
         ZooKeeperNodeDiscovery<ServiceEndPoint> nodeDiscovery = mock(ZooKeeperNodeDiscovery.class);
         ZooKeeperConnection connection = mock(ZooKeeperConnection.class);
         when(factory.create(Matchers.<ZooKeeperConnection>any(ZooKeeperConnection.class), anyString(),
                 Matchers.<NodeDataParser<ServiceEndPoint>>any())).thenReturn(nodeDiscovery);
 
-        _discovery = new ZooKeeperHostDiscovery(factory, connection, FOO.getServiceName());
+        ZooKeeperHostDiscovery discovery =
+                new ZooKeeperHostDiscovery(factory, connection, FOO.getServiceName(), executor,
+                        MoreExecutors.sameThreadExecutor(), MoreExecutors.sameThreadExecutor(), _ticker, snapshotFile,
+                        keepEndPointsOnSessionLoss);
 
         // Capture the parser.
         ArgumentCaptor<NodeDataParser<ServiceEndPoint>> parserCaptor =
@@ -67,6 +105,7 @@ public class ZooKeeperHostDiscoveryTest {
                 (ArgumentCaptor) ArgumentCaptor.forClass(NodeListener.class);
         verify(nodeDiscovery).addListener(listenerCaptor.capture());
         _listener = listenerCaptor.getValue();
+        return discovery;
     }
 
     @After
@@ -195,6 +234,247 @@ public class ZooKeeperHostDiscoveryTest {
         assertTrue(Iterables.isEmpty(_discovery.getHosts()));
     }
 
+    @Test
+    public void testGenerationIncreasesOnChange() {
+        long generation = _discovery.getSnapshot().getGeneration();
+
+        addNode("path", FOO);
+        long addedGeneration = _discovery.getSnapshot().getGeneration();
+        assertTrue(addedGeneration > generation);
+
+        removeNode("path", FOO);
+        assertTrue(_discovery.getSnapshot().getGeneration() > addedGeneration);
+    }
+
+    @Test
+    public void testDuplicateEntryKeepsGeneration() {
+        addNode("path-one", FOO);
+        HostDiscoverySnapshot snapshot = _discovery.getSnapshot();
+
+        addNode("path-two", FOO);
+        removeNode("path-one", FOO);
+        assertSame(snapshot, _discovery.getSnapshot());
+    }
+
+    @Test
+    public void testSnapshotUnaffectedByLaterChanges() {
+        addNode("path", FOO);
+        HostDiscoverySnapshot snapshot = _discovery.getSnapshot();
+        Iterable<ServiceEndPoint> hosts = _discovery.getHosts();
+
+        removeNode("path", FOO);
+        assertEquals(ImmutableSet.of(FOO), snapshot.getEndPoints());
+        assertEquals(ImmutableList.of(FOO), ImmutableList.copyOf(hosts));
+        assertFalse(_discovery.contains(FOO));
+    }
+
+    @Test
+    public void testUpdatedPayloadReplacesEndPoint() {
+        ServiceEndPoint updatedFoo = new ServiceEndPointBuilder()
+                .withServiceName(FOO.getServiceName())
+                .withId(FOO.getId())
+                .withPayload("payload")
+                .build();
+        addNode("path", FOO);
+        long generation = _discovery.getSnapshot().getGeneration();
+
+        _listener.onNodeUpdated("path", updatedFoo);
+        HostDiscoverySnapshot snapshot = _discovery.getSnapshot();
+        assertTrue(snapshot.getGeneration() > generation);
+        assertEquals(ImmutableSet.of(updatedFoo), snapshot.getEndPoints());
+        assertTrue(_discovery.contains(updatedFoo));
+
+        removeNode("path", updatedFoo);
+        assertFalse(_discovery.contains(updatedFoo));
+    }
+
+    @Test
+    public void testSavedEndPointsServedOnStartup() throws Exception {
+        File file = _folder.newFile("Foo.endpoints");
+        new EndPointSnapshotFile(file, FOO.getServiceName()).write(ImmutableList.of(FOO, BAR));
+
+        ZooKeeperHostDiscovery discovery = newDiscovery(mock(ScheduledExecutorService.class), file);
+        assertEquals(ImmutableSet.of(FOO, BAR), discovery.getSnapshot().getEndPoints());
+        discovery.close();
+    }
+
+    @Test
+    public void testSavedEndPointsKeptUntilZooKeeperAnswers() throws Exception {
+        File file = _folder.newFile("Foo.endpoints");
+        new EndPointSnapshotFile(file, FOO.getServiceName()).write(ImmutableList.of(FOO));
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+
+        ZooKeeperHostDiscovery discovery = newDiscovery(executor, file);
+        runScheduled(executor, ZooKeeperHostDiscovery.SNAPSHOT_RECONCILE_DELAY_MILLIS);
+        assertTrue(discovery.contains(FOO));
+
+        // Checked again later, without waiting for ZooKeeper to report a change.
+        verify(executor, times(2)).schedule(any(Runnable.class),
+                eq(ZooKeeperHostDiscovery.SNAPSHOT_RECONCILE_DELAY_MILLIS), eq(TimeUnit.MILLISECONDS));
+        discovery.close();
+    }
+
+    @Test
+    public void testSavedEndPointsRemovedAfterMaxProvisionalTime() throws Exception {
+        File file = _folder.newFile("Foo.endpoints");
+        new EndPointSnapshotFile(file, FOO.getServiceName()).write(ImmutableList.of(FOO));
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        ZooKeeperHostDiscovery discovery = newDiscovery(executor, file);
+        CountingListener listener = new CountingListener();
+        discovery.addListener(listener);
+
+        when(_ticker.read()).thenReturn(TimeUnit.MILLISECONDS.toNanos(ZooKeeperHostDiscovery.MAX_PROVISIONAL_MILLIS));
+        runScheduled(executor, ZooKeeperHostDiscovery.SNAPSHOT_RECONCILE_DELAY_MILLIS);
+
+        assertTrue(discovery.getSnapshot().getEndPoints().isEmpty());
+        assertEquals(1, listener.getNumRemoves());
+        discovery.close();
+    }
+
+    @Test
+    public void testUnconfirmedSavedEndPointsRemoved() throws Exception {
+        File file = _folder.newFile("Foo.endpoints");
+        new EndPointSnapshotFile(file, FOO.getServiceName()).write(ImmutableList.of(FOO, BAR));
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        ZooKeeperHostDiscovery discovery = newDiscovery(executor, file);
+        CountingListener listener = new CountingListener();
+        discovery.addListener(listener);
+
+        // ZooKeeper confirms FOO, which is already known, but not BAR.
+        addNode("path", FOO);
+        assertEquals(0, listener.getNumAdds());
+
+        runScheduled(executor, ZooKeeperHostDiscovery.SNAPSHOT_RECONCILE_DELAY_MILLIS);
+
+        assertEquals(ImmutableSet.of(FOO), discovery.getSnapshot().getEndPoints());
+        assertEquals(1, listener.getNumRemoves());
+        discovery.close();
+    }
+
+    @Test
+    public void testSnapshotSavedOnChange() throws Exception {
+        File file = new File(_folder.getRoot(), "Foo.endpoints");
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        ZooKeeperHostDiscovery discovery = newDiscovery(executor, file);
+
+        addNode("path", FOO);
+        ArgumentCaptor<Runnable> delivery = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).schedule(delivery.capture(), eq(ZooKeeperHostDiscovery.TOPOLOGY_BATCH_WINDOW_MILLIS),
+                eq(TimeUnit.MILLISECONDS));
+        delivery.getValue().run();
+
+        assertEquals(ImmutableSet.of(FOO), new EndPointSnapshotFile(file, FOO.getServiceName()).read());
+        discovery.close();
+    }
+
+    @Test
+    public void testEndPointsKeptThroughSessionLoss() throws Exception {
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        ZooKeeperHostDiscovery discovery = newDiscovery(executor, null, true);
+        addNode("foo", FOO);
+        addNode("bar", BAR);
+        CountingListener listener = new CountingListener();
+        discovery.addListener(listener);
+
+        // The session is lost...
+        removeNode("foo", FOO);
+        removeNode("bar", BAR);
+        assertEquals(ImmutableSet.of(FOO, BAR), discovery.getSnapshot().getEndPoints());
+        runScheduled(executor, ZooKeeperHostDiscovery.SESSION_LOSS_GRACE_MILLIS);
+        assertEquals(ImmutableSet.of(FOO, BAR), discovery.getSnapshot().getEndPoints());
+
+        // ...and back, but BAR went away in the meantime.
+        addNode("foo", FOO);
+        runScheduled(executor, ZooKeeperHostDiscovery.SNAPSHOT_RECONCILE_DELAY_MILLIS);
+        assertEquals(ImmutableSet.of(FOO), discovery.getSnapshot().getEndPoints());
+        assertEquals(0, listener.getNumAdds());
+        assertEquals(1, listener.getNumRemoves());
+        discovery.close();
+    }
+
+    @Test
+    public void testEndPointsKeptThroughSessionLossForAtMostMaxProvisionalTime() throws Exception {
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        ZooKeeperHostDiscovery discovery = newDiscovery(executor, null, true);
+        addNode("foo", FOO);
+        addNode("bar", BAR);
+        CountingListener listener = new CountingListener();
+        discovery.addListener(listener);
+
+        // The session is lost and doesn't come back.
+        when(_ticker.read()).thenReturn(TimeUnit.MINUTES.toNanos(1));
+        removeNode("foo", FOO);
+        removeNode("bar", BAR);
+        runScheduled(executor, ZooKeeperHostDiscovery.SESSION_LOSS_GRACE_MILLIS);
+
+        runScheduled(executor, ZooKeeperHostDiscovery.SNAPSHOT_RECONCILE_DELAY_MILLIS);
+        assertEquals(ImmutableSet.of(FOO, BAR), discovery.getSnapshot().getEndPoints());
+
+        when(_ticker.read()).thenReturn(TimeUnit.MINUTES.toNanos(1)
+                + TimeUnit.MILLISECONDS.toNanos(ZooKeeperHostDiscovery.MAX_PROVISIONAL_MILLIS));
+        runScheduled(executor, ZooKeeperHostDiscovery.SNAPSHOT_RECONCILE_DELAY_MILLIS);
+        assertTrue(discovery.getSnapshot().getEndPoints().isEmpty());
+        assertEquals(2, listener.getNumRemoves());
+        discovery.close();
+    }
+
+    @Test
+    public void testRemovalAppliedAfterSessionLossGrace() throws Exception {
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        ZooKeeperHostDiscovery discovery = newDiscovery(executor, null, true);
+        addNode("foo", FOO);
+        addNode("bar", BAR);
+        CountingListener listener = new CountingListener();
+        discovery.addListener(listener);
+
+        removeNode("bar", BAR);
+        assertTrue(discovery.contains(BAR));
+
+        runScheduled(executor, ZooKeeperHostDiscovery.SESSION_LOSS_GRACE_MILLIS);
+        assertFalse(discovery.contains(BAR));
+        assertEquals(1, listener.getNumRemoves());
+        discovery.close();
+    }
+
+    @Test
+    public void testReaddedWithinSessionLossGraceIgnored() throws Exception {
+        ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        ZooKeeperHostDiscovery discovery = newDiscovery(executor, null, true);
+        addNode("foo", FOO);
+        CountingListener listener = new CountingListener();
+        discovery.addListener(listener);
+        long generation = discovery.getSnapshot().getGeneration();
+
+        removeNode("foo", FOO);
+        addNode("foo", FOO);
+        runScheduled(executor, ZooKeeperHostDiscovery.SESSION_LOSS_GRACE_MILLIS);
+
+        assertEquals(generation, discovery.getSnapshot().getGeneration());
+        assertEquals(0, listener.getNumAdds());
+        assertEquals(0, listener.getNumRemoves());
+        discovery.close();
+    }
+
+    @Test
+    public void testListenerSeesNewSnapshot() {
+        final List<Boolean> seen = Lists.newArrayList();
+        _discovery.addListener(new HostDiscovery.EndPointListener() {
+            @Override
+            public void onEndPointAdded(ServiceEndPoint endPoint) {
+                seen.add(_discovery.contains(endPoint));
+            }
+
+            @Override
+            public void onEndPointRemoved(ServiceEndPoint endPoint) {
+                seen.add(_discovery.contains(endPoint));
+            }
+        });
+
+        addNode("path", FOO);
+        removeNode("path", FOO);
+        assertEquals(ImmutableList.of(true, false), seen);
+    }
+
     @Test
     public void testAlreadyExistingEndPointsDoNotFireEvents() throws Exception {
         addNode("path", FOO);
@@ -251,6 +531,13 @@ public class ZooKeeperHostDiscoveryTest {
         assertEquals(1, endPointListener2.getNumRemoves());
     }
     
+    /** Runs the most recent task scheduled with the given delay. */
+    private void runScheduled(ScheduledExecutorService executor, long delayMillis) {
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, atLeastOnce()).schedule(task.capture(), eq(delayMillis), eq(TimeUnit.MILLISECONDS));
+        task.getValue().run();
+    }
+
     private void addNode(String path, ServiceEndPoint endPoint) {
         _listener.onNodeAdded(path, endPoint);
     }
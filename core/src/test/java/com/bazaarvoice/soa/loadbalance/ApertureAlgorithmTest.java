@@ -0,0 +1,148 @@
+package com.bazaarvoice.soa.loadbalance;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.bazaarvoice.soa.ServicePoolStatistics;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ApertureAlgorithmTest {
+    private List<ServiceEndPoint> _endPoints;
+    private ServicePoolStatistics _statistics;
+
+    @Before
+    public void setup() {
+        _endPoints = Lists.newArrayList();
+        for (int i = 0; i < 20; i++) {
+            _endPoints.add(new ServiceEndPointBuilder()
+                    .withServiceName("Foo")
+                    .withId("server-" + i + ":8080")
+                    .build());
+        }
+        _statistics = mock(ServicePoolStatistics.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroMinAperture() {
+        new ApertureAlgorithm(0, 0.5, 2.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHighLoadNotAboveLowLoad() {
+        new ApertureAlgorithm(2, 1.0, 1.0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullIterable() {
+        new ApertureAlgorithm().choose(null, _statistics);
+    }
+
+    @Test
+    public void testEmptyIterable() {
+        assertNull(new ApertureAlgorithm().choose(Collections.<ServiceEndPoint>emptyList(), _statistics));
+    }
+
+    @Test
+    public void testSingleEndPoint() {
+        ServiceEndPoint endPoint = _endPoints.get(0);
+        assertSame(endPoint, new ApertureAlgorithm().choose(ImmutableList.of(endPoint), _statistics));
+    }
+
+    @Test
+    public void testLightLoadUsesMinAperture() {
+        ApertureAlgorithm algorithm = new ApertureAlgorithm();
+
+        Set<ServiceEndPoint> seen = Sets.newHashSet();
+        for (int i = 0; i < 1000; i++) {
+            seen.add(algorithm.choose(_endPoints, _statistics));
+        }
+
+        assertEquals(ApertureAlgorithm.DEFAULT_MIN_APERTURE, seen.size());
+        assertEquals(ApertureAlgorithm.DEFAULT_MIN_APERTURE, algorithm.getAperture());
+    }
+
+    @Test
+    public void testWindowIndependentOfOrder() {
+        ApertureAlgorithm algorithm = new ApertureAlgorithm(1, 0.5, 2.0);
+        ServiceEndPoint chosen = algorithm.choose(_endPoints, _statistics);
+
+        Collections.reverse(_endPoints);
+        assertSame(chosen, algorithm.choose(_endPoints, _statistics));
+    }
+
+    @Test
+    public void testWidensUnderLoad() {
+        ApertureAlgorithm algorithm = new ApertureAlgorithm();
+        when(_statistics.getNumActiveInstances(any(ServiceEndPoint.class))).thenReturn(5);
+
+        for (int i = 0; i < 5; i++) {
+            algorithm.choose(_endPoints, _statistics);
+        }
+        assertEquals(ApertureAlgorithm.DEFAULT_MIN_APERTURE + 5, algorithm.getAperture());
+    }
+
+    @Test
+    public void testWidensNoFurtherThanEndPoints() {
+        ApertureAlgorithm algorithm = new ApertureAlgorithm();
+        when(_statistics.getNumActiveInstances(any(ServiceEndPoint.class))).thenReturn(5);
+
+        for (int i = 0; i < 100; i++) {
+            algorithm.choose(_endPoints, _statistics);
+        }
+        assertEquals(_endPoints.size(), algorithm.getAperture());
+    }
+
+    @Test
+    public void testNarrowsWhenLoadFalls() {
+        ApertureAlgorithm algorithm = new ApertureAlgorithm();
+        when(_statistics.getNumActiveInstances(any(ServiceEndPoint.class))).thenReturn(5);
+        for (int i = 0; i < 10; i++) {
+            algorithm.choose(_endPoints, _statistics);
+        }
+
+        when(_statistics.getNumActiveInstances(any(ServiceEndPoint.class))).thenReturn(0);
+        for (int i = 0; i < 3; i++) {
+            algorithm.choose(_endPoints, _statistics);
+        }
+        assertEquals(ApertureAlgorithm.DEFAULT_MIN_APERTURE + 7, algorithm.getAperture());
+
+        for (int i = 0; i < 100; i++) {
+            algorithm.choose(_endPoints, _statistics);
+        }
+        assertEquals(ApertureAlgorithm.DEFAULT_MIN_APERTURE, algorithm.getAperture());
+    }
+
+    @Test
+    public void testTwoChoicesPicksLessLoaded() {
+        Random random = mock(Random.class);
+        ApertureAlgorithm algorithm = new ApertureAlgorithm(2, 0.0, 100.0, random);
+
+        // With a random that always returns 0 the first two end points of the window are compared.
+        List<ServiceEndPoint> window = Lists.newArrayList();
+        for (int i = 0; i < 100; i++) {
+            window.add(algorithm.choose(_endPoints, _statistics));
+        }
+        ServiceEndPoint first = window.get(0);
+        assertEquals(1, Sets.newHashSet(window).size());
+
+        when(_statistics.getNumActiveInstances(first)).thenReturn(1);
+        ServiceEndPoint second = algorithm.choose(_endPoints, _statistics);
+        assertTrue(second != first);
+    }
+}
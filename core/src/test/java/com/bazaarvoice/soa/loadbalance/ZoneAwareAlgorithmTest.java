@@ -0,0 +1,173 @@
+package com.bazaarvoice.soa.loadbalance;
+
+import com.bazaarvoice.soa.LoadBalanceAlgorithm;
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.bazaarvoice.soa.ServicePoolStatistics;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ZoneAwareAlgorithmTest {
+    private static final ServiceEndPoint LOCAL_1 = endPoint("local-1", "us-east-1a");
+    private static final ServiceEndPoint LOCAL_2 = endPoint("local-2", "us-east-1a");
+    private static final ServiceEndPoint LOCAL_3 = endPoint("local-3", "us-east-1a");
+    private static final ServiceEndPoint REMOTE_1 = endPoint("remote-1", "us-east-1b");
+    private static final ServiceEndPoint REMOTE_2 = endPoint("remote-2", "us-east-1b");
+    private static final ServiceEndPoint REMOTE_3 = endPoint("remote-3", "us-east-1b");
+
+    private Random _random;
+    private ServicePoolStatistics _statistics;
+    private LoadBalanceAlgorithm _firstAlgorithm;
+
+    @Before
+    public void setup() {
+        _random = mock(Random.class);
+        _statistics = mock(ServicePoolStatistics.class);
+
+        // Always picks the first end point it's given, which shows which zone was chosen.
+        _firstAlgorithm = new LoadBalanceAlgorithm() {
+            @Override
+            public ServiceEndPoint choose(Iterable<ServiceEndPoint> endPoints, ServicePoolStatistics statistics) {
+                return Iterables.getFirst(endPoints, null);
+            }
+        };
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullLocalZone() {
+        new ZoneAwareAlgorithm(null, _firstAlgorithm);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullAlgorithm() {
+        new ZoneAwareAlgorithm("us-east-1a", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMinLocalCapacityTooLarge() {
+        new ZoneAwareAlgorithm("us-east-1a", _firstAlgorithm, 1.5, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroMaxActiveInstances() {
+        new ZoneAwareAlgorithm("us-east-1a", _firstAlgorithm, 0.7, 0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullIterable() {
+        new ZoneAwareAlgorithm("us-east-1a", _firstAlgorithm).choose(null, _statistics);
+    }
+
+    @Test
+    public void testEmptyIterable() {
+        assertNull(new ZoneAwareAlgorithm("us-east-1a", _firstAlgorithm)
+                .choose(ImmutableList.<ServiceEndPoint>of(), _statistics));
+    }
+
+    @Test
+    public void testHealthyLocalZonePreferred() {
+        ZoneAwareAlgorithm algorithm = newAlgorithm(Integer.MAX_VALUE);
+        when(_random.nextDouble()).thenReturn(0.99);
+
+        List<ServiceEndPoint> endPoints = ImmutableList.of(REMOTE_1, REMOTE_2, LOCAL_1, LOCAL_2);
+        assertEquals(LOCAL_1, algorithm.choose(endPoints, _statistics));
+    }
+
+    @Test
+    public void testNoLocalEndPoints() {
+        ZoneAwareAlgorithm algorithm = newAlgorithm(Integer.MAX_VALUE);
+
+        assertEquals(REMOTE_1, algorithm.choose(ImmutableList.of(REMOTE_1, REMOTE_2), _statistics));
+    }
+
+    @Test
+    public void testEndPointsWithoutZoneAreRemote() {
+        ServiceEndPoint noZone = endPoint("no-zone", null);
+        ZoneAwareAlgorithm algorithm = newAlgorithm(Integer.MAX_VALUE);
+
+        assertEquals(noZone, algorithm.choose(ImmutableList.of(noZone), _statistics));
+    }
+
+    @Test
+    public void testUnhealthyLocalZoneSpillsOver() {
+        // One local end point against three remote ones: the average zone has two, so local keeps half the calls.
+        ZoneAwareAlgorithm algorithm = newAlgorithm(Integer.MAX_VALUE);
+        List<ServiceEndPoint> endPoints = ImmutableList.of(LOCAL_1, REMOTE_1, REMOTE_2, REMOTE_3);
+
+        when(_random.nextDouble()).thenReturn(0.49);
+        assertEquals(LOCAL_1, algorithm.choose(endPoints, _statistics));
+
+        when(_random.nextDouble()).thenReturn(0.51);
+        assertEquals(REMOTE_1, algorithm.choose(endPoints, _statistics));
+    }
+
+    @Test
+    public void testSlightlySmallLocalZoneDoesNotSpillOver() {
+        // Three local against four remote is above 70% of the average zone of 3.5.
+        ZoneAwareAlgorithm algorithm = newAlgorithm(Integer.MAX_VALUE);
+        when(_random.nextDouble()).thenReturn(0.99);
+
+        List<ServiceEndPoint> endPoints = ImmutableList.of(LOCAL_1, LOCAL_2, LOCAL_3,
+                REMOTE_1, REMOTE_2, REMOTE_3, endPoint("remote-4", "us-east-1b"));
+        assertEquals(LOCAL_1, algorithm.choose(endPoints, _statistics));
+    }
+
+    @Test
+    public void testLoadedLocalZoneSpillsOver() {
+        // Local end points average 20 calls in progress against a limit of 10, so local keeps half the calls.
+        ZoneAwareAlgorithm algorithm = newAlgorithm(10);
+        when(_statistics.getNumActiveInstances(LOCAL_1)).thenReturn(15);
+        when(_statistics.getNumActiveInstances(LOCAL_2)).thenReturn(25);
+        List<ServiceEndPoint> endPoints = ImmutableList.of(LOCAL_1, LOCAL_2, REMOTE_1, REMOTE_2);
+
+        when(_random.nextDouble()).thenReturn(0.49);
+        assertEquals(LOCAL_1, algorithm.choose(endPoints, _statistics));
+
+        when(_random.nextDouble()).thenReturn(0.51);
+        assertEquals(REMOTE_1, algorithm.choose(endPoints, _statistics));
+    }
+
+    @Test
+    public void testLightlyLoadedLocalZoneDoesNotSpillOver() {
+        ZoneAwareAlgorithm algorithm = newAlgorithm(10);
+        when(_statistics.getNumActiveInstances(any(ServiceEndPoint.class))).thenReturn(10);
+        when(_random.nextDouble()).thenReturn(0.99);
+
+        List<ServiceEndPoint> endPoints = ImmutableList.of(LOCAL_1, LOCAL_2, REMOTE_1, REMOTE_2);
+        assertEquals(LOCAL_1, algorithm.choose(endPoints, _statistics));
+    }
+
+    @Test
+    public void testDelegateChoosesWithinZone() {
+        LoadBalanceAlgorithm delegate = mock(LoadBalanceAlgorithm.class);
+        when(delegate.choose(anyListOf(ServiceEndPoint.class), any(ServicePoolStatistics.class))).thenReturn(LOCAL_2);
+        ZoneAwareAlgorithm algorithm = new ZoneAwareAlgorithm("us-east-1a", delegate, 0.7, Integer.MAX_VALUE, _random);
+
+        assertEquals(LOCAL_2, algorithm.choose(ImmutableList.of(LOCAL_1, LOCAL_2, REMOTE_1), _statistics));
+    }
+
+    private ZoneAwareAlgorithm newAlgorithm(int maxActiveInstancesPerEndPoint) {
+        return new ZoneAwareAlgorithm("us-east-1a", _firstAlgorithm,
+                ZoneAwareAlgorithm.DEFAULT_MIN_LOCAL_CAPACITY, maxActiveInstancesPerEndPoint, _random);
+    }
+
+    private static ServiceEndPoint endPoint(String id, String zone) {
+        return new ServiceEndPointBuilder()
+                .withServiceName("Foo")
+                .withId(id)
+                .withZone(zone)
+                .build();
+    }
+}
@@ -0,0 +1,113 @@
+package com.bazaarvoice.soa.pool;
+
+import com.bazaarvoice.soa.PayloadDecoder;
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.bazaarvoice.soa.ServiceEndPoints;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EndPointDecoderTest {
+    private static final ServiceEndPoint FOO = new ServiceEndPointBuilder()
+            .withServiceName("Foo")
+            .withId("server:8080")
+            .withPayload("8080")
+            .build();
+
+    private PayloadDecoder<Integer> _payloadDecoder;
+    private EndPointDecoder _decoder;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setup() {
+        _payloadDecoder = mock(PayloadDecoder.class);
+        when(_payloadDecoder.decode(FOO)).thenReturn(8080);
+        _decoder = new EndPointDecoder(_payloadDecoder);
+    }
+
+    @Test
+    public void testNoDecoder() {
+        EndPointDecoder decoder = new EndPointDecoder(null);
+        assertSame(FOO, decoder.decode(FOO));
+        assertNull(ServiceEndPoints.getDecodedPayload(FOO, Integer.class));
+    }
+
+    @Test
+    public void testDecodedPayload() {
+        assertEquals(Integer.valueOf(8080), ServiceEndPoints.getDecodedPayload(_decoder.decode(FOO), Integer.class));
+    }
+
+    @Test
+    public void testDecodedEqualToOriginal() {
+        ServiceEndPoint decoded = _decoder.decode(FOO);
+        assertEquals(FOO, decoded);
+        assertEquals(decoded, FOO);
+        assertEquals(FOO.hashCode(), decoded.hashCode());
+        assertEquals(FOO.getPayload(), decoded.getPayload());
+    }
+
+    @Test
+    public void testDecodedOnce() {
+        _decoder.decode(FOO);
+        _decoder.decode(FOO);
+        Iterables.getOnlyElement(_decoder.decodeAll(ImmutableList.of(FOO)));
+
+        verify(_payloadDecoder, times(1)).decode(any(ServiceEndPoint.class));
+        assertEquals(1, _decoder.getNumDecodedEndPoints());
+    }
+
+    @Test
+    public void testDecodedEndPointNotDecodedAgain() {
+        ServiceEndPoint decoded = _decoder.decode(FOO);
+        assertSame(decoded, _decoder.decode(decoded));
+    }
+
+    @Test
+    public void testForget() {
+        _decoder.decode(FOO);
+        _decoder.forget(FOO);
+        assertEquals(0, _decoder.getNumDecodedEndPoints());
+
+        _decoder.decode(FOO);
+        verify(_payloadDecoder, times(2)).decode(any(ServiceEndPoint.class));
+    }
+
+    @Test
+    public void testChangedPayloadDecodedAgain() {
+        ServiceEndPoint updated = new ServiceEndPointBuilder()
+                .withServiceName("Foo")
+                .withId("server:8080")
+                .withPayload("8081")
+                .build();
+        when(_payloadDecoder.decode(updated)).thenReturn(8081);
+
+        _decoder.decode(FOO);
+        ServiceEndPoint decoded = _decoder.decode(updated);
+        assertEquals(Integer.valueOf(8081), ServiceEndPoints.getDecodedPayload(decoded, Integer.class));
+    }
+
+    @Test
+    public void testMalformedPayload() {
+        when(_payloadDecoder.decode(FOO)).thenThrow(new IllegalArgumentException());
+
+        ServiceEndPoint decoded = _decoder.decode(FOO);
+        assertEquals(FOO, decoded);
+        assertNull(ServiceEndPoints.getDecodedPayload(decoded, Integer.class));
+    }
+
+    @Test(expected = ClassCastException.class)
+    public void testWrongType() {
+        ServiceEndPoints.getDecodedPayload(_decoder.decode(FOO), String.class);
+    }
+}
@@ -0,0 +1,174 @@
+package com.bazaarvoice.soa.pool;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EndPointSubsetTest {
+    private static final List<ServiceEndPoint> END_POINTS = endPoints(100);
+
+    @Test(expected = NullPointerException.class)
+    public void testNullClientId() {
+        new EndPointSubset(null, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeSize() {
+        new EndPointSubset("client", -1);
+    }
+
+    @Test
+    public void testDisabled() {
+        EndPointSubset subset = new EndPointSubset("client", 0);
+        subset.update(END_POINTS);
+
+        assertFalse(subset.isEnabled());
+        assertTrue(subset.contains(END_POINTS.get(0)));
+        assertEquals(END_POINTS, subset.select(subset.rank(END_POINTS), Predicates.alwaysTrue()));
+    }
+
+    @Test
+    public void testSize() {
+        EndPointSubset subset = new EndPointSubset("client", 10);
+        subset.update(END_POINTS);
+
+        assertEquals(10, subset.getEndPoints().size());
+        assertEquals(subset.getEndPoints(),
+                ImmutableSet.copyOf(subset.select(subset.rank(END_POINTS), Predicates.alwaysTrue())));
+        assertTrue(END_POINTS.containsAll(subset.getEndPoints()));
+    }
+
+    @Test
+    public void testFewerEndPointsThanSize() {
+        EndPointSubset subset = new EndPointSubset("client", 10);
+        subset.update(END_POINTS.subList(0, 3));
+
+        assertEquals(ImmutableSet.copyOf(END_POINTS.subList(0, 3)), subset.getEndPoints());
+    }
+
+    @Test
+    public void testDeterministic() {
+        EndPointSubset subset1 = new EndPointSubset("client", 10);
+        EndPointSubset subset2 = new EndPointSubset("client", 10);
+        subset1.update(END_POINTS);
+        subset2.update(Lists.reverse(END_POINTS));
+
+        assertEquals(subset1.getEndPoints(), subset2.getEndPoints());
+    }
+
+    @Test
+    public void testClientsPickDifferentSubsets() {
+        EndPointSubset subset1 = new EndPointSubset("client-1", 10);
+        EndPointSubset subset2 = new EndPointSubset("client-2", 10);
+        subset1.update(END_POINTS);
+        subset2.update(END_POINTS);
+
+        assertFalse(subset1.getEndPoints().equals(subset2.getEndPoints()));
+    }
+
+    @Test
+    public void testRemovedEndPointReplacedByOne() {
+        EndPointSubset subset = new EndPointSubset("client", 10);
+        subset.update(END_POINTS);
+        Set<ServiceEndPoint> before = subset.getEndPoints();
+
+        ServiceEndPoint removed = Iterables.get(before, 0);
+        List<ServiceEndPoint> remaining = Lists.newArrayList(END_POINTS);
+        remaining.remove(removed);
+        Set<ServiceEndPoint> left = subset.update(remaining);
+
+        // The removed end point is gone rather than left, and everything else stays.
+        assertTrue(left.isEmpty());
+        assertEquals(10, subset.getEndPoints().size());
+        assertEquals(9, Sets.intersection(before, subset.getEndPoints()).size());
+    }
+
+    @Test
+    public void testAddedEndPointDisplacesAtMostOne() {
+        EndPointSubset subset = new EndPointSubset("client", 10);
+        subset.update(END_POINTS);
+
+        for (ServiceEndPoint added : endPoints(200).subList(100, 200)) {
+            Set<ServiceEndPoint> before = subset.getEndPoints();
+            Set<ServiceEndPoint> left = subset.update(ImmutableList.<ServiceEndPoint>builder()
+                    .addAll(before)
+                    .add(added)
+                    .build());
+
+            assertEquals(10, subset.getEndPoints().size());
+            if (subset.contains(added)) {
+                assertEquals(1, left.size());
+            } else {
+                assertEquals(before, subset.getEndPoints());
+                assertTrue(left.isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void testEvenSpread() {
+        // 500 clients with subsets of 20 out of 100 end points puts each end point in 100 subsets on average.
+        int[] numClients = new int[END_POINTS.size()];
+        for (int i = 0; i < 500; i++) {
+            EndPointSubset subset = new EndPointSubset("client-" + i, 20);
+            subset.update(END_POINTS);
+            for (ServiceEndPoint endPoint : subset.getEndPoints()) {
+                numClients[END_POINTS.indexOf(endPoint)]++;
+            }
+        }
+
+        // The count for each end point is binomial with a standard deviation of about 9, so this is a 5 sigma bound.
+        for (int count : numClients) {
+            assertTrue("Uneven spread: " + count, count > 55 && count < 145);
+        }
+    }
+
+    @Test
+    public void testSelectPassesOverEndPointsThatFail() {
+        EndPointSubset subset = new EndPointSubset("client", 3);
+        subset.update(END_POINTS);
+        List<ServiceEndPoint> ranked = subset.rank(END_POINTS);
+
+        // The subset is the top of the ranking, so with all of it left out the next three stand in for it.
+        List<ServiceEndPoint> selected = subset.select(ranked, Predicates.not(Predicates.in(subset.getEndPoints())));
+        assertEquals(ranked.subList(3, 6), selected);
+    }
+
+    @Test
+    public void testSelectMatchesNextUpdate() {
+        EndPointSubset subset = new EndPointSubset("client", 3);
+        subset.update(END_POINTS.subList(0, 10));
+
+        // None of the subset is left, so the end points the next update will pick are used in its place.
+        List<ServiceEndPoint> others = END_POINTS.subList(10, 20);
+        List<ServiceEndPoint> ranked = subset.rank(others);
+        Set<ServiceEndPoint> selected = ImmutableSet.copyOf(subset.select(ranked, Predicates.alwaysTrue()));
+        subset.update(others);
+        assertEquals(3, selected.size());
+        assertEquals(subset.getEndPoints(), selected);
+    }
+
+    private static List<ServiceEndPoint> endPoints(int count) {
+        List<ServiceEndPoint> endPoints = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            endPoints.add(new ServiceEndPointBuilder()
+                    .withServiceName("Foo")
+                    .withId("server-" + i + ":8080")
+                    .build());
+        }
+        return endPoints;
+    }
+}
@@ -0,0 +1,157 @@
+package com.bazaarvoice.soa.pool;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class HealthCheckPolicyBuilderTest {
+    @Test
+    public void testDefaults() {
+        HealthCheckPolicy policy = new HealthCheckPolicyBuilder().build();
+
+        assertEquals(8, policy.getMaxNumConcurrentHealthChecks());
+        assertEquals(0, policy.getHealthCheckTimeout(TimeUnit.SECONDS));
+        assertEquals(0, policy.getInitialRecheckDelay(TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMaxNumConcurrentHealthChecksSet() {
+        HealthCheckPolicyBuilder builder = new HealthCheckPolicyBuilder();
+        builder.withMaxNumConcurrentHealthChecks(3);
+
+        assertEquals(3, builder.build().getMaxNumConcurrentHealthChecks());
+    }
+
+    @Test
+    public void testHealthCheckTimeoutSet() {
+        HealthCheckPolicyBuilder builder = new HealthCheckPolicyBuilder();
+        builder.withHealthCheckTimeout(250, TimeUnit.MILLISECONDS);
+
+        assertEquals(250, builder.build().getHealthCheckTimeout(TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidMaxNumConcurrentHealthChecks() {
+        new HealthCheckPolicyBuilder().withMaxNumConcurrentHealthChecks(0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidHealthCheckTimeout() {
+        new HealthCheckPolicyBuilder().withHealthCheckTimeout(0, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullHealthCheckTimeoutUnit() {
+        new HealthCheckPolicyBuilder().withHealthCheckTimeout(1, null);
+    }
+
+    @Test
+    public void testAdaptiveRechecksSet() {
+        HealthCheckPolicyBuilder builder = new HealthCheckPolicyBuilder();
+        builder.withAdaptiveRechecks(1, 120, TimeUnit.SECONDS);
+
+        HealthCheckPolicy policy = builder.build();
+        assertEquals(1, policy.getInitialRecheckDelay(TimeUnit.SECONDS));
+        assertEquals(120, policy.getMaxRecheckDelay(TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRecheckBackoffMultiplierSet() {
+        HealthCheckPolicyBuilder builder = new HealthCheckPolicyBuilder();
+        builder.withRecheckBackoffMultiplier(1.5);
+
+        assertEquals(1.5, builder.build().getRecheckBackoffMultiplier(), 0);
+    }
+
+    @Test
+    public void testRecheckJitterSet() {
+        HealthCheckPolicyBuilder builder = new HealthCheckPolicyBuilder();
+        builder.withRecheckJitter(0);
+
+        assertEquals(0, builder.build().getRecheckJitter(), 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMaxRecheckDelayLessThanInitial() {
+        new HealthCheckPolicyBuilder().withAdaptiveRechecks(10, 5, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidRecheckBackoffMultiplier() {
+        new HealthCheckPolicyBuilder().withRecheckBackoffMultiplier(0.5);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidRecheckJitter() {
+        new HealthCheckPolicyBuilder().withRecheckJitter(1);
+    }
+
+    @Test
+    public void testHealthyEndPointCheckDefaults() {
+        HealthCheckPolicy policy = new HealthCheckPolicyBuilder().build();
+
+        assertEquals(1, policy.getHealthyEndPointCheckFanOut());
+        assertEquals(0, policy.getHealthyEndPointCheckCacheTtl(TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testHealthyEndPointCheckFanOutSet() {
+        HealthCheckPolicyBuilder builder = new HealthCheckPolicyBuilder();
+        builder.withHealthyEndPointCheckFanOut(3);
+
+        assertEquals(3, builder.build().getHealthyEndPointCheckFanOut());
+    }
+
+    @Test
+    public void testHealthyEndPointCheckCacheTtlSet() {
+        HealthCheckPolicyBuilder builder = new HealthCheckPolicyBuilder();
+        builder.withHealthyEndPointCheckCacheTtl(5, TimeUnit.SECONDS);
+
+        assertEquals(5, builder.build().getHealthyEndPointCheckCacheTtl(TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidHealthyEndPointCheckFanOut() {
+        new HealthCheckPolicyBuilder().withHealthyEndPointCheckFanOut(0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testHealthyEndPointCheckFanOutAboveMaxNumConcurrentHealthChecks() {
+        new HealthCheckPolicyBuilder()
+                .withMaxNumConcurrentHealthChecks(2)
+                .withHealthyEndPointCheckFanOut(3)
+                .build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidHealthyEndPointCheckCacheTtl() {
+        new HealthCheckPolicyBuilder().withHealthyEndPointCheckCacheTtl(-1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testPassiveHealthChecksDisabledByDefault() {
+        assertEquals(0, new HealthCheckPolicyBuilder().build().getPassiveProbeInterval());
+    }
+
+    @Test
+    public void testPassiveHealthChecksSet() {
+        HealthCheckPolicyBuilder builder = new HealthCheckPolicyBuilder();
+        builder.withPassiveHealthChecks(1000, 5);
+
+        HealthCheckPolicy policy = builder.build();
+        assertEquals(1000, policy.getPassiveProbeInterval());
+        assertEquals(5, policy.getNumPassiveSuccessesToReinstate());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidPassiveProbeInterval() {
+        new HealthCheckPolicyBuilder().withPassiveHealthChecks(0, 5);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidNumPassiveSuccessesToReinstate() {
+        new HealthCheckPolicyBuilder().withPassiveHealthChecks(1000, 0);
+    }
+}
@@ -0,0 +1,77 @@
+package com.bazaarvoice.soa.pool;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class OutlierDetectionPolicyBuilderTest {
+    @Test
+    public void testDisabledByDefault() {
+        OutlierDetectionPolicy policy = new OutlierDetectionPolicyBuilder().build();
+
+        assertEquals(0, policy.getEjectionLimitPercent());
+        assertEquals(0, policy.getPanicThresholdPercent());
+    }
+
+    @Test
+    public void testEjectionLimitPercentSet() {
+        OutlierDetectionPolicyBuilder builder = new OutlierDetectionPolicyBuilder();
+        builder.withEjectionLimitPercent(10);
+
+        assertEquals(10, builder.build().getEjectionLimitPercent());
+    }
+
+    @Test
+    public void testPanicThresholdPercentSet() {
+        OutlierDetectionPolicyBuilder builder = new OutlierDetectionPolicyBuilder();
+        builder.withPanicThresholdPercent(50);
+
+        assertEquals(50, builder.build().getPanicThresholdPercent());
+    }
+
+    @Test
+    public void testAnalysisIntervalSet() {
+        OutlierDetectionPolicyBuilder builder = new OutlierDetectionPolicyBuilder();
+        builder.withAnalysisInterval(5, TimeUnit.SECONDS);
+
+        assertEquals(5, builder.build().getAnalysisInterval(TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testEjectionTimeSet() {
+        OutlierDetectionPolicyBuilder builder = new OutlierDetectionPolicyBuilder();
+        builder.withEjectionTime(2, TimeUnit.MINUTES);
+
+        assertEquals(2, builder.build().getEjectionTime(TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void testMinRequestVolumeSet() {
+        OutlierDetectionPolicyBuilder builder = new OutlierDetectionPolicyBuilder();
+        builder.withMinRequestVolume(7);
+
+        assertEquals(7, builder.build().getMinRequestVolume());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidEjectionLimitPercent() {
+        new OutlierDetectionPolicyBuilder().withEjectionLimitPercent(101);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidPanicThresholdPercent() {
+        new OutlierDetectionPolicyBuilder().withPanicThresholdPercent(-1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidAnalysisInterval() {
+        new OutlierDetectionPolicyBuilder().withAnalysisInterval(0, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullEjectionTimeUnit() {
+        new OutlierDetectionPolicyBuilder().withEjectionTime(1, null);
+    }
+}
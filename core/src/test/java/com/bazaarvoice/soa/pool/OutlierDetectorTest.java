@@ -0,0 +1,143 @@
+package com.bazaarvoice.soa.pool;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class OutlierDetectorTest {
+    private static final int MIN_REQUEST_VOLUME = 10;
+
+    private List<ServiceEndPoint> _endPoints;
+    private OutlierDetector _detector;
+
+    @Before
+    public void setup() {
+        _endPoints = Lists.newArrayList();
+        for (int i = 0; i < OutlierDetector.MIN_NUM_END_POINTS; i++) {
+            _endPoints.add(mock(ServiceEndPoint.class));
+        }
+
+        _detector = new OutlierDetector(new OutlierDetectionPolicyBuilder()
+                .withEjectionLimitPercent(20)
+                .withMinRequestVolume(MIN_REQUEST_VOLUME)
+                .withLatencyFactor(3)
+                .build());
+    }
+
+    @Test
+    public void testNoOutliersWhenAllHealthy() {
+        for (ServiceEndPoint endPoint : _endPoints) {
+            record(endPoint, MIN_REQUEST_VOLUME, 0, 100);
+        }
+
+        assertTrue(_detector.findOutliers().isEmpty());
+    }
+
+    @Test
+    public void testFailingEndPointIsOutlier() {
+        ServiceEndPoint failing = _endPoints.get(0);
+        record(failing, 0, MIN_REQUEST_VOLUME, 100);
+        for (ServiceEndPoint endPoint : _endPoints.subList(1, _endPoints.size())) {
+            record(endPoint, MIN_REQUEST_VOLUME, 0, 100);
+        }
+
+        assertEquals(ImmutableList.of(failing), _detector.findOutliers());
+    }
+
+    @Test
+    public void testUniformFailuresAreNotOutliers() {
+        // When everything fails the same way the problem isn't with any individual end point.
+        for (ServiceEndPoint endPoint : _endPoints) {
+            record(endPoint, 0, MIN_REQUEST_VOLUME, 100);
+        }
+
+        assertTrue(_detector.findOutliers().isEmpty());
+    }
+
+    @Test
+    public void testSlowEndPointIsOutlier() {
+        ServiceEndPoint slow = _endPoints.get(0);
+        record(slow, MIN_REQUEST_VOLUME, 0, 1000);
+        for (ServiceEndPoint endPoint : _endPoints.subList(1, _endPoints.size())) {
+            record(endPoint, MIN_REQUEST_VOLUME, 0, 100);
+        }
+
+        assertEquals(ImmutableList.of(slow), _detector.findOutliers());
+    }
+
+    @Test
+    public void testLatencyDetectionDisabled() {
+        _detector = new OutlierDetector(new OutlierDetectionPolicyBuilder()
+                .withEjectionLimitPercent(20)
+                .withMinRequestVolume(MIN_REQUEST_VOLUME)
+                .withLatencyFactor(0)
+                .build());
+
+        record(_endPoints.get(0), MIN_REQUEST_VOLUME, 0, 1000);
+        for (ServiceEndPoint endPoint : _endPoints.subList(1, _endPoints.size())) {
+            record(endPoint, MIN_REQUEST_VOLUME, 0, 100);
+        }
+
+        assertTrue(_detector.findOutliers().isEmpty());
+    }
+
+    @Test
+    public void testLowVolumeEndPointsIgnored() {
+        record(_endPoints.get(0), 0, MIN_REQUEST_VOLUME - 1, 100);
+        for (ServiceEndPoint endPoint : _endPoints.subList(1, _endPoints.size())) {
+            record(endPoint, MIN_REQUEST_VOLUME, 0, 100);
+        }
+
+        assertTrue(_detector.findOutliers().isEmpty());
+    }
+
+    @Test
+    public void testTooFewPeers() {
+        record(_endPoints.get(0), 0, MIN_REQUEST_VOLUME, 100);
+        for (ServiceEndPoint endPoint : _endPoints.subList(1, OutlierDetector.MIN_NUM_END_POINTS - 1)) {
+            record(endPoint, MIN_REQUEST_VOLUME, 0, 100);
+        }
+
+        assertTrue(_detector.findOutliers().isEmpty());
+    }
+
+    @Test
+    public void testStatisticsResetAfterAnalysis() {
+        record(_endPoints.get(0), 0, MIN_REQUEST_VOLUME, 100);
+        for (ServiceEndPoint endPoint : _endPoints.subList(1, _endPoints.size())) {
+            record(endPoint, MIN_REQUEST_VOLUME, 0, 100);
+        }
+        _detector.findOutliers();
+
+        assertTrue(_detector.findOutliers().isEmpty());
+    }
+
+    @Test
+    public void testForgottenEndPointIgnored() {
+        ServiceEndPoint failing = _endPoints.get(0);
+        record(failing, 0, MIN_REQUEST_VOLUME, 100);
+        for (ServiceEndPoint endPoint : _endPoints.subList(1, _endPoints.size())) {
+            record(endPoint, MIN_REQUEST_VOLUME, 0, 100);
+        }
+        _detector.forget(failing);
+
+        assertTrue(_detector.findOutliers().isEmpty());
+    }
+
+    private void record(ServiceEndPoint endPoint, int numSuccesses, int numFailures, long latencyNanos) {
+        for (int i = 0; i < numSuccesses; i++) {
+            _detector.recordSuccess(endPoint, latencyNanos);
+        }
+        for (int i = 0; i < numFailures; i++) {
+            _detector.recordFailure(endPoint, latencyNanos);
+        }
+    }
+}
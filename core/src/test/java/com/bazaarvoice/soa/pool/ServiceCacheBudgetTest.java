@@ -0,0 +1,140 @@
+package com.bazaarvoice.soa.pool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ServiceCacheBudgetTest {
+    private ServiceCacheBudget.IdleInstances _idleInstances;
+    private ServiceCacheBudget.IdleInstances _otherIdleInstances;
+
+    @Before
+    public void setup() {
+        _idleInstances = mock(ServiceCacheBudget.IdleInstances.class);
+        _otherIdleInstances = mock(ServiceCacheBudget.IdleInstances.class);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeMax() {
+        new ServiceCacheBudget(-1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReservationsExceedBudget() {
+        ServiceCacheBudget budget = new ServiceCacheBudget(3);
+        budget.join(2, _idleInstances);
+        budget.join(2, _otherIdleInstances);
+    }
+
+    @Test
+    public void testSharedRoom() {
+        ServiceCacheBudget budget = new ServiceCacheBudget(2);
+        ServiceCacheBudget.Member member = budget.join(0, _idleInstances);
+        ServiceCacheBudget.Member other = budget.join(0, _otherIdleInstances);
+
+        assertTrue(member.tryAcquire());
+        assertTrue(other.tryAcquire());
+        assertFalse(member.tryAcquire());
+        assertTrue(member.isExhausted());
+        assertEquals(2, budget.getNumServiceInstances());
+
+        other.release();
+        assertTrue(member.tryAcquire());
+    }
+
+    @Test
+    public void testReservedRoom() {
+        ServiceCacheBudget budget = new ServiceCacheBudget(2);
+        ServiceCacheBudget.Member member = budget.join(1, _idleInstances);
+        ServiceCacheBudget.Member other = budget.join(0, _otherIdleInstances);
+
+        assertTrue(other.tryAcquire());
+        assertFalse(other.tryAcquire());
+        assertTrue(member.tryAcquire());
+        assertFalse(member.tryAcquire());
+    }
+
+    @Test
+    public void testForceAcquireGoesOverBudget() {
+        ServiceCacheBudget budget = new ServiceCacheBudget(1);
+        ServiceCacheBudget.Member member = budget.join(0, _idleInstances);
+
+        member.forceAcquire();
+        assertFalse(member.isOverBudget());
+        member.forceAcquire();
+        assertTrue(member.isOverBudget());
+
+        member.release();
+        assertFalse(member.isOverBudget());
+    }
+
+    @Test
+    public void testReleaseOfSharedRoomSignalsOthers() {
+        ServiceCacheBudget budget = new ServiceCacheBudget(2);
+        ServiceCacheBudget.Member member = budget.join(1, _idleInstances);
+        budget.join(0, _otherIdleInstances);
+
+        member.tryAcquire();
+        member.release();
+        verify(_otherIdleInstances, never()).onRoomAvailable();
+
+        member.tryAcquire();
+        member.tryAcquire();
+        member.release();
+        verify(_otherIdleInstances).onRoomAvailable();
+        verify(_idleInstances, never()).onRoomAvailable();
+    }
+
+    @Test
+    public void testDestroysOldestIdleInstanceOverReservation() {
+        ServiceCacheBudget budget = new ServiceCacheBudget(3);
+        ServiceCacheBudget.Member member = budget.join(0, _idleInstances);
+        ServiceCacheBudget.Member other = budget.join(0, _otherIdleInstances);
+        member.tryAcquire();
+        other.tryAcquire();
+        when(_idleInstances.getOldestIdleSince()).thenReturn(20L);
+        when(_otherIdleInstances.getOldestIdleSince()).thenReturn(10L);
+        when(_otherIdleInstances.destroyOldestIdle()).thenReturn(true);
+
+        assertTrue(member.destroyOldestIdleInstance());
+        verify(_otherIdleInstances).destroyOldestIdle();
+        verify(_idleInstances, never()).destroyOldestIdle();
+    }
+
+    @Test
+    public void testDoesNotDestroyReservedIdleInstances() {
+        ServiceCacheBudget budget = new ServiceCacheBudget(2);
+        ServiceCacheBudget.Member member = budget.join(0, _idleInstances);
+        ServiceCacheBudget.Member other = budget.join(1, _otherIdleInstances);
+        other.tryAcquire();
+        when(_otherIdleInstances.getOldestIdleSince()).thenReturn(10L);
+
+        assertFalse(member.destroyOldestIdleInstance());
+        verify(_otherIdleInstances, never()).destroyOldestIdle();
+    }
+
+    @Test
+    public void testLeaveGivesBackReservation() {
+        ServiceCacheBudget budget = new ServiceCacheBudget(2);
+        ServiceCacheBudget.Member member = budget.join(2, _idleInstances);
+        member.tryAcquire();
+
+        member.leave();
+        assertEquals(0, budget.getNumReservedServiceInstances());
+        assertEquals(1, budget.getNumServiceInstances());
+
+        ServiceCacheBudget.Member other = budget.join(0, _otherIdleInstances);
+        assertTrue(other.tryAcquire());
+        assertFalse(other.tryAcquire());
+
+        member.release();
+        assertTrue(other.tryAcquire());
+    }
+}
@@ -3,26 +3,38 @@ package com.bazaarvoice.soa.pool;
 import com.bazaarvoice.soa.ServiceEndPoint;
 import com.bazaarvoice.soa.ServiceFactory;
 import com.bazaarvoice.soa.exceptions.NoCachedInstancesAvailableException;
+import com.bazaarvoice.soa.pool.ServiceCache.ServiceHandle;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -34,7 +46,10 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -42,7 +57,7 @@ public class ServiceCacheTest {
     private static final ServiceEndPoint END_POINT = mock(ServiceEndPoint.class);
 
     private ServiceFactory<Service> _factory;
-    private ServiceCachingPolicy _cachingPolicy;
+    private ExtendedServiceCachingPolicy _cachingPolicy;
     private List<ServiceCache<?>> _caches = Lists.newArrayList();
 
     @SuppressWarnings("unchecked")
@@ -58,7 +73,7 @@ public class ServiceCacheTest {
         });
 
         // By default the caching policy will grow infinitely
-        _cachingPolicy = mock(ServiceCachingPolicy.class);
+        _cachingPolicy = mock(ExtendedServiceCachingPolicy.class);
         when(_cachingPolicy.getMaxNumServiceInstances()).thenReturn(-1);
         when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(1);
         when(_cachingPolicy.getCacheExhaustionAction()).thenReturn(ServiceCachingPolicy.ExhaustionAction.FAIL);
@@ -72,20 +87,590 @@ public class ServiceCacheTest {
     }
 
     @Test
-    public void testKeyedObjectPoolIsCorrectlyConfigured() {
-        // Set values to be different from corresponding GenericKeyedObjectPool defaults.
+    public void testIdleInstancesLimitedPerEndPoint() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        when(_cachingPolicy.getCacheExhaustionAction()).thenReturn(ServiceCachingPolicy.ExhaustionAction.GROW);
+
+        ServiceCache<Service> cache = newCache();
+        List<ServiceHandle<Service>> handles = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            handles.add(cache.checkOut(END_POINT));
+        }
+        for (ServiceHandle<Service> handle : handles) {
+            cache.checkIn(handle);
+        }
+
+        assertEquals(2, cache.getNumIdleInstances(END_POINT));
+        verify(_factory).destroy(END_POINT, handles.get(2).getService());
+    }
+
+    @Test(expected = NoCachedInstancesAvailableException.class)
+    public void testTotalInstancesLimited() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstances()).thenReturn(1);
+
+        ServiceCache<Service> cache = newCache();
+        cache.checkOut(END_POINT);
+        cache.checkOut(mock(ServiceEndPoint.class));
+    }
+
+    @Test
+    public void testInstancesCreatedWhileGrowingOverTotalLimitAreNotReused() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstances()).thenReturn(1);
         when(_cachingPolicy.getCacheExhaustionAction()).thenReturn(ServiceCachingPolicy.ExhaustionAction.GROW);
-        when(_cachingPolicy.getMaxNumServiceInstances()).thenReturn(20);
-        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(5);
-        when(_cachingPolicy.getMaxServiceInstanceIdleTime(TimeUnit.MILLISECONDS)).thenReturn(10L);
+        ServiceEndPoint otherEndPoint = mock(ServiceEndPoint.class);
+
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
+        ServiceHandle<Service> otherService = cache.checkOut(otherEndPoint);
+        cache.checkIn(otherService);
+        cache.checkIn(service);
+
+        verify(_factory).destroy(otherEndPoint, otherService.getService());
+        assertEquals(0, cache.getNumIdleInstances(otherEndPoint));
+        assertEquals(1, cache.getNumIdleInstances(END_POINT));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIdleInstanceDestroyedAtTotalLimit() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstances()).thenReturn(2);
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        ServiceEndPoint otherEndPoint = mock(ServiceEndPoint.class);
+
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> older = cache.checkOut(END_POINT);
+        ServiceHandle<Service> newer = cache.checkOut(END_POINT);
+        cache.checkIn(older);
+        cache.checkIn(newer);
+
+        cache.checkOut(otherEndPoint);
+        verify(_factory).destroy(END_POINT, older.getService());
+        verify(_factory, never()).destroy(END_POINT, newer.getService());
+        assertSame(newer.getService(), cache.checkOut(END_POINT).getService());
+    }
+
+    @Test
+    public void testIdleInstanceNotDestroyedForEndPointAtItsOwnLimit() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstances()).thenReturn(2);
+        ServiceEndPoint otherEndPoint = mock(ServiceEndPoint.class);
+
+        ServiceCache<Service> cache = newCache();
+        cache.checkIn(cache.checkOut(END_POINT));
+        cache.checkOut(otherEndPoint);
+        try {
+            cache.checkOut(otherEndPoint);
+            fail();
+        } catch (NoCachedInstancesAvailableException e) {
+            // Expected, the other end point can't have a second instance no matter how much room there is.
+        }
+
+        verify(_factory, never()).destroy(any(ServiceEndPoint.class), any(Service.class));
+        assertEquals(1, cache.getNumIdleInstances(END_POINT));
+    }
+
+    @Test
+    public void testNoCachingPolicyNeverRetainsInstances() throws Exception {
+        ServiceCache<Service> cache = newCache(ServiceCachingPolicyBuilder.NO_CACHING,
+                mock(ScheduledExecutorService.class), Ticker.systemTicker());
+
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
+        cache.checkIn(service);
+
+        verify(_factory).destroy(END_POINT, service.getService());
+        assertEquals(0, cache.getNumIdleInstances(END_POINT));
+        assertNotSame(service.getService(), cache.checkOut(END_POINT).getService());
+    }
+
+    @Test
+    public void testInstanceRetiredAfterMaxUses() throws Exception {
+        when(_cachingPolicy.getMaxNumUsesPerServiceInstance()).thenReturn(2);
+
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> first = cache.checkOut(END_POINT);
+        cache.checkIn(first);
+        ServiceHandle<Service> second = cache.checkOut(END_POINT);
+        assertSame(first.getService(), second.getService());
+
+        cache.checkIn(second);
+        verify(_factory).destroy(END_POINT, first.getService());
+        assertEquals(0, cache.getNumIdleInstances(END_POINT));
+        assertNotSame(first.getService(), cache.checkOut(END_POINT).getService());
+    }
+
+    @Test
+    public void testInstanceRetiredAfterMaxLifetime() throws Exception {
+        final AtomicLong now = new AtomicLong();
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return now.get();
+            }
+        };
+        when(_cachingPolicy.getMaxServiceInstanceLifetime(any(TimeUnit.class))).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                return ((TimeUnit) invocation.getArguments()[0]).convert(10, TimeUnit.SECONDS);
+            }
+        });
+
+        ServiceCache<Service> cache = newCache(_cachingPolicy, mock(ScheduledExecutorService.class), ticker);
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.checkIn(handle);
+
+        // Even with the most jitter an instance lives for most of its lifetime...
+        now.addAndGet((long) (TimeUnit.SECONDS.toNanos(10) * (1 - ServiceCache.LIFETIME_JITTER)) - 1);
+        ServiceHandle<Service> reused = cache.checkOut(END_POINT);
+        assertSame(handle.getService(), reused.getService());
+        cache.checkIn(reused);
+
+        // ...and never more than its lifetime.
+        now.set(TimeUnit.SECONDS.toNanos(10));
+        assertNotSame(handle.getService(), cache.checkOut(END_POINT).getService());
+        verify(_factory).destroy(END_POINT, handle.getService());
+    }
+
+    @Test
+    public void testIdleInstancesExpire() throws Exception {
+        final AtomicLong now = new AtomicLong();
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return now.get();
+            }
+        };
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        when(_cachingPolicy.getMaxServiceInstanceIdleTime(any(TimeUnit.class))).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                return ((TimeUnit) invocation.getArguments()[0]).convert(10, TimeUnit.SECONDS);
+            }
+        });
+
+        ServiceCache<Service> cache = newCache(_cachingPolicy, mock(ScheduledExecutorService.class), ticker);
+        ServiceHandle<Service> stale = cache.checkOut(END_POINT);
+        ServiceHandle<Service> fresh = cache.checkOut(END_POINT);
+        cache.checkIn(stale);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        cache.checkIn(fresh);
+
+        // Not quite due yet...
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5) - 1);
+        cache.expireIdleInstances();
+        verify(_factory, never()).destroy(any(ServiceEndPoint.class), any(Service.class));
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(ServiceCache.EXPIRY_TICK_IN_MILLIS));
+        cache.expireIdleInstances();
+
+        verify(_factory).destroy(END_POINT, stale.getService());
+        verify(_factory, never()).destroy(END_POINT, fresh.getService());
+        assertEquals(1, cache.getNumIdleInstances(END_POINT));
+
+        // The remaining instance expires on its own schedule.
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        cache.expireIdleInstances();
+
+        verify(_factory).destroy(END_POINT, fresh.getService());
+        assertEquals(0, cache.getNumIdleInstances(END_POINT));
+    }
+
+    @Test
+    public void testCheckOutAtLimitWhileExpiring() throws Exception {
+        final AtomicLong now = new AtomicLong();
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return now.get();
+            }
+        };
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        when(_cachingPolicy.getMaxServiceInstanceIdleTime(any(TimeUnit.class))).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                return ((TimeUnit) invocation.getArguments()[0]).convert(10, TimeUnit.SECONDS);
+            }
+        });
+
+        // Check out twice while the stale instance is being destroyed, by when its room has been given back.
+        final List<ServiceHandle<Service>> handles = Lists.newArrayList();
+        final AtomicReference<ServiceCache<Service>> cacheRef = new AtomicReference<ServiceCache<Service>>();
+        Executor destroyExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (handles.isEmpty()) {
+                    try {
+                        handles.add(cacheRef.get().checkOut(END_POINT));
+                        handles.add(cacheRef.get().checkOut(END_POINT));
+                    } catch (Exception e) {
+                        throw Throwables.propagate(e);
+                    }
+                }
+                command.run();
+            }
+        };
+        ServiceCache<Service> cache = newCache(_cachingPolicy, mock(ScheduledExecutorService.class), destroyExecutor,
+                ticker);
+        cacheRef.set(cache);
+
+        ServiceHandle<Service> stale = cache.checkOut(END_POINT);
+        ServiceHandle<Service> fresh = cache.checkOut(END_POINT);
+        cache.checkIn(stale);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        cache.checkIn(fresh);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5) + TimeUnit.MILLISECONDS.toNanos(ServiceCache.EXPIRY_TICK_IN_MILLIS));
+
+        // The instance that's kept stays available, so the end point is at its limit but never fails a check out.
+        cache.expireIdleInstances();
+        verify(_factory).destroy(END_POINT, stale.getService());
+        assertEquals(2, handles.size());
+        assertSame(fresh.getService(), handles.get(0).getService());
+    }
+
+    @Test
+    public void testUsedInstancesDoNotExpire() throws Exception {
+        final AtomicLong now = new AtomicLong();
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return now.get();
+            }
+        };
+        when(_cachingPolicy.getMaxServiceInstanceIdleTime(any(TimeUnit.class))).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                return ((TimeUnit) invocation.getArguments()[0]).convert(10, TimeUnit.SECONDS);
+            }
+        });
+
+        ServiceCache<Service> cache = newCache(_cachingPolicy, mock(ScheduledExecutorService.class), ticker);
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        for (int i = 0; i < 10; i++) {
+            cache.checkIn(handle);
+            now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+            cache.expireIdleInstances();
+            handle = cache.checkOut(END_POINT);
+        }
+
+        verify(_factory).create(END_POINT);
+        verify(_factory, never()).destroy(any(ServiceEndPoint.class), any(Service.class));
+    }
+
+    @Test
+    public void testPrewarmCreatesIdleInstances() {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(3);
+        when(_cachingPolicy.getMinNumIdleServiceInstancesPerEndPoint()).thenReturn(2);
+
+        ServiceCache<Service> cache = newCache();
+        cache.prewarm(END_POINT);
+
+        assertEquals(2, cache.getNumIdleInstances(END_POINT));
+        verify(_factory, times(2)).create(END_POINT);
+    }
+
+    @Test
+    public void testPrewarmWithoutMinIdle() {
+        ServiceCache<Service> cache = newCache();
+        cache.prewarm(END_POINT);
+
+        assertEquals(0, cache.getNumIdleInstances(END_POINT));
+        verify(_factory, never()).create(END_POINT);
+    }
+
+    @Test
+    public void testPlainCachingPolicyUsesExtendedDefaults() throws Exception {
+        ServiceCachingPolicy policy = mock(ServiceCachingPolicy.class);
+        when(policy.getMaxNumServiceInstances()).thenReturn(-1);
+        when(policy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        when(policy.getCacheExhaustionAction()).thenReturn(ServiceCachingPolicy.ExhaustionAction.FAIL);
+
+        ServiceCache<Service> cache = newCache(policy, mock(ScheduledExecutorService.class), Ticker.systemTicker());
+        cache.prewarm(END_POINT);
+        assertEquals(0, cache.getNumIdleInstances(END_POINT));
+
+        // Instances are checked out for exclusive use.
+        ServiceHandle<Service> first = cache.checkOut(END_POINT);
+        ServiceHandle<Service> second = cache.checkOut(END_POINT);
+        assertNotSame(first.getService(), second.getService());
+        cache.checkIn(first);
+        cache.checkIn(second);
+        assertEquals(2, cache.getNumIdleInstances(END_POINT));
+    }
+
+    @Test
+    public void testPrewarmLimitedByMaxPerEndPoint() {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(1);
+        when(_cachingPolicy.getMinNumIdleServiceInstancesPerEndPoint()).thenReturn(2);
+
+        ServiceCache<Service> cache = newCache();
+        cache.prewarm(END_POINT);
+
+        assertEquals(1, cache.getNumIdleInstances(END_POINT));
+    }
+
+    @Test
+    public void testPrewarmStopsOnFactoryFailure() {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        when(_cachingPolicy.getMinNumIdleServiceInstancesPerEndPoint()).thenReturn(2);
+        when(_factory.create(any(ServiceEndPoint.class))).thenThrow(new RuntimeException());
+
+        ServiceCache<Service> cache = newCache();
+        cache.prewarm(END_POINT);
+
+        assertEquals(0, cache.getNumIdleInstances(END_POINT));
+        verify(_factory).create(END_POINT);
+    }
+
+    @Test
+    public void testCheckOutUsesPrewarmedInstanceAndTopsUp() throws Exception {
+        final List<Service> created = Lists.newArrayList();
+        when(_factory.create(any(ServiceEndPoint.class))).thenAnswer(new Answer<Service>() {
+            @Override
+            public Service answer(InvocationOnMock invocation) throws Throwable {
+                Service service = mock(Service.class);
+                created.add(service);
+                return service;
+            }
+        });
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        when(_cachingPolicy.getMinNumIdleServiceInstancesPerEndPoint()).thenReturn(1);
+
+        ServiceCache<Service> cache = newCache();
+        cache.prewarm(END_POINT);
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+
+        assertSame(created.get(0), handle.getService());
+        assertEquals(2, created.size());
+        assertEquals(1, cache.getNumIdleInstances(END_POINT));
+    }
+
+    @Test
+    public void testNotPrewarmedAfterClose() {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        when(_cachingPolicy.getMinNumIdleServiceInstancesPerEndPoint()).thenReturn(2);
+
+        ServiceCache<Service> cache = newCache();
+        cache.close();
+        cache.prewarm(END_POINT);
+
+        verify(_factory, never()).create(END_POINT);
+    }
+
+    @Test
+    public void testSharedInstanceUsedConcurrently() throws Exception {
+        // Shared instances aren't limited by the exhaustion action.
+        when(_cachingPolicy.getNumSharedServiceInstancesPerEndPoint()).thenReturn(1);
+
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> first = cache.checkOut(END_POINT);
+        ServiceHandle<Service> second = cache.checkOut(END_POINT);
+
+        assertSame(first.getService(), second.getService());
+        assertEquals(2, cache.getNumActiveInstances(END_POINT));
+        verify(_factory).create(END_POINT);
+    }
+
+    @Test
+    public void testSharedInstanceReusedAfterCheckIn() throws Exception {
+        when(_cachingPolicy.getNumSharedServiceInstancesPerEndPoint()).thenReturn(1);
+
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.checkIn(handle);
+
+        assertSame(handle.getService(), cache.checkOut(END_POINT).getService());
+        assertEquals(0, cache.getNumIdleInstances(END_POINT));
+        verify(_factory, never()).destroy(any(ServiceEndPoint.class), any(Service.class));
+    }
+
+    @Test
+    public void testSharedInstanceRetiredAfterMaxUses() throws Exception {
+        when(_cachingPolicy.getNumSharedServiceInstancesPerEndPoint()).thenReturn(1);
+        when(_cachingPolicy.getMaxNumUsesPerServiceInstance()).thenReturn(1);
+
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        ServiceHandle<Service> replacement = cache.checkOut(END_POINT);
+        assertNotSame(handle.getService(), replacement.getService());
+
+        // The retired instance is only destroyed once its last caller is done with it.
+        verify(_factory, never()).destroy(any(ServiceEndPoint.class), any(Service.class));
+        cache.checkIn(handle);
+        verify(_factory).destroy(END_POINT, handle.getService());
+    }
+
+    @Test
+    public void testEvictedSharedInstanceDestroyedAfterLastCheckIn() throws Exception {
+        when(_cachingPolicy.getNumSharedServiceInstancesPerEndPoint()).thenReturn(1);
+
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.evict(END_POINT);
+        verify(_factory, never()).destroy(END_POINT, handle.getService());
+
+        cache.checkIn(handle);
+        verify(_factory).destroy(END_POINT, handle.getService());
+        assertNotSame(handle.getService(), cache.checkOut(END_POINT).getService());
+    }
+
+    @Test
+    public void testEvictedSharedInstanceNotInUseDestroyed() throws Exception {
+        when(_cachingPolicy.getNumSharedServiceInstancesPerEndPoint()).thenReturn(1);
+
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.checkIn(handle);
+        cache.evict(END_POINT);
+
+        verify(_factory).destroy(END_POINT, handle.getService());
+    }
+
+    @Test
+    public void testCloseDestroysSharedInstances() throws Exception {
+        when(_cachingPolicy.getNumSharedServiceInstancesPerEndPoint()).thenReturn(1);
+
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.checkIn(handle);
+        cache.close();
+
+        verify(_factory).destroy(END_POINT, handle.getService());
+    }
+
+    @Test
+    public void testConcurrentSharedCheckOutsCreateOneInstance() throws Exception {
+        when(_cachingPolicy.getNumSharedServiceInstancesPerEndPoint()).thenReturn(1);
+
+        final ServiceCache<Service> cache = newCache();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Service>> futures = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<Service>() {
+                    @Override
+                    public Service call() throws Exception {
+                        return cache.checkOut(END_POINT).getService();
+                    }
+                }));
+            }
+            Set<Service> services = Sets.newHashSet();
+            for (Future<Service> future : futures) {
+                services.add(future.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, services.size());
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(_factory).create(END_POINT);
+    }
+
+    @Test
+    public void testEvictedInstancesDestroyedInBackground() throws Exception {
+        final List<Runnable> destroyTasks = Lists.newArrayList();
+        Executor destroyExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                destroyTasks.add(command);
+            }
+        };
+
+        ServiceCache<Service> cache = newCache(_cachingPolicy, mock(ScheduledExecutorService.class), destroyExecutor,
+                Ticker.systemTicker());
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.checkIn(handle);
+        cache.evict(END_POINT);
+
+        verify(_factory, never()).destroy(END_POINT, handle.getService());
+        assertEquals(0, cache.getNumIdleInstances(END_POINT));
+        assertEquals(1, cache.getNumPendingDestroys());
+
+        for (Runnable task : destroyTasks) {
+            task.run();
+        }
+        verify(_factory).destroy(END_POINT, handle.getService());
+        assertEquals(0, cache.getNumPendingDestroys());
+    }
+
+    @Test
+    public void testInstanceDestroyedByCallerWhenDestroyerRejects() throws Exception {
+        Executor destroyExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        };
+
+        ServiceCache<Service> cache = newCache(_cachingPolicy, mock(ScheduledExecutorService.class), destroyExecutor,
+                Ticker.systemTicker());
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.checkIn(handle);
+        cache.evict(END_POINT);
+
+        verify(_factory).destroy(END_POINT, handle.getService());
+        assertEquals(0, cache.getNumPendingDestroys());
+    }
+
+    @Test
+    public void testDestroyFailureDoesNotLeaveInstancePending() throws Exception {
+        doThrow(new RuntimeException()).when(_factory).destroy(any(ServiceEndPoint.class), any(Service.class));
+
+        ServiceCache<Service> cache = newCache();
+        cache.checkIn(cache.checkOut(END_POINT));
+        cache.evict(END_POINT);
+
+        assertEquals(0, cache.getNumPendingDestroys());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCheckOutAfterClose() throws Exception {
+        ServiceCache<Service> cache = newCache();
+        cache.close();
+        cache.checkOut(END_POINT);
+    }
 
-        GenericKeyedObjectPool<ServiceEndPoint, Service> pool = newCache().getPool();
-        assertEquals(GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW, pool.getWhenExhaustedAction());
-        assertEquals(20, pool.getMaxTotal());
-        assertEquals(5, pool.getMaxActive());
-        assertEquals(5, pool.getMaxIdle());
-        assertEquals(10L, pool.getMinEvictableIdleTimeMillis());
-        assertEquals(20, pool.getNumTestsPerEvictionRun());
+    @Test
+    public void testCheckInAfterCloseDestroysInstance() throws Exception {
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
+        cache.close();
+        cache.checkIn(service);
+
+        verify(_factory).destroy(END_POINT, service.getService());
+    }
+
+    @Test
+    public void testConcurrentCheckOutsRespectLimits() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        when(_cachingPolicy.getCacheExhaustionAction()).thenReturn(ServiceCachingPolicy.ExhaustionAction.WAIT);
+
+        final ServiceCache<Service> cache = newCache();
+        final Set<Service> inUse = Sets.newSetFromMap(Maps.<Service, Boolean>newConcurrentMap());
+        final AtomicInteger maxInUse = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < 1000; j++) {
+                            ServiceHandle<Service> service = cache.checkOut(END_POINT);
+                            assertTrue(inUse.add(service.getService()));
+                            maxInUse.set(Math.max(maxInUse.get(), inUse.size()));
+                            inUse.remove(service.getService());
+                            cache.checkIn(service);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(maxInUse.get() <= 2);
+        assertEquals(0, cache.getNumActiveInstances(END_POINT));
+        assertTrue(cache.getNumIdleInstances(END_POINT) <= 2);
     }
 
     @Test(expected = NullPointerException.class)
@@ -94,14 +679,38 @@ public class ServiceCacheTest {
     }
 
     @Test(expected = NullPointerException.class)
-    public void testCheckInToNullEndPoint() throws Exception {
-        Service service = mock(Service.class);
-        newCache().checkIn(null, service);
+    public void testCheckInNullHandle() throws Exception {
+        newCache().checkIn(null);
     }
 
-    @Test(expected = NullPointerException.class)
-    public void testCheckInNullServiceInstance() throws Exception {
-        newCache().checkIn(END_POINT, null);
+    @Test(expected = IllegalStateException.class)
+    public void testCheckInTwice() throws Exception {
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.checkIn(handle);
+        cache.checkIn(handle);
+    }
+
+    @Test
+    public void testServiceEqualityIsNotUsed() throws Exception {
+        // Every instance is equal to every other, as can happen with service types that use value based equality.
+        when(_factory.create(any(ServiceEndPoint.class))).thenAnswer(new Answer<Service>() {
+            @Override
+            public Service answer(InvocationOnMock invocation) throws Throwable {
+                return new EqualService();
+            }
+        });
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+
+        ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> stale = cache.checkOut(END_POINT);
+        cache.evict(END_POINT);
+        ServiceHandle<Service> fresh = cache.checkOut(END_POINT);
+        cache.checkIn(fresh);
+        cache.checkIn(stale);
+
+        assertEquals(1, cache.getNumIdleInstances(END_POINT));
+        assertSame(fresh.getService(), cache.checkOut(END_POINT).getService());
     }
 
     @Test(expected = NullPointerException.class)
@@ -126,10 +735,10 @@ public class ServiceCacheTest {
     @Test
     public void testServiceInstanceIsReused() throws Exception {
         ServiceCache<Service> cache = newCache();
-        Service service = cache.checkOut(END_POINT);
-        cache.checkIn(END_POINT, service);
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
+        cache.checkIn(service);
 
-        assertSame(service, cache.checkOut(END_POINT));
+        assertSame(service.getService(), cache.checkOut(END_POINT).getService());
     }
 
     @Test
@@ -138,8 +747,8 @@ public class ServiceCacheTest {
         when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
 
         ServiceCache<Service> cache = newCache();
-        Service service = cache.checkOut(END_POINT);
-        assertNotSame(service, cache.checkOut(END_POINT));
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
+        assertNotSame(service.getService(), cache.checkOut(END_POINT).getService());
     }
 
     @Test
@@ -148,44 +757,74 @@ public class ServiceCacheTest {
         when(_cachingPolicy.getMaxNumServiceInstances()).thenReturn(1);
 
         ServiceCache<Service> cache = newCache();
-        Service service = cache.checkOut(END_POINT);
-        cache.checkIn(END_POINT, service);
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
+        cache.checkIn(service);
         // Check out a different end point to force the currently cached instance out.
         cache.checkOut(mock(ServiceEndPoint.class));
 
-        verify(_factory).destroy(END_POINT, service);
+        verify(_factory).destroy(END_POINT, service.getService());
     }
 
     @Test
     public void testEvictedEndPointDestroyedManualEviction() throws Exception {
         ServiceCache<Service> cache = newCache();
-        Service service = cache.checkOut(END_POINT);
-        cache.checkIn(END_POINT, service);
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
+        cache.checkIn(service);
         cache.evict(END_POINT);
 
-        verify(_factory).destroy(END_POINT, service);
+        verify(_factory).destroy(END_POINT, service.getService());
     }
 
     @Test
     public void testEvictedEndPointHasServiceInstancesRemovedFromCache() throws Exception {
         ServiceCache<Service> cache = newCache();
 
-        Service service = cache.checkOut(END_POINT);
-        cache.checkIn(END_POINT, service);
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
+        cache.checkIn(service);
         cache.evict(END_POINT);
 
-        assertNotSame(service, cache.checkOut(END_POINT));
+        assertNotSame(service.getService(), cache.checkOut(END_POINT).getService());
     }
 
     @Test
     public void testEvictedEndPointWhileServiceInstanceCheckedOut() throws Exception {
         ServiceCache<Service> cache = newCache();
 
-        Service service = cache.checkOut(END_POINT);
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
         cache.evict(END_POINT);
-        cache.checkIn(END_POINT, service);
+        cache.checkIn(service);
 
-        assertNotSame(service, cache.checkOut(END_POINT));
+        assertNotSame(service.getService(), cache.checkOut(END_POINT).getService());
+    }
+
+    @Test
+    public void testEvictedEndPointForgottenAfterLastCheckIn() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        ServiceCache<Service> cache = newCache();
+
+        ServiceHandle<Service> first = cache.checkOut(END_POINT);
+        ServiceHandle<Service> second = cache.checkOut(END_POINT);
+        cache.evict(END_POINT);
+        assertTrue(cache.hasEndPointCache(END_POINT));
+
+        cache.checkIn(first);
+        assertTrue(cache.hasEndPointCache(END_POINT));
+
+        cache.checkIn(second);
+        assertFalse(cache.hasEndPointCache(END_POINT));
+    }
+
+    @Test
+    public void testEvictedEndPointForgottenAfterLastSharedCheckIn() throws Exception {
+        when(_cachingPolicy.getNumSharedServiceInstancesPerEndPoint()).thenReturn(1);
+        ServiceCache<Service> cache = newCache();
+
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.evict(END_POINT);
+        assertTrue(cache.hasEndPointCache(END_POINT));
+
+        cache.checkIn(handle);
+        assertFalse(cache.hasEndPointCache(END_POINT));
     }
 
     @Test(expected = NoCachedInstancesAvailableException.class)
@@ -214,22 +853,25 @@ public class ServiceCacheTest {
         ServiceCache<Service> cache = newCache();
 
         // Grow the cache a bunch, remembering each service that was created...
+        List<ServiceHandle<Service>> handles = Lists.newArrayList();
         Set<Service> seenServices = Sets.newHashSet();
         for (int i = 0; i < 10; i++) {
-            seenServices.add(cache.checkOut(END_POINT));
+            ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+            handles.add(handle);
+            seenServices.add(handle.getService());
         }
 
         // Now return each of the services.  Since the cache has a size of 1, only one of them should be retained...
-        for (Service service : seenServices) {
-            cache.checkIn(END_POINT, service);
+        for (ServiceHandle<Service> handle : handles) {
+            cache.checkIn(handle);
         }
 
         // Figure out which one is retained...
-        Service retainedService = cache.checkOut(END_POINT);
+        Service retainedService = cache.checkOut(END_POINT).getService();
         assertTrue(seenServices.contains(retainedService));
 
         // Force the cache to grow again, this new service should have never been seen before...
-        Service newService = cache.checkOut(END_POINT);
+        Service newService = cache.checkOut(END_POINT).getService();
         assertFalse(seenServices.contains(newService));
     }
 
@@ -239,7 +881,7 @@ public class ServiceCacheTest {
         when(_cachingPolicy.getCacheExhaustionAction()).thenReturn(ServiceCachingPolicy.ExhaustionAction.WAIT);
 
         final ServiceCache<Service> cache = newCache();
-        Service service = cache.checkOut(END_POINT);
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
 
         // Run a 2nd check out operation in a background thread.  It should block because there is only one service
         // instance available, and the above check out operation is holding onto it.  Eventually we're going to call
@@ -251,7 +893,7 @@ public class ServiceCacheTest {
                 @Override
                 public Service call() throws Exception {
                     inCallable.countDown();
-                    return cache.checkOut(END_POINT);
+                    return cache.checkOut(END_POINT).getService();
                 }
             });
 
@@ -269,8 +911,213 @@ public class ServiceCacheTest {
                 // Expected to fail because the instance hasn't been checked in yet.
             }
 
-            cache.checkIn(END_POINT, service);
-            assertSame(service, serviceFuture.get(10, TimeUnit.SECONDS));
+            cache.checkIn(service);
+            assertSame(service.getService(), serviceFuture.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = NoCachedInstancesAvailableException.class)
+    public void testBudgetLimitsCachesTogether() throws Exception {
+        ServiceCacheBudget budget = new ServiceCacheBudget(1);
+        ServiceCache<Service> cache = newCache(budget, 0);
+        ServiceCache<Service> otherCache = newCache(budget, 0);
+
+        cache.checkOut(END_POINT);
+        otherCache.checkOut(END_POINT);
+    }
+
+    @Test
+    public void testBudgetReservationIsAlwaysAvailable() throws Exception {
+        ServiceCacheBudget budget = new ServiceCacheBudget(2);
+        ServiceCache<Service> cache = newCache(budget, 1);
+        ServiceCache<Service> otherCache = newCache(budget, 0);
+
+        otherCache.checkOut(END_POINT);
+        try {
+            otherCache.checkOut(mock(ServiceEndPoint.class));
+            fail();
+        } catch (NoCachedInstancesAvailableException e) {
+            // Expected, the rest of the budget is reserved.
+        }
+
+        cache.checkOut(END_POINT);
+        assertEquals(2, budget.getNumServiceInstances());
+    }
+
+    @Test
+    public void testBudgetDestroysIdleInstanceOfOtherCache() throws Exception {
+        ServiceCacheBudget budget = new ServiceCacheBudget(1);
+        ServiceCache<Service> cache = newCache(budget, 0);
+        ServiceCache<Service> otherCache = newCache(budget, 0);
+
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.checkIn(handle);
+
+        otherCache.checkOut(END_POINT);
+        verify(_factory).destroy(END_POINT, handle.getService());
+        assertEquals(0, cache.getNumIdleInstances(END_POINT));
+        assertEquals(1, budget.getNumServiceInstances());
+    }
+
+    @Test
+    public void testBudgetDestroysLeastRecentlyUsedIdleInstance() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        ServiceCacheBudget budget = new ServiceCacheBudget(2);
+        ServiceCache<Service> cache = newCache(budget, 0);
+        ServiceCache<Service> otherCache = newCache(budget, 0);
+
+        ServiceHandle<Service> a1 = cache.checkOut(END_POINT);
+        ServiceHandle<Service> a2 = cache.checkOut(END_POINT);
+        cache.checkIn(a1);
+        cache.checkIn(a2);
+
+        otherCache.checkOut(END_POINT);
+        verify(_factory).destroy(END_POINT, a1.getService());
+        verify(_factory, never()).destroy(END_POINT, a2.getService());
+        assertEquals(1, cache.getNumIdleInstances(END_POINT));
+    }
+
+    @Test
+    public void testBudgetComparesLeastRecentlyUsedIdleInstanceOfEachCache() throws Exception {
+        final AtomicLong now = new AtomicLong();
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return now.get();
+            }
+        };
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(2);
+        ServiceCacheBudget budget = new ServiceCacheBudget(3);
+        ServiceCache<Service> cache = newCache(budget, 0, ticker);
+        ServiceCache<Service> otherCache = newCache(budget, 0, ticker);
+
+        // The first cache has both the oldest and the newest idle instance.
+        ServiceHandle<Service> oldest = cache.checkOut(END_POINT);
+        ServiceHandle<Service> newest = cache.checkOut(END_POINT);
+        ServiceHandle<Service> other = otherCache.checkOut(END_POINT);
+        cache.checkIn(oldest);
+        now.addAndGet(1);
+        otherCache.checkIn(other);
+        now.addAndGet(1);
+        cache.checkIn(newest);
+
+        newCache(budget, 0, ticker).checkOut(END_POINT);
+        verify(_factory).destroy(END_POINT, oldest.getService());
+        assertEquals(1, otherCache.getNumIdleInstances(END_POINT));
+    }
+
+    @Test
+    public void testBudgetReservedIdleInstanceNotDestroyed() throws Exception {
+        ServiceCacheBudget budget = new ServiceCacheBudget(1);
+        ServiceCache<Service> cache = newCache(budget, 1);
+        ServiceCache<Service> otherCache = newCache(budget, 0);
+
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.checkIn(handle);
+
+        try {
+            otherCache.checkOut(END_POINT);
+            fail();
+        } catch (NoCachedInstancesAvailableException e) {
+            // Expected, destroying a reserved instance wouldn't make room for the other cache.
+        }
+        assertEquals(1, cache.getNumIdleInstances(END_POINT));
+    }
+
+    @Test
+    public void testBudgetReservationGivenBackOnClose() throws Exception {
+        ServiceCacheBudget budget = new ServiceCacheBudget(2);
+        ServiceCache<Service> cache = newCache(budget, 2);
+
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+        cache.close();
+        assertEquals(0, budget.getNumReservedServiceInstances());
+
+        cache.checkIn(handle);
+        assertEquals(0, budget.getNumServiceInstances());
+    }
+
+    @Test(expected = NoCachedInstancesAvailableException.class)
+    public void testWaitTimesOut() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(1);
+        when(_cachingPolicy.getCacheExhaustionAction()).thenReturn(ServiceCachingPolicy.ExhaustionAction.WAIT);
+        when(_cachingPolicy.getMaxWaitTime(TimeUnit.NANOSECONDS)).thenReturn(TimeUnit.MILLISECONDS.toNanos(10));
+
+        ServiceCache<Service> cache = newCache();
+        cache.checkOut(END_POINT);
+        cache.checkOut(END_POINT);
+    }
+
+    @Test
+    public void testWaitersServedInOrder() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(1);
+        when(_cachingPolicy.getCacheExhaustionAction()).thenReturn(ServiceCachingPolicy.ExhaustionAction.WAIT);
+
+        final ServiceCache<Service> cache = newCache();
+        ServiceHandle<Service> handle = cache.checkOut(END_POINT);
+
+        final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> futures = Lists.newArrayList();
+            for (final String name : Arrays.asList("first", "second")) {
+                int numWaiters = cache.getNumWaiters();
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        ServiceHandle<Service> waited = cache.checkOut(END_POINT);
+                        order.add(name);
+                        cache.checkIn(waited);
+                        return null;
+                    }
+                }));
+
+                // Make sure each caller is in line before the next one arrives.
+                while (cache.getNumWaiters() == numWaiters) {
+                    Thread.sleep(1);
+                }
+            }
+
+            cache.checkIn(handle);
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(Arrays.asList("first", "second"), order);
+            assertEquals(0, cache.getNumWaiters());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWaitingCallerWokenOnClose() throws Exception {
+        when(_cachingPolicy.getMaxNumServiceInstancesPerEndPoint()).thenReturn(1);
+        when(_cachingPolicy.getCacheExhaustionAction()).thenReturn(ServiceCachingPolicy.ExhaustionAction.WAIT);
+
+        final ServiceCache<Service> cache = newCache();
+        cache.checkOut(END_POINT);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Service> serviceFuture = executor.submit(new Callable<Service>() {
+                @Override
+                public Service call() throws Exception {
+                    return cache.checkOut(END_POINT).getService();
+                }
+            });
+            while (cache.getNumWaiters() == 0) {
+                Thread.sleep(1);
+            }
+
+            cache.close();
+            try {
+                serviceFuture.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
         } finally {
             executor.shutdown();
         }
@@ -292,9 +1139,9 @@ public class ServiceCacheTest {
         newCache(executor);
         verify(executor).scheduleAtFixedRate(
                 any(Runnable.class),
-                eq(ServiceCache.EVICTION_DURATION_IN_SECONDS),
-                eq(ServiceCache.EVICTION_DURATION_IN_SECONDS),
-                eq(TimeUnit.SECONDS));
+                eq(ServiceCache.EXPIRY_TICK_IN_MILLIS),
+                eq(ServiceCache.EXPIRY_TICK_IN_MILLIS),
+                eq(TimeUnit.MILLISECONDS));
     }
 
     @Test(expected = NullPointerException.class)
@@ -334,7 +1181,7 @@ public class ServiceCacheTest {
     @Test
     public void testNumIdleUpdatedOnCheckIn() throws Exception {
         ServiceCache<Service> cache = newCache();
-        cache.checkIn(END_POINT, cache.checkOut(END_POINT));
+        cache.checkIn(cache.checkOut(END_POINT));
 
         assertEquals(1, cache.getNumIdleInstances(END_POINT));
     }
@@ -350,7 +1197,7 @@ public class ServiceCacheTest {
     @Test
     public void testIdleServiceNotCountedActive() throws Exception {
         ServiceCache<Service> cache = newCache();
-        cache.checkIn(END_POINT, cache.checkOut(END_POINT));
+        cache.checkIn(cache.checkOut(END_POINT));
 
         assertEquals(0, cache.getNumActiveInstances(END_POINT));
     }
@@ -370,11 +1217,11 @@ public class ServiceCacheTest {
     @Test
     public void testCloseDestroysCachedInstances() throws Exception {
         ServiceCache<Service> cache = newCache();
-        Service service = cache.checkOut(END_POINT);
-        cache.checkIn(END_POINT, service);
+        ServiceHandle<Service> service = cache.checkOut(END_POINT);
+        cache.checkIn(service);
         cache.close();
 
-        verify(_factory).destroy(END_POINT, service);
+        verify(_factory).destroy(END_POINT, service.getService());
     }
 
     @SuppressWarnings("unchecked")
@@ -403,16 +1250,50 @@ public class ServiceCacheTest {
     }
 
     private ServiceCache<Service> newCache() {
-        ServiceCache<Service> cache = new ServiceCache<Service>(_cachingPolicy, _factory);
+        return newCache(mock(ScheduledExecutorService.class));
+    }
+
+    private ServiceCache<Service> newCache(ScheduledExecutorService executor) {
+        return newCache(_cachingPolicy, executor, Ticker.systemTicker());
+    }
+
+    private ServiceCache<Service> newCache(ServiceCachingPolicy policy, ScheduledExecutorService executor,
+                                           Ticker ticker) {
+        // Create and destroy service instances on the calling thread so that tests can check on them right away.
+        return newCache(policy, executor, MoreExecutors.sameThreadExecutor(), ticker);
+    }
+
+    private ServiceCache<Service> newCache(ServiceCachingPolicy policy, ScheduledExecutorService executor,
+                                           Executor destroyExecutor, Ticker ticker) {
+        ServiceCache<Service> cache = new ServiceCache<Service>(policy, _factory, executor,
+                MoreExecutors.sameThreadExecutor(), destroyExecutor, ticker, null, 0);
         _caches.add(cache);
         return cache;
     }
 
-    private ServiceCache<Service> newCache(ScheduledExecutorService executor) {
-        ServiceCache<Service> cache = new ServiceCache<Service>(_cachingPolicy, _factory, executor);
+    private ServiceCache<Service> newCache(ServiceCacheBudget budget, int numReservedServiceInstances) {
+        return newCache(budget, numReservedServiceInstances, Ticker.systemTicker());
+    }
+
+    private ServiceCache<Service> newCache(ServiceCacheBudget budget, int numReservedServiceInstances, Ticker ticker) {
+        ServiceCache<Service> cache = new ServiceCache<Service>(_cachingPolicy, _factory,
+                mock(ScheduledExecutorService.class), MoreExecutors.sameThreadExecutor(),
+                MoreExecutors.sameThreadExecutor(), ticker, budget, numReservedServiceInstances);
         _caches.add(cache);
         return cache;
     }
 
     public static interface Service {}
+
+    private static class EqualService implements Service {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof EqualService;
+        }
+
+        @Override
+        public int hashCode() {
+            return 1;
+        }
+    }
 }
\ No newline at end of file
@@ -31,6 +31,32 @@ public class ServiceCachingPolicyBuilderTest {
         assertEquals(1, builder.build().getMaxNumServiceInstancesPerEndPoint());
     }
     
+    @Test
+    public void testMinNumIdleServiceInstancesPerEndPointSet() {
+        ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
+        builder.withMinNumIdleServiceInstancesPerEndPoint(1);
+
+        assertEquals(1, buildExtended(builder).getMinNumIdleServiceInstancesPerEndPoint());
+    }
+
+    @Test
+    public void testMinNumIdleServiceInstancesPerEndPointDefault() {
+        assertEquals(0, buildExtended(new ServiceCachingPolicyBuilder()).getMinNumIdleServiceInstancesPerEndPoint());
+    }
+
+    @Test
+    public void testSharedServiceInstancesSet() {
+        ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
+        builder.withSharedServiceInstances(2);
+
+        assertEquals(2, buildExtended(builder).getNumSharedServiceInstancesPerEndPoint());
+    }
+
+    @Test
+    public void testSharedServiceInstancesDefault() {
+        assertEquals(0, buildExtended(new ServiceCachingPolicyBuilder()).getNumSharedServiceInstancesPerEndPoint());
+    }
+
     @Test
     public void testMinIdleTimeBeforeEvictionSet() {
         ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
@@ -39,6 +65,64 @@ public class ServiceCachingPolicyBuilderTest {
         assertEquals(10, builder.build().getMaxServiceInstanceIdleTime(TimeUnit.SECONDS));
     }
 
+    @Test
+    public void testMaxWaitTimeSet() {
+        ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
+        builder.withMaxWaitTime(5, TimeUnit.SECONDS);
+
+        assertEquals(5000, buildExtended(builder).getMaxWaitTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testMaxWaitTimeDefault() {
+        assertEquals(0, buildExtended(new ServiceCachingPolicyBuilder()).getMaxWaitTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidMaxWaitTime() {
+        ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
+        builder.withMaxWaitTime(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testMaxServiceInstanceLifetimeSet() {
+        ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
+        builder.withMaxServiceInstanceLifetime(10, TimeUnit.MINUTES);
+
+        assertEquals(600, buildExtended(builder).getMaxServiceInstanceLifetime(TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMaxServiceInstanceLifetimeDefault() {
+        ExtendedServiceCachingPolicy policy = buildExtended(new ServiceCachingPolicyBuilder());
+        assertEquals(0, policy.getMaxServiceInstanceLifetime(TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidMaxServiceInstanceLifetime() {
+        ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
+        builder.withMaxServiceInstanceLifetime(0, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testMaxNumUsesPerServiceInstanceSet() {
+        ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
+        builder.withMaxNumUsesPerServiceInstance(100);
+
+        assertEquals(100, buildExtended(builder).getMaxNumUsesPerServiceInstance());
+    }
+
+    @Test
+    public void testMaxNumUsesPerServiceInstanceDefault() {
+        assertEquals(0, buildExtended(new ServiceCachingPolicyBuilder()).getMaxNumUsesPerServiceInstance());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidMaxNumUsesPerServiceInstance() {
+        ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
+        builder.withMaxNumUsesPerServiceInstance(0);
+    }
+
     @Test(expected = NullPointerException.class)
     public void testNullExhaustionAction() {
         ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
@@ -57,9 +141,57 @@ public class ServiceCachingPolicyBuilderTest {
         builder.withMaxNumServiceInstancesPerEndPoint(-1);
     }
 
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidMinNumIdleServiceInstancesPerEndPoint() {
+        ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
+        builder.withMinNumIdleServiceInstancesPerEndPoint(-1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMinNumIdleServiceInstancesPerEndPointAboveMax() {
+        new ServiceCachingPolicyBuilder()
+                .withMaxNumServiceInstancesPerEndPoint(1)
+                .withMinNumIdleServiceInstancesPerEndPoint(2)
+                .build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidSharedServiceInstances() {
+        ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
+        builder.withSharedServiceInstances(0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSharedServiceInstancesWithMinNumIdle() {
+        new ServiceCachingPolicyBuilder()
+                .withSharedServiceInstances(1)
+                .withMinNumIdleServiceInstancesPerEndPoint(1)
+                .build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWaitWithZeroMaxNumServiceInstances() {
+        new ServiceCachingPolicyBuilder()
+                .withMaxNumServiceInstances(0)
+                .withCacheExhaustionAction(ServiceCachingPolicy.ExhaustionAction.WAIT)
+                .build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWaitWithZeroMaxNumServiceInstancesPerEndPoint() {
+        new ServiceCachingPolicyBuilder()
+                .withMaxNumServiceInstancesPerEndPoint(0)
+                .withCacheExhaustionAction(ServiceCachingPolicy.ExhaustionAction.WAIT)
+                .build();
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testInvalidMaxServiceInstanceIdleTime() {
         ServiceCachingPolicyBuilder builder = new ServiceCachingPolicyBuilder();
         builder.withMaxServiceInstanceIdleTime(0, TimeUnit.MILLISECONDS);
     }
+
+    private static ExtendedServiceCachingPolicy buildExtended(ServiceCachingPolicyBuilder builder) {
+        return (ExtendedServiceCachingPolicy) builder.build();
+    }
 }
@@ -5,6 +5,7 @@ import com.bazaarvoice.soa.HostDiscoverySource;
 import com.bazaarvoice.soa.LoadBalanceAlgorithm;
 import com.bazaarvoice.soa.RetryPolicy;
 import com.bazaarvoice.soa.ServiceFactory;
+import com.bazaarvoice.soa.discovery.SharedHostDiscoverySource;
 import com.bazaarvoice.soa.loadbalance.RandomAlgorithm;
 import com.bazaarvoice.soa.partition.IdentityPartitionFilter;
 import com.bazaarvoice.soa.partition.PartitionFilter;
@@ -16,15 +17,19 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -62,6 +67,11 @@ public class ServicePoolBuilderTest {
         ServicePoolBuilder.create(Service.class).withZooKeeperHostDiscovery(null);
     }
 
+    @Test(expected = NullPointerException.class)
+    public void testNullZooKeeperSnapshotDirectory() {
+        ServicePoolBuilder.create(Service.class).withZooKeeperHostDiscovery(mock(ZooKeeperConnection.class), null);
+    }
+
     @Test(expected = NullPointerException.class)
     public void testNullServiceFactory() {
         ServicePoolBuilder.create(Service.class).withServiceFactory(null);
@@ -82,6 +92,56 @@ public class ServicePoolBuilderTest {
         ServicePoolBuilder.create(Service.class).withAsyncExecutor(null);
     }
 
+    @Test(expected = NullPointerException.class)
+    public void testNullOutlierDetectionPolicy() {
+        ServicePoolBuilder.create(Service.class).withOutlierDetectionPolicy(null);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullHealthCheckPolicy() {
+        ServicePoolBuilder.create(Service.class).withHealthCheckPolicy(null);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullCacheBudget() {
+        ServicePoolBuilder.create(Service.class).withCacheBudget(null, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeCacheBudgetReservation() {
+        ServicePoolBuilder.create(Service.class).withCacheBudget(new ServiceCacheBudget(1), -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCacheBudgetReservationTooLarge() {
+        ServicePoolBuilder.create(Service.class).withCacheBudget(new ServiceCacheBudget(1), 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeSlowStartWindow() {
+        ServicePoolBuilder.create(Service.class).withSlowStart(-1, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullSlowStartUnit() {
+        ServicePoolBuilder.create(Service.class).withSlowStart(1, null);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullPayloadDecoder() {
+        ServicePoolBuilder.create(Service.class).withPayloadDecoder(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroSubsetSize() {
+        ServicePoolBuilder.create(Service.class).withSubsetting(0);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullSubsetClientId() {
+        ServicePoolBuilder.create(Service.class).withSubsetting(10, null);
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testBuildWithNoHostDiscoveryAndNoZooKeeperConnection() {
         ServicePoolBuilder.create(Service.class)
@@ -158,6 +218,22 @@ public class ServicePoolBuilderTest {
         }
     }
 
+    @Test
+    public void testZooKeeperHostDiscoverySharedByConnection() {
+        ZooKeeperConnection connection = mock(ZooKeeperConnection.class);
+        File directory = new File("snapshots");
+
+        SharedHostDiscoverySource source = ServicePoolBuilder.getZooKeeperHostDiscoverySource(connection, null);
+        SharedHostDiscoverySource snapshotSource =
+                ServicePoolBuilder.getZooKeeperHostDiscoverySource(connection, directory);
+
+        assertSame(source, ServicePoolBuilder.getZooKeeperHostDiscoverySource(connection, null));
+        assertSame(snapshotSource, ServicePoolBuilder.getZooKeeperHostDiscoverySource(connection, directory));
+        assertNotSame(source, snapshotSource);
+        assertNotSame(source,
+                ServicePoolBuilder.getZooKeeperHostDiscoverySource(mock(ZooKeeperConnection.class), null));
+    }
+
     @Test
     public void testHostDiscoverySourceOverride() {
         HostDiscovery overrideDiscovery = mock(HostDiscovery.class);
@@ -190,6 +266,47 @@ public class ServicePoolBuilderTest {
         assertSame(_hostDiscovery, pool.getHostDiscovery());
     }
 
+    @Test
+    public void testHostDiscoveryFromSharedSourceClosedWithPool() throws IOException {
+        HostDiscovery sourceDiscovery = mock(HostDiscovery.class);
+        HostDiscoverySource source = mock(HostDiscoverySource.class);
+        when(source.forService(anyString())).thenReturn(sourceDiscovery);
+
+        ServicePoolBuilder.create(Service.class)
+                .withHostDiscoverySource(new SharedHostDiscoverySource(source))
+                .withServiceFactory(_serviceFactory)
+                .withCachingPolicy(_cachingPolicy)
+                .buildInternal()
+                .close();
+        verify(sourceDiscovery).close();
+    }
+
+    @Test
+    public void testHostDiscoveryFromCallerSourceNotClosedWithPool() throws IOException {
+        HostDiscovery sourceDiscovery = mock(HostDiscovery.class);
+        HostDiscoverySource source = mock(HostDiscoverySource.class);
+        when(source.forService(anyString())).thenReturn(sourceDiscovery);
+
+        ServicePoolBuilder.create(Service.class)
+                .withHostDiscoverySource(source)
+                .withServiceFactory(_serviceFactory)
+                .withCachingPolicy(_cachingPolicy)
+                .buildInternal()
+                .close();
+        verify(sourceDiscovery, never()).close();
+    }
+
+    @Test
+    public void testProvidedHostDiscoveryNotClosedWithPool() throws IOException {
+        ServicePoolBuilder.create(Service.class)
+                .withHostDiscovery(_hostDiscovery)
+                .withServiceFactory(_serviceFactory)
+                .withCachingPolicy(_cachingPolicy)
+                .buildInternal()
+                .close();
+        verify(_hostDiscovery, never()).close();
+    }
+
     @Test
     public void testBuildWithNoHealthCheckExecutor() {
         ServicePoolBuilder.create(Service.class)
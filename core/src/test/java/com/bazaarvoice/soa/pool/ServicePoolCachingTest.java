@@ -41,6 +41,7 @@ import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -318,9 +319,39 @@ public class ServicePoolCachingTest {
         }
     }
 
+    @Test
+    public void testPrewarmsKnownEndPoints() {
+        ServiceCachingPolicy cachingPolicy = new ServiceCachingPolicyBuilder()
+                .withMaxNumServiceInstancesPerEndPoint(1)
+                .withMinNumIdleServiceInstancesPerEndPoint(1)
+                .build();
+        newPool(cachingPolicy);
+
+        verify(_serviceFactory, timeout(10000)).create(FOO_ENDPOINT);
+    }
+
+    @Test
+    public void testPrewarmsDiscoveredEndPoints() {
+        ServiceCachingPolicy cachingPolicy = new ServiceCachingPolicyBuilder()
+                .withMaxNumServiceInstancesPerEndPoint(1)
+                .withMinNumIdleServiceInstancesPerEndPoint(1)
+                .build();
+        when(_hostDiscovery.getHosts()).thenReturn(ImmutableList.<ServiceEndPoint>of());
+        newPool(cachingPolicy);
+
+        ArgumentCaptor<HostDiscovery.EndPointListener> listener = ArgumentCaptor.forClass(
+                HostDiscovery.EndPointListener.class);
+        verify(_hostDiscovery).addListener(listener.capture());
+        listener.getValue().onEndPointAdded(FOO_ENDPOINT);
+
+        verify(_serviceFactory, timeout(10000)).create(FOO_ENDPOINT);
+    }
+
     private ServicePool<Service> newPool(ServiceCachingPolicy cachingPolicy) {
-        ServicePool<Service> pool = new ServicePool<Service>(_ticker, _hostDiscovery, _serviceFactory,
-                cachingPolicy, _partitionFilter, _loadBalanceAlgorithm, _healthCheckExecutor, true);
+        ServicePool<Service> pool = new ServicePool<Service>(_ticker, _hostDiscovery, false, _serviceFactory,
+                cachingPolicy, null, 0, OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION,
+                HealthCheckPolicyBuilder.DEFAULT, 0, new EndPointSubset("", 0), null, _partitionFilter,
+                _loadBalanceAlgorithm, _healthCheckExecutor, true);
         _pools.add(pool);
         return pool;
     }
@@ -4,11 +4,18 @@ import com.bazaarvoice.soa.HealthCheckResults;
 import com.bazaarvoice.soa.HostDiscovery;
 import com.bazaarvoice.soa.LoadBalanceAlgorithm;
 import com.bazaarvoice.soa.PartitionContext;
+import com.bazaarvoice.soa.PayloadDecoder;
 import com.bazaarvoice.soa.RetryPolicy;
 import com.bazaarvoice.soa.ServiceCallback;
 import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.bazaarvoice.soa.ServiceEndPoints;
 import com.bazaarvoice.soa.ServiceFactory;
 import com.bazaarvoice.soa.ServicePoolStatistics;
+import com.bazaarvoice.soa.discovery.HostDiscoverySnapshot;
+import com.bazaarvoice.soa.discovery.SnapshotHostDiscovery;
+import com.bazaarvoice.soa.discovery.TopologyDelta;
+import com.bazaarvoice.soa.discovery.TopologyListener;
 import com.bazaarvoice.soa.exceptions.MaxRetriesException;
 import com.bazaarvoice.soa.exceptions.NoAvailableHostsException;
 import com.bazaarvoice.soa.exceptions.NoSuitableHostsException;
@@ -17,7 +24,9 @@ import com.bazaarvoice.soa.exceptions.ServiceException;
 import com.bazaarvoice.soa.partition.PartitionFilter;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import org.junit.After;
@@ -29,17 +38,23 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -49,9 +64,12 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -140,8 +158,9 @@ public class ServicePoolTest {
                 }
         );
 
-        _pool = new ServicePool<Service>(_ticker, _hostDiscovery, _serviceFactory, UNLIMITED_CACHING,
-                _partitionFilter, _loadBalanceAlgorithm, _healthCheckExecutor, true);
+        _pool = new ServicePool<Service>(_ticker, _hostDiscovery, false, _serviceFactory, UNLIMITED_CACHING, null, 0,
+                OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION, HealthCheckPolicyBuilder.DEFAULT, 0,
+                new EndPointSubset("", 0), null, _partitionFilter, _loadBalanceAlgorithm, _healthCheckExecutor, true);
     }
 
     @After
@@ -593,6 +612,121 @@ public class ServicePoolTest {
         assertFalse(_pool.checkForHealthyEndPoint().hasHealthyResult());
     }
 
+    @Test
+    public void testCheckForHealthyEndPointFanOut() throws InterruptedException {
+        // FOO never answers until it's interrupted, the other end points are healthy once FOO's check is running.
+        final CountDownLatch inHealthCheckLatch = new CountDownLatch(1);
+        final CountDownLatch interruptedLatch = new CountDownLatch(1);
+        when(_serviceFactory.isHealthy(any(ServiceEndPoint.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+                return inHealthCheckLatch.await(10, TimeUnit.SECONDS);
+            }
+        });
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                inHealthCheckLatch.countDown();
+
+                synchronized (this) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        interruptedLatch.countDown();
+                    }
+                }
+
+                return false;
+            }
+        }).when(_serviceFactory).isHealthy(FOO_ENDPOINT);
+
+        HealthCheckPolicy healthCheckPolicy = new HealthCheckPolicyBuilder()
+                .withHealthyEndPointCheckFanOut(3)
+                .build();
+        ServicePool<Service> pool = newPool(OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION, healthCheckPolicy);
+
+        HealthCheckResults results = pool.checkForHealthyEndPoint();
+        assertTrue(results.hasHealthyResult());
+        assertTrue(Iterables.isEmpty(results.getUnhealthyResults()));
+
+        // The health check of FOO is abandoned once a healthy end point is found, and FOO isn't considered bad.
+        assertTrue(interruptedLatch.await(10, TimeUnit.SECONDS));
+        assertEquals(0, pool.getNumBadEndPoints());
+
+        pool.close();
+    }
+
+    @Test
+    public void testCheckForHealthyEndPointResultsCached() {
+        final AtomicLong now = new AtomicLong();
+        when(_ticker.read()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                return now.get();
+            }
+        });
+        when(_serviceFactory.isHealthy(any(ServiceEndPoint.class))).thenReturn(true);
+
+        HealthCheckPolicy healthCheckPolicy = new HealthCheckPolicyBuilder()
+                .withHealthyEndPointCheckCacheTtl(10, TimeUnit.SECONDS)
+                .build();
+        ServicePool<Service> pool = newPool(OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION, healthCheckPolicy);
+
+        HealthCheckResults results = pool.checkForHealthyEndPoint();
+        assertTrue(results.hasHealthyResult());
+
+        // Within the TTL callers share the same results without health checking again.
+        now.set(TimeUnit.SECONDS.toNanos(9));
+        assertSame(results, pool.checkForHealthyEndPoint());
+        verify(_serviceFactory, times(1)).isHealthy(any(ServiceEndPoint.class));
+
+        // Once the TTL passes end points are health checked again.
+        now.set(TimeUnit.SECONDS.toNanos(10));
+        assertTrue(pool.checkForHealthyEndPoint() != results);
+        verify(_serviceFactory, times(2)).isHealthy(any(ServiceEndPoint.class));
+
+        pool.close();
+    }
+
+    @Test
+    public void testConcurrentCheckForHealthyEndPointShared() throws Exception {
+        final CountDownLatch inHealthCheck = new CountDownLatch(1);
+        final CountDownLatch finishHealthCheck = new CountDownLatch(1);
+        when(_serviceFactory.isHealthy(any(ServiceEndPoint.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                inHealthCheck.countDown();
+                finishHealthCheck.await();
+                return true;
+            }
+        });
+
+        HealthCheckPolicy healthCheckPolicy = new HealthCheckPolicyBuilder()
+                .withHealthyEndPointCheckCacheTtl(10, TimeUnit.SECONDS)
+                .build();
+        final ServicePool<Service> pool =
+                newPool(OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION, healthCheckPolicy);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Callable<HealthCheckResults> check = new Callable<HealthCheckResults>() {
+            @Override
+            public HealthCheckResults call() throws Exception {
+                return pool.checkForHealthyEndPoint();
+            }
+        };
+        Future<HealthCheckResults> first = executor.submit(check);
+        assertTrue(inHealthCheck.await(10, TimeUnit.SECONDS));
+
+        // A caller that arrives while the first one's health check is in progress waits for its results.
+        Future<HealthCheckResults> second = executor.submit(check);
+        finishHealthCheck.countDown();
+        assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+        verify(_serviceFactory, times(1)).isHealthy(any(ServiceEndPoint.class));
+
+        executor.shutdown();
+        pool.close();
+    }
+
     @Test
     public void testCancelsPeriodicHealthCheckAfterClose() {
         // Future shouldn't be used until after we close...
@@ -793,6 +927,154 @@ public class ServicePoolTest {
         assertTrue(_pool.getBadEndPoints().isEmpty());
     }
 
+    @Test
+    public void testTopologyChangesAppliedInBatches() {
+        SnapshotHostDiscovery hostDiscovery = mock(SnapshotHostDiscovery.class);
+        when(hostDiscovery.getHosts()).thenReturn(ImmutableList.of(FOO_ENDPOINT));
+        when(hostDiscovery.getSnapshot()).thenReturn(new HostDiscoverySnapshot(0, ImmutableList.of(FOO_ENDPOINT)));
+        ServicePool<Service> pool = new ServicePool<Service>(_ticker, hostDiscovery, false, _serviceFactory,
+                UNLIMITED_CACHING, null, 0, OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION,
+                HealthCheckPolicyBuilder.DEFAULT, 0, new EndPointSubset("", 0), null, _partitionFilter,
+                _loadBalanceAlgorithm, _healthCheckExecutor, false);
+
+        ArgumentCaptor<TopologyListener> listener = ArgumentCaptor.forClass(TopologyListener.class);
+        verify(hostDiscovery).addTopologyListener(listener.capture());
+        verify(hostDiscovery, never()).addListener(any(HostDiscovery.EndPointListener.class));
+
+        // Make it so that FOO is considered bad...
+        try {
+            pool.execute(NEVER_RETRY, new ServiceCallback<Service, Void>() {
+                @Override
+                public Void call(Service service) throws ServiceException {
+                    throw new ServiceException();
+                }
+            });
+            fail();  // should have propagated service exception
+        } catch (MaxRetriesException e) {
+            // Expected
+        }
+        assertEquals(ImmutableSet.of(FOO_ENDPOINT), pool.getBadEndPoints());
+
+        // ...then have it removed along with other changes in one batch.
+        listener.getValue().onTopologyChanged(new TopologyDelta(ImmutableList.of(BAR_ENDPOINT),
+                ImmutableList.of(FOO_ENDPOINT), ImmutableList.<ServiceEndPoint>of(),
+                new HostDiscoverySnapshot(1, ImmutableList.of(BAR_ENDPOINT))));
+        assertTrue(pool.getBadEndPoints().isEmpty());
+
+        pool.close();
+        verify(hostDiscovery).removeTopologyListener(listener.getValue());
+    }
+
+    @Test
+    public void testEndPointsRebuiltOnlyWhenSnapshotChanges() {
+        SnapshotHostDiscovery hostDiscovery = mock(SnapshotHostDiscovery.class);
+        when(hostDiscovery.getSnapshot()).thenReturn(new HostDiscoverySnapshot(0, ImmutableList.of(FOO_ENDPOINT)));
+        ServicePool<Service> pool = new ServicePool<Service>(_ticker, hostDiscovery, false, _serviceFactory,
+                UNLIMITED_CACHING, null, 0, OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION,
+                HealthCheckPolicyBuilder.DEFAULT, 0, new EndPointSubset("", 0), null, _partitionFilter,
+                _loadBalanceAlgorithm, _healthCheckExecutor, false);
+
+        List<ServiceEndPoint> endPoints = pool.getAllEndPoints();
+        assertSame(endPoints, pool.getAllEndPoints());
+
+        when(hostDiscovery.getSnapshot()).thenReturn(
+                new HostDiscoverySnapshot(1, ImmutableList.of(FOO_ENDPOINT, BAR_ENDPOINT)));
+        assertEquals(ImmutableList.of(FOO_ENDPOINT, BAR_ENDPOINT), pool.getAllEndPoints());
+        pool.close();
+    }
+
+    @Test
+    public void testSubsetLimitsEndPoints() {
+        EndPointSubset subset = new EndPointSubset("client", 1);
+        ServicePool<Service> pool = newSubsetPool(subset);
+
+        assertEquals(1, subset.getEndPoints().size());
+        assertEquals(subset.getEndPoints(), ImmutableSet.copyOf(pool.getValidEndPoints()));
+        assertEquals(1, pool.getNumValidEndPoints());
+        pool.close();
+    }
+
+    @Test
+    public void testRequestsLeaveSubsetWhenAllOfItIsBad() {
+        EndPointSubset subset = new EndPointSubset("client", 1);
+        ServicePool<Service> pool = newSubsetPool(subset);
+        ServiceEndPoint member = Iterables.getOnlyElement(subset.getEndPoints());
+
+        // The request goes to the only end point of the subset, which is marked bad when it fails.
+        failOnce(pool);
+        assertEquals(1, pool.getNumBadEndPoints());
+
+        Service service = pool.execute(NEVER_RETRY, new ServiceCallback<Service, Service>() {
+            @Override
+            public Service call(Service service) throws ServiceException {
+                return service;
+            }
+        });
+        assertNotSame(_serviceFactory.create(member), service);
+        assertFalse(pool.getValidEndPoints().contains(member));
+        assertEquals(1, pool.getNumValidEndPoints());
+        pool.close();
+    }
+
+    @Test
+    public void testSubsetUpdatedWhenEndPointRemoved() {
+        EndPointSubset subset = new EndPointSubset("client", 1);
+        ServicePool<Service> pool = newSubsetPool(subset);
+        ArgumentCaptor<HostDiscovery.EndPointListener> listener =
+                ArgumentCaptor.forClass(HostDiscovery.EndPointListener.class);
+        verify(_hostDiscovery, atLeastOnce()).addListener(listener.capture());
+
+        ServiceEndPoint removed = Iterables.getOnlyElement(subset.getEndPoints());
+        List<ServiceEndPoint> remaining = Lists.newArrayList(FOO_ENDPOINT, BAR_ENDPOINT, BAZ_ENDPOINT);
+        remaining.remove(removed);
+        when(_hostDiscovery.getHosts()).thenReturn(remaining);
+        listener.getValue().onEndPointRemoved(removed);
+
+        ServiceEndPoint replacement = Iterables.getOnlyElement(pool.getValidEndPoints());
+        assertTrue(remaining.contains(replacement));
+        assertEquals(ImmutableSet.of(replacement), subset.getEndPoints());
+        pool.close();
+    }
+
+    @Test
+    public void testPayloadDecodedOnceAndHandedOut() {
+        ServiceEndPoint endPoint = new ServiceEndPointBuilder()
+                .withServiceName(Service.class.getSimpleName())
+                .withId("server:8080")
+                .withPayload("payload")
+                .build();
+        when(_hostDiscovery.getHosts()).thenReturn(ImmutableList.of(endPoint));
+        when(_serviceFactory.create(any(ServiceEndPoint.class))).thenReturn(FOO_SERVICE);
+        final AtomicInteger numDecodes = new AtomicInteger();
+        PayloadDecoder<String> decoder = new PayloadDecoder<String>() {
+            @Override
+            public String decode(ServiceEndPoint endPoint) {
+                numDecodes.incrementAndGet();
+                return endPoint.getPayload().toUpperCase();
+            }
+        };
+        ServicePool<Service> pool = new ServicePool<Service>(_ticker, _hostDiscovery, false, _serviceFactory,
+                ServiceCachingPolicyBuilder.NO_CACHING, null, 0, OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION,
+                HealthCheckPolicyBuilder.DEFAULT, 0, new EndPointSubset("", 0), decoder, _partitionFilter,
+                _loadBalanceAlgorithm, _healthCheckExecutor, false);
+
+        for (int i = 0; i < 3; i++) {
+            pool.execute(NEVER_RETRY, new ServiceCallback<Service, Void>() {
+                @Override
+                public Void call(Service service) throws ServiceException {
+                    return null;
+                }
+            });
+        }
+        assertEquals(1, numDecodes.get());
+
+        ArgumentCaptor<ServiceEndPoint> created = ArgumentCaptor.forClass(ServiceEndPoint.class);
+        verify(_serviceFactory, times(3)).create(created.capture());
+        assertEquals(endPoint, created.getValue());
+        assertEquals("PAYLOAD", ServiceEndPoints.getDecodedPayload(created.getValue(), String.class));
+        pool.close();
+    }
+
     @Test
     public void testIsHealthyHandlesExceptions() {
         when(_serviceFactory.isHealthy(FOO_ENDPOINT)).thenThrow(new RuntimeException());
@@ -809,9 +1091,10 @@ public class ServicePoolTest {
 
     @Test
     public void testDoesNotShutdownHealthCheckExecutorOnClose() {
-        ServicePool<Service> pool = new ServicePool<Service>(_ticker, _hostDiscovery, _serviceFactory,
-                ServiceCachingPolicyBuilder.NO_CACHING, _partitionFilter, _loadBalanceAlgorithm, _healthCheckExecutor,
-                false);
+        ServicePool<Service> pool = new ServicePool<Service>(_ticker, _hostDiscovery, false, _serviceFactory,
+                ServiceCachingPolicyBuilder.NO_CACHING, null, 0, OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION,
+                HealthCheckPolicyBuilder.DEFAULT, 0, new EndPointSubset("", 0), null, _partitionFilter,
+                _loadBalanceAlgorithm, _healthCheckExecutor, false);
         pool.close();
 
         verify(_healthCheckExecutor, never()).shutdown();
@@ -820,9 +1103,10 @@ public class ServicePoolTest {
 
     @Test
     public void testDoesShutdownHealthCheckExecutorOnClose() {
-        ServicePool<Service> pool = new ServicePool<Service>(_ticker, _hostDiscovery, _serviceFactory,
-                ServiceCachingPolicyBuilder.NO_CACHING, _partitionFilter, _loadBalanceAlgorithm, _healthCheckExecutor,
-                true);
+        ServicePool<Service> pool = new ServicePool<Service>(_ticker, _hostDiscovery, false, _serviceFactory,
+                ServiceCachingPolicyBuilder.NO_CACHING, null, 0, OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION,
+                HealthCheckPolicyBuilder.DEFAULT, 0, new EndPointSubset("", 0), null, _partitionFilter,
+                _loadBalanceAlgorithm, _healthCheckExecutor, true);
         pool.close();
 
         verify(_healthCheckExecutor, never()).shutdown();
@@ -854,9 +1138,10 @@ public class ServicePoolTest {
         // Redefine the end points that HostDiscovery knows about to be only FOO
         when(_hostDiscovery.getHosts()).thenReturn(ImmutableList.of(FOO_ENDPOINT));
 
-        ServicePool<Service> pool = new ServicePool<Service>(_ticker, _hostDiscovery, _serviceFactory,
-                ServiceCachingPolicyBuilder.NO_CACHING, _partitionFilter, _loadBalanceAlgorithm,
-                Executors.newScheduledThreadPool(1), true);
+        ServicePool<Service> pool = new ServicePool<Service>(_ticker, _hostDiscovery, false, _serviceFactory,
+                ServiceCachingPolicyBuilder.NO_CACHING, null, 0, OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION,
+                HealthCheckPolicyBuilder.DEFAULT, 0, new EndPointSubset("", 0), null, _partitionFilter,
+                _loadBalanceAlgorithm, Executors.newScheduledThreadPool(1), true);
 
         // Make it so that FOO needs to be health checked...
         try {
@@ -880,6 +1165,297 @@ public class ServicePoolTest {
         assertTrue(interruptedLatch.await(10, TimeUnit.SECONDS));
     }
 
+    @Test
+    public void testHealthCheckTimesOut() throws InterruptedException {
+        // Make it so that when we health check FOO that we block until an interrupted exception occurs
+        final CountDownLatch interruptedLatch = new CountDownLatch(1);
+        when(_serviceFactory.isHealthy(FOO_ENDPOINT)).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                synchronized (this) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        interruptedLatch.countDown();
+                    }
+                }
+
+                return true;
+            }
+        });
+
+        HealthCheckPolicy healthCheckPolicy = new HealthCheckPolicyBuilder()
+                .withHealthCheckTimeout(10, TimeUnit.MILLISECONDS)
+                .build();
+        ServicePool<Service> pool = newPool(OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION, healthCheckPolicy);
+
+        // A health check that doesn't answer in time is unhealthy, and gets interrupted.
+        assertFalse(pool.checkHealth(FOO_ENDPOINT).isHealthy());
+        assertTrue(interruptedLatch.await(10, TimeUnit.SECONDS));
+
+        pool.close();
+    }
+
+    @Test
+    public void testBatchHealthChecksRunInParallel() {
+        // Exhaust all of the end points...
+        int numEndPointsAvailable = Iterables.size(_hostDiscovery.getHosts());
+        for (int i = 0; i < numEndPointsAvailable; i++) {
+            try {
+                _pool.execute(NEVER_RETRY, new ServiceCallback<Service, Void>() {
+                    @Override
+                    public Void call(Service service) throws ServiceException {
+                        throw new ServiceException();
+                    }
+                });
+                fail();  // should have propagated service exception
+            } catch (MaxRetriesException e) {
+                // Expected
+            }
+        }
+        assertEquals(numEndPointsAvailable, _pool.getNumBadEndPoints());
+
+        // Each health check only succeeds if every end point is being health checked at the same time.
+        final CountDownLatch allChecksStarted = new CountDownLatch(numEndPointsAvailable);
+        when(_serviceFactory.isHealthy(any(ServiceEndPoint.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+                allChecksStarted.countDown();
+                return allChecksStarted.await(5, TimeUnit.SECONDS);
+            }
+        });
+
+        // Capture the BatchHealthChecks runnable that was registered with the executor so that we can execute it.
+        ArgumentCaptor<Runnable> check = ArgumentCaptor.forClass(Runnable.class);
+        verify(_healthCheckExecutor).scheduleAtFixedRate(check.capture(), anyLong(), anyLong(), any(TimeUnit.class));
+        check.getValue().run();
+
+        assertEquals(0, _pool.getNumBadEndPoints());
+    }
+
+    @Test
+    public void testAdaptiveRechecksBackOff() {
+        when(_hostDiscovery.getHosts()).thenReturn(ImmutableList.of(FOO_ENDPOINT));
+
+        final AtomicLong now = new AtomicLong();
+        when(_ticker.read()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                return now.get();
+            }
+        });
+
+        HealthCheckPolicy healthCheckPolicy = new HealthCheckPolicyBuilder()
+                .withAdaptiveRechecks(1, 4, TimeUnit.SECONDS)
+                .withRecheckJitter(0)
+                .build();
+        ServicePool<Service> pool = newPool(OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION, healthCheckPolicy);
+
+        // Make it so that FOO is considered bad...
+        try {
+            pool.execute(NEVER_RETRY, new ServiceCallback<Service, Void>() {
+                @Override
+                public Void call(Service service) throws ServiceException {
+                    throw new ServiceException();
+                }
+            });
+            fail();
+        } catch (MaxRetriesException e) {
+            // Expected
+        }
+        verify(_healthCheckExecutor, never()).submit(any(com.bazaarvoice.soa.pool.ServicePool.HealthCheck.class));
+
+        ArgumentCaptor<Runnable> check = ArgumentCaptor.forClass(Runnable.class);
+        verify(_healthCheckExecutor).scheduleAtFixedRate(check.capture(),
+                eq(com.bazaarvoice.soa.pool.ServicePool.RECHECK_WHEEL_TICK_IN_MILLIS),
+                eq(com.bazaarvoice.soa.pool.ServicePool.RECHECK_WHEEL_TICK_IN_MILLIS),
+                eq(TimeUnit.MILLISECONDS));
+        Runnable recheck = check.getValue();
+
+        // Re-checked after 1s, then 2s later, then 4s later, then capped at 4s.
+        long[] recheckTimesInMillis = {1000, 3000, 7000, 11000};
+        for (int i = 0; i < recheckTimesInMillis.length; i++) {
+            now.set(TimeUnit.MILLISECONDS.toNanos(recheckTimesInMillis[i] - 1));
+            recheck.run();
+            verify(_serviceFactory, times(i)).isHealthy(FOO_ENDPOINT);
+
+            now.set(TimeUnit.MILLISECONDS.toNanos(recheckTimesInMillis[i]));
+            recheck.run();
+            verify(_serviceFactory, times(i + 1)).isHealthy(FOO_ENDPOINT);
+        }
+        assertEquals(1, pool.getNumBadEndPoints());
+
+        // Once FOO is healthy again it returns to rotation.
+        when(_serviceFactory.isHealthy(FOO_ENDPOINT)).thenReturn(true);
+        now.set(TimeUnit.MILLISECONDS.toNanos(15000));
+        recheck.run();
+        assertEquals(0, pool.getNumBadEndPoints());
+
+        pool.close();
+    }
+
+    @Test
+    public void testPassiveProbesReinstateBadEndPoint() {
+        HealthCheckPolicy healthCheckPolicy = new HealthCheckPolicyBuilder()
+                .withPassiveHealthChecks(2, 2)
+                .build();
+        ServicePool<Service> pool = newPool(OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION, healthCheckPolicy);
+
+        // Make it so that FOO is considered bad...
+        failOnce(pool);
+        assertEquals(ImmutableSet.of(FOO_ENDPOINT), pool.getBadEndPoints());
+
+        // Every other request goes to FOO, and two successes in a row return it to rotation.
+        List<Service> usedServices = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            usedServices.add(pool.execute(NEVER_RETRY, new ServiceCallback<Service, Service>() {
+                @Override
+                public Service call(Service service) throws ServiceException {
+                    return service;
+                }
+            }));
+        }
+        assertEquals(ImmutableList.of(BAR_SERVICE, FOO_SERVICE, BAR_SERVICE, FOO_SERVICE), usedServices);
+        assertEquals(0, pool.getNumBadEndPoints());
+
+        pool.close();
+    }
+
+    @Test
+    public void testPassiveProbeFailureResetsSuccesses() {
+        HealthCheckPolicy healthCheckPolicy = new HealthCheckPolicyBuilder()
+                .withPassiveHealthChecks(1, 2)
+                .build();
+        ServicePool<Service> pool = newPool(OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION, healthCheckPolicy);
+        ServiceCallback<Service, Service> succeed = new ServiceCallback<Service, Service>() {
+            @Override
+            public Service call(Service service) throws ServiceException {
+                return service;
+            }
+        };
+
+        failOnce(pool);
+
+        // Every request goes to FOO, but a failure in between successes keeps it bad.
+        assertSame(FOO_SERVICE, pool.execute(NEVER_RETRY, succeed));
+        failOnce(pool);
+        assertSame(FOO_SERVICE, pool.execute(NEVER_RETRY, succeed));
+        assertEquals(1, pool.getNumBadEndPoints());
+
+        assertSame(FOO_SERVICE, pool.execute(NEVER_RETRY, succeed));
+        assertEquals(0, pool.getNumBadEndPoints());
+
+        pool.close();
+    }
+
+    @Test
+    public void testSlowStartLimitsTrafficToNewEndPoint() {
+        ServicePool<Service> pool = new ServicePool<Service>(_ticker, _hostDiscovery, false, _serviceFactory,
+                UNLIMITED_CACHING, null, 0, OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION,
+                HealthCheckPolicyBuilder.DEFAULT, TimeUnit.SECONDS.toMillis(10), new EndPointSubset("", 0), null,
+                _partitionFilter, _loadBalanceAlgorithm, _healthCheckExecutor, false);
+
+        ArgumentCaptor<HostDiscovery.EndPointListener> listener =
+                ArgumentCaptor.forClass(HostDiscovery.EndPointListener.class);
+        verify(_hostDiscovery, atLeastOnce()).addListener(listener.capture());
+        listener.getValue().onEndPointAdded(FOO_ENDPOINT);
+
+        // The load balancer always picks FOO when it's offered, but while FOO warms up it's rarely offered.
+        ServiceCallback<Service, Service> callback = new ServiceCallback<Service, Service>() {
+            @Override
+            public Service call(Service service) throws ServiceException {
+                return service;
+            }
+        };
+        int numFooRequests = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (pool.execute(NEVER_RETRY, callback) == FOO_SERVICE) {
+                numFooRequests++;
+            }
+        }
+        assertTrue(numFooRequests < 500);
+
+        pool.close();
+    }
+
+    private ServicePool<Service> newPool(OutlierDetectionPolicy outlierDetectionPolicy,
+                                         HealthCheckPolicy healthCheckPolicy) {
+        return new ServicePool<Service>(_ticker, _hostDiscovery, false, _serviceFactory, UNLIMITED_CACHING, null, 0,
+                outlierDetectionPolicy, healthCheckPolicy, 0, new EndPointSubset("", 0), null, _partitionFilter,
+                _loadBalanceAlgorithm, _healthCheckExecutor, false);
+    }
+
+    private ServicePool<Service> newSubsetPool(EndPointSubset subset) {
+        // Subsets are chosen by end point ID.
+        when(FOO_ENDPOINT.getId()).thenReturn("foo");
+        when(BAR_ENDPOINT.getId()).thenReturn("bar");
+        when(BAZ_ENDPOINT.getId()).thenReturn("baz");
+
+        return new ServicePool<Service>(_ticker, _hostDiscovery, false, _serviceFactory, UNLIMITED_CACHING, null, 0,
+                OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION, HealthCheckPolicyBuilder.DEFAULT, 0, subset, null,
+                _partitionFilter, _loadBalanceAlgorithm, _healthCheckExecutor, false);
+    }
+
+    private void failOnce(ServicePool<Service> pool) {
+        try {
+            pool.execute(NEVER_RETRY, new ServiceCallback<Service, Void>() {
+                @Override
+                public Void call(Service service) throws ServiceException {
+                    throw new ServiceException();
+                }
+            });
+            fail();
+        } catch (MaxRetriesException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testBatchHealthChecksRespectConcurrencyLimit() {
+        final AtomicInteger numRunning = new AtomicInteger();
+        final AtomicInteger maxNumRunning = new AtomicInteger();
+        when(_serviceFactory.isHealthy(any(ServiceEndPoint.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+                int running = numRunning.incrementAndGet();
+                synchronized (maxNumRunning) {
+                    maxNumRunning.set(Math.max(maxNumRunning.get(), running));
+                }
+                Thread.sleep(10);
+                numRunning.decrementAndGet();
+                return true;
+            }
+        });
+
+        HealthCheckPolicy healthCheckPolicy = new HealthCheckPolicyBuilder()
+                .withMaxNumConcurrentHealthChecks(1)
+                .build();
+        ServicePool<Service> pool = newPool(OutlierDetectionPolicyBuilder.NO_OUTLIER_DETECTION, healthCheckPolicy);
+
+        int numEndPointsAvailable = Iterables.size(_hostDiscovery.getHosts());
+        for (int i = 0; i < numEndPointsAvailable; i++) {
+            try {
+                pool.execute(NEVER_RETRY, new ServiceCallback<Service, Void>() {
+                    @Override
+                    public Void call(Service service) throws ServiceException {
+                        throw new ServiceException();
+                    }
+                });
+                fail();  // should have propagated service exception
+            } catch (MaxRetriesException e) {
+                // Expected
+            }
+        }
+
+        ArgumentCaptor<Runnable> check = ArgumentCaptor.forClass(Runnable.class);
+        verify(_healthCheckExecutor, atLeastOnce())
+                .scheduleAtFixedRate(check.capture(), anyLong(), anyLong(), any(TimeUnit.class));
+        check.getValue().run();
+
+        assertEquals(1, maxNumRunning.get());
+        pool.close();
+    }
+
     @Test
     public void testValidEndPointCount() {
         assertEquals(3, _pool.getNumValidEndPoints());
@@ -913,6 +1489,142 @@ public class ServicePoolTest {
         assertEquals(2, _pool.getNumBadEndPoints());
     }
 
+    @Test
+    public void testPanicModeRoutesToBadEndPoints() {
+        ServicePool<Service> pool = newPool(new OutlierDetectionPolicyBuilder().withPanicThresholdPercent(50).build(),
+                HealthCheckPolicyBuilder.DEFAULT);
+
+        // Make FOO and BAR bad, leaving fewer than half of the end points valid.
+        for (int i = 0; i < 2; i++) {
+            try {
+                pool.execute(NEVER_RETRY, new ServiceCallback<Service, Void>() {
+                    @Override
+                    public Void call(Service service) throws ServiceException {
+                        throw new ServiceException();
+                    }
+                });
+                fail();
+            } catch (MaxRetriesException e) {
+                // Expected
+            }
+        }
+        assertEquals(1, pool.getNumValidEndPoints());
+
+        // In panic mode the bad FOO end point is a candidate again, and the load balancer always picks the first.
+        Service usedService = pool.execute(NEVER_RETRY, new ServiceCallback<Service, Service>() {
+            @Override
+            public Service call(Service service) throws ServiceException {
+                return service;
+            }
+        });
+        assertSame(FOO_SERVICE, usedService);
+        pool.close();
+    }
+
+    @Test
+    public void testSlowOutlierEjectedAndReturned() throws Exception {
+        List<ServiceEndPoint> endPoints = Lists.newArrayList();
+        for (int i = 0; i < OutlierDetector.MIN_NUM_END_POINTS; i++) {
+            endPoints.add(mock(ServiceEndPoint.class));
+        }
+        when(_hostDiscovery.getHosts()).thenReturn(endPoints);
+        when(_serviceFactory.create(any(ServiceEndPoint.class))).thenReturn(FOO_SERVICE);
+
+        final AtomicLong now = new AtomicLong();
+        when(_ticker.read()).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                return now.get();
+            }
+        });
+
+        OutlierDetectionPolicy policy = new OutlierDetectionPolicyBuilder()
+                .withEjectionLimitPercent(20)
+                .withMinRequestVolume(1)
+                .withEjectionTime(30, TimeUnit.SECONDS)
+                .build();
+        ServicePool<Service> pool = newPool(policy, HealthCheckPolicyBuilder.DEFAULT);
+
+        ServiceEndPoint slow = endPoints.get(0);
+        for (ServiceEndPoint endPoint : endPoints) {
+            final long latency = (endPoint == slow) ? 1000 : 10;
+            pool.executeOnEndPoint(endPoint, new ServiceCallback<Service, Void>() {
+                @Override
+                public Void call(Service service) throws ServiceException {
+                    now.addAndGet(latency);
+                    return null;
+                }
+            });
+        }
+
+        // Capture the outlier detection runnable that was registered with the executor so that we can execute it.
+        ArgumentCaptor<Runnable> check = ArgumentCaptor.forClass(Runnable.class);
+        verify(_healthCheckExecutor, atLeastOnce()).scheduleAtFixedRate(check.capture(), anyLong(), anyLong(),
+                any(TimeUnit.class));
+        Runnable outlierDetection = Iterables.getOnlyElement(
+                Iterables.filter(check.getAllValues(), com.bazaarvoice.soa.pool.ServicePool.OutlierDetection.class));
+
+        outlierDetection.run();
+        assertEquals(ImmutableSet.of(slow), pool.getEjectedEndPoints());
+        assertEquals(endPoints.size() - 1, pool.getNumValidEndPoints());
+
+        // Once the ejection time passes the end point is returned to rotation.
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        outlierDetection.run();
+        assertTrue(pool.getEjectedEndPoints().isEmpty());
+        pool.close();
+    }
+
+    @Test
+    public void testFailingOutlierEjectedFromSmallPool() throws Exception {
+        List<ServiceEndPoint> endPoints = Lists.newArrayList();
+        for (int i = 0; i < OutlierDetector.MIN_NUM_END_POINTS; i++) {
+            endPoints.add(mock(ServiceEndPoint.class));
+        }
+        when(_hostDiscovery.getHosts()).thenReturn(endPoints);
+        when(_serviceFactory.create(any(ServiceEndPoint.class))).thenReturn(FOO_SERVICE);
+        when(_serviceFactory.isRetriableException(any(Exception.class))).thenReturn(false);
+
+        // 10% of 5 end points rounds down to 0, but one end point may still be ejected.
+        OutlierDetectionPolicy policy = new OutlierDetectionPolicyBuilder()
+                .withEjectionLimitPercent(10)
+                .withMinRequestVolume(1)
+                .build();
+        ServicePool<Service> pool = newPool(policy, HealthCheckPolicyBuilder.DEFAULT);
+
+        final ServiceEndPoint failing = endPoints.get(0);
+        for (final ServiceEndPoint endPoint : endPoints) {
+            for (int i = 0; i < 10; i++) {
+                try {
+                    pool.executeOnEndPoint(endPoint, new ServiceCallback<Service, Void>() {
+                        @Override
+                        public Void call(Service service) throws ServiceException {
+                            if (endPoint == failing) {
+                                throw new ServiceException();
+                            }
+                            return null;
+                        }
+                    });
+                } catch (ServiceException e) {
+                    // Expected
+                }
+            }
+        }
+
+        // A non-retriable failure doesn't mark the end point as bad, so it's up to outlier detection to eject it.
+        assertTrue(pool.getBadEndPoints().isEmpty());
+
+        ArgumentCaptor<Runnable> check = ArgumentCaptor.forClass(Runnable.class);
+        verify(_healthCheckExecutor, atLeastOnce()).scheduleAtFixedRate(check.capture(), anyLong(), anyLong(),
+                any(TimeUnit.class));
+        Runnable outlierDetection = Iterables.getOnlyElement(
+                Iterables.filter(check.getAllValues(), com.bazaarvoice.soa.pool.ServicePool.OutlierDetection.class));
+
+        outlierDetection.run();
+        assertEquals(ImmutableSet.of(failing), pool.getEjectedEndPoints());
+        pool.close();
+    }
+
     // A dummy interface for testing...
     private static interface Service {
     }
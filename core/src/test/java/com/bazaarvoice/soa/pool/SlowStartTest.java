@@ -0,0 +1,121 @@
+package com.bazaarvoice.soa.pool;
+
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SlowStartTest {
+    private static final ServiceEndPoint FOO = mock(ServiceEndPoint.class);
+    private static final ServiceEndPoint BAR = mock(ServiceEndPoint.class);
+    private static final List<ServiceEndPoint> END_POINTS = ImmutableList.of(FOO, BAR);
+
+    private long _now;
+    private Random _random;
+    private SlowStart _slowStart;
+
+    @Before
+    public void setup() {
+        _now = 0;
+        _random = mock(Random.class);
+        _slowStart = new SlowStart(new Ticker() {
+            @Override
+            public long read() {
+                return _now;
+            }
+        }, 10, TimeUnit.SECONDS, _random);
+    }
+
+    @Test
+    public void testFullWeightByDefault() {
+        assertEquals(1, _slowStart.getWeight(FOO), 0);
+    }
+
+    @Test
+    public void testWeightRampsUp() {
+        _slowStart.start(FOO);
+        assertEquals(SlowStart.INITIAL_WEIGHT, _slowStart.getWeight(FOO), 1e-9);
+
+        _now = TimeUnit.SECONDS.toNanos(5);
+        assertEquals(SlowStart.INITIAL_WEIGHT + (1 - SlowStart.INITIAL_WEIGHT) / 2, _slowStart.getWeight(FOO), 1e-9);
+
+        _now = TimeUnit.SECONDS.toNanos(10);
+        assertEquals(1, _slowStart.getWeight(FOO), 0);
+        assertEquals(0, _slowStart.getNumWarmingEndPoints());
+    }
+
+    @Test
+    public void testWarmingEndPointsExpireWithoutBeingChosen() {
+        _slowStart.start(FOO);
+        _now = TimeUnit.SECONDS.toNanos(5);
+        _slowStart.start(BAR);
+        assertEquals(2, _slowStart.getNumWarmingEndPoints());
+
+        // Neither end point's weight is asked for, but the window of the first one has ended.
+        _now = TimeUnit.SECONDS.toNanos(10);
+        assertEquals(1, _slowStart.getNumWarmingEndPoints());
+
+        _now = TimeUnit.SECONDS.toNanos(15);
+        assertEquals(0, _slowStart.getNumWarmingEndPoints());
+    }
+
+    @Test
+    public void testRestart() {
+        _slowStart.start(FOO);
+        _now = TimeUnit.SECONDS.toNanos(9);
+        _slowStart.start(FOO);
+
+        assertEquals(SlowStart.INITIAL_WEIGHT, _slowStart.getWeight(FOO), 1e-9);
+    }
+
+    @Test
+    public void testForget() {
+        _slowStart.start(FOO);
+        _slowStart.forget(FOO);
+
+        assertEquals(1, _slowStart.getWeight(FOO), 0);
+    }
+
+    @Test
+    public void testNoWindow() {
+        _slowStart = new SlowStart(Ticker.systemTicker(), 0, TimeUnit.SECONDS, _random);
+        _slowStart.start(FOO);
+
+        assertEquals(1, _slowStart.getWeight(FOO), 0);
+        assertEquals(0, _slowStart.getNumWarmingEndPoints());
+    }
+
+    @Test
+    public void testFilterLeavesOutWarmingEndPoint() {
+        _slowStart.start(FOO);
+        when(_random.nextDouble()).thenReturn(SlowStart.INITIAL_WEIGHT);
+
+        assertEquals(ImmutableList.of(BAR), ImmutableList.copyOf(_slowStart.filter(END_POINTS)));
+    }
+
+    @Test
+    public void testFilterKeepsWarmingEndPoint() {
+        _slowStart.start(FOO);
+        when(_random.nextDouble()).thenReturn(SlowStart.INITIAL_WEIGHT / 2);
+
+        assertEquals(END_POINTS, ImmutableList.copyOf(_slowStart.filter(END_POINTS)));
+    }
+
+    @Test
+    public void testFilterNeverLeavesOutEverything() {
+        _slowStart.start(FOO);
+        _slowStart.start(BAR);
+        when(_random.nextDouble()).thenReturn(0.99);
+
+        assertEquals(END_POINTS, ImmutableList.copyOf(_slowStart.filter(END_POINTS)));
+    }
+}
@@ -0,0 +1,56 @@
+package com.bazaarvoice.soa.pool;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedCounterTest {
+    @Test
+    public void testStartsAtZero() {
+        assertEquals(0, new StripedCounter().get());
+    }
+
+    @Test
+    public void testIncrement() {
+        StripedCounter counter = new StripedCounter();
+        counter.increment();
+        counter.increment();
+
+        assertEquals(2, counter.get());
+    }
+
+    @Test
+    public void testConcurrentIncrementsAreNotLost() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> futures = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j = 0; j < 10000; j++) {
+                            counter.increment();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(80000, counter.get());
+    }
+}
@@ -0,0 +1,126 @@
+package com.bazaarvoice.soa.pool;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelTest {
+    private static final long TICK_NANOS = 100;
+    private static final int NUM_BUCKETS = 8;
+
+    private long _now;
+    private TimingWheel<String> _wheel;
+
+    @Before
+    public void setup() {
+        _now = 0;
+        _wheel = new TimingWheel<String>(new Ticker() {
+            @Override
+            public long read() {
+                return _now;
+            }
+        }, TICK_NANOS, TimeUnit.NANOSECONDS, NUM_BUCKETS);
+    }
+
+    @Test
+    public void testNothingExpiresBeforeDeadline() {
+        _wheel.schedule("a", 250, TimeUnit.NANOSECONDS);
+
+        _now = 249;
+        assertTrue(_wheel.advance().isEmpty());
+        assertTrue(_wheel.isScheduled("a"));
+    }
+
+    @Test
+    public void testExpiresAtDeadline() {
+        _wheel.schedule("a", 250, TimeUnit.NANOSECONDS);
+
+        _now = 250;
+        assertEquals(ImmutableList.of("a"), _wheel.advance());
+        assertFalse(_wheel.isScheduled("a"));
+        assertTrue(_wheel.advance().isEmpty());
+    }
+
+    @Test
+    public void testDeadlineBeyondOneRotation() {
+        long delay = TICK_NANOS * NUM_BUCKETS * 3 + 50;
+        _wheel.schedule("a", delay, TimeUnit.NANOSECONDS);
+
+        // Advance one tick at a time so that the item's bucket is visited on every rotation.
+        for (_now = 0; _now < delay; _now += TICK_NANOS) {
+            assertTrue(_wheel.advance().isEmpty());
+        }
+
+        _now = delay;
+        assertEquals(ImmutableList.of("a"), _wheel.advance());
+    }
+
+    @Test
+    public void testLongPauseExpiresEverythingDue() {
+        _wheel.schedule("a", 150, TimeUnit.NANOSECONDS);
+        _wheel.schedule("b", 550, TimeUnit.NANOSECONDS);
+        _wheel.schedule("c", TICK_NANOS * NUM_BUCKETS * 10, TimeUnit.NANOSECONDS);
+
+        _now = TICK_NANOS * NUM_BUCKETS * 5;
+        assertEquals(ImmutableSet.of("a", "b"), ImmutableSet.copyOf(_wheel.advance()));
+        assertEquals(1, _wheel.size());
+    }
+
+    @Test
+    public void testScheduleIntoCurrentTick() {
+        _now = 1000;
+        _wheel.advance();
+
+        // Scheduled into the tick that was just processed, must still be seen by the next advance.
+        _wheel.schedule("a", 10, TimeUnit.NANOSECONDS);
+        _now = 1010;
+        assertEquals(ImmutableList.of("a"), _wheel.advance());
+    }
+
+    @Test
+    public void testRescheduleReplacesDeadline() {
+        _wheel.schedule("a", 150, TimeUnit.NANOSECONDS);
+        _wheel.schedule("a", 450, TimeUnit.NANOSECONDS);
+        assertEquals(1, _wheel.size());
+
+        _now = 200;
+        assertTrue(_wheel.advance().isEmpty());
+
+        _now = 450;
+        assertEquals(ImmutableList.of("a"), _wheel.advance());
+    }
+
+    @Test
+    public void testCancel() {
+        _wheel.schedule("a", 150, TimeUnit.NANOSECONDS);
+
+        assertTrue(_wheel.cancel("a"));
+        assertFalse(_wheel.cancel("a"));
+
+        _now = 1000;
+        assertTrue(_wheel.advance().isEmpty());
+    }
+
+    @Test
+    public void testNegativeTickerValues() {
+        _now = -12345;
+        _wheel = new TimingWheel<String>(new Ticker() {
+            @Override
+            public long read() {
+                return _now;
+            }
+        }, TICK_NANOS, TimeUnit.NANOSECONDS, NUM_BUCKETS);
+        _wheel.schedule("a", 150, TimeUnit.NANOSECONDS);
+
+        _now += 150;
+        assertEquals(ImmutableList.of("a"), _wheel.advance());
+    }
+}
@@ -2,6 +2,7 @@ package com.bazaarvoice.soa.registry;
 
 import com.bazaarvoice.soa.ServiceEndPoint;
 import com.bazaarvoice.soa.ServiceEndPointBuilder;
+import com.bazaarvoice.soa.ServiceEndPoints;
 import com.bazaarvoice.soa.ServiceEndPointJsonCodec;
 import com.bazaarvoice.zookeeper.ZooKeeperConnection;
 import com.bazaarvoice.zookeeper.recipes.ZooKeeperPersistentEphemeralNode;
@@ -125,6 +126,24 @@ public class ZooKeeperServiceRegistryTest {
         verify(node, never()).close(anyLong(), any(TimeUnit.class));
     }
 
+    @Test
+    public void testRegisterWithZone() throws Exception {
+        ZooKeeperPersistentEphemeralNode node = mock(ZooKeeperPersistentEphemeralNode.class);
+        when(_nodeFactory.create(anyString(), any(byte[].class))).thenReturn(node);
+        ServiceEndPoint endPoint = new ServiceEndPointBuilder()
+                .withServiceName(FOO.getServiceName())
+                .withId(FOO.getId())
+                .withZone("us-east-1a")
+                .build();
+
+        _registry.register(endPoint);
+
+        ArgumentCaptor<byte[]> dataCaptor = ArgumentCaptor.forClass(byte[].class);
+        verify(_nodeFactory).create(eq(FOO_PATH), dataCaptor.capture());
+        ServiceEndPoint registered = ServiceEndPointJsonCodec.fromJson(new String(dataCaptor.getValue()));
+        assertEquals("us-east-1a", ServiceEndPoints.getZone(registered));
+    }
+
     @Test
     public void testDuplicateRegister() throws Exception {
         ZooKeeperPersistentEphemeralNode firstNode = mock(ZooKeeperPersistentEphemeralNode.class);
@@ -17,7 +17,7 @@ public class DictionaryClient implements DictionaryService {
     private final UriBuilder _service;
 
     public DictionaryClient(ServiceEndPoint endPoint, Client jerseyClient) {
-        this(Payload.valueOf(endPoint.getPayload()).getServiceUrl(), jerseyClient);
+        this(Payload.of(endPoint).getServiceUrl(), jerseyClient);
     }
 
     public DictionaryClient(URI endPoint, Client jerseyClient) {
@@ -16,7 +16,7 @@ public class DictionaryPartitionFilter implements PartitionFilter {
         return Iterables.filter(endPoints, new Predicate<ServiceEndPoint>() {
             @Override
             public boolean apply(ServiceEndPoint endPoint) {
-                return Payload.valueOf(endPoint.getPayload()).getPartition().apply(word);
+                return Payload.of(endPoint).getPartition().apply(word);
             }
         });
     }
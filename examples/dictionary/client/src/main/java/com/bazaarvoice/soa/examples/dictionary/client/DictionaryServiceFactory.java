@@ -51,9 +51,11 @@ public class DictionaryServiceFactory implements ServiceFactory<DictionaryServic
 
     @Override
     public void configure(ServicePoolBuilder<DictionaryService> servicePoolBuilder) {
-        // Set up partitioning on the builder.
+        // Set up partitioning on the builder.  The partition filter looks at the payload of every end point on every
+        // request, so have the pool parse payloads once up front.
         servicePoolBuilder.withPartitionFilter(new DictionaryPartitionFilter())
-                .withPartitionContextAnnotationsFrom(DictionaryClient.class);
+                .withPartitionContextAnnotationsFrom(DictionaryClient.class)
+                .withPayloadDecoder(Payload.DECODER);
     }
 
     @Override
@@ -76,7 +78,7 @@ public class DictionaryServiceFactory implements ServiceFactory<DictionaryServic
 
     @Override
     public boolean isHealthy(ServiceEndPoint endPoint) {
-        URI adminUrl = Payload.valueOf(endPoint.getPayload()).getAdminUrl();
+        URI adminUrl = Payload.of(endPoint).getAdminUrl();
         return _client.resource(adminUrl).path("/healthcheck").head().getStatus() == 200;
     }
 }
@@ -1,5 +1,9 @@
 package com.bazaarvoice.soa.examples.dictionary.client;
 
+import com.bazaarvoice.soa.PayloadDecoder;
+import com.bazaarvoice.soa.ServiceEndPoint;
+import com.bazaarvoice.soa.ServiceEndPoints;
+
 import java.net.URI;
 import java.util.Map;
 
@@ -17,6 +21,23 @@ public class Payload {
     private final URI _adminUrl;
     private final WordRange _partition;
 
+    /** Parses payloads once per end point when the service pool discovers it, see {@link #of(ServiceEndPoint)}. */
+    public static final PayloadDecoder<Payload> DECODER = new PayloadDecoder<Payload>() {
+        @Override
+        public Payload decode(ServiceEndPoint endPoint) {
+            return valueOf(endPoint.getPayload());
+        }
+    };
+
+    /**
+     * Returns the payload of an end point, which was already parsed if the service pool was built with
+     * {@link #DECODER}.
+     */
+    public static Payload of(ServiceEndPoint endPoint) {
+        Payload payload = ServiceEndPoints.getDecodedPayload(endPoint, Payload.class);
+        return (payload != null) ? payload : valueOf(endPoint.getPayload());
+    }
+
     public static Payload valueOf(String string) {
         Map<?, ?> map = JsonHelper.fromJson(string, Map.class);
         URI serviceUri = URI.create((String) checkNotNull(map.get("url"), "url"));
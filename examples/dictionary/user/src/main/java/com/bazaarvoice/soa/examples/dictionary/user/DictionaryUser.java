@@ -82,11 +82,10 @@ public class DictionaryUser {
 
         ZooKeeperConnection zooKeeper = configuration.getZooKeeperConfiguration().connect();
 
-        // Connection caching is optional, but included here for the sake of demonstration.
+        // Connection caching is optional, but included here for the sake of demonstration.  The Jersey client used by
+        // DictionaryClient is thread-safe, so a single instance per end point can be shared by every caller.
         ServiceCachingPolicy cachingPolicy = new ServiceCachingPolicyBuilder()
-                .withMaxNumServiceInstances(10)
-                .withMaxNumServiceInstancesPerEndPoint(1)
-                .withMaxServiceInstanceIdleTime(5, TimeUnit.MINUTES)
+                .withSharedServiceInstances(1)
                 .build();
 
         // The service is partitioned, but partition filtering is configured by the ServiceFactory in this case